@@ -16,8 +16,14 @@
 
 package org.dataconservancy.pass.grant.cli;
 
+import org.dataconservancy.pass.grant.data.DefaultPassUpdater;
 import org.dataconservancy.pass.grant.data.GrantConnector;
+import org.dataconservancy.pass.grant.data.GrantQuery;
+import org.dataconservancy.pass.grant.data.PassUpdateException;
 import org.dataconservancy.pass.grant.data.PassUpdater;
+import org.dataconservancy.pass.grant.data.PlanApplier;
+import org.dataconservancy.pass.grant.data.PullFile;
+import org.dataconservancy.pass.grant.data.RecordCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,18 +35,24 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import static java.lang.String.format;
 import static org.dataconservancy.pass.grant.cli.DataLoaderErrors.*;
+import static org.dataconservancy.pass.grant.data.DateTimeUtil.createJodaDateTime;
 import static org.dataconservancy.pass.grant.data.DateTimeUtil.verifyDate;
 import static org.dataconservancy.pass.grant.data.DateTimeUtil.verifyDateTimeFormat;
 
@@ -62,7 +74,7 @@ abstract class BaseGrantLoaderApp {
     private EmailService emailService;
 
     private final File appHome;
-    private String startDate;
+    private final String startDate;
     private final String awardEndDate;
     private File updateTimestampsFile;
     private final boolean email;
@@ -71,6 +83,14 @@ abstract class BaseGrantLoaderApp {
     private final String dataFileName;
     private boolean local = false;
     private boolean timestamp = false;
+    //the number of shards a pull is split into, or a load is one of; and which shard a load takes, counting from 1
+    private int shards = 1;
+    private int shard = 0;
+    //a daemon runs the app again and again, keeping its connector and updater, and their caches, between runs
+    private boolean daemon = false;
+    private GrantConnector connector;
+    private List<Properties> connectorConfiguration;
+    private PassUpdater passUpdater;
 
     private final String updateTimestampsFileName;
 
@@ -80,8 +100,9 @@ abstract class BaseGrantLoaderApp {
      * @param email - a boolean which indicates whether or not to send email notification of the result of the current run
      * @param mode - a String indicating whether we are updating grants, or existing users in PASS
      * @param action - a String indicating an optional restriction to just pulling data from the data source, and saving a serialized
-     *               version to a file, or just taking serialized data in a file and loading it into PASS
-     * @param dataFileName - a String representing the path to an output file for a pull, or input for a load
+     *               version to a file, or just taking serialized data in a file and loading it into PASS; or to planning the
+     *               changes to PASS and writing them to a plan file, or applying a plan file to PASS
+     * @param dataFileName - a String representing the path to an output file for a pull or a plan, or input for a load or an apply
      */
     BaseGrantLoaderApp(String startDate, String awardEndDate, boolean email, String mode, String action, String dataFileName) {
         this.appHome = new File(System.getProperty("COEUS_HOME"));
@@ -118,7 +139,8 @@ abstract class BaseGrantLoaderApp {
 
         //let's be careful about overwriting system properties
         String[] systemProperties = {"pass.fedora.user", "pass.fedora.password", "pass.fedora.baseurl",
-        "pass.elasticsearch.url", "pass.elasticsearch.limit"};
+        "pass.elasticsearch.url", "pass.elasticsearch.limit", "pass.updater.workers", "pass.updater.patches",
+        "pass.updater.streaming", "pass.updater.sort.budget"};
 
         updateTimestampsFile = new File(appHome, updateTimestampsFileName);
         Properties connectionProperties;
@@ -131,10 +153,19 @@ abstract class BaseGrantLoaderApp {
         }
 
         //check that we have a good value for action
-        if (!action.equals("") && !action.equals("pull") && !action.equals("load")) {
+        if (!action.equals("") && !action.equals("pull") && !action.equals("load") && !action.equals("plan")
+                && !action.equals("apply")) {
             throw processException(format(ERR_ACTION_NOT_VALID,action), null);
         }
 
+        //a pull is split into shards, and a load takes one of them
+        if (shard > 0 ? !action.equals("load") : shards > 1 && !action.equals("pull")) {
+            throw processException(ERR_SHARDS_ACTION, null);
+        }
+        if (shard == 0 && shards > 1 && shardField(mode) == null) {
+            throw processException(format(ERR_SHARDS_NOT_SUPPORTED, mode), null);
+        }
+
         //first check that we have the required files
         if (!appHome.exists()) {
             throw processException(ERR_HOME_DIRECTORY_NOT_FOUND, null);
@@ -155,7 +186,7 @@ abstract class BaseGrantLoaderApp {
         }
 
         //check suitability of our input file
-        if(action.equals("load")) {
+        if(action.equals("load") || action.equals("apply")) {
             if (!dataFile.exists()) {
                 throw processException(format(ERR_REQUIRED_DATA_FILE_MISSING, dataFileName), null);
             } else if (!dataFile.canRead()) {
@@ -176,6 +207,12 @@ abstract class BaseGrantLoaderApp {
             }
         }
 
+        //applying a plan writes what was planned - there is no data source to consult
+        if (action.equals("apply")) {
+            applyPlan(dataFile);
+            return;
+        }
+
         //create connection properties - check for a user-space defined clear text file - need this for both pull and load
         if (!connectionPropertiesFile.exists()) {
             throw processException(format(ERR_REQUIRED_CONFIGURATION_FILE_MISSING, connectionPropertiesFileName), null);
@@ -198,12 +235,13 @@ abstract class BaseGrantLoaderApp {
             }
 
 
-        List<Map<String,String>> resultSet;
+        RecordCursor resultSet;
 
         //now do things;
         if (!action.equals("load")) {//action includes a pull - need to build a result set
             //establish the start dateTime - it is either given as an option, or it is
             //the last entry in the update_timestamps file
+            String queryStartDate = startDate;
 
             if (mode.equals("grant") || mode.equals("user")) {//these aren't used for "funder"
                 if (startDate != null) {
@@ -212,9 +250,9 @@ abstract class BaseGrantLoaderApp {
                             throw processException(format(ERR_INVALID_COMMAND_LINE_TIMESTAMP, startDate), null);
                         }
                     } else {
-                        startDate = getLatestTimestamp();
-                        if (!verifyDateTimeFormat(startDate)) {
-                            throw processException(format(ERR_INVALID_TIMESTAMP, startDate), null);
+                        queryStartDate = getLatestTimestamp();
+                        if (!verifyDateTimeFormat(queryStartDate)) {
+                            throw processException(format(ERR_INVALID_TIMESTAMP, queryStartDate), null);
                         }
                     }
                 }
@@ -225,33 +263,36 @@ abstract class BaseGrantLoaderApp {
                 }
             }
 
-            GrantConnector connector = configureConnector(connectionProperties, policyProperties);
-            String queryString = connector.buildQueryString(startDate, awardEndDate, mode);
+            //a connector is kept between the runs of a daemon unless its configuration has changed
+            List<Properties> configuration = Arrays.asList(connectionProperties, policyProperties);
+            if (connector == null || !configuration.equals(connectorConfiguration)) {
+                connector = configureConnector(connectionProperties, policyProperties);
+                connectorConfiguration = configuration;
+            }
+            GrantQuery query = connector.buildQueryString(queryStartDate, awardEndDate, mode);
 
             //special case for when we process funders, but do not want to consult COEUS -
             //just use local properties file to map funders to policies
             if (mode.equals("funder") && local) {
-                queryString = null;
+                query = null;
             }
 
             try {
-                resultSet = connector.retrieveUpdates(queryString, mode);
+                resultSet = connector.openUpdates(query, mode);
             } catch (ClassNotFoundException e) {
                 throw processException(ERR_ORACLE_DRIVER_NOT_FOUND, e);
             } catch (SQLException e) {
                 throw processException(ERR_SQL_EXCEPTION, e);
             } catch (RuntimeException e) {
-                throw processException("Runtime Exception", e);
+                throw processCursorException(e);
             } catch (IOException e) {
                 throw processException(ERR_DIRECTORY_LOOKUP_ERROR, e);
             }
         } else {//just doing a PASS load, must have results set in the data file
-            try (FileInputStream fis = new FileInputStream(dataFile);
-                 ObjectInputStream in = new ObjectInputStream(fis)
-                ) {
-                resultSet = Collections.unmodifiableList((List<Map<String, String>>) in.readObject());
-            } catch (IOException | ClassNotFoundException | ClassCastException ex) {
-                throw processException(ERR_DATA_FILE_CANNOT_READ, ex);
+            try {
+                resultSet = shard > 0 ? PullFile.open(dataFile.toPath(), shard, shards) : PullFile.open(dataFile.toPath());
+            } catch (IOException ex) {
+                throw processException(format(ERR_DATA_FILE_CANNOT_READ, dataFileName), ex);
             }
         }
 
@@ -259,60 +300,166 @@ abstract class BaseGrantLoaderApp {
             throw processException(ERR_RESULT_SET_NULL, null);
         }
 
-        //update PASS if required
-        if (!action.equals("pull")) {
-            PassUpdater passUpdater = configureUpdater();
-            try {
-                passUpdater.updatePass(resultSet, mode);
-            } catch (RuntimeException e) {
-                throw processException("Runtime Exception", e);
-            }
+        //update PASS if required - records are consumed as they are pulled from the data source
+        try (RecordCursor records = resultSet) {
+            if (!action.equals("pull")) {
+                if (passUpdater == null) {
+                    passUpdater = configureUpdater();
+                }
+                if (passUpdater instanceof DefaultPassUpdater) {//we have no use for the grants once they are written
+                    ((DefaultPassUpdater) passUpdater).setRetainGrants(false);
+                }
+                if (shard > 0 && passUpdater instanceof DefaultPassUpdater) {//other shards may be loading beside us
+                    ((DefaultPassUpdater) passUpdater).setShard(shard, shards);
+                }
+                if (action.equals("plan")) {//write the changes to a plan file instead of to PASS
+                    if (!(passUpdater instanceof DefaultPassUpdater)) {
+                        throw processException(format(ERR_PLAN_NOT_SUPPORTED, mode), null);
+                    }
+                    ((DefaultPassUpdater) passUpdater).setPlanFile(dataFile.toPath());
+                }
+                try {
+                    passUpdater.updatePass(records, mode);
+                } catch (RuntimeException e) {
+                    throw processCursorException(e);
+                }
 
-            //apparently the hard part has succeeded, let's write the timestamp to our update timestamps file
-            if (timestamp) {
-                String updateTimestamp = passUpdater.getLatestUpdate();
-                if (verifyDateTimeFormat(updateTimestamp)) {
-                    try {
-                        appendLineToFile(updateTimestampsFile, passUpdater.getLatestUpdate());
-                    } catch (IOException e) {
-                        throw processException(format(ERR_COULD_NOT_APPEND_UPDATE_TIMESTAMP, passUpdater.getLatestUpdate()), null);
+                //apparently the hard part has succeeded, let's write the timestamp to our update timestamps file
+                //a plan has not been written to PASS yet - its timestamp is written when it is applied
+                if (timestamp && !action.equals("plan")) {
+                    String updateTimestamp = passUpdater.getLatestUpdate();
+                    if (shard > 0) {
+                        recordShardTimestamp(updateTimestamp);
+                    } else if (verifyDateTimeFormat(updateTimestamp)) {
+                        try {
+                            appendLineToFile(updateTimestampsFile, passUpdater.getLatestUpdate());
+                        } catch (IOException e) {
+                            throw processException(format(ERR_COULD_NOT_APPEND_UPDATE_TIMESTAMP, passUpdater.getLatestUpdate()), null);
+                        }
                     }
                 }
+                //the update is complete and its watermark recorded, so there is nothing left for a later run to resume
+                if (!action.equals("plan") && passUpdater instanceof DefaultPassUpdater) {
+                    ((DefaultPassUpdater) passUpdater).commitJournal();
+                }
+                //now everything succeeded - log this result and send email if enabled
+                String message = passUpdater.getReport();
+                if (connector != null) {
+                    message = message + "\n" + connector.getReport();
+                }
+                LOG.info(message);
+                System.out.println(message);
+                if (email && !daemon) {//a daemon only sends word of its failures
+                    emailService.sendEmailMessage("Grant Loader Data Pull SUCCESS", message);
+                }
+            } else {//don't need to update, just write the result set out to the data file
+                //the rows are written as they are pulled; a name ending in .gz has them compressed
+                long size;
+                try (PullFile.Writer writer = PullFile.create(dataFile.toPath(), dataFileName.endsWith(".gz"),
+                        shardField(mode), shards)) {
+                    for (Map<String, String> row : records) {
+                        writer.write(row);
+                    }
+                    writer.commit();
+                    size = writer.getRows();
+                } catch (RuntimeException e) {
+                    throw processCursorException(e);
+                } catch (IOException e) {
+                    throw processException(format(ERR_DATA_FILE_CANNOT_WRITE, dataFileName), e);
+                }
+                //do some notification
+                StringBuilder sb = new StringBuilder();
+                sb.append("Wrote result set for ");
+                sb.append(size);
+                sb.append(" ");
+                sb.append(mode);
+                sb.append(" record");
+                sb.append((size==1?"":"s")); //handle plural correctly
+                sb.append(" into file ");
+                sb.append(dataFileName);
+                if (shards > 1) {
+                    sb.append(" in ");
+                    sb.append(shards);
+                    sb.append(" shards");
+                }
+                sb.append("\n");
+                if (connector != null) {
+                    sb.append("\n");
+                    sb.append(connector.getReport());
+                }
+                String message = sb.toString();
+                LOG.info(message);
+                System.out.println(message);
+                if (email) {
+                    emailService.sendEmailMessage("Grant Data Loader SUCCESS", message);
+                }
             }
-            //now everything succeeded - log this result and send email if enabled
-            String message = passUpdater.getReport();
-            LOG.info(message);
-            System.out.println(message);
-            if (email) {
-                emailService.sendEmailMessage("Grant Loader Data Pull SUCCESS", message);
-            }
-        } else {//don't need to update, just write the result set out to the data file
-            try (FileOutputStream fos = new FileOutputStream(dataFile);
-                 ObjectOutputStream out  = new ObjectOutputStream(fos)
-            ) {
-                out.writeObject(resultSet);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            //do some notification
-            int size = resultSet.size();
-            StringBuilder sb = new StringBuilder();
-            sb.append("Wrote result set for ");
-            sb.append(size);
-            sb.append(" ");
-            sb.append(mode);
-            sb.append(" record");
-            sb.append((size==1?"":"s")); //handle plural correctly
-            sb.append(" into file ");
-            sb.append(dataFileName);
-            sb.append("\n");
-            String message = sb.toString();
-            LOG.info(message);
-            System.out.println(message);
-            if (email) {
-                emailService.sendEmailMessage("Grant Data Loader SUCCESS", message);
+        }
+    }
+
+    /**
+     * Apply a change plan made by an earlier run with the "plan" action, and record the timestamp of the records it
+     * was made from. A plan which was partly applied by an earlier run is resumed.
+     * @param planFile - the plan {@code File}
+     * @throws PassCliException if the plan could not be read, or was made in another mode, or could not be applied
+     */
+    private void applyPlan(File planFile) throws PassCliException {
+        PlanApplier applier = new PlanApplier(planFile.toPath());
+        try {
+            applier.load();
+        } catch (IOException e) {
+            throw processException(format(ERR_PLAN_CANNOT_READ, dataFileName), e);
+        }
+        if (!mode.equals(applier.getMode())) {
+            throw processException(format(ERR_PLAN_MODE_MISMATCH, dataFileName, applier.getMode(), mode), null);
+        }
+        try {
+            applier.apply();
+        } catch (IOException e) {
+            throw processException(format(ERR_PLAN_CANNOT_READ, dataFileName), e);
+        } catch (RuntimeException e) {
+            throw processCursorException(e);
+        }
+
+        if (timestamp) {
+            String updateTimestamp = applier.getLatestUpdate();
+            if (verifyDateTimeFormat(updateTimestamp)) {
+                try {
+                    appendLineToFile(updateTimestampsFile, updateTimestamp);
+                } catch (IOException e) {
+                    throw processException(format(ERR_COULD_NOT_APPEND_UPDATE_TIMESTAMP, updateTimestamp), null);
+                }
             }
         }
+        String message = applier.getReport();
+        LOG.info(message);
+        System.out.println(message);
+        if (email) {
+            emailService.sendEmailMessage("Grant Loader Plan Apply SUCCESS", message);
+        }
+    }
+
+    /**
+     * Cursors report errors raised while reading from the data source as a {@code RuntimeException} wrapping the
+     * underlying cause. This method maps these onto our usual error messages
+     * @param e - the RuntimeException
+     * @return = the {@code PassCliException} wrapper
+     */
+    private PassCliException processCursorException(RuntimeException e) {
+        if (e instanceof PassUpdateException) {
+            return processException(format(ERR_PASS_UPDATE_FAILED, e.getMessage()), e);
+        } else if (e instanceof PullFile.ReadException) {//the data file was damaged or cut short
+            return processException(format(ERR_DATA_FILE_CANNOT_READ, dataFileName), e);
+        } else if (e instanceof UncheckedIOException && action.equals("plan")) {//the change plan could not be written
+            return processException(format(ERR_PLAN_CANNOT_WRITE, dataFileName), e);
+        } else if (e instanceof UncheckedIOException) {//the grant rows could not be sorted on disk
+            return processException(format(ERR_SORT_FAILED, e.getMessage()), e);
+        } else if (e.getCause() instanceof SQLException) {
+            return processException(ERR_SQL_EXCEPTION, e);
+        } else if (e.getCause() instanceof IOException) {
+            return processException(ERR_DIRECTORY_LOOKUP_ERROR, e);
+        }
+        return processException("Runtime Exception", e);
     }
 
     /**
@@ -380,6 +527,53 @@ abstract class BaseGrantLoaderApp {
         fbw.close();
     }
 
+    /**
+     * Record the latest update timestamp of a shard which has been loaded. The timestamp of the pull is only appended
+     * to the update timestamps file once every shard of it has been loaded, since the next pull must not skip the
+     * records of a shard which has not. Each shard leaves its timestamp in a file beside the pull file, and the last
+     * shard to finish appends the latest of them. Shards loaded at the same time by other processes take turns at
+     * this, holding a lock on a file beside the pull file, so that only one of them finds every shard loaded.
+     * @param updateTimestamp the latest update timestamp of the shard's records
+     * @throws PassCliException if the timestamps could not be written or read
+     */
+    private void recordShardTimestamp(String updateTimestamp) throws PassCliException {
+        try (FileChannel lockFile = FileChannel.open(Paths.get(dataFileName + ".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = lockFile.lock();
+            try {
+                Files.write(shardDoneFile(shard), updateTimestamp.getBytes(StandardCharsets.UTF_8));
+                String latest = "";
+                for (int i = 1; i <= shards; i++) {
+                    Path done = shardDoneFile(i);
+                    if (!Files.exists(done)) {
+                        LOG.info("Shard {} of {} has not been loaded yet, so the update timestamp is not recorded", i,
+                                shards);
+                        return;
+                    }
+                    String shardTimestamp = new String(Files.readAllBytes(done), StandardCharsets.UTF_8).trim();
+                    if (verifyDateTimeFormat(shardTimestamp) && (latest.isEmpty()
+                            || createJodaDateTime(shardTimestamp).isAfter(createJodaDateTime(latest)))) {
+                        latest = shardTimestamp;
+                    }
+                }
+                if (!latest.isEmpty()) {
+                    appendLineToFile(updateTimestampsFile, latest);
+                }
+                for (int i = 1; i <= shards; i++) {
+                    Files.deleteIfExists(shardDoneFile(i));
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw processException(format(ERR_COULD_NOT_APPEND_UPDATE_TIMESTAMP, updateTimestamp), e);
+        }
+    }
+
+    private Path shardDoneFile(int shard) {
+        return Paths.get(dataFileName + "." + shard + "-of-" + shards + ".done");
+    }
+
     /**
      * This method logs the supplied message and exception, reports the {@code Exception} to STDOUT, and
      * optionally causes an email regarding this {@code Exception} to be sent to the address configured
@@ -418,6 +612,50 @@ abstract class BaseGrantLoaderApp {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Have this app run again and again by a daemon. It only sends email when a run fails
+     * @param daemon true if the app is run by a daemon
+     */
+    void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    /**
+     * @return the mode this app runs in
+     */
+    String getMode() {
+        return mode;
+    }
+
+    /**
+     * Split a pull into shards
+     * @param shards the number of shards
+     */
+    void setShards(int shards) {
+        this.shards = shards;
+        this.shard = 0;
+    }
+
+    /**
+     * Load one shard of a pull which was split into shards
+     * @param shard the shard, counting from 1
+     * @param shards the number of shards the pull was split into
+     */
+    void setShard(int shard, int shards) {
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * The field a pull in a mode is split into shards on. Every row with the same value of the field is in the same
+     * shard - override in child classes which support sharded pulls
+     * @param mode the mode
+     * @return the field, or null if pulls in this mode cannot be split
+     */
+    String shardField(String mode) {
+        return null;
+    }
+
     /**
      * This method determines which objects may be updated - override in child classes
      * @param s the string for the mode
@@ -27,6 +27,9 @@ class DataLoaderErrors {
     static String ERR_COULD_NOT_OPEN_CONFIGURATION_FILE = "Could not open configuration file";
     static String ERR_REQUIRED_DATA_FILE_MISSING = "Data file %s does not exist";
     static String ERR_DATA_FILE_CANNOT_READ = "Could not read data file %s";
+    static String ERR_DATA_FILE_CANNOT_WRITE = "Could not write data file %s";
+    static String ERR_SHARDS_NOT_SUPPORTED = "A pull in %s mode cannot be split into shards";
+    static String ERR_SHARDS_ACTION = "Only a pull can be split into shards, and only a load can take one shard";
     static String ERR_INVALID_COMMAND_LINE_TIMESTAMP = "An invalid timestamp was specified on the command line: %s. Please make sure it" +
         " is of the form yyyy-mm-dd hh:mm:ss.m{mm}";
     static String ERR_INVALID_TIMESTAMP = "An invalid timestamp was found at the last line of the update timestamp file. Please make sure it" +
@@ -36,7 +39,13 @@ class DataLoaderErrors {
     static String ERR_SQL_EXCEPTION = "An SQL error occurred querying the grant data source";
     static String ERR_ORACLE_DRIVER_NOT_FOUND = "Could not find the oracle db driver on classpath.";
     static String ERR_MODE_NOT_VALID = "%s is not a valid mode - must be either \"grant\" or \"user\"";
-    static String ERR_ACTION_NOT_VALID = "%s is not a valid action - must be either \"pull\" or \"load\"";
+    static String ERR_ACTION_NOT_VALID = "%s is not a valid action - must be one of \"pull\", \"load\", \"plan\" or \"apply\"";
     static String ERR_DIRECTORY_LOOKUP_ERROR = "Error looking up Hopkins ID from employee ID";
+    static String ERR_PASS_UPDATE_FAILED = "Some records could not be written to PASS, so the update timestamp was not recorded: %s";
+    static String ERR_PLAN_NOT_SUPPORTED = "Changes cannot be planned in %s mode by this loader";
+    static String ERR_PLAN_CANNOT_WRITE = "Could not write change plan %s";
+    static String ERR_PLAN_CANNOT_READ = "Could not read change plan %s, or record the progress of applying it";
+    static String ERR_PLAN_MODE_MISMATCH = "Change plan %s was made in %s mode, not %s mode";
+    static String ERR_SORT_FAILED = "Could not sort the grant rows on disk: %s";
     static String ERR_RESULT_SET_NULL = "The result set was null - either the data pull failed, or there was an error reading the result set from the data file";
 }
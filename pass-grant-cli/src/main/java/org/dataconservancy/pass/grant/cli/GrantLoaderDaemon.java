@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.cli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the loader again and again, in the same JVM, so that it can sync every few minutes rather than nightly. Each
+ * cycle runs an app for each mode in turn - grants, say, then users - and each app pulls the records updated since
+ * the timestamp it recorded at the end of its last successful run, just as a run from the command line would. The
+ * next cycle starts a fixed interval after the last one ends, so cycles never overlap.
+ *
+ * The apps are kept between cycles, and with them their connectors and updaters: the connection pool, the directory,
+ * identity and fingerprint caches, and the HTTP clients stay warm, as does the JIT. A connector is rebuilt if its
+ * configuration files change; the system properties are read when the updater is first made, so changing them needs
+ * a restart.
+ *
+ * A cycle which fails is logged, and reported by email if that is enabled; its timestamp is not recorded, so the next
+ * cycle picks up where it left off, resuming from the update journal. The daemon stops when the JVM is shut down,
+ * letting a cycle which is under way finish first.
+ *
+ * @author jrm
+ */
+class GrantLoaderDaemon {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GrantLoaderDaemon.class);
+
+    //how long a shutdown waits for a cycle under way to finish
+    private static final long SHUTDOWN_WAIT_MINUTES = 30;
+
+    private final List<BaseGrantLoaderApp> apps;
+    private final long intervalMinutes;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "grant-loader-daemon"));
+    private volatile int cycles = 0;
+    private volatile int failures = 0;
+
+    /**
+     * @param apps the apps to be run in each cycle, in order
+     * @param intervalMinutes the number of minutes from the end of one cycle to the start of the next
+     */
+    GrantLoaderDaemon(List<BaseGrantLoaderApp> apps, long intervalMinutes) {
+        this.apps = apps;
+        this.intervalMinutes = intervalMinutes;
+        for (BaseGrantLoaderApp app : apps) {
+            app.setDaemon(true);
+        }
+    }
+
+    /**
+     * Start the cycles, the first of them straight away, and wait until the daemon is stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void run() throws InterruptedException {
+        LOG.info("Starting grant loader daemon, syncing every {} minutes", intervalMinutes);
+        scheduler.scheduleWithFixedDelay(this::cycle, 0, intervalMinutes, TimeUnit.MINUTES);
+        while (!scheduler.awaitTermination(1, TimeUnit.DAYS)) {
+            LOG.debug("Grant loader daemon has run {} cycles", cycles);
+        }
+    }
+
+    /**
+     * Stop the daemon, letting a cycle which is under way finish
+     */
+    void stop() {
+        LOG.info("Stopping grant loader daemon after {} cycles, {} of which failed", cycles, failures);
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_WAIT_MINUTES, TimeUnit.MINUTES)) {
+                LOG.warn("Grant loader daemon cycle did not finish; it will be resumed by the next run");
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run each app once. An app which fails does not stop the others - the error has been logged and reported
+     * already - and nothing thrown escapes, since that would cancel the schedule
+     */
+    void cycle() {
+        cycles++;
+        boolean failed = false;
+        for (BaseGrantLoaderApp app : apps) {
+            if (scheduler.isShutdown()) {//the rest can wait for the next start
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                app.run();
+                LOG.info("Cycle {}: {} sync finished in {} ms", cycles, app.getMode(), System.currentTimeMillis() - start);
+            } catch (PassCliException e) {
+                failed = true;
+                LOG.error("Cycle {}: {} sync failed; it will be retried in the next cycle", cycles, app.getMode());
+            } catch (RuntimeException e) {
+                failed = true;
+                LOG.error("Cycle {}: {} sync failed; it will be retried in the next cycle", cycles, app.getMode(), e);
+            }
+        }
+        if (failed) {
+            failures++;
+        }
+    }
+
+}
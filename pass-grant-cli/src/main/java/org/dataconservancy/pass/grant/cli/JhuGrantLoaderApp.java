@@ -22,11 +22,14 @@ import java.util.Properties;
 class JhuGrantLoaderApp extends BaseGrantLoaderApp {
 
     boolean init;
+    boolean fullVerify;
 
-    JhuGrantLoaderApp(String startDate, String awardEndDate, boolean email, String mode, String action, String dataFileName, boolean init) {
+    JhuGrantLoaderApp(String startDate, String awardEndDate, boolean email, String mode, String action, String dataFileName, boolean init,
+                      boolean fullVerify) {
         super(startDate, awardEndDate, email, mode, action, dataFileName);
         super.setTimestamp(true);
         this.init = init;
+        this.fullVerify = fullVerify;
     }
 
     @Override
@@ -39,12 +42,16 @@ class JhuGrantLoaderApp extends BaseGrantLoaderApp {
         return new CoeusConnector(connectionProperties, policyProperties);
     }
 
+    @Override
+    String shardField(String mode) {
+        return mode.equals("grant") ? CoeusFieldNames.C_GRANT_LOCAL_KEY : null;
+    }
+
     @Override
     PassUpdater configureUpdater() {
-        if ( init ) {
-            return new JhuPassInitUpdater();
-        }
-        return new JhuPassUpdater();
+        DefaultPassUpdater updater = init ? new JhuPassInitUpdater() : new JhuPassUpdater();
+        updater.setFullVerify(fullVerify);
+        return updater;
     }
 
 }
@@ -15,6 +15,7 @@
  */
 package org.dataconservancy.pass.grant.cli;
 
+import org.dataconservancy.pass.grant.data.PullFile;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -70,17 +71,45 @@ public class JhuGrantLoaderCLI {
             "about what the semantics of the stored records are.")
     private static boolean init = false;
 
+    /** Specifies whether every entity is read from PASS and compared, even if it has not changed since it was last written */
+    @Option(name = "-f", aliases = {"-fullVerify", "--fullVerify", "-full-verify", "--full-verify" }, usage = "When set, every grant, user " +
+            "and funder is looked up and read from PASS and compared with the pull, ignoring the identity cache and the fingerprints of the " +
+            "entities written in earlier runs. This catches changes made to PASS records by other applications.")
+    private static boolean fullVerify = false;
+
     /** Specifies an optional action - either "pull" or "load" - to restrict the operation of the application to only pull data
-     * from COEUS to store in a file, or to only load into PASS data taken from a stored file, respectively. In either case, the path to
+     * from COEUS to store in a file, or to only load into PASS data taken from a stored file, respectively. The action "plan" pulls
+     * from COEUS and compares with PASS, but writes the changes to a plan file instead of making them; "apply" makes the changes
+     * in a plan file, resuming it if an earlier apply did not finish. In each case, the path to
      * the file in question is the first command line argument after all options. If no action is specified, the default is to perform
      * a pull followed directly by a load.
      */
     @Option(name = "-a", aliases = { "-action", "--action" }, usage = "Action to be taken - 'pull' is for COEUS pull only," +
-            "'load' is for Fedora load only. Either option requires a file path specified as an argument after all options - an" +
-            "output file in the case of 'pull', and an input file in the case of 'load'. If no action is specified, " +
-            "the data will be pulled from COEUS and loaded directly into PASS")
+            "'load' is for Fedora load only, 'plan' writes the changes a pull and load would make to a plan file without making " +
+            "them, and 'apply' makes the changes in a plan file. Each option requires a file path specified as an argument after " +
+            "all options - an output file in the case of 'pull' and 'plan', and an input file in the case of 'load' and 'apply'. " +
+            "If no action is specified, the data will be pulled from COEUS and loaded directly into PASS")
     private static String action = "";
 
+    /** Specifies the number of shards a pull is split into, so that they can be loaded by separate processes */
+    @Option(name = "-n", aliases = {"-shards", "--shards"}, usage = "Number of shards to split a grant pull into. Every row of " +
+            "a grant is in the same shard, and each shard can be loaded by a separate process with the --shard option. The data " +
+            "file lists the shards, which are written beside it. The default is 1, which does not split the pull")
+    private static int shards = 1;
+
+    /** Specifies the one shard of a sharded pull a load is to take, as k/N */
+    @Option(name = "-k", aliases = {"-shard", "--shard"}, usage = "Shard of a sharded pull to be loaded, given as k/N for " +
+            "the k-th of N shards. The update timestamp is recorded when the last of the shards has been loaded. If not " +
+            "specified, a load takes every shard of the pull")
+    private static String shard = "";
+
+    /** Specifies that the loader stays resident, syncing every so many minutes */
+    @Option(name = "-d", aliases = {"-daemon", "--daemon"}, usage = "Run as a daemon, syncing every given number of minutes " +
+            "until the process is stopped. Each sync pulls the records updated since the timestamp recorded by the last one, " +
+            "and loads them into PASS. In this mode, -m may list several modes separated by commas, such as grant,user, " +
+            "which are synced in that order. No action, start date or data file may be given")
+    private static int daemon = 0;
+
     @Argument
     private static List<String> arguments = new ArrayList<>();
 
@@ -108,7 +137,7 @@ public class JhuGrantLoaderCLI {
                 System.exit(0);
             }
 
-            if (action.equals("pull") || action.equals("load")) {
+            if (action.equals("pull") || action.equals("load") || action.equals("plan") || action.equals("apply")) {
                 if (arguments.size() > 0 ) {
                     dataFileName = arguments.get(0);
                 } else {
@@ -117,8 +146,52 @@ public class JhuGrantLoaderCLI {
                 }
             }
 
+            /* Stay resident, syncing on a schedule, until the process is stopped */
+            if (daemon > 0) {
+                if (!action.isEmpty() || !startDate.isEmpty() || !arguments.isEmpty() || shards != 1 || !shard.isEmpty()) {
+                    System.err.println("A daemon takes no action, start date, data file or shards");
+                    System.exit(1);
+                }
+                List<BaseGrantLoaderApp> apps = new ArrayList<>();
+                for (String daemonMode : mode.split(",")) {
+                    JhuGrantLoaderApp app = new JhuGrantLoaderApp("", awardEndDate, email, daemonMode.trim(), "", "", init,
+                            fullVerify);
+                    if (!app.checkMode(app.getMode())) {
+                        System.err.println(format(DataLoaderErrors.ERR_MODE_NOT_VALID, daemonMode));
+                        System.exit(1);
+                    }
+                    apps.add(app);
+                }
+                GrantLoaderDaemon loaderDaemon = new GrantLoaderDaemon(apps, daemon);
+                Runtime.getRuntime().addShutdownHook(new Thread(loaderDaemon::stop));
+                loaderDaemon.run();
+                return;//the daemon has been stopped, and the JVM is shutting down
+            }
+
             /* Run the package generation application proper */
-            JhuGrantLoaderApp app = new JhuGrantLoaderApp(startDate, awardEndDate, email, mode, action, dataFileName, init);
+            JhuGrantLoaderApp app = new JhuGrantLoaderApp(startDate, awardEndDate, email, mode, action, dataFileName, init,
+                    fullVerify);
+            if (shards < 1 || shards > PullFile.MAX_SHARDS) {
+                System.err.println(format("The number of shards must be between 1 and %s", PullFile.MAX_SHARDS));
+                System.exit(1);
+            }
+            app.setShards(shards);
+            if (!shard.isEmpty()) {
+                String[] shardOfShards = shard.split("/");
+                int k = 0;
+                int n = 0;
+                try {
+                    k = Integer.parseInt(shardOfShards[0].trim());
+                    n = shardOfShards.length == 2 ? Integer.parseInt(shardOfShards[1].trim()) : 0;
+                } catch (NumberFormatException e) {
+                    //reported below
+                }
+                if (n < 1 || n > PullFile.MAX_SHARDS || k < 1 || k > n) {
+                    System.err.println(format("Shard %s must be given as k/N, with k between 1 and N", shard));
+                    System.exit(1);
+                }
+                app.setShard(k, n);
+            }
             app.run();
             System.exit((0));
         } catch (CmdLineException e) {
@@ -134,6 +207,9 @@ public class JhuGrantLoaderCLI {
             e.printStackTrace();
             System.err.println(e.getMessage());
             System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while running as a daemon");
+            System.exit(1);
         }
     }
 
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.cli;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.grant.data.GrantConnector;
+import org.dataconservancy.pass.grant.data.GrantQuery;
+import org.dataconservancy.pass.grant.data.JhuPassUpdater;
+import org.dataconservancy.pass.grant.data.PassUpdater;
+import org.dataconservancy.pass.grant.data.PullStatistics;
+import org.dataconservancy.pass.grant.data.RecordCursor;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.PassEntity;
+import org.dataconservancy.pass.model.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the grant loader daemon
+ * @author jrm@jhu.edu
+ */
+public class GrantLoaderDaemonTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        System.clearProperty("COEUS_HOME");
+    }
+
+    /**
+     * Each cycle runs every app in order, and an app which fails neither stops the others nor the next cycle
+     */
+    @Test
+    public void testCycles() {
+        System.setProperty("COEUS_HOME", folder.getRoot().getAbsolutePath());
+        List<String> runs = new ArrayList<>();
+        CountingApp grants = new CountingApp("grant", runs, false);
+        CountingApp users = new CountingApp("user", runs, true);
+        CountingApp funders = new CountingApp("funder", runs, false);
+        GrantLoaderDaemon daemon = new GrantLoaderDaemon(Arrays.asList(grants, users, funders), 5);
+
+        daemon.cycle();
+        daemon.cycle();
+
+        assertEquals(Arrays.asList("grant", "user", "funder", "grant", "user", "funder"), runs);
+    }
+
+    /**
+     * Each cycle of a real app starts from the timestamp the last one appended, keeps its connector and updater, and
+     * commits the journal; the connector is built again when its configuration changes
+     */
+    @Test
+    public void testAppCycles() throws IOException {
+        Path home = folder.getRoot().toPath();
+        System.setProperty("COEUS_HOME", home.toString());
+        Files.write(home.resolve("connection.properties"), "coeus.url=jdbc:oracle:thin:@localhost:1521:coeus\n"
+                .getBytes(StandardCharsets.UTF_8));
+        Files.write(home.resolve("policy.properties"), new byte[0]);
+        Path timestamps = home.resolve("grant_update_timestamps");
+        Files.write(timestamps, "2018-01-01 00:00:00.0\n".getBytes(StandardCharsets.UTF_8));
+
+        List<String> startDates = new ArrayList<>();
+        StubUpdater updater = new StubUpdater();
+        StubApp app = new StubApp(startDates, updater);
+        GrantLoaderDaemon daemon = new GrantLoaderDaemon(Collections.singletonList(app), 5);
+
+        daemon.cycle();
+        daemon.cycle();
+        assertEquals(Arrays.asList("2018-01-01 00:00:00.0", "2018-01-02 00:00:00.0"), startDates);
+        assertEquals(Arrays.asList("2018-01-01 00:00:00.0", "2018-01-02 00:00:00.0", "2018-01-03 00:00:00.0"),
+                Files.readAllLines(timestamps, StandardCharsets.UTF_8));
+        assertEquals(1, app.connectors);
+        assertEquals(1, app.updaters);
+        assertEquals(2, updater.updates);
+        assertEquals(2, updater.commits);
+
+        Files.write(home.resolve("connection.properties"), "coeus.url=jdbc:oracle:thin:@localhost:1521:other\n"
+                .getBytes(StandardCharsets.UTF_8));
+        daemon.cycle();
+        assertEquals("2018-01-03 00:00:00.0", startDates.get(2));
+        assertEquals(2, app.connectors);
+        assertEquals(1, app.updaters);
+        assertEquals(3, updater.commits);
+    }
+
+    /**
+     * The modes of a daemon share the identity cache and the fingerprints, so that what each mode records in a cycle
+     * survives the saves of the others
+     */
+    @Test
+    public void testModesShareStores() throws IOException {
+        Path home = folder.getRoot().toPath();
+        System.setProperty("COEUS_HOME", home.toString());
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Files.write(home.resolve("connection.properties"), new byte[0]);
+        Files.write(home.resolve("policy.properties"), new byte[0]);
+        for (String mode : Arrays.asList("grant", "user")) {
+            Files.write(home.resolve(mode + "_update_timestamps"), "2018-01-01 00:00:00.0\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        StubPassClient passClient = new StubPassClient();
+        URI existingUser1 = passClient.addUser("0000222");
+        URI existingUser2 = passClient.addUser("0000444");
+        Map<String, List<Map<String, String>>> pulls = new HashMap<>();
+        pulls.put("grant", Arrays.asList(grantRow("10001", "0000111"), grantRow("10002", "0000333")));
+        pulls.put("user", Arrays.asList(userRow("0000222"), userRow("0000444")));
+        ModeApp grants = new ModeApp("grant", pulls.get("grant"), passClient);
+        ModeApp users = new ModeApp("user", pulls.get("user"), passClient);
+        GrantLoaderDaemon daemon = new GrantLoaderDaemon(Arrays.asList(grants, users), 5);
+
+        daemon.cycle();
+        daemon.cycle();
+        assertEquals(2, grants.pulls);
+        assertEquals(2, users.pulls);
+
+        String identities = new String(Files.readAllBytes(home.resolve("identity.cache")), StandardCharsets.ISO_8859_1);
+        for (String key : Arrays.asList("johnshopkins.edu:grant:10001", "johnshopkins.edu:grant:10002",
+                "johnshopkins.edu:employeeid:0000111", "johnshopkins.edu:employeeid:0000333",
+                "johnshopkins.edu:employeeid:0000222", "johnshopkins.edu:employeeid:0000444")) {
+            assertTrue(key + " should be in the identity cache", identities.contains(key));
+        }
+        String fingerprints = new String(Files.readAllBytes(home.resolve("entity.fingerprints")),
+                StandardCharsets.ISO_8859_1);
+        for (URI uri : passClient.entities.keySet()) {
+            assertTrue(uri + " should have a fingerprint", fingerprints.contains(uri.toString()));
+        }
+        assertTrue(fingerprints.contains(existingUser1.toString()));
+        assertTrue(fingerprints.contains(existingUser2.toString()));
+    }
+
+    private static Map<String, String> grantRow(String grantLocalKey, String employeeId) {
+        Map<String, String> row = new HashMap<>();
+        row.put(C_GRANT_AWARD_NUMBER, "A" + grantLocalKey);
+        row.put(C_GRANT_AWARD_STATUS, "Active");
+        row.put(C_GRANT_LOCAL_KEY, grantLocalKey);
+        row.put(C_GRANT_PROJECT_NAME, "Project");
+        row.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        row.put(C_GRANT_START_DATE, "01/01/2018");
+        row.put(C_GRANT_END_DATE, "12/31/2018");
+        row.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        row.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        row.put(C_USER_FIRST_NAME, "First");
+        row.put(C_USER_LAST_NAME, "Last");
+        row.put(C_USER_EMPLOYEE_ID, employeeId);
+        row.put(C_UPDATE_TIMESTAMP, "2018-01-02 00:00:00.0");
+        row.put(C_ABBREVIATED_ROLE, "P");
+        return row;
+    }
+
+    private static Map<String, String> userRow(String employeeId) {
+        Map<String, String> row = new HashMap<>();
+        row.put(C_USER_FIRST_NAME, "First");
+        row.put(C_USER_LAST_NAME, "Last " + employeeId);
+        row.put(C_USER_EMPLOYEE_ID, employeeId);
+        row.put(C_UPDATE_TIMESTAMP, "2018-01-02 00:00:00.0");
+        return row;
+    }
+
+    //an app with a real updater, writing to a PASS client held in memory; each pull returns the next of its rows
+    private static class ModeApp extends BaseGrantLoaderApp {
+        private final List<Map<String, String>> rows;
+        private final PassClient passClient;
+        private int pulls = 0;
+
+        ModeApp(String mode, List<Map<String, String>> rows, PassClient passClient) {
+            super("", null, false, mode, "", "");
+            setTimestamp(true);
+            this.rows = rows;
+            this.passClient = passClient;
+        }
+
+        @Override
+        boolean checkMode(String s) {
+            return true;
+        }
+
+        @Override
+        GrantConnector configureConnector(Properties connectionProperties, Properties policyProperties) {
+            return new GrantConnector() {
+                private final PullStatistics statistics = new PullStatistics();
+
+                @Override
+                public GrantQuery buildQueryString(String startDate, String awardEndDate, String mode) {
+                    return new GrantQuery("SELECT 1 FROM DUAL", Collections.emptyList());
+                }
+
+                @Override
+                public RecordCursor openUpdates(GrantQuery query, String mode) {
+                    return RecordCursor.of(Collections.singletonList(rows.get(pulls++)));
+                }
+
+                @Override
+                public PullStatistics getStatistics() {
+                    return statistics;
+                }
+            };
+        }
+
+        @Override
+        PassUpdater configureUpdater() {
+            return new JhuPassUpdater(passClient);
+        }
+    }
+
+    //a PASS holding its entities in memory, which finds them by local key or locator ID
+    private static class StubPassClient implements PassClient {
+        private final Map<URI, PassEntity> entities = new LinkedHashMap<>();
+
+        URI addUser(String employeeId) {
+            User user = new User();
+            user.setFirstName("First");
+            user.setLastName("Last");
+            user.getLocatorIds().add("johnshopkins.edu:employeeid:" + employeeId);
+            return createResource(user);
+        }
+
+        @Override
+        public synchronized URI createResource(PassEntity entity) {
+            URI uri = URI.create("http://pass/" + entity.getClass().getSimpleName().toLowerCase() + "s/" +
+                    (entities.size() + 1));
+            entity.setId(uri);
+            entities.put(uri, entity);
+            return uri;
+        }
+
+        @Override
+        public synchronized void updateResource(PassEntity entity) {
+            entities.put(entity.getId(), entity);
+        }
+
+        @Override
+        public synchronized <T extends PassEntity> T readResource(URI uri, Class<T> type) {
+            PassEntity entity = entities.get(uri);
+            return type.isInstance(entity) ? type.cast(entity) : null;
+        }
+
+        @Override
+        public synchronized <T extends PassEntity> URI findByAttribute(Class<T> type, String attribute, Object value) {
+            for (PassEntity entity : entities.values()) {
+                if (!type.isInstance(entity)) {
+                    continue;
+                }
+                if ((entity instanceof Grant && value.equals(((Grant) entity).getLocalKey())) ||
+                        (entity instanceof Funder && value.equals(((Funder) entity).getLocalKey())) ||
+                        (entity instanceof User && ((User) entity).getLocatorIds().contains(value))) {
+                    return entity.getId();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public <T extends PassEntity> T createAndReadResource(T entity, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> T updateAndReadResource(T entity, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteResource(URI uri) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> Set<URI> findAllByAttribute(Class<T> type, String attribute, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> Set<URI> findAllByAttribute(Class<T> type, String attribute, Object value,
+                                                                   int limit, int offset) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> Set<URI> findAllByAttributes(Class<T> type, Map<String, Object> values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> Set<URI> findAllByAttributes(Class<T> type, Map<String, Object> values,
+                                                                    int limit, int offset) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, Collection<URI>> getIncoming(URI uri) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public URI upload(URI uri, InputStream content) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public URI upload(URI uri, InputStream content, Map<String, ?> params) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> int processAllEntities(Consumer<URI> processor, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class StubApp extends BaseGrantLoaderApp {
+        private final List<String> startDates;
+        private final PassUpdater updater;
+        private int connectors = 0;
+        private int updaters = 0;
+
+        StubApp(List<String> startDates, PassUpdater updater) {
+            super("", null, false, "grant", "", "");
+            setTimestamp(true);
+            this.startDates = startDates;
+            this.updater = updater;
+        }
+
+        @Override
+        boolean checkMode(String s) {
+            return true;
+        }
+
+        @Override
+        GrantConnector configureConnector(Properties connectionProperties, Properties policyProperties) {
+            connectors++;
+            return new StubConnector(startDates);
+        }
+
+        @Override
+        PassUpdater configureUpdater() {
+            updaters++;
+            return updater;
+        }
+    }
+
+    //each pull returns one record, updated a day after the start of the pull
+    private static class StubConnector implements GrantConnector {
+        private final List<String> startDates;
+        private final PullStatistics statistics = new PullStatistics();
+
+        StubConnector(List<String> startDates) {
+            this.startDates = startDates;
+        }
+
+        @Override
+        public GrantQuery buildQueryString(String startDate, String awardEndDate, String mode) {
+            startDates.add(startDate);
+            return new GrantQuery("SELECT 1 FROM DUAL", Collections.singletonList(startDate));
+        }
+
+        @Override
+        public RecordCursor openUpdates(GrantQuery query, String mode) {
+            String startDate = (String) query.getBindValues().get(0);
+            Map<String, String> row = new HashMap<>();
+            row.put(C_UPDATE_TIMESTAMP, "2018-01-0" + (Integer.parseInt(startDate.substring(9, 10)) + 1) +
+                    startDate.substring(10));
+            return RecordCursor.of(Collections.singletonList(row));
+        }
+
+        @Override
+        public PullStatistics getStatistics() {
+            return statistics;
+        }
+    }
+
+    //an updater which writes nothing to PASS, and takes the latest update timestamp of the records it is given
+    private static class StubUpdater extends JhuPassUpdater {
+        private String latestUpdate = "";
+        private int updates = 0;
+        private int commits = 0;
+
+        StubUpdater() {
+            super(null);
+        }
+
+        @Override
+        public void updatePass(Iterable<Map<String, String>> results, String mode) {
+            updates++;
+            for (Map<String, String> row : results) {
+                latestUpdate = row.get(C_UPDATE_TIMESTAMP);
+            }
+        }
+
+        @Override
+        public String getLatestUpdate() {
+            return latestUpdate;
+        }
+
+        @Override
+        public String getReport() {
+            return "Loaded " + latestUpdate;
+        }
+
+        @Override
+        public void commitJournal() {
+            commits++;
+        }
+    }
+
+    private static class CountingApp extends BaseGrantLoaderApp {
+        private final List<String> runs;
+        private final boolean fails;
+
+        CountingApp(String mode, List<String> runs, boolean fails) {
+            super("", "01/01/2011", false, mode, "", "");
+            this.runs = runs;
+            this.fails = fails;
+        }
+
+        @Override
+        void run() throws PassCliException {
+            runs.add(getMode());
+            if (fails) {
+                throw new PassCliException("No connection to COEUS");
+            }
+        }
+
+        @Override
+        boolean checkMode(String s) {
+            return true;
+        }
+
+        @Override
+        GrantConnector configureConnector(Properties connectionProperties, Properties policyProperties) {
+            return null;
+        }
+
+        @Override
+        PassUpdater configureUpdater() {
+            return null;
+        }
+    }
+
+}
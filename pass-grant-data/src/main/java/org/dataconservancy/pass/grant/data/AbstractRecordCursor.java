@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for cursors which compute their next record on demand. Subclasses implement {@link #fetchNext()},
+ * returning null once the source is exhausted; the cursor closes itself at that point.
+ *
+ * @author jrm
+ */
+abstract class AbstractRecordCursor implements RecordCursor {
+
+    private Map<String, String> nextRecord;
+    private boolean exhausted = false;
+    private boolean closed = false;
+
+    /**
+     * Produce the next record from the underlying source
+     * @return the next record, or null if there are no more records
+     */
+    protected abstract Map<String, String> fetchNext();
+
+    /**
+     * Release the underlying source. Called at most once.
+     */
+    protected abstract void release();
+
+    @Override
+    public boolean hasNext() {
+        if (nextRecord == null && !exhausted) {
+            nextRecord = fetchNext();
+            if (nextRecord == null) {
+                exhausted = true;
+                close();
+            }
+        }
+        return nextRecord != null;
+    }
+
+    @Override
+    public Map<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map<String, String> record = nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            exhausted = true;
+            release();
+        }
+    }
+
+}
@@ -28,7 +28,6 @@ package org.dataconservancy.pass.grant.data;
 
         import java.net.URI;
         import java.util.ArrayList;
-        import java.util.Collection;
         import java.util.HashMap;
         import java.util.ListIterator;
         import java.util.Map;
@@ -81,7 +80,7 @@ public class BasicPassUpdater implements PassUpdater{
         this.passClient = passClient;
     }
 
-    public void updatePass(Collection<Map<String, String>> results, String mode) {
+    public void updatePass(Iterable<Map<String, String>> results, String mode) {
         this.mode = mode;
         userMap.clear();
         funderMap.clear();
@@ -105,16 +104,17 @@ public class BasicPassUpdater implements PassUpdater{
      * Because we need to make sure we catch any updates to fields referenced by URIs, we construct
      * these and update these as well
      */
-    private void updateGrants(Collection<Map<String, String>> results) {
+    private void updateGrants(Iterable<Map<String, String>> results) {
 
         //a grant will have several rows in the ResultSet if there are co-pis. so we put the grant on this
         //Map and add to it as additional rows add information.
         Map<String, Grant> grantMap = new HashMap<>();
 
-        LOG.info("Processing result set with {} rows", results.size() );
         boolean modeChecked = false;
+        int rowCount = 0;
 
         for(Map<String,String> rowMap : results){
+            rowCount++;
 
             String grantLocalKey;
 
@@ -222,6 +222,8 @@ public class BasicPassUpdater implements PassUpdater{
             }
         }
 
+        LOG.info("Processed result set with {} rows", rowCount);
+
         //now put updated grant objects in pass
         for(Grant grant : grantMap.values()){
             grantUriMap.put(updateGrantInPass(grant), grant);
@@ -230,17 +232,19 @@ public class BasicPassUpdater implements PassUpdater{
         //success - we capture some information to report
         if (grantMap.size() > 0) {
             statistics.setLatestUpdateString(latestUpdateString);
-            statistics.setReport(results.size(), grantMap.size());
+            statistics.setReport(rowCount, grantMap.size());
         } else {
             System.out.println("No records were processed in this update");
         }
     }
 
-    private void updateUsers(Collection<Map<String, String>> results) {
+    private void updateUsers(Iterable<Map<String, String>> results) {
 
         boolean modeChecked = false;
+        int rowCount = 0;
 
         for(Map<String,String> rowMap : results) {
+            rowCount++;
 
             if (!modeChecked) {
                 if (!rowMap.containsKey(C_USER_EMPLOYEE_ID)) {//we always have this for users
@@ -250,7 +254,6 @@ public class BasicPassUpdater implements PassUpdater{
                 }
             }
 
-            LOG.info("Processing result set with {} rows", results.size() );
             User updatedUser = buildUser(rowMap);
             updateUserInPass(updatedUser);
             if (rowMap.containsKey(C_UPDATE_TIMESTAMP)) {
@@ -259,9 +262,10 @@ public class BasicPassUpdater implements PassUpdater{
             }
         }
 
-        if (results.size() > 0) {
+        LOG.info("Processed result set with {} rows", rowCount);
+        if (rowCount > 0) {
             statistics.setLatestUpdateString(latestUpdateString);
-            statistics.setReport(results.size(), results.size());
+            statistics.setReport(rowCount, rowCount);
         } else {
             System.out.println("No records were processed in this update");
         }
@@ -272,11 +276,12 @@ public class BasicPassUpdater implements PassUpdater{
      * This method is called for the "funder" mode - the column names will have the values for primary funders
      * @param results the data row map containing funder information
      */
-    private void updateFunders(Collection<Map<String, String>> results) {
+    private void updateFunders(Iterable<Map<String, String>> results) {
 
         boolean modeChecked = false;
-        LOG.info("Processing result set with {} rows", results.size() );
+        int rowCount = 0;
         for (Map<String, String> rowMap : results) {
+            rowCount++;
 
             if (!modeChecked) {
                 if (!rowMap.containsKey(C_PRIMARY_FUNDER_LOCAL_KEY) && !rowMap.containsKey(C_PRIMARY_FUNDER_NAME)) {
@@ -290,7 +295,8 @@ public class BasicPassUpdater implements PassUpdater{
             updateFunderInPass(updatedFunder);
 
         }
-        statistics.setReport(results.size(), results.size());
+        LOG.info("Processed result set with {} rows", rowCount);
+        statistics.setReport(rowCount, rowCount);
     }
 
     User buildUser(Map<String, String> rowMap) {
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.dataconservancy.pass.model.PassEntity;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.lang.String.format;
+
+/**
+ * A change plan being written: the creates and updates an update would make to PASS, written to a file instead of
+ * being made, so that they can be applied later by a {@link PlanApplier}.
+ *
+ * The plan is a file of JSON objects, one to a line. The first line is a header giving the version of the format, an
+ * id which is new for each plan, the mode of the update, the PASS instance the plan was made against and the suffix of
+ * the store files of the shard it was made for. Then come the operations, numbered in the order they were planned: a
+ * create carries all the fields of the new entity, and an update only the fields which changed. After the operations
+ * come the records for the stores, which are saved once the plan has been applied: the URIs found for the local keys
+ * and locator IDs, the fingerprints of the entities, and the digests of the grants loaded. The last line is a trailer
+ * giving the number of operations and of records, and the latest update timestamp of the records the plan was made
+ * from; a plan without a trailer is incomplete, and will not be applied.
+ *
+ * An entity which is to be created has no URI until the plan is applied, so each create is given a placeholder URI,
+ * {@value #PLACEHOLDER} followed by its number, which stands for it in later operations.
+ *
+ * @author jrm
+ */
+class ChangePlan implements Closeable {
+
+    static final int VERSION = 1;
+    static final String PLACEHOLDER = "urn:plan:";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path file;
+    private final FileOutputStream out;
+    private final BufferedWriter writer;
+    //the entities to be created, by placeholder URI, in case they are updated later in the plan
+    private final Map<String, PassEntity> created = new HashMap<>();
+    //the records for the stores, which are written when the plan is finished
+    private final Map<String, URI> identities = new LinkedHashMap<>();
+    private final Map<String, Long> fingerprints = new LinkedHashMap<>();
+    private final Map<String, Long> digests = new LinkedHashMap<>();
+    private int operations = 0;
+    private int creates = 0;
+    private int updates = 0;
+    private boolean closed = false;
+
+    /**
+     * Start a plan, replacing the file if it exists, along with the progress of applying the plan it replaces
+     * @param file the plan file
+     * @param mode the mode of the update - grant, user or funder
+     * @param passInstance the base URL of the PASS instance the plan is made against
+     * @param storeSuffix the suffix of the store files of the shard the plan is made for, which is empty if the pull
+     *                    is not sharded
+     * @throws IOException if the file cannot be written
+     */
+    ChangePlan(Path file, String mode, String passInstance, String storeSuffix) throws IOException {
+        this.file = file;
+        Files.deleteIfExists(progressFile(file));
+        this.out = new FileOutputStream(file.toFile());
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        ObjectNode header = MAPPER.createObjectNode();
+        header.put("plan", VERSION);
+        header.put("id", UUID.randomUUID().toString());
+        header.put("mode", mode);
+        header.put("passInstance", passInstance);
+        header.put("storeSuffix", storeSuffix);
+        write(header);
+    }
+
+    /**
+     * Plan the creation of an entity
+     * @param entity the entity, as it would be created
+     * @param key the local key or locator ID of the entity, which orders the operations on it when applied
+     * @return the placeholder URI of the entity
+     */
+    synchronized URI create(PassEntity entity, String key) {
+        int seq = ++operations;
+        String ref = PLACEHOLDER + seq;
+        ObjectNode op = operation(seq, "create", entity, key);
+        op.put("ref", ref);
+        op.set("fields", MAPPER.valueToTree(EntityFields.snapshot(entity)));
+        write(op);
+        created.put(ref, entity);
+        creates++;
+        return URI.create(ref);
+    }
+
+    /**
+     * Plan the update of an entity. Nothing is planned if none of the fields the loader writes has changed.
+     * @param uri the URI of the entity, which may be a placeholder
+     * @param entity the entity, as it would be updated
+     * @param before the fields of the entity before it was updated
+     * @param key the local key or locator ID of the entity, which orders the operations on it when applied
+     */
+    synchronized void update(URI uri, PassEntity entity, Map<String, JsonNode> before, String key) {
+        Map<String, JsonNode> changed = EntityFields.diff(before, EntityFields.snapshot(entity));
+        if (changed.isEmpty()) {
+            return;
+        }
+        ObjectNode op = operation(++operations, "update", entity, key);
+        op.put("uri", uri.toString());
+        op.set("fields", MAPPER.valueToTree(changed));
+        write(op);
+        updates++;
+    }
+
+    /**
+     * Record the URI of an entity for the identity cache
+     * @param key the local key or locator ID of the entity
+     * @param uri the URI of the entity, which may be a placeholder
+     */
+    synchronized void identity(String key, URI uri) {
+        identities.put(key, uri);
+    }
+
+    /**
+     * Record the fingerprint of an entity, which will be good once the plan has been applied
+     * @param uri the URI of the entity, which may be a placeholder
+     * @param fingerprint the fingerprint of the entity
+     */
+    synchronized void fingerprint(URI uri, long fingerprint) {
+        if (uri != null) {
+            fingerprints.put(uri.toString(), fingerprint);
+        }
+    }
+
+    /**
+     * Record the digest of the rows of a grant which was loaded
+     * @param grantLocalKey the local key of the grant
+     * @param digest the digest of its rows
+     */
+    synchronized void digest(String grantLocalKey, long digest) {
+        digests.put(grantLocalKey, digest);
+    }
+
+    /**
+     * @param uri a URI returned by {@link #create(PassEntity, String)}
+     * @return the entity planned to be created, or null if there is none
+     */
+    synchronized PassEntity planned(URI uri) {
+        return created.get(uri.toString());
+    }
+
+    /**
+     * @param uri a URI
+     * @return true if the URI stands for an entity which is still to be created
+     */
+    static boolean isPlaceholder(URI uri) {
+        return uri != null && uri.toString().startsWith(PLACEHOLDER);
+    }
+
+    /**
+     * @param planFile a plan file
+     * @return the file in which a {@link PlanApplier} records its progress in applying the plan
+     */
+    static Path progressFile(Path planFile) {
+        return planFile.resolveSibling(planFile.getFileName() + ".progress");
+    }
+
+    /**
+     * Complete the plan by writing its records for the stores and its trailer, and close it
+     * @param latestUpdate the latest update timestamp of the records the plan was made from
+     * @throws IOException if the plan cannot be written
+     */
+    synchronized void finish(String latestUpdate) throws IOException {
+        int records = 0;
+        ObjectNode trailer = MAPPER.createObjectNode();
+        try {
+            for (Map.Entry<String, URI> identity : identities.entrySet()) {
+                write(record("identity", identity.getKey()).put("uri", identity.getValue().toString()));
+                records++;
+            }
+            for (Map.Entry<String, Long> fingerprint : fingerprints.entrySet()) {
+                write(record("fingerprint", fingerprint.getKey()).put("value", fingerprint.getValue()));
+                records++;
+            }
+            for (Map.Entry<String, Long> digest : digests.entrySet()) {
+                write(record("digest", digest.getKey()).put("value", digest.getValue()));
+                records++;
+            }
+            trailer.put("end", true);
+            trailer.put("operations", operations);
+            trailer.put("records", records);
+            trailer.put("latestUpdate", latestUpdate);
+            write(trailer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+        out.getFD().sync();
+        close();
+    }
+
+    /**
+     * Close the plan. A plan which has not been finished is left without its trailer, and cannot be applied.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            writer.close();
+        }
+    }
+
+    String getReport() {
+        return format("Change plan %s: %s creates and %s updates were planned, and have not been written to PASS",
+                file, creates, updates);
+    }
+
+    private static ObjectNode operation(int seq, String op, PassEntity entity, String key) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("seq", seq);
+        node.put("op", op);
+        node.put("type", entity.getClass().getSimpleName());
+        node.put("key", key);
+        return node;
+    }
+
+    private static ObjectNode record(String store, String key) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("record", store);
+        node.put("key", key);
+        return node;
+    }
+
+    //an operation which cannot be written fails the write it belongs to, like a failed write to PASS would
+    private void write(JsonNode node) {
+        try {
+            writer.write(MAPPER.writeValueAsString(node));
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to change plan " + file, e);
+        }
+    }
+
+}
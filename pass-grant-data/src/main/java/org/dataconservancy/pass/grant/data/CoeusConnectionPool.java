@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import oracle.ucp.jdbc.JDBCConnectionPoolStatistics;
+import oracle.ucp.jdbc.PoolDataSource;
+import oracle.ucp.jdbc.PoolDataSourceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * A pool of connections to a COEUS database, backed by the Oracle Universal Connection Pool. Pools are kept for the
+ * life of the JVM and shared by every {@link CoeusConnector} for the same database and user, so that grant, user and
+ * funder pulls in one process - or repeated pulls in a long-lived one - borrow warm connections instead of paying for
+ * a fresh login each time. The settings of the first connector to ask for a pool are the ones it is built with.
+ *
+ * Connections are validated as they are borrowed, and connections left idle for longer than the idle timeout are
+ * closed.
+ *
+ * @author jrm
+ */
+class CoeusConnectionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoeusConnectionPool.class);
+
+    private static final Map<String, CoeusConnectionPool> POOLS = new HashMap<>();
+
+    private final PoolDataSource dataSource;
+
+    private CoeusConnectionPool(PoolDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the pool for a database and user, creating it if this is the first request for it
+     *
+     * @param url the JDBC URL of the database
+     * @param user the database user
+     * @param password the database password
+     * @param settings the sizing and timeouts for the pool, used only if the pool is created by this call
+     * @return the pool
+     * @throws ClassNotFoundException if the Oracle driver is not on the classpath
+     * @throws SQLException if the pool could not be created
+     */
+    static synchronized CoeusConnectionPool getPool(String url, String user, String password, Settings settings)
+            throws ClassNotFoundException, SQLException {
+        String key = url + "|" + user;
+        CoeusConnectionPool pool = POOLS.get(key);
+        if (pool == null) {
+            Class.forName("oracle.jdbc.driver.OracleDriver");
+            PoolDataSource dataSource = PoolDataSourceFactory.getPoolDataSource();
+            dataSource.setConnectionPoolName("coeus-" + POOLS.size());
+            dataSource.setConnectionFactoryClassName("oracle.jdbc.pool.OracleDataSource");
+            dataSource.setURL(url);
+            dataSource.setUser(user);
+            dataSource.setPassword(password);
+            dataSource.setInitialPoolSize(settings.minSize);
+            dataSource.setMinPoolSize(settings.minSize);
+            dataSource.setMaxPoolSize(settings.maxSize);
+            dataSource.setInactiveConnectionTimeout(settings.idleTimeoutSeconds);
+            dataSource.setConnectionWaitTimeout(settings.waitTimeoutSeconds);
+            dataSource.setValidateConnectionOnBorrow(true);
+            dataSource.setMaxStatements(settings.statementCacheSize);
+            pool = new CoeusConnectionPool(dataSource);
+            POOLS.put(key, pool);
+            LOG.info("Created COEUS connection pool with {} to {} connections", settings.minSize, settings.maxSize);
+        }
+        return pool;
+    }
+
+    /**
+     * Borrow a connection from the pool. Closing the connection returns it to the pool.
+     * @return the connection
+     * @throws SQLException if no connection became available within the wait timeout
+     */
+    Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * A report of the state of the pool
+     * @return the report
+     */
+    String getReport() {
+        JDBCConnectionPoolStatistics stats = dataSource.getStatistics();
+        if (stats == null) {
+            return "";
+        }
+        return format("Connection pool: %s connections active, %s available, %s at peak; " +
+                        "average wait to borrow %s ms, longest %s ms",
+                stats.getBorrowedConnectionsCount(), stats.getAvailableConnectionsCount(),
+                stats.getPeakConnectionsCount(), stats.getAverageConnectionWaitTime(),
+                stats.getPeakConnectionWaitTime()) + "\n";
+    }
+
+    /**
+     * Sizing and timeouts for a pool
+     */
+    static class Settings {
+        private final int minSize;
+        private final int maxSize;
+        private final int idleTimeoutSeconds;
+        private final int waitTimeoutSeconds;
+        private final int statementCacheSize;
+
+        Settings(int minSize, int maxSize, int idleTimeoutSeconds, int waitTimeoutSeconds, int statementCacheSize) {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+            this.waitTimeoutSeconds = waitTimeoutSeconds;
+            this.statementCacheSize = statementCacheSize;
+        }
+    }
+
+}
@@ -20,15 +20,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
 
@@ -44,15 +47,46 @@ public class CoeusConnector implements GrantConnector {
     private static final String COEUS_URL = "coeus.url";
     private static final String COEUS_USER = "coeus.user";
     private static final String COEUS_PASS = "coeus.pass";
+    private static final String COEUS_FETCH_SIZE = "coeus.fetch.size";
+    private static final String COEUS_PARTITIONS = "coeus.partitions";
+    private static final String COEUS_STATEMENT_CACHE_SIZE = "coeus.statement.cache.size";
+    private static final String COEUS_GRANT_QUERY_MODE = "coeus.grant.query.mode";
+    private static final String COEUS_GRANT_ORDERED = "coeus.grant.ordered";
+    private static final String COEUS_POOL_MIN_SIZE = "coeus.pool.min.size";
+    private static final String COEUS_POOL_MAX_SIZE = "coeus.pool.max.size";
+    private static final String COEUS_POOL_IDLE_TIMEOUT = "coeus.pool.idle.timeout";
+    private static final String COEUS_POOL_WAIT_TIMEOUT = "coeus.pool.wait.timeout";
+
+    //rows are pulled from the database this many at a time as the cursor advances
+    private static final int DEFAULT_FETCH_SIZE = 500;
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 20;
+    private static final int MAX_IN_LIST_SIZE = 1000;
+    //grant query mode which merges the iterations of each grant in the database
+    static final String GRANT_QUERY_MODE_AGGREGATE = "aggregate";
+    private static final int DEFAULT_POOL_MIN_SIZE = 1;
+    private static final int DEFAULT_POOL_MAX_SIZE = 4;
+    private static final int DEFAULT_POOL_IDLE_TIMEOUT = 300; //seconds
+    private static final int DEFAULT_POOL_WAIT_TIMEOUT = 60; //seconds
 
     private String coeusUrl;
     private String coeusUser;
     private String coeusPassword;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int partitions = 1;
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private String grantQueryMode;
+    //whether the grant pull is ordered by grant number, so that the updater can take each grant as its rows end
+    private boolean grantOrdered = false;
+
+    private CoeusConnectionPool.Settings poolSettings;
+    private CoeusConnectionPool connectionPool;
 
     private final Properties funderPolicyProperties;
 
     private DirectoryServiceUtil directoryServiceUtil;
 
+    private final PullStatistics statistics = new PullStatistics();
+
     public CoeusConnector(Properties connectionProperties, Properties funderPolicyProperties) {
         if (connectionProperties != null) {
 
@@ -65,168 +99,301 @@ public class CoeusConnector implements GrantConnector {
             if (connectionProperties.getProperty(COEUS_PASS) != null) {
                 this.coeusPassword = connectionProperties.getProperty(COEUS_PASS);
             }
+            if (connectionProperties.getProperty(COEUS_FETCH_SIZE) != null) {
+                this.fetchSize = Integer.parseInt(connectionProperties.getProperty(COEUS_FETCH_SIZE));
+            }
+            if (connectionProperties.getProperty(COEUS_PARTITIONS) != null) {
+                this.partitions = Integer.parseInt(connectionProperties.getProperty(COEUS_PARTITIONS));
+            }
+            if (connectionProperties.getProperty(COEUS_GRANT_QUERY_MODE) != null) {
+                this.grantQueryMode = connectionProperties.getProperty(COEUS_GRANT_QUERY_MODE);
+            }
+            if (connectionProperties.getProperty(COEUS_GRANT_ORDERED) != null) {
+                this.grantOrdered = Boolean.parseBoolean(connectionProperties.getProperty(COEUS_GRANT_ORDERED));
+            }
+            if (connectionProperties.getProperty(COEUS_STATEMENT_CACHE_SIZE) != null) {
+                this.statementCacheSize = Integer.parseInt(connectionProperties.getProperty(COEUS_STATEMENT_CACHE_SIZE));
+            }
             this.directoryServiceUtil = new DirectoryServiceUtil(connectionProperties);
         }
 
+        //the pool must be able to serve every partition of a partitioned pull at once
+        int poolMaxSize = Math.max(partitions, intProperty(connectionProperties, COEUS_POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE));
+        this.poolSettings = new CoeusConnectionPool.Settings(
+                intProperty(connectionProperties, COEUS_POOL_MIN_SIZE, DEFAULT_POOL_MIN_SIZE),
+                poolMaxSize,
+                intProperty(connectionProperties, COEUS_POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT),
+                intProperty(connectionProperties, COEUS_POOL_WAIT_TIMEOUT, DEFAULT_POOL_WAIT_TIMEOUT),
+                statementCacheSize);
+
         this.funderPolicyProperties = funderPolicyProperties;
 
     }
 
-    public List<Map<String, String>> retrieveUpdates(String queryString, String mode) throws ClassNotFoundException, SQLException, IOException {
+    public RecordCursor openUpdates(GrantQuery query, String mode)
+            throws ClassNotFoundException, SQLException, IOException {
+        statistics.reset();
         if (mode.equals("user")) {
-            return retrieveUserUpdates(queryString);
+            return openUserUpdates(query);
         } else if (mode.equals("funder")) {
-            return retrieveFunderUpdates(queryString);
+            return openFunderUpdates(query);
         } else {
-            return retrieveGrantUpdates(queryString);
+            return openGrantUpdates(query);
         }
     }
 
     /**
-     * This method returns a {@code ResultSet} for a query for a specific set of fields in several views in COEUS.
+     * This method returns a cursor over the rows of a query for a specific set of fields in several views in COEUS.
+     * The Hopkins IDs are looked up a batch of rows at a time - see {@link DirectoryEnrichment}.
      *
-     * @param queryString the query string to the COEUS database needed to update the information
-     * @return the {@code ResultSet} from the query
+     * @param query the query to the COEUS database needed to update the information
+     * @return the cursor over the processed rows
      */
-    private List<Map<String, String>> retrieveGrantUpdates(String queryString) throws ClassNotFoundException, SQLException, IOException {
-
-        List<Map<String, String>> mapList = new ArrayList<>();
-
-        Class.forName("oracle.jdbc.driver.OracleDriver");
-
-        try (
-                Connection con = DriverManager.getConnection(coeusUrl, coeusUser, coeusPassword);
-                Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(queryString)
-        ) {
-            while (rs.next()) {
-                Map<String, String> rowMap = new HashMap<>();
-
-                rowMap.put(C_GRANT_AWARD_NUMBER, rs.getString(C_GRANT_AWARD_NUMBER));
-                rowMap.put(C_GRANT_AWARD_STATUS, rs.getString(C_GRANT_AWARD_STATUS));
-                rowMap.put(C_GRANT_LOCAL_KEY, rs.getString(C_GRANT_LOCAL_KEY));
-                rowMap.put(C_GRANT_PROJECT_NAME, rs.getString(C_GRANT_PROJECT_NAME));
-                rowMap.put(C_GRANT_AWARD_DATE, rs.getString(C_GRANT_AWARD_DATE));
-                rowMap.put(C_GRANT_START_DATE, rs.getString(C_GRANT_START_DATE));
-                rowMap.put(C_GRANT_END_DATE, rs.getString(C_GRANT_END_DATE));
-
-                rowMap.put(C_DIRECT_FUNDER_NAME, rs.getString(C_DIRECT_FUNDER_NAME));
-
-                rowMap.put(C_PRIMARY_FUNDER_NAME, rs.getString(C_PRIMARY_FUNDER_NAME));
-                rowMap.put(C_USER_FIRST_NAME, rs.getString(C_USER_FIRST_NAME));
-                rowMap.put(C_USER_MIDDLE_NAME, rs.getString(C_USER_MIDDLE_NAME));
-                rowMap.put(C_USER_LAST_NAME, rs.getString(C_USER_LAST_NAME));
-                rowMap.put(C_USER_EMAIL, rs.getString(C_USER_EMAIL));
-                rowMap.put(C_USER_EMPLOYEE_ID, rs.getString(C_USER_EMPLOYEE_ID));
-                rowMap.put(C_USER_INSTITUTIONAL_ID, rs.getString(C_USER_INSTITUTIONAL_ID));
-                rowMap.put(C_UPDATE_TIMESTAMP, rs.getString(C_UPDATE_TIMESTAMP));
-                rowMap.put(C_ABBREVIATED_ROLE, rs.getString(C_ABBREVIATED_ROLE));
-
-                String employeeId = rs.getString(C_USER_EMPLOYEE_ID);
-                if (employeeId != null) {
-                    rowMap.put(C_USER_HOPKINS_ID, directoryServiceUtil.getHopkinsIdForEmployeeId(employeeId));
-                }
-
-                String primaryFunderLocalKey = rs.getString(C_PRIMARY_FUNDER_LOCAL_KEY);
-                rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, primaryFunderLocalKey);
-                if (primaryFunderLocalKey != null &&
-                        funderPolicyProperties.stringPropertyNames().contains(primaryFunderLocalKey)) {
-                    rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(primaryFunderLocalKey));
-                }
+    private RecordCursor openGrantUpdates(GrantQuery query) throws ClassNotFoundException, SQLException, IOException {
+        return enrich(openGrantRows(query));
+    }
 
-                String directFunderLocalKey = rs.getString(C_DIRECT_FUNDER_LOCAL_KEY);
-                rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, directFunderLocalKey);
-                if (directFunderLocalKey != null &&
-                        funderPolicyProperties.stringPropertyNames().contains(directFunderLocalKey)) {
-                    rowMap.put(C_DIRECT_FUNDER_POLICY, funderPolicyProperties.getProperty(directFunderLocalKey));
-                }
-                LOG.debug("Record processed: {}", rowMap );
-                if (!mapList.contains(rowMap)) {
-                    mapList.add(rowMap);
-                }
+    private RecordCursor openGrantRows(GrantQuery query) throws ClassNotFoundException, SQLException {
+
+        if (partitions > 1 && grantOrdered) {
+            LOG.warn("Partitions of an ordered grant pull would be merged out of order, so it is pulled in one");
+        } else if (partitions > 1) {
+            //each partition runs the same query restricted to one hash bucket of grant numbers, so the partitions
+            //are disjoint, and rows which are duplicates of each other always land in the same partition. both forms
+            //of the grant query have a GRANT_NUMBER column, and Oracle pushes the predicate down into the query
+            List<Callable<RecordCursor>> partitionOpeners = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                GrantQuery partitionQuery = query.where("ORA_HASH(" + C_GRANT_LOCAL_KEY + ", " +
+                        (partitions - 1) + ") = ?", i);
+                partitionOpeners.add(() -> openQuery(partitionQuery, true, grantRowMapper()));
             }
+            LOG.info("Pulling grants from COEUS in {} partitions", partitions);
+            return new PartitionedRecordCursor(partitionOpeners, fetchSize * partitions, statistics);
         }
-        LOG.info("Retrieved result set from COEUS: {} records processed", mapList.size() );
-        return mapList;
+        return openQuery(query, true, grantRowMapper());
     }
 
-    private List<Map<String, String>> retrieveFunderUpdates (String queryString) throws ClassNotFoundException, SQLException {
+    /**
+     * Each query gets its own reader, which resolves the column indexes for its result set once
+     * @return a mapper for the rows of one grant query
+     */
+    private RowMapper grantRowMapper() {
+        CoeusGrantRow.Reader reader = new CoeusGrantRow.Reader();
+        return rs -> mapGrantRow(reader.read(rs));
+    }
 
-        List<Map<String, String>> mapList = new ArrayList<>();
+    private Map<String, String> mapGrantRow(CoeusGrantRow row) {
+        String primaryFunderLocalKey = row.getPrimaryFunderLocalKey();
+        if (primaryFunderLocalKey != null && funderPolicyProperties.getProperty(primaryFunderLocalKey) != null) {
+            row.set(CoeusGrantRow.PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(primaryFunderLocalKey));
+        }
 
-        if (queryString != null) {//we will go to COEUS for the info
+        String directFunderLocalKey = row.getDirectFunderLocalKey();
+        if (directFunderLocalKey != null && funderPolicyProperties.getProperty(directFunderLocalKey) != null) {
+            row.set(CoeusGrantRow.DIRECT_FUNDER_POLICY, funderPolicyProperties.getProperty(directFunderLocalKey));
+        }
+        LOG.debug("Record processed: {}", row);
+        return row;
+    }
 
-            Class.forName("oracle.jdbc.driver.OracleDriver");
+    private RecordCursor openFunderUpdates(GrantQuery query) throws ClassNotFoundException, SQLException {
 
-            try (
-                    Connection con = DriverManager.getConnection(coeusUrl, coeusUser, coeusPassword);
-                    Statement stmt = con.createStatement();
-                    ResultSet rs = stmt.executeQuery(queryString)
-            ) {
-                while (rs.next()) {//these are the field names in the swift sponsor view
-                    Map<String, String> rowMap = new HashMap<>();
-                    rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, rs.getString(C_PRIMARY_FUNDER_LOCAL_KEY));
-                    rowMap.put(C_PRIMARY_FUNDER_NAME, rs.getString(C_PRIMARY_FUNDER_NAME));
-                    rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(rs.getString(C_PRIMARY_FUNDER_LOCAL_KEY)));
-                    mapList.add(rowMap);
-                }
+        if (query != null) {//we will go to COEUS for the info
 
-            }
+            return openQuery(query, false, rs -> {//these are the field names in the swift sponsor view
+                Map<String, String> rowMap = new HashMap<>();
+                rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, rs.getString(C_PRIMARY_FUNDER_LOCAL_KEY));
+                rowMap.put(C_PRIMARY_FUNDER_NAME, rs.getString(C_PRIMARY_FUNDER_NAME));
+                rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(rs.getString(C_PRIMARY_FUNDER_LOCAL_KEY)));
+                return rowMap;
+            });
 
         } else {//we will prepare partial Funder from the properties file
 
+            List<Map<String, String>> mapList = new ArrayList<>();
             for (Object localKey : funderPolicyProperties.keySet()) {
+                statistics.addRowRead();
                 Map<String, String> rowMap = new HashMap<>();
                 rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, localKey.toString());
                 rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(localKey.toString()));
                 mapList.add(rowMap);
             }
+            return RecordCursor.of(mapList);
+        }
+    }
+
+    private RecordCursor openUserUpdates(GrantQuery query) throws ClassNotFoundException, SQLException, IOException {
+
+        return enrich(openQuery(query, true, this::mapUserRow));
+    }
+
+    /**
+     * Add Hopkins IDs to the rows of a grant or user pull. Without a directory service there is nothing to look them
+     * up in, and the rows are passed on as they are
+     * @param rows the rows, as read from COEUS
+     * @return a cursor over the rows with Hopkins IDs
+     * @throws IOException if the directory service cannot be reached
+     */
+    private RecordCursor enrich(RecordCursor rows) throws IOException {
+        if (directoryServiceUtil == null) {
+            return rows;
+        }
+        DirectoryEnrichment enrichment = new DirectoryEnrichment(directoryServiceUtil::lookupHopkinsIdForEmployeeId,
+                directoryServiceUtil::saveCache, statistics, DirectoryEnrichment.DEFAULT_BATCH_SIZE);
+        return enrichment.enrich(rows);
+    }
+
+    private Map<String, String> mapUserRow(ResultSet rs) throws SQLException {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_USER_FIRST_NAME, rs.getString(C_USER_FIRST_NAME));
+        rowMap.put(C_USER_MIDDLE_NAME, rs.getString(C_USER_MIDDLE_NAME));
+        rowMap.put(C_USER_LAST_NAME, rs.getString(C_USER_LAST_NAME));
+        rowMap.put(C_USER_EMAIL, rs.getString(C_USER_EMAIL));
+        rowMap.put(C_USER_INSTITUTIONAL_ID, rs.getString(C_USER_INSTITUTIONAL_ID));
+        rowMap.put(C_USER_EMPLOYEE_ID, rs.getString(C_USER_EMPLOYEE_ID));
+        rowMap.put(C_UPDATE_TIMESTAMP, rs.getString(C_UPDATE_TIMESTAMP));
+        LOG.debug("Record processed: {}", rowMap);
+        return rowMap;
+    }
+
+    /**
+     * Execute a query against COEUS and return a forward-only cursor over its rows. The query is run as a
+     * {@code PreparedStatement}, binding the values which were built with it, so that the statement text is the same
+     * from run to run and Oracle can reuse its plan. The connection, statement and result
+     * set stay open until the cursor is exhausted or closed; rows are fetched from the database {@code fetchSize} at
+     * a time.
+     *
+     * @param query the query to execute, with its bind values
+     * @param distinct whether rows which duplicate an earlier row should be dropped - the first occurrence is kept
+     * @param rowMapper converts the current row of the result set to a record
+     * @return the cursor
+     */
+    private RecordCursor openQuery(GrantQuery query, boolean distinct, RowMapper rowMapper)
+            throws ClassNotFoundException, SQLException {
+
+        Connection con = openConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs;
+        try {
+            long start = System.nanoTime();
+            stmt = con.prepareStatement(query.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            List<Object> bindValues = query.getBindValues();
+            for (int i = 0; i < bindValues.size(); i++) {
+                stmt.setObject(i + 1, bindValues.get(i));
+            }
+            long prepared = System.nanoTime();
+            rs = stmt.executeQuery();
+            statistics.addStatement(prepared - start, System.nanoTime() - prepared);
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            closeQuietly(con);
+            throw e;
         }
+        return new ResultSetCursor(con, stmt, rs, distinct, rowMapper, statistics);
+    }
 
-        return mapList;
+    /**
+     * Borrow a connection to COEUS from the shared pool for this database, creating the pool on first use. The
+     * pool keeps a cache of prepared statements on each of its connections, so that statements prepared again on
+     * the same physical connection skip the parse entirely. Closing the connection returns it to the pool.
+     *
+     * @return the connection
+     */
+    Connection openConnection() throws ClassNotFoundException, SQLException {
+        if (connectionPool == null) {
+            connectionPool = CoeusConnectionPool.getPool(coeusUrl, coeusUser, coeusPassword, poolSettings);
+        }
+        long start = System.nanoTime();
+        Connection con = connectionPool.getConnection();
+        statistics.addConnectionWait(System.nanoTime() - start);
+        return con;
     }
 
-    private List<Map<String, String>> retrieveUserUpdates(String queryString) throws ClassNotFoundException, SQLException {
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                LOG.warn("Error closing COEUS resource", e);
+            }
+        }
+    }
 
-        List<Map<String, String>> mapList = new ArrayList<>();
+    /**
+     * Converts the current row of a {@code ResultSet} to a record
+     */
+    @FunctionalInterface
+    private interface RowMapper {
+        Map<String, String> map(ResultSet rs) throws SQLException, IOException;
+    }
 
-        Class.forName("oracle.jdbc.driver.OracleDriver");
+    /**
+     * A cursor over an open COEUS {@code ResultSet}. Holds the connection, statement and result set, closing them
+     * when the rows run out or the cursor is closed.
+     */
+    private static class ResultSetCursor extends AbstractRecordCursor {
+        private final Connection con;
+        private final PreparedStatement stmt;
+        private final ResultSet rs;
+        private final RowMapper rowMapper;
+        private final RowFingerprintSet seen;
+        private final PullStatistics statistics;
+        private int count = 0;
+
+        ResultSetCursor(Connection con, PreparedStatement stmt, ResultSet rs, boolean distinct, RowMapper rowMapper,
+                        PullStatistics statistics) {
+            this.con = con;
+            this.stmt = stmt;
+            this.rs = rs;
+            this.rowMapper = rowMapper;
+            this.seen = distinct ? new RowFingerprintSet() : null;
+            this.statistics = statistics;
+        }
 
-        try (
-                Connection con = DriverManager.getConnection(coeusUrl, coeusUser, coeusPassword);
-                Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(queryString)
-        ) {
-            while (rs.next()) {
-                Map<String, String> rowMap = new HashMap<>();
-                rowMap.put(C_USER_FIRST_NAME, rs.getString(C_USER_FIRST_NAME));
-                rowMap.put(C_USER_MIDDLE_NAME, rs.getString(C_USER_MIDDLE_NAME));
-                rowMap.put(C_USER_LAST_NAME, rs.getString(C_USER_LAST_NAME));
-                rowMap.put(C_USER_EMAIL, rs.getString(C_USER_EMAIL));
-                rowMap.put(C_USER_INSTITUTIONAL_ID, rs.getString(C_USER_INSTITUTIONAL_ID));
-                rowMap.put(C_USER_EMPLOYEE_ID, rs.getString(C_USER_EMPLOYEE_ID));
-                rowMap.put(C_UPDATE_TIMESTAMP, rs.getString(C_UPDATE_TIMESTAMP));
-                String employeeId = rs.getString(C_USER_EMPLOYEE_ID);
-                if (employeeId != null) {
-                    rowMap.put(C_USER_HOPKINS_ID, directoryServiceUtil.getHopkinsIdForEmployeeId(employeeId));
-                }
-                LOG.debug("Record processed: {}", rowMap);
-                if (!mapList.contains(rowMap)) {
-                    mapList.add(rowMap);
+        @Override
+        protected Map<String, String> fetchNext() {
+            try {
+                while (nextRow()) {
+                    Map<String, String> rowMap = rowMapper.map(rs);
+                    statistics.addRowRead();
+                    if (seen == null || seen.add(rowMap)) {
+                        count++;
+                        return rowMap;
+                    }
+                    statistics.addDuplicateDropped();
                 }
+                return null;
+            } catch (SQLException e) {
+                throw new RuntimeException("Error reading result set from COEUS", e);
+            } catch (IOException e) {
+                throw new RuntimeException("Error looking up identifiers for COEUS record", e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        LOG.info("Retrieved result set from COEUS: {} records processed", mapList.size() );
-        return mapList;
+
+        private boolean nextRow() throws SQLException {
+            long start = System.nanoTime();
+            boolean hasRow = rs.next();
+            statistics.addFetchTime(System.nanoTime() - start);
+            return hasRow;
+        }
+
+        @Override
+        protected void release() {
+            closeQuietly(rs);
+            closeQuietly(stmt);
+            closeQuietly(con);
+            LOG.info("Retrieved result set from COEUS: {} records processed", count);
+        }
     }
 
-    public String buildQueryString(String startDate, String awardEndDate, String mode) {
+    public GrantQuery buildQueryString(String startDate, String awardEndDate, String mode) {
         if (mode.equals("user")) {
             return buildUserQueryString(startDate);
         } else if (mode.equals("funder")) {
             return buildFunderQueryString();
+        } else if (GRANT_QUERY_MODE_AGGREGATE.equals(grantQueryMode)) {
+            return buildAggregateGrantQueryString(startDate, awardEndDate);
         } else {
             return buildGrantQueryString(startDate, awardEndDate);
         }
@@ -249,10 +416,13 @@ public class CoeusConnector implements GrantConnector {
      * COEUS.JHU_FACULTY_FORCE_PRSN_DETAIL aliased to C
      * COEUS.SWIFT_SPONSOR aliased to D
      *
+     * The start date and award end date are bind variables rather than literals; their values are carried by the
+     * returned query and bound when it is opened.
+     *
      * @param startDate - the date we want to start the query against UPDATE_TIMESTAMP
-     * @return the SQL query string
+     * @return the SQL query
      */
-    private String buildGrantQueryString(String startDate, String awardEndDate){
+    private GrantQuery buildGrantQueryString(String startDate, String awardEndDate){
 
         String[] viewFields = {
                 "A." + C_GRANT_AWARD_NUMBER,
@@ -281,6 +451,22 @@ public class CoeusConnector implements GrantConnector {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         sb.append(String.join(", ",viewFields));
+        appendGrantSource(sb);
+        appendGrantOrder(sb, "A.");
+
+        String queryString = sb.toString();
+
+        LOG.debug("Query string is: {}", queryString);
+        return new GrantQuery(queryString, Arrays.asList(startDate, awardEndDate));
+    }
+
+    /**
+     * Append the FROM and WHERE clauses shared by the grant queries. The WHERE clause has bind variables for the start
+     * date and the award end date, in that order.
+     *
+     * @param sb the query being built
+     */
+    private void appendGrantSource(StringBuilder sb) {
         sb.append(" FROM");
         sb.append(" COEUS.JHU_FACULTY_FORCE_PROP A");
        // sb.append(" INNER JOIN ");
@@ -291,22 +477,142 @@ public class CoeusConnector implements GrantConnector {
         sb.append(" INNER JOIN COEUS.JHU_FACULTY_FORCE_PRSN B ON A.INST_PROPOSAL = B.INST_PROPOSAL");
         sb.append(" INNER JOIN COEUS.JHU_FACULTY_FORCE_PRSN_DETAIL C ON B.EMPLOYEE_ID = C.EMPLOYEE_ID");
         sb.append(" LEFT JOIN COEUS.SWIFT_SPONSOR D ON A.PRIME_SPONSOR_CODE = D.SPONSOR_CODE");
-        sb.append(" WHERE A.UPDATE_TIMESTAMP > TIMESTAMP '");
-        sb.append(startDate);
-        sb.append("' ");
-        sb.append("AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE('"+ awardEndDate +"', 'MM/DD/YYYY') ");
+        sb.append(" WHERE A.UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF') ");
+        sb.append("AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE(?, 'MM/DD/YYYY') ");
         sb.append("AND A.PROPOSAL_STATUS = 'Funded' ");
         sb.append("AND (B.ABBREVIATED_ROLE = 'P' OR B.ABBREVIATED_ROLE = 'C' OR REGEXP_LIKE (UPPER(B.ROLE), '^CO ?-?INVESTIGATOR$')) ");
         sb.append("AND A.GRANT_NUMBER IS NOT NULL");
+    }
+
+    /**
+     * Append the ORDER BY clause of an ordered grant pull. The grant numbers are compared as bytes, whatever the
+     * session's sort order, so that they come in the order the updater expects.
+     *
+     * @param sb the query being built
+     * @param alias the alias of the grant number's view, with its dot
+     */
+    private void appendGrantOrder(StringBuilder sb, String alias) {
+        if (grantOrdered) {
+            sb.append(" ORDER BY NLSSORT(" + alias + C_GRANT_LOCAL_KEY + ", 'NLS_SORT=BINARY')");
+        }
+    }
+
+    /**
+     * Method for building the aggregate form of the grant query. This draws on the same views, with the same
+     * restrictions, as {@link #buildGrantQueryString(String, String)}, but does in the database the work which
+     * {@code DefaultPassUpdater} would otherwise do to merge the iterations of a grant. We return one row per grant
+     * and person rather than one per iteration and person:
+     *
+     * the award number, title, award and start dates and the funders are taken from the earliest iteration (by award
+     * date, falling back on start date); the status and end date are taken from the latest iteration (by award date,
+     * falling back on end date); the update timestamp is the latest of all iterations.
+     *
+     * a person's role is P if they are a PI on the latest iteration; otherwise C if they were ever a PI or co-PI on
+     * the grant - this is how the updater treats a PI who has been replaced.
+     *
+     * The updater produces the same Grant from these rows as it does from the iteration rows taken in order of award
+     * date.
+     *
+     * @param startDate - the date we want to start the query against UPDATE_TIMESTAMP
+     * @param awardEndDate - the award end date bound for the query
+     * @return the SQL query
+     */
+    private GrantQuery buildAggregateGrantQueryString(String startDate, String awardEndDate) {
+        String earliest = "PARTITION BY A." + C_GRANT_LOCAL_KEY +
+                " ORDER BY TO_DATE(A.AWARD_DATE, 'MM/DD/YYYY') ASC NULLS LAST," +
+                " TO_DATE(A.AWARD_START, 'MM/DD/YYYY') ASC NULLS LAST, A.INST_PROPOSAL ASC";
+        String latest = "PARTITION BY A." + C_GRANT_LOCAL_KEY +
+                " ORDER BY TO_DATE(A.AWARD_DATE, 'MM/DD/YYYY') DESC NULLS LAST," +
+                " TO_DATE(A.AWARD_END, 'MM/DD/YYYY') DESC NULLS LAST, A.INST_PROPOSAL DESC";
+
+        String[] earliestFields = {
+                "A." + C_GRANT_AWARD_NUMBER,
+                "A." + C_GRANT_PROJECT_NAME,
+                "A." + C_GRANT_AWARD_DATE,
+                "A." + C_GRANT_START_DATE,
+                "A." + C_DIRECT_FUNDER_NAME,
+                "A." + C_DIRECT_FUNDER_LOCAL_KEY,
+                "D." + C_PRIMARY_FUNDER_NAME,
+                "D." + C_PRIMARY_FUNDER_LOCAL_KEY };
 
+        String[] latestFields = {
+                "A." + C_GRANT_AWARD_STATUS,
+                "A." + C_GRANT_END_DATE };
+
+        //one row per iteration and person, each carrying the values chosen for its grant
+        List<String> iterationFields = new ArrayList<>();
+        iterationFields.add("A." + C_GRANT_LOCAL_KEY);
+        iterationFields.add("A.INST_PROPOSAL");
+        iterationFields.add("B." + C_ABBREVIATED_ROLE);
+        iterationFields.add("B." + C_USER_EMPLOYEE_ID);
+        iterationFields.add("C." + C_USER_FIRST_NAME);
+        iterationFields.add("C." + C_USER_MIDDLE_NAME);
+        iterationFields.add("C." + C_USER_LAST_NAME);
+        iterationFields.add("C." + C_USER_EMAIL);
+        iterationFields.add("C." + C_USER_INSTITUTIONAL_ID);
+        for (String field : earliestFields) {
+            iterationFields.add("FIRST_VALUE(" + field + ") OVER (" + earliest + ") AS " + field.substring(2));
+        }
+        for (String field : latestFields) {
+            iterationFields.add("FIRST_VALUE(" + field + ") OVER (" + latest + ") AS " + field.substring(2));
+        }
+        iterationFields.add("FIRST_VALUE(A.INST_PROPOSAL) OVER (" + latest + ") AS LATEST_PROPOSAL");
+        iterationFields.add("MAX(A." + C_UPDATE_TIMESTAMP + ") OVER (PARTITION BY A." + C_GRANT_LOCAL_KEY + ") AS " +
+                C_UPDATE_TIMESTAMP);
+
+        //collapse to one row per grant and person, in the same column order as the iteration query
+        String[] columns = {
+                C_GRANT_AWARD_NUMBER,
+                C_GRANT_AWARD_STATUS,
+                C_GRANT_LOCAL_KEY,
+                C_GRANT_PROJECT_NAME,
+                C_GRANT_AWARD_DATE,
+                C_GRANT_START_DATE,
+                C_GRANT_END_DATE,
+                C_DIRECT_FUNDER_NAME,
+                C_DIRECT_FUNDER_LOCAL_KEY,
+                C_UPDATE_TIMESTAMP,
+                C_ABBREVIATED_ROLE,
+                C_USER_EMPLOYEE_ID,
+                C_USER_FIRST_NAME,
+                C_USER_MIDDLE_NAME,
+                C_USER_LAST_NAME,
+                C_USER_EMAIL,
+                C_USER_INSTITUTIONAL_ID,
+                C_PRIMARY_FUNDER_NAME,
+                C_PRIMARY_FUNDER_LOCAL_KEY };
+
+        List<String> grantPersonFields = new ArrayList<>();
+        for (String column : columns) {
+            if (column.equals(C_GRANT_LOCAL_KEY) || column.equals(C_USER_EMPLOYEE_ID)) {
+                grantPersonFields.add("G." + column);
+            } else if (column.equals(C_ABBREVIATED_ROLE)) {
+                grantPersonFields.add("CASE" +
+                        " WHEN MAX(CASE WHEN G.ABBREVIATED_ROLE = 'P' AND G.INST_PROPOSAL = G.LATEST_PROPOSAL THEN 1 ELSE 0 END) = 1 THEN 'P'" +
+                        " WHEN MAX(CASE WHEN G.ABBREVIATED_ROLE IN ('P', 'C', 'K') THEN 1 ELSE 0 END) = 1 THEN 'C'" +
+                        " ELSE MAX(G.ABBREVIATED_ROLE) END AS " + C_ABBREVIATED_ROLE);
+            } else {
+                grantPersonFields.add("MAX(G." + column + ") AS " + column);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        sb.append(String.join(", ", grantPersonFields));
+        sb.append(" FROM (SELECT ");
+        sb.append(String.join(", ", iterationFields));
+        appendGrantSource(sb);
+        sb.append(") G");
+        sb.append(" GROUP BY G." + C_GRANT_LOCAL_KEY + ", G." + C_USER_EMPLOYEE_ID);
+        appendGrantOrder(sb, "G.");
 
         String queryString = sb.toString();
 
         LOG.debug("Query string is: {}", queryString);
-        return queryString;
+        return new GrantQuery(queryString, Arrays.asList(startDate, awardEndDate));
     }
 
-    private String buildUserQueryString(String startDate) {
+    private GrantQuery buildUserQueryString(String startDate) {
         String[] viewFields = {
                 C_USER_FIRST_NAME,
                 C_USER_MIDDLE_NAME,
@@ -321,17 +627,15 @@ public class CoeusConnector implements GrantConnector {
         sb.append(String.join(", ",viewFields));
         sb.append(" FROM");
         sb.append(" COEUS.JHU_FACULTY_FORCE_PRSN_DETAIL");
-        sb.append(" WHERE UPDATE_TIMESTAMP > TIMESTAMP '");
-        sb.append(startDate);
-        sb.append("'");
+        sb.append(" WHERE UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF')");
 
         String queryString = sb.toString();
 
         LOG.debug("Query string is: {}", queryString);
-        return queryString;
+        return new GrantQuery(queryString, Collections.singletonList(startDate));
     }
 
-    private String buildFunderQueryString() {
+    private GrantQuery buildFunderQueryString() {
 
         String[] viewFields = {//doesn't matter whether the funder is primary or direct - these are the column names in the SWIFT_SPONSOR view
                 C_PRIMARY_FUNDER_NAME,
@@ -342,15 +646,48 @@ public class CoeusConnector implements GrantConnector {
         sb.append(String.join(", ",viewFields));
         sb.append(" FROM");
         sb.append(" COEUS.SWIFT_SPONSOR");
-        sb.append(" WHERE");
-        sb.append(" SPONSOR_CODE IN (");
-        List<String> keyList = new ArrayList<>();
-        sb.append(String.join(", ", (funderPolicyProperties.stringPropertyNames())));
-        sb.append(")");
+        sb.append(" WHERE ");
+
+        //Oracle allows at most 1000 expressions in an IN list, so longer lists are split into OR'ed chunks.
+        //sorting the codes keeps the statement text, and its bind order, the same from run to run
+        List<Object> sponsorCodes = new ArrayList<>(new TreeSet<>(funderPolicyProperties.stringPropertyNames()));
+        if (sponsorCodes.isEmpty()) {
+            sb.append("1 = 0");
+        } else {
+            List<String> inLists = new ArrayList<>();
+            for (int i = 0; i < sponsorCodes.size(); i += MAX_IN_LIST_SIZE) {
+                int chunkSize = Math.min(MAX_IN_LIST_SIZE, sponsorCodes.size() - i);
+                inLists.add("SPONSOR_CODE IN (" + String.join(", ", Collections.nCopies(chunkSize, "?")) + ")");
+            }
+            sb.append(inLists.size() == 1 ? inLists.get(0) : "(" + String.join(" OR ", inLists) + ")");
+        }
         String queryString = sb.toString();
 
         LOG.debug("Query string is: {} ", queryString);
-        return queryString;
+        return new GrantQuery(queryString, sponsorCodes);
+
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        if (properties == null || properties.getProperty(name) == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(properties.getProperty(name));
+    }
+
+    /**
+     * The report of the most recent pull, followed by the state of the directory cache and the connection pool
+     * @return the report
+     */
+    public String getReport() {
+        String report = statistics.getReport();
+        if (directoryServiceUtil != null) {
+            report = report + directoryServiceUtil.getCacheReport() + "\n";
+        }
+        return connectionPool == null ? report : report + connectionPool.getReport();
+    }
 
+    public PullStatistics getStatistics() {
+        return statistics;
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+
+/**
+ * A compact row of a grant pull. The values are held in an array indexed by column rather than in a
+ * {@code HashMap}, and values of low-cardinality columns - statuses, roles, funder names and codes - are shared
+ * between rows through a {@link Dictionary}, so a pull holds one copy of each funder name rather than one per row.
+ *
+ * The row is also a read-mostly {@code Map} keyed on the {@link CoeusFieldNames} constants, so that code which
+ * handles rows from any source may keep treating it as one. The columns of the grant query are always present as
+ * keys, possibly with null values; the Hopkins ID and funder policy keys are present only once they are set. This
+ * matches the maps we used to build for each row.
+ *
+ * A row is serialized as a plain {@code HashMap}, so pull files do not depend on this class.
+ *
+ * @author jrm
+ */
+final class CoeusGrantRow extends AbstractMap<String, String> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int AWARD_NUMBER = 0;
+    static final int AWARD_STATUS = 1;
+    static final int GRANT_LOCAL_KEY = 2;
+    static final int PROJECT_NAME = 3;
+    static final int AWARD_DATE = 4;
+    static final int START_DATE = 5;
+    static final int END_DATE = 6;
+    static final int DIRECT_FUNDER_NAME = 7;
+    static final int DIRECT_FUNDER_LOCAL_KEY = 8;
+    static final int UPDATE_TIMESTAMP = 9;
+    static final int ABBREVIATED_ROLE = 10;
+    static final int EMPLOYEE_ID = 11;
+    static final int FIRST_NAME = 12;
+    static final int MIDDLE_NAME = 13;
+    static final int LAST_NAME = 14;
+    static final int EMAIL = 15;
+    static final int INSTITUTIONAL_ID = 16;
+    static final int PRIMARY_FUNDER_NAME = 17;
+    static final int PRIMARY_FUNDER_LOCAL_KEY = 18;
+    //the columns above come from the grant query; these are added afterwards
+    static final int HOPKINS_ID = 19;
+    static final int PRIMARY_FUNDER_POLICY = 20;
+    static final int DIRECT_FUNDER_POLICY = 21;
+
+    private static final String[] COLUMNS = {
+            C_GRANT_AWARD_NUMBER,
+            C_GRANT_AWARD_STATUS,
+            C_GRANT_LOCAL_KEY,
+            C_GRANT_PROJECT_NAME,
+            C_GRANT_AWARD_DATE,
+            C_GRANT_START_DATE,
+            C_GRANT_END_DATE,
+            C_DIRECT_FUNDER_NAME,
+            C_DIRECT_FUNDER_LOCAL_KEY,
+            C_UPDATE_TIMESTAMP,
+            C_ABBREVIATED_ROLE,
+            C_USER_EMPLOYEE_ID,
+            C_USER_FIRST_NAME,
+            C_USER_MIDDLE_NAME,
+            C_USER_LAST_NAME,
+            C_USER_EMAIL,
+            C_USER_INSTITUTIONAL_ID,
+            C_PRIMARY_FUNDER_NAME,
+            C_PRIMARY_FUNDER_LOCAL_KEY,
+            C_USER_HOPKINS_ID,
+            C_PRIMARY_FUNDER_POLICY,
+            C_DIRECT_FUNDER_POLICY };
+
+    private static final int QUERY_COLUMN_COUNT = HOPKINS_ID;
+    private static final int QUERY_COLUMNS_PRESENT = (1 << QUERY_COLUMN_COUNT) - 1;
+
+    //the columns whose values repeat across many rows
+    private static final int DICTIONARY_COLUMNS = 1 << AWARD_STATUS | 1 << DIRECT_FUNDER_NAME |
+            1 << DIRECT_FUNDER_LOCAL_KEY | 1 << ABBREVIATED_ROLE | 1 << PRIMARY_FUNDER_NAME |
+            1 << PRIMARY_FUNDER_LOCAL_KEY;
+
+    private static final Map<String, Integer> COLUMN_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            COLUMN_INDEX.put(COLUMNS[i], i);
+        }
+    }
+
+    private final String[] values = new String[COLUMNS.length];
+    //bit i is set if column i is a key of this row
+    private int present = QUERY_COLUMNS_PRESENT;
+
+    private CoeusGrantRow() {
+    }
+
+    /**
+     * Return a row as a {@code CoeusGrantRow}. Rows from other sources, such as pull files, are copied; keys
+     * which are not grant columns are dropped.
+     *
+     * @param rowMap the row
+     * @return the row itself if it is a {@code CoeusGrantRow}, otherwise a copy of it
+     */
+    static CoeusGrantRow of(Map<String, String> rowMap) {
+        if (rowMap instanceof CoeusGrantRow) {
+            return (CoeusGrantRow) rowMap;
+        }
+        CoeusGrantRow row = new CoeusGrantRow();
+        row.present = 0;
+        for (Map.Entry<String, String> entry : rowMap.entrySet()) {
+            Integer column = COLUMN_INDEX.get(entry.getKey());
+            if (column != null) {
+                row.set(column, entry.getValue());
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Get the value of a column
+     * @param column the column index
+     * @return the value, or null
+     */
+    String get(int column) {
+        return values[column];
+    }
+
+    /**
+     * Set the value of a column, making it a key of this row
+     * @param column the column index
+     * @param value the value, may be null
+     */
+    void set(int column, String value) {
+        values[column] = value;
+        present |= 1 << column;
+    }
+
+    String getGrantLocalKey() {
+        return values[GRANT_LOCAL_KEY];
+    }
+
+    String getEmployeeId() {
+        return values[EMPLOYEE_ID];
+    }
+
+    String getAbbreviatedRole() {
+        return values[ABBREVIATED_ROLE];
+    }
+
+    String getDirectFunderLocalKey() {
+        return values[DIRECT_FUNDER_LOCAL_KEY];
+    }
+
+    String getPrimaryFunderLocalKey() {
+        return values[PRIMARY_FUNDER_LOCAL_KEY];
+    }
+
+    @Override
+    public String get(Object key) {
+        Integer column = COLUMN_INDEX.get(key);
+        return column == null ? null : values[column];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Integer column = COLUMN_INDEX.get(key);
+        return column != null && (present & 1 << column) != 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        Integer column = COLUMN_INDEX.get(key);
+        if (column == null) {
+            throw new UnsupportedOperationException("Not a grant column: " + key);
+        }
+        String previous = values[column];
+        set(column, value);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return Integer.bitCount(present);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int remaining = present;
+
+                    @Override
+                    public boolean hasNext() {
+                        return remaining != 0;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (remaining == 0) {
+                            throw new NoSuchElementException();
+                        }
+                        int column = Integer.numberOfTrailingZeros(remaining);
+                        remaining &= remaining - 1;
+                        return new SimpleImmutableEntry<>(COLUMNS[column], values[column]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CoeusGrantRow.this.size();
+            }
+        };
+    }
+
+    private Object writeReplace() {
+        return new HashMap<>(this);
+    }
+
+    /**
+     * Reads {@code CoeusGrantRow}s from the result set of a grant query. Column indexes are looked up on the first
+     * row and reused for the rest of the result set. A reader is not thread safe; each partition of a pull has its
+     * own.
+     */
+    static final class Reader {
+
+        private final Dictionary dictionary = new Dictionary();
+        private int[] columnIndexes;
+
+        /**
+         * Read the current row of a result set
+         * @param rs the result set, positioned on a row
+         * @return the row
+         * @throws SQLException if a column cannot be read
+         */
+        CoeusGrantRow read(ResultSet rs) throws SQLException {
+            if (columnIndexes == null) {
+                columnIndexes = new int[QUERY_COLUMN_COUNT];
+                for (int i = 0; i < QUERY_COLUMN_COUNT; i++) {
+                    columnIndexes[i] = rs.findColumn(COLUMNS[i]);
+                }
+            }
+            CoeusGrantRow row = new CoeusGrantRow();
+            for (int i = 0; i < QUERY_COLUMN_COUNT; i++) {
+                String value = rs.getString(columnIndexes[i]);
+                row.values[i] = (DICTIONARY_COLUMNS & 1 << i) != 0 ? dictionary.encode(value) : value;
+            }
+            return row;
+        }
+
+        int dictionarySize() {
+            return dictionary.size();
+        }
+    }
+
+    /**
+     * A table of distinct values, used so that equal values in different rows are the same {@code String}
+     */
+    static final class Dictionary {
+
+        private final Map<String, String> entries = new HashMap<>();
+
+        String encode(String value) {
+            if (value == null) {
+                return null;
+            }
+            String existing = entries.putIfAbsent(value, value);
+            return existing == null ? value : existing;
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+}
@@ -16,22 +16,46 @@
 
 package org.dataconservancy.pass.grant.data;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassClientFactory;
 import org.dataconservancy.pass.model.Funder;
 import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.PassEntity;
 import org.dataconservancy.pass.model.User;
 import org.dataconservancy.pass.model.support.Identifier;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
 import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
 import static org.dataconservancy.pass.grant.data.DateTimeUtil.createJodaDateTime;
 
@@ -44,22 +68,93 @@ import static org.dataconservancy.pass.grant.data.DateTimeUtil.createJodaDateTim
 
 public class DefaultPassUpdater implements PassUpdater{
 
+    /**
+     * The system property for the number of threads writing to PASS at the same time. The default is one, which
+     * writes on the calling thread.
+     */
+    public static final String PASS_UPDATER_WORKERS = "pass.updater.workers";
+
+    /**
+     * The system property which says that grant rows come ordered by grant number, so that each grant can be built
+     * and written as soon as its rows end, rather than all of them being held until the pull has been read.
+     */
+    public static final String PASS_UPDATER_STREAMING = "pass.updater.streaming";
+
+    /**
+     * The system property for the megabytes of grant rows which may be held while sorting them by grant number; past
+     * that, sorted runs are spilled to temporary files. When this is set, grant rows are sorted and then streamed,
+     * whatever order they came in.
+     */
+    public static final String PASS_UPDATER_SORT_BUDGET = "pass.updater.sort.budget";
+    //the sort budget is capped so that each spilled run can be mapped whole
+    private static final long MAX_SORT_BUDGET = 1024;
+
     private String DOMAIN = "default.domain";
+    private static final String FUNDER_ID_TYPE = "funder";
+    private static final String GRANT_ID_TYPE = "grant";
+    private static final String USER_ID_TYPE = "user";
+    private static final String REFERENCE_SCHEME = "ref";
+    //the identity cache, fingerprint, digest and journal files are kept in COEUS_HOME
+    static final String IDENTITY_CACHE_FILE_NAME = "identity.cache";
+    static final String FINGERPRINTS_FILE_NAME = "entity.fingerprints";
+    static final String GRANT_DIGESTS_FILE_NAME = "grant.digests";
+    static final String JOURNAL_FILE_NAME = "update.journal";
+    //a streamed grant update resolves the identities of this many grants, and their funders and users, at a time
+    static final int STREAM_BATCH_SIZE = 100;
 
     private static final Logger LOG = LoggerFactory.getLogger(DefaultPassUpdater.class);
+    //the stores kept in files, by file and PASS instance
+    private static final Map<String, Object> STORES = new HashMap<>();
     private String latestUpdateString = "";
 
     private final PassClient passClient;
     private final PassUpdateStatistics statistics = new PassUpdateStatistics();
     private final PassEntityUtil passEntityUtil;
 
-    private final Map<URI, Grant> grantUriMap = new HashMap<>();
+    //written to by the grant writers, unless the grants are not to be kept once written
+    private final Map<URI, Grant> grantUriMap = Collections.synchronizedMap(new HashMap<>());
+    private boolean retainGrants = true;
+    //whether grant rows come ordered by grant number
+    private boolean streaming = false;
+    //the bytes of grant rows held while sorting them, or 0 if they are not sorted
+    private long sortBudget = 0;
 
     //some entities may be referenced many times during an update, but just need to be updated the first time
     //they are encountered. these include Users and Funders. we save the overhead of redundant updates
-    //of these by looking them up here; if they are on the Map, they have already been processed
-    private final Map<String, URI> funderMap = new HashMap<>();
-    private final Map<String, URI> userMap = new HashMap<>();
+    //of these by looking them up here; if they are on the Map, they have already been processed.
+    //these are filled in by the funder and user writers
+    private final Map<String, URI> funderMap = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, URI> userMap = Collections.synchronizedMap(new HashMap<>());
+
+    //the URIs of entities, by local key or locator ID, resolved in batches before each phase of writes. a key
+    //mapped to null is known not to be in PASS; a key which is not on the map is looked up on its own
+    private final Map<String, URI> identities = Collections.synchronizedMap(new HashMap<>());
+    private PassIdentityResolver identityResolver;
+    //the URIs found in earlier runs. the keys of identities which came from here are kept, since such a URI
+    //may no longer be readable, and then has to be searched for again
+    private IdentityCache identityCache;
+    private final Set<String> cachedKeys = ConcurrentHashMap.newKeySet();
+    //the fingerprints of the entities as last written. an entity whose fingerprint has not changed, and whose URI
+    //was found in this run rather than only in the identity cache, is not read
+    private EntityFingerprints fingerprints;
+    //the digests of the COEUS rows of each grant at the last load. a grant whose rows have not changed is skipped
+    private GrantDigests grantDigests;
+    //the entities written by an update which did not finish. an entity written with the same data is not written again
+    private UpdateJournal journal;
+    //each mode has its own journal, opened when an update of that mode begins
+    private Path journalFile;
+    //the directory the stores and journals are kept in, COEUS_HOME, or null to keep them in memory only
+    private Path storeDirectory;
+    //each shard of a sharded pull has its own stores and journals, since the other shards may be loaded at the same
+    //time by other processes
+    private String shardSuffix = "";
+    //a full verification ignores the grant digests, the identity cache and the fingerprints, and reads every entity
+    private boolean fullVerify = false;
+    //in plan mode, the creates and updates are written to a change plan instead of to PASS
+    private Path planFile;
+    private ChangePlan plan;
+    //sends updates as patches of the fields which changed. if null, updates go through the PASS client
+    private PassPatchWriter patchWriter;
 
     private String mode;
 
@@ -67,48 +162,108 @@ public class DefaultPassUpdater implements PassUpdater{
     {
         this.passEntityUtil = passEntityUtil;
         this.passClient = PassClientFactory.getPassClient();
+        this.identityResolver = PassIdentityResolver.fromSystemProperties();
+        this.patchWriter = PassPatchWriter.fromSystemProperties();
+        this.streaming = Boolean.parseBoolean(System.getProperty(PASS_UPDATER_STREAMING));
+        this.sortBudget = getSortBudget();
+        if (System.getProperty("COEUS_HOME") != null) {
+            storeDirectory = Paths.get(System.getProperty("COEUS_HOME"));
+        }
+        openStores();
+        this.journal = new UpdateJournal(null, null);
     }
 
     //used in unit testing for injecting a mock client
     DefaultPassUpdater(PassEntityUtil passEntityUtil, PassClient passClient) {
         this.passEntityUtil = passEntityUtil;
         this.passClient = passClient;
+        if (System.getProperty("COEUS_HOME") != null) {
+            storeDirectory = Paths.get(System.getProperty("COEUS_HOME"));
+        }
+        openStores();
+        this.journal = new UpdateJournal(null, null);
     }
 
-    public void updatePass(Collection<Map<String, String>> results, String mode) {
+    public void updatePass(Iterable<Map<String, String>> results, String mode) {
         this.mode = mode;
+        openJournal();
         userMap.clear();
         funderMap.clear();
+        identities.clear();
+        cachedKeys.clear();
         statistics.reset();
         statistics.setType(mode);
-        switch (mode) {
-            case "grant":
-                updateGrants(results);
-                break;
-            case "user":
-                updateUsers(results);
-                break;
-            case "funder":
-                updateFunders(results);
-                break;
+        latestUpdateString = "";
+        plan = null;
+        if (planFile != null) {
+            try {
+                plan = new ChangePlan(planFile, mode, System.getProperty("pass.fedora.baseurl"), shardSuffix);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write change plan " + planFile, e);
+            }
+        }
+        try {
+            switch (mode) {
+                case "grant":
+                    if (sortBudget > 0) {
+                        sortAndStreamGrants(results);
+                    } else if (streaming) {
+                        streamGrants(results);
+                    } else {
+                        updateGrants(results);
+                    }
+                    break;
+                case "user":
+                    updateUsers(results);
+                    break;
+                case "funder":
+                    updateFunders(results);
+                    break;
+            }
+            if (plan != null) {
+                recordIdentities();
+                plan.finish(latestUpdateString);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write change plan " + planFile, e);
+        } finally {
+            journal.sync();
+            if (plan != null) {
+                //a plan has written nothing, and what it found is recorded in the plan, to be saved once it is applied
+                closePlan();
+            } else {
+                //whatever was written, the URIs we found and the fingerprints of what we wrote are good for the
+                //next run
+                saveCaches();
+            }
         }
     }
 
     /**
      * Build a Collection of Grants from a ResultSet, then update the grants in Pass
      * Because we need to make sure we catch any updates to fields referenced by URIs, we construct
-     * these and update these as well
+     * these and update these as well.
+     *
+     * This is done in phases, each of which is timed: the rows are folded into the grants as they are read, so that
+     * no row is kept once it has been read, and the grants whose rows are the same as at the last load are dropped;
+     * the funders and users of the remaining grants are written to PASS, funders first, each on the parallel
+     * workers; and then the grants are pointed at the funders and users, and written. A funder or user which cannot be written
+     * fails only the grants which refer to it: the other grants are written, and then the failures are reported
+     * together, funders and users first, so that the update still fails as a whole.
      */
-    private void updateGrants(Collection<Map<String, String>> results) {
-
-        //a grant will have several rows in the ResultSet if there are co-pis. so we put the grant on this
-        //Map and add to it as additional rows add information.
-        Map<String, Grant> grantMap = new HashMap<>();
-
-        LOG.info("Processing result set with {} rows", results.size() );
+    private void updateGrants(Iterable<Map<String, String>> results) {
+
+        //phase 1 - fold the rows into the grants, noting the funders and users each grant refers to. the funders and
+        //users have no URIs yet, so the grants refer to them by reference URIs, which are resolved in phase 4
+        long start = System.currentTimeMillis();
+        Map<String, PendingGrant> pending = new HashMap<>();
+        Map<String, Funder> allFunders = new HashMap<>();
+        Map<String, User> allUsers = new HashMap<>();
+        int rowCount = 0;
         boolean modeChecked = false;
 
         for(Map<String,String> rowMap : results) {
+            rowCount++;
 
             if (!modeChecked) {
                 if (!rowMap.containsKey(C_GRANT_LOCAL_KEY)) {//we always have this for grants
@@ -118,149 +273,590 @@ public class DefaultPassUpdater implements PassUpdater{
                 }
             }
 
-            String grantLocalKey = rowMap.get(C_GRANT_LOCAL_KEY);
-
-            //get funder local keys. if a primary funder is not specified, we set it to the direct funder
-            String directFunderLocalKey = rowMap.get(C_DIRECT_FUNDER_LOCAL_KEY);
-            String primaryFunderLocalKey = rowMap.get(C_PRIMARY_FUNDER_LOCAL_KEY);
-            primaryFunderLocalKey = (primaryFunderLocalKey == null? directFunderLocalKey: primaryFunderLocalKey);
+            //rows from COEUS are already typed rows; rows from other sources are copied into one
+            CoeusGrantRow row = CoeusGrantRow.of(rowMap);
+            String grantLocalKey = row.getGrantLocalKey();
+            LOG.debug("Processing grant with localKey {}", grantLocalKey);
+            PendingGrant grant = pending.computeIfAbsent(grantLocalKey, PendingGrant::new);
+            grant.rowHashes.add(GrantDigests.rowHash(row));
+
+            //the first row to reference a funder or user is the one it is built from
+            String directFunderLocalKey = row.getDirectFunderLocalKey();
+            String primaryFunderLocalKey = primaryFunderLocalKey(row);
+            String employeeId = row.getEmployeeId();
+            if (!allFunders.containsKey(directFunderLocalKey)) {
+                allFunders.put(directFunderLocalKey, buildDirectFunder(row));
+            }
+            if (!allFunders.containsKey(primaryFunderLocalKey)) {
+                allFunders.put(primaryFunderLocalKey, buildPrimaryFunder(row));
+            }
+            if (!allUsers.containsKey(employeeId)) {
+                allUsers.put(employeeId, buildUser(row));
+            }
+            grant.funderKeys.add(directFunderLocalKey);
+            grant.funderKeys.add(primaryFunderLocalKey);
+            grant.employeeIds.add(employeeId);
+            addGrantRow(grant.grant, row, key -> reference(FUNDER_ID_TYPE, key), key -> reference(USER_ID_TYPE, key),
+                    () -> grant.pis++, () -> grant.coPis++);
 
-            //we will need funder PASS URIs - retrieve or create them,
-            //updating the info on them if necessary
-            if ( !funderMap.containsKey(directFunderLocalKey)) {
-                Funder updatedFunder = buildDirectFunder(rowMap);
-                URI passFunderURI =  updateFunderInPass(updatedFunder);
-                funderMap.put(directFunderLocalKey, passFunderURI);
+            //see if this is the latest grant updated
+            if (row.containsKey(C_UPDATE_TIMESTAMP)) {
+                String grantUpdateString = row.get(CoeusGrantRow.UPDATE_TIMESTAMP);
+                latestUpdateString = latestUpdateString.length() == 0 ? grantUpdateString : returnLaterUpdate(grantUpdateString, latestUpdateString);
             }
+        }
 
-            if( !funderMap.containsKey(primaryFunderLocalKey)) {
-                Funder updatedFunder = buildPrimaryFunder(rowMap);
-                URI passFunderURI =  updateFunderInPass(updatedFunder);
-                funderMap.put(primaryFunderLocalKey, passFunderURI);
+        //drop the grants whose rows are the same as when they were last loaded
+        Map<String, Long> digests = new HashMap<>();
+        Set<String> unchanged = new HashSet<>();
+        for (PendingGrant grant : pending.values()) {
+            long digest = GrantDigests.digest(passEntityUtil.getClass().getName(), grant.rowHashes);
+            grant.rowHashes = null;
+            digests.put(grant.grant.getLocalKey(), digest);
+            if (!fullVerify && grantDigests.unchanged(grant.grant.getLocalKey(), digest)) {
+                unchanged.add(grant.grant.getLocalKey());
+            }
+        }
+        if (!unchanged.isEmpty()) {
+            pending.keySet().removeAll(unchanged);
+            LOG.info("Skipping {} grants which have not changed since they were last loaded", unchanged.size());
+        }
+        statistics.setGrantsUnchanged(unchanged.size(), Math.round(unchanged.size() * grantDigests.getMillisPerGrant()));
+
+        //only the funders and users of the grants which have changed are written
+        Map<String, Funder> funders = new LinkedHashMap<>();
+        Map<String, User> users = new LinkedHashMap<>();
+        for (PendingGrant grant : pending.values()) {
+            for (String funderLocalKey : grant.funderKeys) {
+                funders.putIfAbsent(funderLocalKey, allFunders.get(funderLocalKey));
             }
+            for (String employeeId : grant.employeeIds) {
+                users.putIfAbsent(employeeId, allUsers.get(employeeId));
+            }
+        }
+        allFunders.clear();
+        allUsers.clear();
+        statistics.addPhase("scan", rowCount, "rows", System.currentTimeMillis() - start);
+        LOG.info("Processed result set with {} rows", rowCount);
+
+        //phase 2 - we will need funder PASS URIs - retrieve or create them, updating the info on them if necessary
+        long loadStart = System.currentTimeMillis();
+        start = loadStart;
+        List<String> funderLocalKeys = new ArrayList<>();
+        for (String funderLocalKey : funders.keySet()) {
+            funderLocalKeys.add(fullLocalKey(FUNDER_ID_TYPE, funderLocalKey));
+        }
+        resolveIdentities(Funder.class, "localKey", funderLocalKeys);
+        KeyedWriteQueue funderWrites = new KeyedWriteQueue(getWorkers(), "funder");
+        for (Map.Entry<String, Funder> funder : funders.entrySet()) {
+            funderWrites.submit(funder.getKey(),
+                    () -> funderMap.put(funder.getKey(), updateFunderInPass(funder.getValue())));
+        }
+        Set<String> failedFunders = drainWrites(funderWrites);
+        statistics.addPhase("funders", funders.size(), "funders", System.currentTimeMillis() - start);
+
+        //phase 3 - same for any users
+        start = System.currentTimeMillis();
+        resolveUserIdentities(users.values());
+        KeyedWriteQueue userWrites = new KeyedWriteQueue(getWorkers(), "user");
+        for (Map.Entry<String, User> user : users.entrySet()) {
+            userWrites.submit(user.getKey(), () -> userMap.put(user.getKey(), updateUserInPass(user.getValue())));
+        }
+        Set<String> failedUsers = drainWrites(userWrites);
+        statistics.addPhase("users", users.size(), "users", System.currentTimeMillis() - start);
 
-            //same for any users
-            String employeeId = rowMap.get(C_USER_EMPLOYEE_ID);
-            String abbreviatedRole = rowMap.get(C_ABBREVIATED_ROLE);
-            if (!userMap.containsKey(employeeId)) {
-                User updatedUser = buildUser(rowMap);
-                URI passUserURI = updateUserInPass(updatedUser);
-                userMap.put(employeeId, passUserURI);
+        //phase 4 - point the grants at the funders and users, and write them
+        start = System.currentTimeMillis();
+        Map<String, Grant> grantMap = new HashMap<>();
+        Set<String> blockedGrants = new HashSet<>();
+        for (PendingGrant grant : pending.values()) {
+            String grantLocalKey = grant.grant.getLocalKey();
+            if (!Collections.disjoint(grant.funderKeys, failedFunders) ||
+                    !Collections.disjoint(grant.employeeIds, failedUsers)) {
+                blockedGrants.add(grantLocalKey);
+                continue;
             }
+            resolveReferences(grant.grant);
+            for (int i = 0; i < grant.pis; i++) {
+                statistics.addPi();
+            }
+            for (int i = 0; i < grant.coPis; i++) {
+                statistics.addCoPi();
+            }
+            grantMap.put(grantLocalKey, grant.grant);
+        }
+        pending.clear();
+        if (!blockedGrants.isEmpty()) {
+            LOG.warn("Skipping {} grants whose funders or users could not be written", blockedGrants.size());
+        }
 
-            //now we know all about our user and funders for this record
-            // let's get to the grant proper
-            LOG.debug("Processing grant with localKey {}", grantLocalKey);
+        //now put updated grant objects in pass. each grant is written once, so they can be written in any order
+        List<String> grantLocalKeys = new ArrayList<>();
+        for (String grantLocalKey : grantMap.keySet()) {
+            grantLocalKeys.add(fullLocalKey(GRANT_ID_TYPE, grantLocalKey));
+        }
+        resolveIdentities(Grant.class, "localKey", grantLocalKeys);
+        KeyedWriteQueue writes = new KeyedWriteQueue(getWorkers(), "grant");
+        for(Grant grant : grantMap.values()){
+            writes.submit(grant.getLocalKey(), () -> writeGrant(grant));
+        }
+        drainWrites(writes);
+        statistics.addPhase("grants", grantMap.size(), "grants", System.currentTimeMillis() - start);
+
+        //fail the update if anything failed, funders and users first, since the grants which need them were skipped
+        awaitWrites(funderWrites, "funder");
+        awaitWrites(userWrites, "user");
+        awaitWrites(writes, "grant");
+
+        //success - the grants we loaded can be skipped until their rows change, once they have been written
+        saveGrantDigests(grantMap.keySet(), digests, System.currentTimeMillis() - loadStart);
+
+        //we capture some information to report
+        if (rowCount > 0) {
+            statistics.setLatestUpdateString(latestUpdateString);
+            statistics.setReport(rowCount, grantMap.size());
+        } else {
+            System.out.println("No records were processed in this update");
+        }
+    }
 
-            //if this is the first record for this Grant, it will not be on the Map
-            Grant grant;
-            if(!grantMap.containsKey(grantLocalKey)) {
-                grant = new Grant();
-                grant.setLocalKey(grantLocalKey);
-                grantMap.put(grantLocalKey, grant);
+    /**
+     * Build and write grants from rows which are ordered by grant number, so that all of the rows of a grant come
+     * together. Each grant is built once its rows end, and is written while the rows after it are still being read;
+     * only the rows of the grants waiting to be written are held, rather than the whole pull.
+     *
+     * The grants are taken in batches of {@value #STREAM_BATCH_SIZE}. The PASS URIs of each batch, and of the funders
+     * and users it refers to for the first time, are resolved together, and the new funders and users are written
+     * as the batch is submitted. Each grant waits for its own funders and users to be written before it is built, so
+     * a funder or user which cannot be written fails only the grants which refer to it; the update still fails as a
+     * whole. Rows which turn out not to be in order fail the update, since a grant would have been written from part
+     * of its rows.
+     */
+    private void streamGrants(Iterable<Map<String, String>> results) {
+        long start = System.currentTimeMillis();
+        GrantStream stream = new GrantStream();
+        List<CoeusGrantRow> grantRows = new ArrayList<>();
+        String grantLocalKey = null;
+        int rowCount = 0;
+
+        try {
+            for (Map<String, String> rowMap : results) {
+                if (rowCount == 0 && !rowMap.containsKey(C_GRANT_LOCAL_KEY)) {//we always have this for grants
+                    throw new RuntimeException("Mode of grant was supplied, but data does not seem to match.");
+                }
+                CoeusGrantRow row = CoeusGrantRow.of(rowMap);
+                rowCount++;
+
+                //see if this is the latest grant updated
+                if (row.containsKey(C_UPDATE_TIMESTAMP)) {
+                    String grantUpdateString = row.get(CoeusGrantRow.UPDATE_TIMESTAMP);
+                    latestUpdateString = latestUpdateString.length() == 0 ? grantUpdateString : returnLaterUpdate(grantUpdateString, latestUpdateString);
+                }
+
+                String rowKey = row.getGrantLocalKey();
+                if (!grantRows.isEmpty() && !Objects.equals(grantLocalKey, rowKey)) {
+                    if (rowKey == null || grantLocalKey != null && rowKey.compareTo(grantLocalKey) < 0) {
+                        throw new IllegalStateException(format("Grant rows are not ordered by grant number: %s came " +
+                                "after %s", rowKey, grantLocalKey));
+                    }
+                    stream.add(grantLocalKey, grantRows);
+                    grantRows = new ArrayList<>();
+                }
+                grantLocalKey = rowKey;
+                grantRows.add(row);
             }
+            if (!grantRows.isEmpty()) {
+                stream.add(grantLocalKey, grantRows);
+            }
+            stream.flush();
+        } catch (RuntimeException e) {
+            //let the writes already submitted finish, so that nothing is written once the update has failed
+            stream.drain();
+            throw e;
+        }
+        stream.finish();
+        statistics.addPhase("stream", rowCount, "rows", System.currentTimeMillis() - start);
+        LOG.info("Processed result set with {} rows", rowCount);
 
-            grant = grantMap.get(grantLocalKey);
+        statistics.setGrantsUnchanged(stream.unchanged,
+                Math.round(stream.unchanged * grantDigests.getMillisPerGrant()));
+        //success - the grants we loaded can be skipped until their rows change, once they have been written
+        saveGrantDigests(stream.digests.keySet(), stream.digests, System.currentTimeMillis() - start);
 
-            //anybody who was ever a co-pi in an iteration will be in this list
-            if ( abbreviatedRole.equals("C") || abbreviatedRole.equals("K") ) {
-                URI userId = userMap.get( employeeId );
-                if ( !grant.getCoPis().contains( userId ) ) {
-                    grant.getCoPis().add( userId );
-                    statistics.addCoPi();
+        //we capture some information to report
+        if (rowCount > 0) {
+            statistics.setLatestUpdateString(latestUpdateString);
+            statistics.setReport(rowCount, stream.digests.size());
+        } else {
+            System.out.println("No records were processed in this update");
+        }
+    }
+
+    /**
+     * Sort grant rows by grant number, spilling them to temporary files if they pass the sort budget, and stream the
+     * sorted rows. This lets rows which are not ordered, such as those of a pull file, be loaded without holding them
+     * all.
+     */
+    private void sortAndStreamGrants(Iterable<Map<String, String>> results) {
+        long start = System.currentTimeMillis();
+        ExternalRowSorter sorter = new ExternalRowSorter(C_GRANT_LOCAL_KEY, sortBudget,
+                Paths.get(System.getProperty("java.io.tmpdir")));
+        RecordCursor sorted;
+        try {
+            sorted = sorter.sort(results);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill grant rows to disk while sorting them", e);
+        }
+        statistics.addPhase("sort", (int) sorter.getRows(), "rows", System.currentTimeMillis() - start);
+        statistics.setSortRuns(sorter.getRuns());
+        try (RecordCursor rows = sorted) {
+            streamGrants(rows);
+        }
+    }
+
+    /**
+     * The grants of a streamed update which are waiting to be written, and the writes of their funders and users.
+     * This is only used by the thread reading the rows; the writes run on the workers.
+     */
+    private final class GrantStream {
+        //each queue holds at most two batches, so that one batch can be resolved while the one before is written
+        private final KeyedWriteQueue funderWrites =
+                new KeyedWriteQueue(getWorkers(), "funder", 2 * STREAM_BATCH_SIZE);
+        private final KeyedWriteQueue userWrites = new KeyedWriteQueue(getWorkers(), "user", 2 * STREAM_BATCH_SIZE);
+        private final KeyedWriteQueue grantWrites = new KeyedWriteQueue(getWorkers(), "grant", 2 * STREAM_BATCH_SIZE);
+        //the write of each funder and user submitted so far, by local key or employee ID
+        private final Map<String, CompletableFuture<URI>> funders = new HashMap<>();
+        private final Map<String, CompletableFuture<URI>> users = new HashMap<>();
+        private final Map<String, List<CoeusGrantRow>> batch = new LinkedHashMap<>();
+        //the row digests of the grants written, to be saved if the update succeeds
+        private final Map<String, Long> digests = new HashMap<>();
+        private int unchanged = 0;
+
+        /**
+         * Take the rows of a grant, unless they are the same as when the grant was last loaded
+         */
+        void add(String grantLocalKey, List<CoeusGrantRow> rows) {
+            List<Long> rowHashes = new ArrayList<>();
+            for (CoeusGrantRow row : rows) {
+                rowHashes.add(GrantDigests.rowHash(row));
+            }
+            long digest = GrantDigests.digest(passEntityUtil.getClass().getName(), rowHashes);
+            if (!fullVerify && grantDigests.unchanged(grantLocalKey, digest)) {
+                unchanged++;
+                return;
+            }
+            digests.put(grantLocalKey, digest);
+            batch.put(grantLocalKey, rows);
+            if (batch.size() >= STREAM_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Resolve the batch, and submit the writes of its new funders and users, and of its grants
+         */
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            //the first row to reference a funder or user is the one it is built from
+            Map<String, Funder> newFunders = new LinkedHashMap<>();
+            Map<String, User> newUsers = new LinkedHashMap<>();
+            for (List<CoeusGrantRow> rows : batch.values()) {
+                for (CoeusGrantRow row : rows) {
+                    String directFunderLocalKey = row.getDirectFunderLocalKey();
+                    String primaryFunderLocalKey = primaryFunderLocalKey(row);
+                    if (!funders.containsKey(directFunderLocalKey) && !newFunders.containsKey(directFunderLocalKey)) {
+                        newFunders.put(directFunderLocalKey, buildDirectFunder(row));
+                    }
+                    if (!funders.containsKey(primaryFunderLocalKey) && !newFunders.containsKey(primaryFunderLocalKey)) {
+                        newFunders.put(primaryFunderLocalKey, buildPrimaryFunder(row));
+                    }
+                    String employeeId = row.getEmployeeId();
+                    if (!users.containsKey(employeeId) && !newUsers.containsKey(employeeId)) {
+                        newUsers.put(employeeId, buildUser(row));
+                    }
                 }
             }
 
-            //now do things which may depend on the date - award date is the only one that changes
-            DateTime awardDate =  createJodaDateTime(rowMap.getOrDefault(C_GRANT_AWARD_DATE, null));
-            DateTime startDate =  createJodaDateTime(rowMap.getOrDefault(C_GRANT_START_DATE, null));
-            DateTime endDate =  createJodaDateTime(rowMap.getOrDefault(C_GRANT_END_DATE, null));
-
-            //set values that should match earliest iteration of the grant. we wet these on the system record
-            //in case they are needed to update a stored grant record.
-            //these values will not override existing stored values unless the PassEntityUtil implementation
-            //allows it.
-            //we mostly have awardDate, but will use start date as a fallback if not
-            if ( (awardDate != null && (grant.getAwardDate() == null || awardDate.isBefore(grant.getAwardDate()))) ||
-                  awardDate == null &&  (startDate != null && (grant.getStartDate() == null || startDate.isBefore(grant.getStartDate())))) {
-                grant.setProjectName(rowMap.get(C_GRANT_PROJECT_NAME));
-                grant.setAwardNumber(rowMap.get(C_GRANT_AWARD_NUMBER));
-                grant.setDirectFunder(funderMap.get(directFunderLocalKey));
-                grant.setPrimaryFunder(funderMap.get(primaryFunderLocalKey));
-                grant.setStartDate(startDate);
-                grant.setAwardDate(awardDate);
-            }
-
-            //set values that should match the latest iteration of the grant
-            //use !isBefore in case more than one PI is specified, need to process more than one
-            //we mostly have awardDate, but will use end date as a fallback if not
-            if ( (awardDate != null && (grant.getAwardDate() == null || !awardDate.isBefore(grant.getAwardDate()))) ||
-                  awardDate == null &&  ( endDate != null && (grant.getEndDate() == null || !endDate.isBefore(grant.getEndDate()))) ){
-                grant.setEndDate( endDate);
-                //status should be the latest one
-                String status = rowMap.getOrDefault(C_GRANT_AWARD_STATUS, null);
-                if (status != null) {
-                    switch (status) {
-                        case "Active":
-                            grant.setAwardStatus(Grant.AwardStatus.ACTIVE);
-                            break;
-                        case "Pre-Award":
-                            grant.setAwardStatus(Grant.AwardStatus.PRE_AWARD);
-                            break;
-                        case "Terminated":
-                            grant.setAwardStatus(Grant.AwardStatus.TERMINATED);
+            List<String> funderLocalKeys = new ArrayList<>();
+            for (String funderLocalKey : newFunders.keySet()) {
+                funderLocalKeys.add(fullLocalKey(FUNDER_ID_TYPE, funderLocalKey));
+            }
+            resolveIdentities(Funder.class, "localKey", funderLocalKeys);
+            for (Map.Entry<String, Funder> funder : newFunders.entrySet()) {
+                CompletableFuture<URI> written = new CompletableFuture<>();
+                funders.put(funder.getKey(), written);
+                funderWrites.submit(funder.getKey(), () -> complete(written, () -> {
+                    URI uri = updateFunderInPass(funder.getValue());
+                    funderMap.put(funder.getKey(), uri);
+                    return uri;
+                }));
+            }
+
+            resolveUserIdentities(newUsers.values());
+            for (Map.Entry<String, User> user : newUsers.entrySet()) {
+                CompletableFuture<URI> written = new CompletableFuture<>();
+                users.put(user.getKey(), written);
+                userWrites.submit(user.getKey(), () -> complete(written, () -> {
+                    URI uri = updateUserInPass(user.getValue());
+                    userMap.put(user.getKey(), uri);
+                    return uri;
+                }));
+            }
+
+            List<String> grantLocalKeys = new ArrayList<>();
+            for (String grantLocalKey : batch.keySet()) {
+                grantLocalKeys.add(fullLocalKey(GRANT_ID_TYPE, grantLocalKey));
+            }
+            resolveIdentities(Grant.class, "localKey", grantLocalKeys);
+            for (Map.Entry<String, List<CoeusGrantRow>> grant : batch.entrySet()) {
+                List<CompletableFuture<URI>> references = new ArrayList<>();
+                for (CoeusGrantRow row : grant.getValue()) {
+                    references.add(funders.get(row.getDirectFunderLocalKey()));
+                    references.add(funders.get(primaryFunderLocalKey(row)));
+                    references.add(users.get(row.getEmployeeId()));
+                }
+                grantWrites.submit(grant.getKey(), () -> {
+                    try {
+                        CompletableFuture.allOf(references.toArray(new CompletableFuture<?>[0])).join();
+                    } catch (CompletionException e) {
+                        throw new RuntimeException(format("A funder or user of grant %s could not be written",
+                                grant.getKey()), e.getCause());
                     }
-                } else {
-                    grant.setAwardStatus(null);
+                    Grant built = new Grant();
+                    built.setLocalKey(grant.getKey());
+                    for (CoeusGrantRow row : grant.getValue()) {
+                        addGrantRow(built, row);
+                    }
+                    writeGrant(built);
+                });
+            }
+            batch.clear();
+        }
+
+        /**
+         * Wait for every write to finish, and fail the update if any failed, funders and users first, since a grant
+         * fails with them
+         */
+        void finish() {
+            drain();
+            awaitWrites(funderWrites, "funder");
+            awaitWrites(userWrites, "user");
+            awaitWrites(grantWrites, "grant");
+        }
+
+        /**
+         * Wait for every write to finish, whether or not it succeeded
+         */
+        void drain() {
+            try {
+                funderWrites.await();
+                userWrites.await();
+                grantWrites.await();
+            } finally {
+                journal.sync();
+            }
+        }
+    }
+
+    //complete the future with the result of the write, or with its failure, which is then passed on
+    private static void complete(CompletableFuture<URI> future, Supplier<URI> write) {
+        try {
+            future.complete(write.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    //write a grant, and keep it with its URI if the grants are to be kept
+    private void writeGrant(Grant grant) {
+        URI uri = updateGrantInPass(grant);
+        if (retainGrants) {
+            grantUriMap.put(uri, grant);
+        }
+    }
+
+    /**
+     * Add what a row says about a grant to it. A grant has a row for each person on each iteration, and the rows may
+     * come in any order: the values of the earliest iteration and of the latest are chosen by their dates.
+     * @param grant the grant built so far from its other rows
+     * @param row the row
+     */
+    private void addGrantRow(Grant grant, CoeusGrantRow row) {
+        addGrantRow(grant, row, funderMap::get, userMap::get, statistics::addPi, statistics::addCoPi);
+    }
+
+    /**
+     * Add a row to a grant
+     * @param grant the grant
+     * @param row the row
+     * @param funderUris gives the URI of a funder, by local key
+     * @param userUris gives the URI of a user, by employee ID
+     * @param piAdded run when the grant is given its first PI
+     * @param coPiAdded run when a co-PI is added to the grant
+     */
+    private void addGrantRow(Grant grant, CoeusGrantRow row, Function<String, URI> funderUris,
+                             Function<String, URI> userUris, Runnable piAdded, Runnable coPiAdded) {
+        String directFunderLocalKey = row.getDirectFunderLocalKey();
+        String primaryFunderLocalKey = primaryFunderLocalKey(row);
+        String employeeId = row.getEmployeeId();
+        String abbreviatedRole = row.getAbbreviatedRole();
+
+        //anybody who was ever a co-pi in an iteration will be in this list
+        if ( abbreviatedRole.equals("C") || abbreviatedRole.equals("K") ) {
+            URI userId = userUris.apply(employeeId);
+            if ( !grant.getCoPis().contains( userId ) ) {
+                grant.getCoPis().add( userId );
+                coPiAdded.run();
+            }
+        }
+
+        //now do things which may depend on the date - award date is the only one that changes
+        DateTime awardDate =  createJodaDateTime(row.get(CoeusGrantRow.AWARD_DATE));
+        DateTime startDate =  createJodaDateTime(row.get(CoeusGrantRow.START_DATE));
+        DateTime endDate =  createJodaDateTime(row.get(CoeusGrantRow.END_DATE));
+
+        //set values that should match earliest iteration of the grant. we wet these on the system record
+        //in case they are needed to update a stored grant record.
+        //these values will not override existing stored values unless the PassEntityUtil implementation
+        //allows it.
+        //we mostly have awardDate, but will use start date as a fallback if not
+        if ( (awardDate != null && (grant.getAwardDate() == null || awardDate.isBefore(grant.getAwardDate()))) ||
+              awardDate == null &&  (startDate != null && (grant.getStartDate() == null || startDate.isBefore(grant.getStartDate())))) {
+            grant.setProjectName(row.get(CoeusGrantRow.PROJECT_NAME));
+            grant.setAwardNumber(row.get(CoeusGrantRow.AWARD_NUMBER));
+            grant.setDirectFunder(funderUris.apply(directFunderLocalKey));
+            grant.setPrimaryFunder(funderUris.apply(primaryFunderLocalKey));
+            grant.setStartDate(startDate);
+            grant.setAwardDate(awardDate);
+        }
+
+        //set values that should match the latest iteration of the grant
+        //use !isBefore in case more than one PI is specified, need to process more than one
+        //we mostly have awardDate, but will use end date as a fallback if not
+        if ( (awardDate != null && (grant.getAwardDate() == null || !awardDate.isBefore(grant.getAwardDate()))) ||
+              awardDate == null &&  ( endDate != null && (grant.getEndDate() == null || !endDate.isBefore(grant.getEndDate()))) ){
+            grant.setEndDate( endDate);
+            //status should be the latest one
+            String status = row.get(CoeusGrantRow.AWARD_STATUS);
+            if (status != null) {
+                switch (status) {
+                    case "Active":
+                        grant.setAwardStatus(Grant.AwardStatus.ACTIVE);
+                        break;
+                    case "Pre-Award":
+                        grant.setAwardStatus(Grant.AwardStatus.PRE_AWARD);
+                        break;
+                    case "Terminated":
+                        grant.setAwardStatus(Grant.AwardStatus.TERMINATED);
                 }
+            } else {
+                grant.setAwardStatus(null);
+            }
 
-                //we want the PI to be the one listed on the most recent grant iteration
-                if ( abbreviatedRole.equals("P") ) {
-                    URI userId=userMap.get(employeeId);
-                    URI oldPiId=grant.getPi();
-                    grant.setPi(userId);
-                    grant.getCoPis().remove(userId);
-                    if ( oldPiId == null ) {
-                        statistics.addPi();
-                    } else {
-                        if ( !oldPiId.equals(userId) ) {
-                            if ( !grant.getCoPis().contains(oldPiId) ) {
-                                grant.getCoPis().add(oldPiId);
-                                statistics.addCoPi();
-                            }
+            //we want the PI to be the one listed on the most recent grant iteration
+            if ( abbreviatedRole.equals("P") ) {
+                URI userId=userUris.apply(employeeId);
+                URI oldPiId=grant.getPi();
+                grant.setPi(userId);
+                grant.getCoPis().remove(userId);
+                if ( oldPiId == null ) {
+                    piAdded.run();
+                } else {
+                    if ( !oldPiId.equals(userId) ) {
+                        if ( !grant.getCoPis().contains(oldPiId) ) {
+                            grant.getCoPis().add(oldPiId);
+                            coPiAdded.run();
                         }
                     }
                 }
             }
+        }
+    }
 
-            //we are done with this record, let's save the state of this Grant
-            grantMap.put(grantLocalKey, grant);
-            //see if this is the latest grant updated
-            if (rowMap.containsKey(C_UPDATE_TIMESTAMP)) {
-                String grantUpdateString = rowMap.get(C_UPDATE_TIMESTAMP);
-                latestUpdateString = latestUpdateString.length() == 0 ? grantUpdateString : returnLaterUpdate(grantUpdateString, latestUpdateString);
-            }
+    //a grant built before its funders and users have URIs refers to them by these, which are not PASS URIs
+    private static URI reference(String type, String key) {
+        try {
+            return new URI(REFERENCE_SCHEME, key == null ? type : type + ":" + key, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
         }
+    }
 
-        //now put updated grant objects in pass
-        for(Grant grant : grantMap.values()){
-            grantUriMap.put(updateGrantInPass(grant), grant);
+    //replace the references on a grant with the URIs of the funders and users they stand for
+    private void resolveReferences(Grant grant) {
+        grant.setDirectFunder(resolveReference(grant.getDirectFunder()));
+        grant.setPrimaryFunder(resolveReference(grant.getPrimaryFunder()));
+        grant.setPi(resolveReference(grant.getPi()));
+        Set<URI> coPis = new LinkedHashSet<>();
+        for (URI coPi : grant.getCoPis()) {
+            coPis.add(resolveReference(coPi));
         }
+        grant.setCoPis(new ArrayList<>(coPis));
+    }
 
-        //success - we capture some information to report
-        if (grantMap.size() > 0) {
-            statistics.setLatestUpdateString(latestUpdateString);
-            statistics.setReport(results.size(), grantMap.size());
-        } else {
-            System.out.println("No records were processed in this update");
+    private URI resolveReference(URI reference) {
+        if (reference == null || !REFERENCE_SCHEME.equals(reference.getScheme())) {
+            return reference;
+        }
+        String[] parts = reference.getSchemeSpecificPart().split(":", 2);
+        String key = parts.length > 1 ? parts[1] : null;
+        return FUNDER_ID_TYPE.equals(parts[0]) ? funderMap.get(key) : userMap.get(key);
+    }
+
+    /**
+     * A grant being built by the phased grant update, with the hashes of its rows and the keys of the funders and
+     * users they refer to, and the number of PIs and co-PIs added to it
+     */
+    private static final class PendingGrant {
+        private final Grant grant = new Grant();
+        private List<Long> rowHashes = new ArrayList<>();
+        private final Set<String> funderKeys = new HashSet<>();
+        private final Set<String> employeeIds = new HashSet<>();
+        private int pis = 0;
+        private int coPis = 0;
+
+        private PendingGrant(String grantLocalKey) {
+            grant.setLocalKey(grantLocalKey);
         }
     }
 
-     private void updateUsers(Collection<Map<String, String>> results) {
+    //a plan has written nothing yet, so its digests are recorded in the plan, to be saved once it is applied
+    private void saveGrantDigests(Collection<String> grantLocalKeys, Map<String, Long> digests, long millis) {
+        if (plan != null) {
+            for (String grantLocalKey : grantLocalKeys) {
+                plan.digest(grantLocalKey, digests.get(grantLocalKey));
+            }
+            return;
+        }
+        grantDigests.recordLoad(grantLocalKeys.size(), millis);
+        for (String grantLocalKey : grantLocalKeys) {
+            grantDigests.put(grantLocalKey, digests.get(grantLocalKey));
+        }
+        try {
+            grantDigests.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the grant digests", e);
+        }
+    }
+
+    //if a primary funder is not specified, we set it to the direct funder
+    private static String primaryFunderLocalKey(CoeusGrantRow row) {
+        String primaryFunderLocalKey = row.getPrimaryFunderLocalKey();
+        return primaryFunderLocalKey == null ? row.getDirectFunderLocalKey() : primaryFunderLocalKey;
+    }
+
+     private void updateUsers(Iterable<Map<String, String>> results) {
 
         boolean modeChecked = false;
+        int rowCount = 0;
+        List<User> users = new ArrayList<>();
+        List<String> employeeIds = new ArrayList<>();
 
         for(Map<String,String> rowMap : results) {
+            rowCount++;
 
             if (!modeChecked) {
                 if (!rowMap.containsKey(C_USER_EMPLOYEE_ID)) {//we always have this for users
@@ -270,18 +866,27 @@ public class DefaultPassUpdater implements PassUpdater{
                 }
             }
 
-            LOG.info("Processing result set with {} rows", results.size() );
-            User updatedUser = buildUser(rowMap);
-            updateUserInPass(updatedUser);
+            users.add(buildUser(rowMap));
+            employeeIds.add(rowMap.get(C_USER_EMPLOYEE_ID));
             if (rowMap.containsKey(C_UPDATE_TIMESTAMP)) {
                 String userUpdateString = rowMap.get(C_UPDATE_TIMESTAMP);
                 latestUpdateString = latestUpdateString.length() == 0 ? userUpdateString : returnLaterUpdate(userUpdateString, latestUpdateString);
             }
         }
 
-        if (results.size() > 0) {
+        LOG.info("Processed result set with {} rows", rowCount);
+
+        //a user may appear in more than one row; the writes for a user are made in row order
+        resolveUserIdentities(users);
+        KeyedWriteQueue writes = new KeyedWriteQueue(getWorkers(), "user");
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            writes.submit(employeeIds.get(i), () -> updateUserInPass(user));
+        }
+        awaitWrites(writes, "user");
+        if (rowCount > 0) {
             statistics.setLatestUpdateString(latestUpdateString);
-            statistics.setReport(results.size(), results.size());
+            statistics.setReport(rowCount, rowCount);
         } else {
             System.out.println("No records were processed in this update");
         }
@@ -292,11 +897,14 @@ public class DefaultPassUpdater implements PassUpdater{
      * This method is called for the "funder" mode - the column names will have the values for primary funders
      * @param results the data row map containing funder information
      */
-    private void updateFunders(Collection<Map<String, String>> results) {
+    private void updateFunders(Iterable<Map<String, String>> results) {
 
         boolean modeChecked = false;
-        LOG.info("Processing result set with {} rows",  results.size() );
+        int rowCount = 0;
+        List<Funder> funders = new ArrayList<>();
+        List<String> funderLocalKeys = new ArrayList<>();
         for (Map<String, String> rowMap : results) {
+            rowCount++;
 
             if (!modeChecked) {
                 if (!rowMap.containsKey(C_PRIMARY_FUNDER_LOCAL_KEY) && !rowMap.containsKey(C_PRIMARY_FUNDER_NAME)) {
@@ -307,10 +915,19 @@ public class DefaultPassUpdater implements PassUpdater{
             }
 
             Funder updatedFunder = buildPrimaryFunder(rowMap);
-            updateFunderInPass(updatedFunder);
+            funders.add(updatedFunder);
+            funderLocalKeys.add(fullLocalKey(FUNDER_ID_TYPE, updatedFunder.getLocalKey()));
+
+        }
+        LOG.info("Processed result set with {} rows", rowCount);
 
+        resolveIdentities(Funder.class, "localKey", funderLocalKeys);
+        KeyedWriteQueue writes = new KeyedWriteQueue(getWorkers(), "funder");
+        for (Funder funder : funders) {
+            writes.submit(funder.getLocalKey(), () -> updateFunderInPass(funder));
         }
-        statistics.setReport(results.size(), results.size());
+        awaitWrites(writes, "funder");
+        statistics.setReport(rowCount, rowCount);
     }
 
     User buildUser(Map<String, String> rowMap) {
@@ -380,28 +997,44 @@ public class DefaultPassUpdater implements PassUpdater{
      * @return the URI for the resource representing the updated Funder in Pass
      */
     private URI updateFunderInPass(Funder systemFunder) {
-        String baseLocalKey = systemFunder.getLocalKey();
-        String FUNDER_ID_TYPE = "funder";
-        String fullLocalKey = new Identifier(DOMAIN, FUNDER_ID_TYPE, baseLocalKey).serialize();
+        String fullLocalKey = fullLocalKey(FUNDER_ID_TYPE, systemFunder.getLocalKey());
         systemFunder.setLocalKey(fullLocalKey);
+        long fingerprint = EntityFingerprints.of(passEntityUtil.getClass().getName(), systemFunder);
+        URI journaled = resumed(fullLocalKey, fingerprint);
+        if (journaled != null) {
+            return journaled;
+        }
 
-        URI passFunderURI = passClient.findByAttribute(Funder.class, "localKey", fullLocalKey);
-        if (passFunderURI != null ) {
-            Funder storedFunder = passClient.readResource(passFunderURI, Funder.class);
-            if (storedFunder == null) {
-                throw new RuntimeException("Could not read Funder object with URI " + passFunderURI);
-            }
+        URI passFunderURI = findByAttribute(Funder.class, "localKey", fullLocalKey);
+        if (!fullVerify && confirmed(passFunderURI, Collections.singletonList(fullLocalKey)) &&
+                fingerprints.matches(passFunderURI, fingerprint)) {
+            statistics.addFundersSkipped();
+            return passFunderURI;
+        }
+        Funder storedFunder = readStored(Funder.class, passFunderURI, Collections.singletonList(fullLocalKey));
+        if (storedFunder == null && passFunderURI != null) {//the cached URI was stale
+            passFunderURI = findByAttribute(Funder.class, "localKey", fullLocalKey);
+            storedFunder = readStored(Funder.class, passFunderURI, Collections.singletonList(fullLocalKey));
+        }
+        byte operation = UpdateJournal.UNCHANGED;
+        if (storedFunder != null) {
+            Map<String, JsonNode> before = EntityFields.snapshot(storedFunder);
             Funder updatedFunder;
             if ((updatedFunder = passEntityUtil.update(systemFunder, storedFunder)) != null) {//need to update
-                passClient.updateResource(updatedFunder);
+                update(passFunderURI, updatedFunder, before, fullLocalKey);
                 statistics.addFundersUpdated();
+                operation = UpdateJournal.UPDATED;
             }
         } else {//don't have a stored Funder for this URI - this one is new to Pass
             if (systemFunder.getName() != null) {//only add if we have a name
-                passFunderURI = passClient.createResource(systemFunder);
+                passFunderURI = create(systemFunder, fullLocalKey);
+                identities.put(fullLocalKey, passFunderURI);
                 statistics.addFundersCreated();
+                operation = UpdateJournal.CREATED;
             }
         }
+        fingerprint(passFunderURI, fingerprint);
+        journal(operation, fullLocalKey, passFunderURI, fingerprint);
         return passFunderURI;
     }
 
@@ -415,34 +1048,97 @@ public class DefaultPassUpdater implements PassUpdater{
     private URI updateUserInPass(User systemUser) {
         //we first check to see if the user is known by the Hopkins ID. If not, we check the employee ID.
         //last attempt is the JHED ID. this order is specified by the order of the List as constructed on updatedUser
-        URI passUserUri = null;
-        ListIterator<String> idIterator = systemUser.getLocatorIds().listIterator();
-
-        while (passUserUri == null && idIterator.hasNext()) {
-            String id = String.valueOf(idIterator.next());
-            if (id != null) {
-                passUserUri = passClient.findByAttribute(User.class, "locatorIds", id);
-            }
+        long fingerprint = EntityFingerprints.of(passEntityUtil.getClass().getName(), systemUser);
+        URI journaled = resumed(userKey(systemUser), fingerprint);
+        if (journaled != null) {
+            return journaled;
+        }
+        URI passUserUri = findUser(systemUser);
+        if (!fullVerify && confirmed(passUserUri, systemUser.getLocatorIds()) &&
+                fingerprints.matches(passUserUri, fingerprint)) {
+            statistics.addUsersSkipped();
+            return passUserUri;
+        }
+        User storedUser = readStored(User.class, passUserUri, systemUser.getLocatorIds());
+        if (storedUser == null && passUserUri != null) {//the cached URI was stale
+            passUserUri = findUser(systemUser);
+            storedUser = readStored(User.class, passUserUri, systemUser.getLocatorIds());
         }
 
-        if (passUserUri != null ) {
-            User storedUser = passClient.readResource(passUserUri, User.class);
-            if (storedUser == null) {
-                throw new RuntimeException("Could not read User object with URI " + passUserUri);
-            }
+        byte operation = UpdateJournal.UNCHANGED;
+        if (storedUser != null) {
+            Map<String, JsonNode> before = EntityFields.snapshot(storedUser);
             User updatedUser;
             if ((updatedUser = passEntityUtil.update(systemUser, storedUser)) != null){//need to update
                 //post COEUS processing goes here
                 if(!storedUser.getRoles().contains(User.Role.SUBMITTER)) {
                     storedUser.getRoles().add(User.Role.SUBMITTER);
                 }
-                passClient.updateResource(updatedUser);
+                update(passUserUri, updatedUser, before, userKey(systemUser));
                 statistics.addUsersUpdated();
+                operation = UpdateJournal.UPDATED;
             }
         } else if (! mode.equals("user")) {//don't have a stored User for this URI - this one is new to Pass
             //but don't update if we are in user mode - just update existing users
-                passUserUri = passClient.createResource(systemUser);
+                passUserUri = create(systemUser, userKey(systemUser));
+                for (String id : systemUser.getLocatorIds()) {
+                    identities.put(id, passUserUri);
+                }
                 statistics.addUsersCreated();
+                operation = UpdateJournal.CREATED;
+        }
+        fingerprint(passUserUri, fingerprint);
+        journal(operation, userKey(systemUser), passUserUri, fingerprint);
+        return passUserUri;
+    }
+
+    /**
+     * Look for an entity in the journal of an update which did not finish
+     * @param key the local key or locator ID of the entity
+     * @param fingerprint the fingerprint of the entity as built in this run
+     * @return the URI of the entity if it was written with the same data by that update, or else null
+     */
+    private URI resumed(String key, long fingerprint) {
+        if (fullVerify || plan != null) {
+            return null;
+        }
+        URI uri = journal.completed(key, fingerprint);
+        if (uri != null) {
+            statistics.addResumed();
+        }
+        return uri;
+    }
+
+    //a plan has written nothing yet, so the fingerprint is recorded in the plan, to be saved once it is applied
+    private void fingerprint(URI uri, long fingerprint) {
+        if (plan == null) {
+            fingerprints.put(uri, fingerprint);
+        } else {
+            plan.fingerprint(uri, fingerprint);
+        }
+    }
+
+    //a plan writes nothing to PASS, so there is nothing to journal
+    private void journal(byte operation, String key, URI uri, long fingerprint) {
+        if (plan == null) {
+            journal.record(operation, key, uri, fingerprint);
+        }
+    }
+
+    //the most reliable locator ID of a user, which keys the writes to it
+    private static String userKey(User user) {
+        return user.getLocatorIds().isEmpty() ? null : user.getLocatorIds().get(0);
+    }
+
+    private URI findUser(User systemUser) {
+        URI passUserUri = null;
+        ListIterator<String> idIterator = systemUser.getLocatorIds().listIterator();
+
+        while (passUserUri == null && idIterator.hasNext()) {
+            String id = String.valueOf(idIterator.next());
+            if (id != null) {
+                passUserUri = findByAttribute(User.class, "locatorIds", id);
+            }
         }
         return passUserUri;
     }
@@ -455,33 +1151,342 @@ public class DefaultPassUpdater implements PassUpdater{
      * @return the PASS identifier for the Grant object
      */
     private URI updateGrantInPass(Grant systemGrant) {
-        String baseLocalKey = systemGrant.getLocalKey();
-        String GRANT_ID_TYPE = "grant";
-        String fullLocalKey = new Identifier(DOMAIN, GRANT_ID_TYPE, baseLocalKey).serialize();
+        String fullLocalKey = fullLocalKey(GRANT_ID_TYPE, systemGrant.getLocalKey());
         systemGrant.setLocalKey(fullLocalKey);
+        //taken before the update merges the stored grant into the system grant
+        long fingerprint = EntityFingerprints.of(passEntityUtil.getClass().getName(), systemGrant);
+
+        URI journaled = resumed(fullLocalKey, fingerprint);
+        if (journaled != null) {
+            return journaled;
+        }
 
         LOG.debug("Looking for grant with localKey {}", fullLocalKey);
-        URI passGrantURI = passClient.findByAttribute(Grant.class, "localKey", fullLocalKey);
-        if (passGrantURI != null ) {
+        URI passGrantURI = findByAttribute(Grant.class, "localKey", fullLocalKey);
+        if (!fullVerify && confirmed(passGrantURI, Collections.singletonList(fullLocalKey)) &&
+                fingerprints.matches(passGrantURI, fingerprint)) {
+            LOG.debug("Grant with localKey {} is unchanged since it was last written", fullLocalKey);
+            statistics.addGrantsSkipped();
+            return passGrantURI;
+        }
+        Grant storedGrant = readStored(Grant.class, passGrantURI, Collections.singletonList(fullLocalKey));
+        if (storedGrant == null && passGrantURI != null) {//the cached URI was stale
+            passGrantURI = findByAttribute(Grant.class, "localKey", fullLocalKey);
+            storedGrant = readStored(Grant.class, passGrantURI, Collections.singletonList(fullLocalKey));
+        }
+        byte operation = UpdateJournal.UNCHANGED;
+        if (storedGrant != null) {
             LOG.debug("Found grant with localKey {}", fullLocalKey);
-            Grant storedGrant = passClient.readResource(passGrantURI, Grant.class);
-            if (storedGrant == null) {
-                throw new RuntimeException("Could not read Funder object with URI " + passGrantURI);
-            }
+            Map<String, JsonNode> before = EntityFields.snapshot(storedGrant);
             Grant updatedGrant;
             if ( (updatedGrant = passEntityUtil.update(systemGrant, storedGrant)) != null) {//need to update
-                passClient.updateResource(updatedGrant);
+                update(passGrantURI, updatedGrant, before, fullLocalKey);
                 statistics.addGrantsUpdated();
+                operation = UpdateJournal.UPDATED;
                 LOG.debug("Updating grant with local key {}", systemGrant.getLocalKey());
             }
         } else {//don't have a stored Grant for this URI - this one is new to Pass
-                passGrantURI = passClient.createResource(systemGrant);
+                passGrantURI = create(systemGrant, fullLocalKey);
+                identities.put(fullLocalKey, passGrantURI);
                 statistics.addGrantsCreated();
+                operation = UpdateJournal.CREATED;
                 LOG.debug("Creating grant with local key {}", systemGrant.getLocalKey());
         }
+        fingerprint(passGrantURI, fingerprint);
+        journal(operation, fullLocalKey, passGrantURI, fingerprint);
         return passGrantURI;
     }
 
+    /**
+     * Create an entity in PASS, or in plan mode, plan its creation
+     * @param entity the entity
+     * @param key the local key or locator ID of the entity
+     * @return the URI of the entity, or in plan mode, its placeholder URI
+     */
+    private URI create(PassEntity entity, String key) {
+        return plan == null ? passClient.createResource(entity) : plan.create(entity, key);
+    }
+
+    /**
+     * Update the fields of an entity which changed in PASS, or in plan mode, plan the update
+     * @param uri the URI of the entity
+     * @param entity the updated entity
+     * @param before the fields of the entity before it was updated
+     * @param key the local key or locator ID of the entity
+     */
+    private void update(URI uri, PassEntity entity, Map<String, JsonNode> before, String key) {
+        if (plan != null) {
+            plan.update(uri, entity, before, key);
+        } else if (patchWriter != null) {
+            Map<String, JsonNode> changed = EntityFields.diff(before, EntityFields.snapshot(entity));
+            if (changed.isEmpty()) {
+                return;
+            }
+            try {
+                patchWriter.patch(uri, entity, changed.keySet(), statistics);
+            } catch (IOException e) {
+                throw new RuntimeException(format("Could not update %s object with URI %s",
+                        entity.getClass().getSimpleName(), uri), e);
+            }
+        } else {
+            passClient.updateResource(entity);
+        }
+    }
+
+    private void closePlan() {
+        try {
+            plan.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close change plan {}", planFile, e);
+        }
+    }
+
+    /**
+     * The number of workers writing to PASS, from the system property {@value #PASS_UPDATER_WORKERS}
+     * @return the number of workers
+     */
+    static int getWorkers() {
+        String workers = System.getProperty(PASS_UPDATER_WORKERS);
+        try {
+            return workers == null ? 1 : Math.max(1, Integer.parseInt(workers.trim()));
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value {} for {}", workers, PASS_UPDATER_WORKERS);
+            return 1;
+        }
+    }
+
+    /**
+     * The sort budget, from the system property {@value #PASS_UPDATER_SORT_BUDGET}
+     * @return the budget in bytes, or 0 if grant rows are not to be sorted
+     */
+    static long getSortBudget() {
+        String budget = System.getProperty(PASS_UPDATER_SORT_BUDGET);
+        try {
+            return budget == null ? 0 : Math.min(MAX_SORT_BUDGET, Math.max(0, Long.parseLong(budget.trim()))) << 20;
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value {} for {}", budget, PASS_UPDATER_SORT_BUDGET);
+            return 0;
+        }
+    }
+
+    /**
+     * Wait for the writes of a stage to finish, force what they journaled to disk, and fail the update if any of them
+     * failed
+     * @param writes the writes of the stage
+     * @param entityType the type of entity written, for the error message
+     */
+    private void awaitWrites(KeyedWriteQueue writes, String entityType) {
+        try {
+            checkWrites(writes, entityType);
+        } finally {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Wait for the writes of a stage to finish, without failing the update if any of them failed
+     * @param writes the writes of the stage
+     * @return the keys of the writes which failed
+     */
+    private Set<String> drainWrites(KeyedWriteQueue writes) {
+        Set<String> failedKeys = new HashSet<>();
+        try {
+            for (Map.Entry<String, RuntimeException> failure : writes.await()) {
+                failedKeys.add(failure.getKey());
+            }
+        } finally {
+            journal.sync();
+        }
+        return failedKeys;
+    }
+
+    /**
+     * Wait for the writes of a stage to finish, and fail the update if any of them failed. Writes which succeeded
+     * are not undone, but the update is reported as failed, so that its timestamp is not recorded and the failed
+     * entities are picked up again by the next update.
+     * @param writes the writes of the stage
+     * @param entityType the type of entity written, for the error message
+     */
+    static void checkWrites(KeyedWriteQueue writes, String entityType) {
+        List<Map.Entry<String, RuntimeException>> failures = writes.await();
+        if (failures.isEmpty()) {
+            return;
+        }
+        List<String> failedKeys = new ArrayList<>();
+        for (Map.Entry<String, RuntimeException> failure : failures) {
+            failedKeys.add(failure.getKey());
+        }
+        failedKeys.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+        String message = format("%s of %s %s updates failed, for local keys %s", failures.size(),
+                writes.getSubmitted(), entityType,
+                failedKeys.size() > 10 ? failedKeys.subList(0, 10) + " and others" : failedKeys);
+        throw new PassUpdateException(message, failedKeys, failures.get(0).getValue());
+    }
+
+    private String fullLocalKey(String idType, String baseLocalKey) {
+        return new Identifier(DOMAIN, idType, baseLocalKey).serialize();
+    }
+
+    /**
+     * Resolve the URIs of a batch of entities ahead of the writes which need them, so that each write does not need
+     * a search of its own. If the batch cannot be resolved, each write searches for its entity as usual.
+     * @param type the type of entity
+     * @param attribute the attribute searched on
+     * @param values the values of the attribute
+     */
+    private <T extends PassEntity> void resolveIdentities(Class<T> type, String attribute, Collection<String> values) {
+        //values cached from an earlier run need no query; they are checked when the entity is read
+        List<String> unresolved = new ArrayList<>();
+        for (String value : new LinkedHashSet<>(values)) {
+            URI cached = fullVerify ? null : identityCache.get(value);
+            if (cached != null) {
+                identities.put(value, cached);
+                cachedKeys.add(value);
+            } else if (value != null) {
+                unresolved.add(value);
+            }
+        }
+        if (identityResolver == null || unresolved.isEmpty()) {
+            return;
+        }
+        try {
+            identities.putAll(identityResolver.resolve(type, attribute, unresolved));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not resolve {} {} values in a batch, looking them up one at a time",
+                    type.getSimpleName(), attribute, e);
+        }
+    }
+
+    private void resolveUserIdentities(Collection<User> users) {
+        List<String> locatorIds = new ArrayList<>();
+        for (User user : users) {
+            locatorIds.addAll(user.getLocatorIds());
+        }
+        resolveIdentities(User.class, "locatorIds", locatorIds);
+    }
+
+    /**
+     * Find an entity by attribute, from the resolved identities if it has been resolved, or else by a search
+     */
+    private <T extends PassEntity> URI findByAttribute(Class<T> type, String attribute, String value) {
+        synchronized (identities) {
+            if (identities.containsKey(value)) {
+                return identities.get(value);
+            }
+        }
+        URI uri = passClient.findByAttribute(type, attribute, value);
+        if (uri != null) {
+            identities.put(value, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * Whether the URI of an entity was found in PASS during this update, by the batch resolver or a search, rather
+     * than taken from the identity cache alone. A cached URI may no longer be readable, so an entity is only skipped
+     * on its fingerprint if its URI has been confirmed; otherwise it is read, which checks the URI.
+     * @param uri the URI of the entity, or null if it was not found
+     * @param keys the keys the entity was looked up by
+     * @return true if the URI was confirmed
+     */
+    private boolean confirmed(URI uri, Collection<String> keys) {
+        if (uri == null) {
+            return false;
+        }
+        for (String key : keys) {
+            if (!cachedKeys.contains(key) && uri.equals(identities.get(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a stored entity from PASS. If it cannot be read, and its URI came from the identity cache, the URI is
+     * stale - most likely the entity was deleted - so it is dropped from the cache and from the identities, and null
+     * is returned so that the caller searches for the entity again.
+     * @param type the type of entity
+     * @param uri the URI of the entity, or null if it was not found
+     * @param keys the keys the entity was looked up by
+     * @return the entity, or null if the URI was null or stale
+     */
+    private <T extends PassEntity> T readStored(Class<T> type, URI uri, Collection<String> keys) {
+        if (uri == null) {
+            return null;
+        }
+        if (plan != null && ChangePlan.isPlaceholder(uri)) {//planned to be created earlier in this update
+            return type.cast(plan.planned(uri));
+        }
+        boolean cached = false;
+        for (String key : keys) {
+            cached |= cachedKeys.contains(key) && uri.equals(identities.get(key));
+        }
+        T stored;
+        try {
+            stored = passClient.readResource(uri, type);
+        } catch (RuntimeException e) {
+            if (!cached) {
+                throw e;
+            }
+            stored = null;
+        }
+        if (stored != null) {
+            return stored;
+        }
+        if (!cached) {
+            throw new RuntimeException(format("Could not read %s object with URI %s", type.getSimpleName(), uri));
+        }
+        LOG.info("Cached URI {} of {} could not be read, searching for it again", uri, type.getSimpleName());
+        identityCache.invalidate(uri);
+        fingerprints.remove(uri);
+        synchronized (identities) {
+            Iterator<Map.Entry<String, URI>> entries = identities.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, URI> entry = entries.next();
+                if (uri.equals(entry.getValue())) {
+                    cachedKeys.remove(entry.getKey());
+                    entries.remove();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the URIs we found or planned to create in the change plan, to be saved in the identity cache once it is
+     * applied. Those which came from the cache are already in it.
+     */
+    private void recordIdentities() {
+        synchronized (identities) {
+            for (Map.Entry<String, URI> identity : identities.entrySet()) {
+                if (!cachedKeys.contains(identity.getKey())) {
+                    plan.identity(identity.getKey(), identity.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the URIs we found or created in the identity cache, and save it and the fingerprints for the next run
+     */
+    private void saveCaches() {
+        synchronized (identities) {
+            for (Map.Entry<String, URI> identity : identities.entrySet()) {
+                identityCache.put(identity.getKey(), identity.getValue());
+            }
+        }
+        try {
+            identityCache.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the identity cache", e);
+        }
+        try {
+            fingerprints.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the entity fingerprints", e);
+        }
+    }
+
     /**
      * Compare two timestamps and return the later of them
      * @param currentUpdateString the current latest timestamp string
@@ -504,11 +1509,13 @@ public class DefaultPassUpdater implements PassUpdater{
     }
 
     /**
-     * This returns the final statistics of the processing of the Grant or User Set
+     * This returns the final statistics of the processing of the Grant or User Set, followed by the state of the
+     * identity cache. In plan mode, the statistics are of the changes planned.
      * @return the report
      */
     public String getReport(){
-        return statistics.getReport();
+        String planReport = plan == null ? "" : plan.getReport() + "\n";
+        return planReport + statistics.getReport() + identityCache.getReport() + "\n";
     }
 
     /**
@@ -534,6 +1541,152 @@ public class DefaultPassUpdater implements PassUpdater{
     //used in unit test
     Map<String, URI> getUserMap() { return userMap; }
 
+    //used in unit test
+    void setIdentityResolver(PassIdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+    }
+
+    void setIdentityCache(IdentityCache identityCache) {
+        this.identityCache = identityCache;
+    }
+
+    void setPatchWriter(PassPatchWriter patchWriter) {
+        this.patchWriter = patchWriter;
+    }
+
+    /**
+     * Set whether the grants written are kept, with their URIs, for {@link #getGrantUriMap()}. They are kept by
+     * default; a caller which does not need them can turn this off, so that they are not held for the rest of the
+     * process.
+     * @param retainGrants whether to keep the grants written
+     */
+    public void setRetainGrants(boolean retainGrants) {
+        this.retainGrants = retainGrants;
+    }
+
+    /**
+     * Set whether grant rows come ordered by grant number, so that each grant is written as soon as its rows end.
+     * This is set from the system property {@value #PASS_UPDATER_STREAMING}.
+     * @param streaming whether grant rows are ordered
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    void setSortBudget(long sortBudget) {
+        this.sortBudget = sortBudget;
+    }
+
+    void setJournal(UpdateJournal journal) {
+        this.journal = journal;
+    }
+
+    //used in unit testing
+    void setStoreDirectory(Path storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    /**
+     * Load one shard of a sharded pull. Its identity cache, fingerprints, grant digests and journals are kept apart
+     * from those of the other shards, which may be loaded at the same time by other processes sharing COEUS_HOME
+     * @param shard the shard, counting from 1
+     * @param shards the number of shards
+     */
+    public void setShard(int shard, int shards) {
+        String suffix = "." + shard + "-of-" + shards;
+        if (!suffix.equals(shardSuffix)) {
+            shardSuffix = suffix;
+            if (storeDirectory != null) {
+                openStores();
+            }
+        }
+    }
+
+    private void openStores() {
+        String passInstance = System.getProperty("pass.fedora.baseurl");
+        this.identityCache = sharedStore(IdentityCache.class, storeFile(IDENTITY_CACHE_FILE_NAME), passInstance,
+                IdentityCache::new);
+        this.fingerprints = sharedStore(EntityFingerprints.class, storeFile(FINGERPRINTS_FILE_NAME), passInstance,
+                EntityFingerprints::new);
+        this.grantDigests = sharedStore(GrantDigests.class, storeFile(GRANT_DIGESTS_FILE_NAME), passInstance,
+                GrantDigests::new);
+    }
+
+    /**
+     * Get the store kept in a file, loading it if this is the first request for it. Every updater in the JVM which
+     * uses the file shares the one store - a daemon has an updater for each of its modes - as does a
+     * {@link PlanApplier}, so each sees what the others have written to PASS, and none saves over the entries of the
+     * others.
+     * @param type the type of the store
+     * @param file the file, or null for a store of the caller's own, in memory only
+     * @param passInstance the base URL of the PASS instance
+     * @param open loads the store from the file
+     * @return the store
+     */
+    static synchronized <T> T sharedStore(Class<T> type, Path file, String passInstance,
+                                          BiFunction<Path, String, T> open) {
+        if (file == null) {
+            return open.apply(null, passInstance);
+        }
+        String key = file.toAbsolutePath() + "|" + passInstance;
+        return type.cast(STORES.computeIfAbsent(key, k -> open.apply(file, passInstance)));
+    }
+
+    private Path storeFile(String name) {
+        return storeDirectory == null ? null : storeDirectory.resolve(name + shardSuffix);
+    }
+
+    //switch to the journal of the mode of this update, and of its shard, resuming it if an earlier update of the
+    //same kind did not finish
+    private void openJournal() {
+        if (storeDirectory == null) {
+            return;
+        }
+        Path file = storeFile(JOURNAL_FILE_NAME + "." + mode);
+        if (!file.equals(journalFile)) {
+            journal.close();
+            journal = new UpdateJournal(file, System.getProperty("pass.fedora.baseurl"));
+            journalFile = file;
+        }
+    }
+
+    /**
+     * Record that the last update is complete, and its timestamp recorded, so that there is nothing left to resume:
+     * this truncates the journal of the entities it wrote, which is that of its mode and shard. The journals of other
+     * modes are left as they are.
+     */
+    public void commitJournal() {
+        journal.commit();
+    }
+
+    void setFingerprints(EntityFingerprints fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    void setGrantDigests(GrantDigests grantDigests) {
+        this.grantDigests = grantDigests;
+    }
+
+    /**
+     * Make every update a full verification: each grant is loaded, and each entity is searched for and read from
+     * PASS and compared with the data source, even if it has not changed in the data source since it was last written
+     * @param fullVerify true for full verification
+     */
+    public void setFullVerify(boolean fullVerify) {
+        this.fullVerify = fullVerify;
+    }
+
+    /**
+     * Put the updater in plan mode: instead of being made, the creates and updates are written to a change plan,
+     * which can be applied later by a {@link PlanApplier}. Nothing is written to PASS, and the identity cache, the
+     * entity fingerprints and the grant digests are left as they were: what would be recorded in them is written to
+     * the plan, and saved once the plan has been applied.
+     * @param planFile the plan file, or null to write to PASS
+     */
+    public void setPlanFile(Path planFile) {
+        this.planFile = planFile;
+    }
+
     void setDomain(String domain) {
         this.DOMAIN = domain;
     }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static java.lang.String.format;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.readString;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.writeString;
+
+/**
+ * A cache of directory service answers which persists between runs. Each answer is kept until it expires: answers
+ * with an ID expire after the time to live, and answers that there is no ID (negative answers) after the, usually
+ * shorter, negative time to live. A lookup in one direction also fills in the other, since the mapping is one to
+ * one.
+ *
+ * The cache is kept in a {@link KeyedStoreFile}. Only the live entries are saved, so the file is compacted on every
+ * save.
+ *
+ * @author jrm
+ */
+class DirectoryCache {
+
+    private static final int MAGIC = 0x50444952; //PDIR
+    private static final int VERSION = 1;
+    private static final byte EMPLOYEE_TO_HOPKINS = 0;
+    private static final byte HOPKINS_TO_EMPLOYEE = 1;
+
+    /**
+     * A cached answer. The value is null for a negative answer.
+     */
+    static final class Entry {
+        private final String value;
+        private final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+
+    private final KeyedStoreFile file;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> ee2hopkins = new ConcurrentHashMap<>();
+    private final Map<String, Entry> hopkins2ee = new ConcurrentHashMap<>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger negativeHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger expired = new AtomicInteger();
+    private int loaded = 0;
+
+    /**
+     * @param file the cache file, or null to keep the cache in memory only
+     * @param ttlMillis how long an answer with an ID is kept
+     * @param negativeTtlMillis how long an answer without an ID is kept
+     * @param clock the current time in milliseconds
+     */
+    DirectoryCache(Path file, long ttlMillis, long negativeTtlMillis, LongSupplier clock) {
+        this.file = new KeyedStoreFile(file, MAGIC, VERSION, "directory cache");
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.clock = clock;
+        long now = clock.getAsLong();
+        this.file.load(null, buffer -> {
+            byte direction = buffer.get();
+            long expiresAt = buffer.getLong();
+            String key = readString(buffer);
+            String value = readString(buffer);
+            if (expiresAt <= now) {
+                expired.incrementAndGet();
+            } else {
+                (direction == EMPLOYEE_TO_HOPKINS ? ee2hopkins : hopkins2ee).put(key, new Entry(value, expiresAt));
+                loaded++;
+            }
+        }, () -> {
+            ee2hopkins.clear();
+            hopkins2ee.clear();
+            loaded = 0;
+        });
+    }
+
+    /**
+     * @param employeeId the employee ID
+     * @return the cached answer for the employee ID, or null if there is none
+     */
+    Entry getHopkinsId(String employeeId) {
+        return get(ee2hopkins, employeeId);
+    }
+
+    /**
+     * @param hopkinsId the Hopkins ID
+     * @return the cached answer for the Hopkins ID, or null if there is none
+     */
+    Entry getEmployeeId(String hopkinsId) {
+        return get(hopkins2ee, hopkinsId);
+    }
+
+    /**
+     * Cache the answer to an employee ID lookup
+     * @param employeeId the employee ID
+     * @param hopkinsId the Hopkins ID, or null if there is none
+     */
+    void putHopkinsId(String employeeId, String hopkinsId) {
+        put(ee2hopkins, hopkins2ee, employeeId, hopkinsId);
+    }
+
+    /**
+     * Cache the answer to a Hopkins ID lookup
+     * @param hopkinsId the Hopkins ID
+     * @param employeeId the employee ID, or null if there is none
+     */
+    void putEmployeeId(String hopkinsId, String employeeId) {
+        put(hopkins2ee, ee2hopkins, hopkinsId, employeeId);
+    }
+
+    private Entry get(Map<String, Entry> map, String key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt <= clock.getAsLong()) {
+            map.remove(key, entry);
+            expired.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.value == null) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private void put(Map<String, Entry> forward, Map<String, Entry> reverse, String key, String value) {
+        long now = clock.getAsLong();
+        if (value == null) {
+            forward.put(key, new Entry(null, now + negativeTtlMillis));
+        } else {
+            forward.put(key, new Entry(value, now + ttlMillis));
+            reverse.put(value, new Entry(key, now + ttlMillis));
+        }
+    }
+
+    /**
+     * Write the live entries of the cache to the cache file, replacing it
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        long now = clock.getAsLong();
+        file.save(null, out -> writeEntries(out, EMPLOYEE_TO_HOPKINS, ee2hopkins, now) +
+                writeEntries(out, HOPKINS_TO_EMPLOYEE, hopkins2ee, now));
+    }
+
+    private static int writeEntries(DataOutputStream out, byte direction, Map<String, Entry> map, long now)
+            throws IOException {
+        int written = 0;
+        for (Map.Entry<String, Entry> mapEntry : map.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.expiresAt > now) {
+                out.writeByte(direction);
+                out.writeLong(entry.expiresAt);
+                writeString(out, mapEntry.getKey());
+                writeString(out, entry.value);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    int size() {
+        return ee2hopkins.size() + hopkins2ee.size();
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    int getExpired() {
+        return expired.get();
+    }
+
+    String getReport() {
+        return format("Directory cache: %s entries loaded; %s hits, %s negative hits, %s misses, %s expired",
+                loaded, hits.get(), negativeHits.get(), misses.get(), expired.get());
+    }
+
+}
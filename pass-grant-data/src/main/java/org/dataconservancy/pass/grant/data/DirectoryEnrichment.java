@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_EMPLOYEE_ID;
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_HOPKINS_ID;
+
+/**
+ * Adds Hopkins IDs to the rows of a pull. The rows are taken from the source cursor in batches: the distinct employee
+ * IDs of a batch are looked up all at once - the lookup itself bounds how many are in flight - and the Hopkins IDs
+ * are set on every row of the batch for the employee before the batch is passed on. Only one batch is held at a
+ * time, so a pull of any size is enriched in bounded memory, and the database cursor is read a batch at a time at
+ * database speed rather than waiting on the directory service for every row.
+ *
+ * @author jrm
+ */
+class DirectoryEnrichment {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryEnrichment.class);
+
+    //rows are enriched this many at a time
+    static final int DEFAULT_BATCH_SIZE = 5000;
+
+    /**
+     * An asynchronous lookup of the Hopkins ID for an employee ID
+     */
+    interface HopkinsIdLookup {
+        /**
+         * @param employeeId the employee ID
+         * @return the Hopkins ID, or null if there is none; completed exceptionally with an {@code IOException} if
+         * the lookup fails. An answer which is already complete when it is returned was found in the cache
+         */
+        CompletableFuture<String> lookup(String employeeId);
+    }
+
+    private final HopkinsIdLookup lookup;
+    private final Runnable onFinish;
+    private final PullStatistics statistics;
+    private final int batchSize;
+
+    DirectoryEnrichment(HopkinsIdLookup lookup, PullStatistics statistics) {
+        this(lookup, () -> { }, statistics, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param lookup the lookup
+     * @param onFinish run once the enriched cursor is closed, such as to save the lookup cache
+     * @param statistics the statistics of the pull
+     * @param batchSize the number of rows to enrich at a time
+     */
+    DirectoryEnrichment(HopkinsIdLookup lookup, Runnable onFinish, PullStatistics statistics, int batchSize) {
+        this.lookup = lookup;
+        this.onFinish = onFinish;
+        this.statistics = statistics;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Add Hopkins IDs to the rows of a cursor as they are read. The first batch is enriched before this method
+     * returns, so that a directory service which cannot be reached fails the pull at once; a lookup which fails in a
+     * later batch is reported as a {@code RuntimeException} whose cause is the {@code IOException}. Closing the
+     * returned cursor closes the source.
+     *
+     * @param source the rows of the pull
+     * @return a cursor over the enriched rows
+     * @throws IOException if a lookup for the first batch fails
+     */
+    RecordCursor enrich(RecordCursor source) throws IOException {
+        EnrichedCursor enriched = new EnrichedCursor(source);
+        try {
+            enriched.fill();
+        } catch (IOException | RuntimeException e) {
+            enriched.close();
+            throw e;
+        }
+        return enriched;
+    }
+
+    private class EnrichedCursor extends AbstractRecordCursor {
+
+        private final RecordCursor source;
+        private final Deque<Map<String, String>> batch = new ArrayDeque<>();
+        private int rows = 0;
+        private int batches = 0;
+
+        EnrichedCursor(RecordCursor source) {
+            this.source = source;
+        }
+
+        @Override
+        protected Map<String, String> fetchNext() {
+            if (batch.isEmpty()) {
+                try {
+                    fill();
+                } catch (IOException e) {
+                    throw new RuntimeException("Error looking up Hopkins IDs", e);
+                }
+            }
+            return batch.poll();
+        }
+
+        @Override
+        protected void release() {
+            try {
+                source.close();
+            } finally {
+                onFinish.run();
+                LOG.info("Enriched {} rows in {} batches", rows, batches);
+            }
+        }
+
+        /**
+         * Read the next batch from the source and add Hopkins IDs to it
+         */
+        private void fill() throws IOException {
+            long start = System.nanoTime();
+            Set<String> employeeIds = new LinkedHashSet<>();
+            while (batch.size() < batchSize && source.hasNext()) {
+                Map<String, String> row = source.next();
+                batch.add(row);
+                String employeeId = row.get(C_USER_EMPLOYEE_ID);
+                if (employeeId != null) {
+                    employeeIds.add(employeeId);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            rows += batch.size();
+            batches++;
+            long readMillis = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            Map<String, CompletableFuture<String>> pending = new HashMap<>();
+            int cacheHits = 0;
+            for (String employeeId : employeeIds) {
+                CompletableFuture<String> answer = lookup.lookup(employeeId);
+                if (answer.isDone()) {
+                    cacheHits++;
+                }
+                pending.put(employeeId, answer);
+            }
+            Map<String, String> hopkinsIds = awaitAll(pending);
+            long lookupMillis = (System.nanoTime() - start) / 1000000;
+            statistics.addEnrichment(employeeIds.size(), cacheHits, readMillis, lookupMillis);
+            LOG.debug("Looked up {} employee IDs for {} rows in {} ms: {} directory cache hits, {} misses",
+                    employeeIds.size(), batch.size(), lookupMillis, cacheHits, employeeIds.size() - cacheHits);
+
+            for (Map<String, String> row : batch) {
+                String employeeId = row.get(C_USER_EMPLOYEE_ID);
+                if (employeeId != null) {
+                    row.put(C_USER_HOPKINS_ID, hopkinsIds.get(employeeId));
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> awaitAll(Map<String, CompletableFuture<String>> pending) throws IOException {
+        Map<String, String> hopkinsIds = new HashMap<>();
+        try {
+            for (Map.Entry<String, CompletableFuture<String>> entry : pending.entrySet()) {
+                hopkinsIds.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error looking up Hopkins IDs", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while looking up Hopkins IDs", e);
+        }
+        return hopkinsIds;
+    }
+
+}
@@ -19,17 +19,32 @@ package org.dataconservancy.pass.grant.data;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -42,9 +57,32 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  */
 class DirectoryServiceUtil {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryServiceUtil.class);
+
     static final String DIRECTORY_SERVICE_BASE_URL = "directory.base.url";
     static final String DIRECTORY_SERVICE_CLIENT_ID = "directory.client.id";
     static final String DIRECTORY_SERVICE_CLIENT_SECRET = "directory.client.secret";
+    static final String DIRECTORY_LOOKUP_PARALLELISM = "directory.lookup.parallelism";
+    static final String DIRECTORY_MAX_REQUESTS_PER_HOST = "directory.max.requests.per.host";
+    static final String DIRECTORY_CONNECTION_POOL_SIZE = "directory.connection.pool.size";
+    static final String DIRECTORY_CONNECTION_KEEP_ALIVE = "directory.connection.keep.alive";
+    static final String DIRECTORY_CACHE_TTL_DAYS = "directory.cache.ttl.days";
+    static final String DIRECTORY_CACHE_NEGATIVE_TTL_DAYS = "directory.cache.negative.ttl.days";
+
+    //the cache file is kept in COEUS_HOME
+    static final String DIRECTORY_CACHE_FILE_NAME = "directory.cache";
+    private static final int DEFAULT_CACHE_TTL_DAYS = 30;
+    private static final int DEFAULT_CACHE_NEGATIVE_TTL_DAYS = 1;
+    //at most this many lookups are in flight at once
+    private static final int DEFAULT_LOOKUP_PARALLELISM = 8;
+    //idle connections to the service are kept this long, in seconds, for reuse
+    private static final int DEFAULT_CONNECTION_KEEP_ALIVE = 300;
+    //the mapped value the service gives for an id which has no mapping
+    private static final String NO_MAPPING = "NULL";
+
+    //connection pools are shared by every instance with the same settings, so that connections, and their TLS
+    //sessions, outlive any one connector
+    private static final Map<String, ConnectionPool> CONNECTION_POOLS = new HashMap<>();
 
     private String directoryBaseUrl;
     private String directoryClientId;
@@ -53,11 +91,19 @@ class DirectoryServiceUtil {
     private final OkHttpClient client;
     private final JsonFactory factory = new JsonFactory();
 
-    //these are for caching results
-    private final Map<String, String> hopkins2ee = new HashMap<>();
-    private final Map<String, String> ee2hopkins = new HashMap<>();
+    //this is for caching results between runs. lookups are made from several threads at once
+    private final DirectoryCache cache;
+    //lookups which have been sent but not answered, keyed on type and source id, so that concurrent
+    //lookups of the same id share one call
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
 
     DirectoryServiceUtil(Properties connectionProperties) {
+        long ttlDays = DEFAULT_CACHE_TTL_DAYS;
+        long negativeTtlDays = DEFAULT_CACHE_NEGATIVE_TTL_DAYS;
+        int parallelism = DEFAULT_LOOKUP_PARALLELISM;
+        int maxRequestsPerHost = -1;
+        int connectionPoolSize = -1;
+        int keepAlive = DEFAULT_CONNECTION_KEEP_ALIVE;
         if (connectionProperties != null) {
 
             if (connectionProperties.getProperty(DIRECTORY_SERVICE_BASE_URL) != null) {
@@ -69,8 +115,46 @@ class DirectoryServiceUtil {
             if (connectionProperties.getProperty(DIRECTORY_SERVICE_CLIENT_SECRET) != null) {
                 this.directoryClientSecret = connectionProperties.getProperty(DIRECTORY_SERVICE_CLIENT_SECRET);
             }
+            if (connectionProperties.getProperty(DIRECTORY_CACHE_TTL_DAYS) != null) {
+                ttlDays = Long.parseLong(connectionProperties.getProperty(DIRECTORY_CACHE_TTL_DAYS));
+            }
+            if (connectionProperties.getProperty(DIRECTORY_CACHE_NEGATIVE_TTL_DAYS) != null) {
+                negativeTtlDays = Long.parseLong(connectionProperties.getProperty(DIRECTORY_CACHE_NEGATIVE_TTL_DAYS));
+            }
+            if (connectionProperties.getProperty(DIRECTORY_LOOKUP_PARALLELISM) != null) {
+                parallelism = Integer.parseInt(connectionProperties.getProperty(DIRECTORY_LOOKUP_PARALLELISM));
+            }
+            if (connectionProperties.getProperty(DIRECTORY_MAX_REQUESTS_PER_HOST) != null) {
+                maxRequestsPerHost = Integer.parseInt(connectionProperties.getProperty(DIRECTORY_MAX_REQUESTS_PER_HOST));
+            }
+            if (connectionProperties.getProperty(DIRECTORY_CONNECTION_POOL_SIZE) != null) {
+                connectionPoolSize = Integer.parseInt(connectionProperties.getProperty(DIRECTORY_CONNECTION_POOL_SIZE));
+            }
+            if (connectionProperties.getProperty(DIRECTORY_CONNECTION_KEEP_ALIVE) != null) {
+                keepAlive = Integer.parseInt(connectionProperties.getProperty(DIRECTORY_CONNECTION_KEEP_ALIVE));
+            }
+        }
+        if (directoryBaseUrl != null && !directoryBaseUrl.endsWith("/")) {
+            directoryBaseUrl = directoryBaseUrl + "/";
         }
+        Path cacheFile = null;
+        if (System.getProperty("COEUS_HOME") != null) {
+            cacheFile = Paths.get(System.getProperty("COEUS_HOME"), DIRECTORY_CACHE_FILE_NAME);
+        }
+        cache = new DirectoryCache(cacheFile, DAYS.toMillis(ttlDays), DAYS.toMillis(negativeTtlDays),
+                System::currentTimeMillis);
+        //the dispatcher bounds the number of lookups in flight. the service has a single host, so the per-host
+        //limit is the one that matters; by default it is the same as the overall limit
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(parallelism);
+        maxRequestsPerHost = maxRequestsPerHost > 0 ? maxRequestsPerHost : parallelism;
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        //keep an idle connection for every request which may be in flight, so that a busy pull never has to
+        //open a new one
+        connectionPoolSize = connectionPoolSize >= 0 ? connectionPoolSize : maxRequestsPerHost;
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        builder.dispatcher(dispatcher);
+        builder.connectionPool(getConnectionPool(connectionPoolSize, keepAlive));
         builder.connectTimeout(30, SECONDS);
         builder.readTimeout(30, SECONDS);
         builder.writeTimeout(30, SECONDS);
@@ -104,76 +188,190 @@ class DirectoryServiceUtil {
 
 
     /**
-     * Return Hopkins ID for a given employee ID. we cache lookups in a map so that we only need to perform
-     * a lookup once per session per user.
+     * Return Hopkins ID for a given employee ID. we cache lookups, and keep the cache between runs, so that we
+     * only need to perform a lookup once in the lifetime of a cache entry.
      *
      * @param employeeId the user's employeeId
      * @return the user's Hopkins ID - should never be null
      * @throws IOException if the service cannot be reached
      */
     String getHopkinsIdForEmployeeId(String employeeId) throws  IOException {
-        String hopkinsId;
-        if ( !ee2hopkins.containsKey( employeeId) ) {
-            hopkinsId = askDirectoryForMappedValue(Type.EMPLOYEE2HOPKINS, employeeId);
-            ee2hopkins.put( employeeId, hopkinsId );
-        } else {
-            hopkinsId = ee2hopkins.get ( employeeId );
-        }
-        return hopkinsId;
+        return await(lookupHopkinsIdForEmployeeId(employeeId));
     }
 
     /**
-     * Return employee ID for a given Hopkins ID. we cache lookups in a map so that we only need to perform
-     * a lookup once per session per user.
+     * Return employee ID for a given Hopkins ID. we cache lookups, and keep the cache between runs, so that we
+     * only need to perform a lookup once in the lifetime of a cache entry.
      * @param hopkinsId the user's Hopkins ID
      * @return the user's employee ID if it exists; null if it does not
      * @throws IOException if there is an IO exception
      */
     String getEmployeeIdForHopkinsId(String hopkinsId) throws IOException {
-        String employeeId;
-        if ( !hopkins2ee.containsKey( hopkinsId ) ) {
-            employeeId = askDirectoryForMappedValue(Type.HOPKINS2EMPLOYEE, hopkinsId);
-            hopkins2ee.put( hopkinsId,  employeeId );
-        } else {
-            employeeId = hopkins2ee.get ( hopkinsId );
+        return await(lookupEmployeeIdForHopkinsId(hopkinsId));
+    }
+
+    /**
+     * Look up the Hopkins ID for a given employee ID without waiting for the answer. Cached answers are returned
+     * at once; otherwise the lookup is queued, and sent when there is room under the concurrency limits. A lookup
+     * of an employee ID which is already in flight shares the call which is already under way.
+     *
+     * @param employeeId the user's employeeId
+     * @return the user's Hopkins ID, or null if there is none; completed exceptionally with an {@code IOException}
+     * if the service cannot be reached
+     */
+    CompletableFuture<String> lookupHopkinsIdForEmployeeId(String employeeId) {
+        DirectoryCache.Entry cached = cache.getHopkinsId(employeeId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getValue());
+        }
+        return lookup(Type.EMPLOYEE2HOPKINS, employeeId, hopkinsId -> cache.putHopkinsId(employeeId, hopkinsId));
+    }
+
+    /**
+     * Look up the employee ID for a given Hopkins ID without waiting for the answer - see
+     * {@link #lookupHopkinsIdForEmployeeId(String)}
+     *
+     * @param hopkinsId the user's Hopkins ID
+     * @return the user's employee ID, or null if there is none
+     */
+    CompletableFuture<String> lookupEmployeeIdForHopkinsId(String hopkinsId) {
+        DirectoryCache.Entry cached = cache.getEmployeeId(hopkinsId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getValue());
+        }
+        return lookup(Type.HOPKINS2EMPLOYEE, hopkinsId, employeeId -> cache.putEmployeeId(hopkinsId, employeeId));
+    }
+
+    /**
+     * Save the lookup cache, so that the next run can use it. A cache which cannot be saved is not an error, since
+     * it only costs the next run some lookups
+     */
+    void saveCache() {
+        try {
+            cache.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save directory cache", e);
         }
-        return employeeId;
     }
 
-    private String askDirectoryForMappedValue(Type type, String sourceId) throws IOException {
+    String getCacheReport() {
+        return cache.getReport();
+    }
+
+    /**
+     * Send a lookup to the service, unless the same lookup is already in flight
+     *
+     * @param type the direction of the lookup
+     * @param sourceId the id to look up
+     * @param cacheAnswer caches the answer; this is done before the lookup leaves the in-flight map, so that
+     *                    there is no moment at which a later lookup would find neither. Only a definite answer is
+     *                    cached - an error status, or an answer without the id, is not
+     * @return the answer
+     */
+    private CompletableFuture<String> lookup(Type type, String sourceId, Consumer<String> cacheAnswer) {
+        String key = type.name() + ":" + sourceId;
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, answer);
+        if (existing != null) {
+            return existing;
+        }
+
+        client.newCall(buildRequest(type, sourceId)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                inFlight.remove(key, answer);
+                answer.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                //closing the response returns its connection to the pool
+                try (Response r = response) {
+                    if (!r.isSuccessful()) {
+                        throw new IOException("Directory lookup of " + sourceId + " failed with status " + r.code());
+                    }
+                    assert r.body() != null;
+                    String mappedValue = parseMappedValue(sourceId, r.body().byteStream());
+                    //NULL is the service's answer for an id which has no mapping
+                    if (NO_MAPPING.equals(mappedValue)) {
+                        mappedValue = null;
+                        cacheAnswer.accept(null);
+                    } else if (mappedValue != null) {
+                        cacheAnswer.accept(mappedValue);
+                    }
+                    inFlight.remove(key, answer);
+                    answer.complete(mappedValue);
+                } catch (IOException | RuntimeException e) {
+                    inFlight.remove(key, answer);
+                    answer.completeExceptionally(e);
+                }
+            }
+        });
+        return answer;
+    }
+
+    private Request buildRequest(Type type, String sourceId) {
         String name = type.getQueryParameter();
         String suffix = type.getServiceUrlEnding();
-        String serviceUrl;
-        if (!directoryBaseUrl.endsWith("/")) {
-            directoryBaseUrl = directoryBaseUrl + "/";
-        }
-        serviceUrl = directoryBaseUrl + suffix;
+        String serviceUrl = directoryBaseUrl + suffix;
 
         HttpUrl.Builder urlBuilder = Objects.requireNonNull(HttpUrl.parse(serviceUrl)).newBuilder().addQueryParameter(name, sourceId);
         String url = urlBuilder.build().toString();
 
-        Request request = new Request.Builder().header("client_id", directoryClientId)
+        return new Request.Builder().header("client_id", directoryClientId)
                 .header("client_secret", directoryClientSecret).url(url).build();
+    }
 
-        Response response = client.newCall(request).execute();
-
-        assert response.body() != null;
-        JsonParser parser = factory.createParser(response.body().string());
-            String mappedValue = null;
-            while (!parser.isClosed()) {
-                JsonToken jsonToken = parser.nextToken();
+    /**
+     * Read the mapped value from the service's answer, as it arrives
+     * @param sourceId the id which was looked up
+     * @param body the body of the answer
+     * @return the mapped value as given by the service, which is NULL if there is none; null if the answer does not
+     * have the id, or has a JSON null for it
+     * @throws IOException if the body cannot be read or parsed
+     */
+    private String parseMappedValue(String sourceId, InputStream body) throws IOException {
+        String mappedValue = null;
+        try (JsonParser parser = factory.createParser(body)) {
+            JsonToken jsonToken;
+            while ((jsonToken = parser.nextToken()) != null) {
                 if (JsonToken.FIELD_NAME.equals(jsonToken)) {
                     String fieldName = parser.getCurrentName();
-                    parser.nextToken();
-                    if (sourceId.equals(fieldName)) {
+                    JsonToken valueToken = parser.nextToken();
+                    if (sourceId.equals(fieldName) && !JsonToken.VALUE_NULL.equals(valueToken)) {
                         mappedValue = parser.getValueAsString();
-                        mappedValue = mappedValue.equals("NULL") ? null : mappedValue;
                     }
                 }
             }
+        }
+        return mappedValue;
+    }
 
-            return mappedValue;
+    private static synchronized ConnectionPool getConnectionPool(int maxIdleConnections, int keepAliveSeconds) {
+        return CONNECTION_POOLS.computeIfAbsent(maxIdleConnections + "|" + keepAliveSeconds,
+                key -> new ConnectionPool(maxIdleConnections, keepAliveSeconds, SECONDS));
+    }
 
+    /**
+     * Wait for the answer to a lookup
+     * @param answer the answer
+     * @return the looked up value
+     * @throws IOException if the service could not be reached
+     */
+    private static String await(CompletableFuture<String> answer) throws IOException {
+        try {
+            return answer.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Directory lookup failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for directory lookup", e);
+        }
     }
 
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.PassEntity;
+import org.dataconservancy.pass.model.User;
+import org.joda.time.DateTime;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The fields of the PASS entities this loader writes, as JSON values, so that entities can be written to a change
+ * plan and compared field by field. Only the fields the loader sets are covered; the others belong to other
+ * applications and are never written by a plan.
+ *
+ * Values are strings, or arrays of strings for lists, or null. URIs, dates and enumerations are written as their
+ * string forms, so a URI which stands for an entity still to be created can be written in place of a real one.
+ *
+ * @author jrm
+ */
+final class EntityFields {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private static final Map<String, Field<Grant>> GRANT = new LinkedHashMap<>();
+    private static final Map<String, Field<User>> USER = new LinkedHashMap<>();
+    private static final Map<String, Field<Funder>> FUNDER = new LinkedHashMap<>();
+
+    static {
+        GRANT.put("localKey", text(Grant::getLocalKey, Grant::setLocalKey));
+        GRANT.put("awardNumber", text(Grant::getAwardNumber, Grant::setAwardNumber));
+        GRANT.put("awardStatus", new Field<>(grant -> textNode(grant.getAwardStatus() == null ? null :
+                grant.getAwardStatus().name()), (grant, value) -> grant.setAwardStatus(value.isNull() ? null :
+                Grant.AwardStatus.valueOf(value.asText()))));
+        GRANT.put("projectName", text(Grant::getProjectName, Grant::setProjectName));
+        GRANT.put("directFunder", uri(Grant::getDirectFunder, Grant::setDirectFunder));
+        GRANT.put("primaryFunder", uri(Grant::getPrimaryFunder, Grant::setPrimaryFunder));
+        GRANT.put("pi", uri(Grant::getPi, Grant::setPi));
+        GRANT.put("coPis", new Field<>(grant -> arrayNode(grant.getCoPis()), (grant, value) -> {
+            List<URI> coPis = new ArrayList<>();
+            for (JsonNode coPi : value) {
+                coPis.add(coPi.isNull() ? null : URI.create(coPi.asText()));
+            }
+            grant.setCoPis(coPis);
+        }));
+        GRANT.put("awardDate", date(Grant::getAwardDate, Grant::setAwardDate));
+        GRANT.put("startDate", date(Grant::getStartDate, Grant::setStartDate));
+        GRANT.put("endDate", date(Grant::getEndDate, Grant::setEndDate));
+
+        USER.put("firstName", text(User::getFirstName, User::setFirstName));
+        USER.put("middleName", text(User::getMiddleName, User::setMiddleName));
+        USER.put("lastName", text(User::getLastName, User::setLastName));
+        USER.put("displayName", text(User::getDisplayName, User::setDisplayName));
+        USER.put("email", text(User::getEmail, User::setEmail));
+        USER.put("locatorIds", new Field<>(user -> arrayNode(user.getLocatorIds()), (user, value) -> {
+            List<String> locatorIds = new ArrayList<>();
+            for (JsonNode locatorId : value) {
+                locatorIds.add(locatorId.asText());
+            }
+            user.setLocatorIds(locatorIds);
+        }));
+        USER.put("roles", new Field<>(user -> arrayNode(user.getRoles()), (user, value) -> {
+            List<User.Role> roles = new ArrayList<>();
+            for (JsonNode role : value) {
+                roles.add(User.Role.valueOf(role.asText()));
+            }
+            user.setRoles(roles);
+        }));
+
+        FUNDER.put("localKey", text(Funder::getLocalKey, Funder::setLocalKey));
+        FUNDER.put("name", text(Funder::getName, Funder::setName));
+        FUNDER.put("policy", uri(Funder::getPolicy, Funder::setPolicy));
+    }
+
+    private EntityFields() {
+    }
+
+    /**
+     * @param type the simple name of an entity type - Grant, User or Funder
+     * @return a new, empty entity of the type
+     */
+    static PassEntity newEntity(String type) {
+        switch (type) {
+            case "Grant":
+                return new Grant();
+            case "User":
+                return new User();
+            case "Funder":
+                return new Funder();
+            default:
+                throw new IllegalArgumentException("Unsupported entity type " + type);
+        }
+    }
+
+    /**
+     * @param type the simple name of an entity type - Grant, User or Funder
+     * @return the class of the type
+     */
+    static Class<? extends PassEntity> typeOf(String type) {
+        return newEntity(type).getClass();
+    }
+
+    /**
+     * The values of the fields of an entity
+     * @param entity the entity
+     * @return the values, by field name, in a fixed order
+     */
+    static Map<String, JsonNode> snapshot(PassEntity entity) {
+        Map<String, JsonNode> values = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends Field<? extends PassEntity>> field : fields(entity).entrySet()) {
+            values.put(field.getKey(), get(field.getValue(), entity));
+        }
+        return values;
+    }
+
+    /**
+     * The fields whose values differ between two snapshots of an entity
+     * @param before the values before a change
+     * @param after the values after it
+     * @return the new value of each field which changed, by field name
+     */
+    static Map<String, JsonNode> diff(Map<String, JsonNode> before, Map<String, JsonNode> after) {
+        Map<String, JsonNode> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonNode> field : after.entrySet()) {
+            if (!field.getValue().equals(before.get(field.getKey()))) {
+                changed.put(field.getKey(), field.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Set a field of an entity
+     * @param entity the entity
+     * @param name the name of the field
+     * @param value the value, as written by {@link #snapshot(PassEntity)}
+     */
+    static void set(PassEntity entity, String name, JsonNode value) {
+        Field<? extends PassEntity> field = fields(entity).get(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Unsupported field " + name + " of " + entity.getClass().getSimpleName());
+        }
+        put(field, entity, value == null ? NullNode.getInstance() : value);
+    }
+
+    private static Map<String, ? extends Field<? extends PassEntity>> fields(PassEntity entity) {
+        if (entity instanceof Grant) {
+            return GRANT;
+        } else if (entity instanceof User) {
+            return USER;
+        } else if (entity instanceof Funder) {
+            return FUNDER;
+        }
+        throw new IllegalArgumentException("Unsupported entity type " + entity.getClass().getSimpleName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends PassEntity> JsonNode get(Field<T> field, PassEntity entity) {
+        return field.getter.apply((T) entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends PassEntity> void put(Field<T> field, PassEntity entity, JsonNode value) {
+        field.setter.accept((T) entity, value);
+    }
+
+    private static <T> Field<T> text(Function<T, String> getter, BiConsumer<T, String> setter) {
+        return new Field<>(entity -> textNode(getter.apply(entity)),
+                (entity, value) -> setter.accept(entity, value.isNull() ? null : value.asText()));
+    }
+
+    private static <T> Field<T> uri(Function<T, URI> getter, BiConsumer<T, URI> setter) {
+        return new Field<>(entity -> textNode(getter.apply(entity) == null ? null : getter.apply(entity).toString()),
+                (entity, value) -> setter.accept(entity, value.isNull() ? null : URI.create(value.asText())));
+    }
+
+    private static <T> Field<T> date(Function<T, DateTime> getter, BiConsumer<T, DateTime> setter) {
+        return new Field<>(entity -> textNode(getter.apply(entity) == null ? null : getter.apply(entity).toString()),
+                (entity, value) -> setter.accept(entity, value.isNull() ? null : new DateTime(value.asText())));
+    }
+
+    private static JsonNode textNode(String value) {
+        return value == null ? NullNode.getInstance() : TextNode.valueOf(value);
+    }
+
+    private static JsonNode arrayNode(Collection<?> values) {
+        if (values == null) {
+            return NullNode.getInstance();
+        }
+        ArrayNode array = NODES.arrayNode();
+        for (Object value : values) {
+            if (value == null) {
+                array.addNull();
+            } else {
+                array.add(value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+            }
+        }
+        return array;
+    }
+
+    private static final class Field<T> {
+        private final Function<T, JsonNode> getter;
+        private final BiConsumer<T, JsonNode> setter;
+
+        private Field(Function<T, JsonNode> getter, BiConsumer<T, JsonNode> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.readString;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.writeString;
+
+/**
+ * A store of the fingerprints of the entities we last wrote to PASS, or found needed no update, keyed by PASS URI. A
+ * fingerprint is a hash of the fields of an entity as built from the data source, before it is merged with the stored
+ * entity, so if an entity built in a later run has the same fingerprint, the data source has not changed it, and
+ * there is no need to read the stored entity and compare it.
+ *
+ * This does not notice changes made to the stored entity by anything else; a full verification, which ignores the
+ * store, covers those. Fingerprints are seeded with the name of the {@link PassEntityUtil} in use, so those recorded
+ * under one update policy never match under another. The store is kept in a {@link KeyedStoreFile}.
+ *
+ * @author jrm
+ */
+class EntityFingerprints {
+
+    private static final int MAGIC = 0x50454650; //PEFP
+    private static final int VERSION = 1;
+
+    private final KeyedStoreFile file;
+    private final String passInstance;
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    private int loaded = 0;
+
+    /**
+     * @param file the store file, or null to keep the store in memory only
+     * @param passInstance the base URL of the PASS instance the URIs belong to
+     */
+    EntityFingerprints(Path file, String passInstance) {
+        this.file = new KeyedStoreFile(file, MAGIC, VERSION, "entity fingerprints");
+        this.passInstance = passInstance == null ? "" : passInstance;
+        this.file.load(this.passInstance, buffer -> {
+            fingerprints.put(readString(buffer), buffer.getLong());
+            loaded++;
+        }, () -> {
+            fingerprints.clear();
+            loaded = 0;
+        });
+    }
+
+    /**
+     * @param uri the URI of an entity
+     * @param fingerprint the fingerprint of the entity as built in this run
+     * @return true if the entity had the same fingerprint when it was last written or found up to date
+     */
+    boolean matches(URI uri, long fingerprint) {
+        Long last = uri == null ? null : fingerprints.get(uri.toString());
+        return last != null && last == fingerprint;
+    }
+
+    /**
+     * Record the fingerprint of an entity which has been written, or found up to date
+     * @param uri the URI of the entity
+     * @param fingerprint the fingerprint of the entity as built in this run
+     */
+    void put(URI uri, long fingerprint) {
+        if (uri != null) {
+            fingerprints.put(uri.toString(), fingerprint);
+        }
+    }
+
+    /**
+     * Forget the fingerprint of an entity
+     * @param uri the URI of the entity
+     */
+    void remove(URI uri) {
+        if (uri != null) {
+            fingerprints.remove(uri.toString());
+        }
+    }
+
+    int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * The fingerprint of a grant, over the fields set on it from the data source
+     * @param seed the name of the update policy
+     * @param grant the grant
+     * @return the fingerprint
+     */
+    static long of(String seed, Grant grant) {
+        return hash(seed, "Grant", grant.getLocalKey(), grant.getAwardNumber(), grant.getAwardStatus(),
+                grant.getProjectName(), grant.getDirectFunder(), grant.getPrimaryFunder(), grant.getPi(),
+                sorted(grant.getCoPis()), grant.getAwardDate(), grant.getStartDate(), grant.getEndDate());
+    }
+
+    /**
+     * The fingerprint of a user, over the fields set on it from the data source
+     * @param seed the name of the update policy
+     * @param user the user
+     * @return the fingerprint
+     */
+    static long of(String seed, User user) {
+        return hash(seed, "User", user.getFirstName(), user.getMiddleName(), user.getLastName(),
+                user.getDisplayName(), user.getEmail(), sorted(user.getLocatorIds()), sorted(user.getRoles()));
+    }
+
+    /**
+     * The fingerprint of a funder, over the fields set on it from the data source
+     * @param seed the name of the update policy
+     * @param funder the funder
+     * @return the fingerprint
+     */
+    static long of(String seed, Funder funder) {
+        return hash(seed, "Funder", funder.getLocalKey(), funder.getName(), funder.getPolicy());
+    }
+
+    //lists are compared as sets when updating, so their order must not change the fingerprint
+    private static List<String> sorted(Collection<?> values) {
+        List<String> sorted = new ArrayList<>();
+        if (values != null) {
+            for (Object value : values) {
+                sorted.add(String.valueOf(value));
+            }
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static long hash(Object... fields) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Object field : fields) {
+            //each field is length-prefixed, and null is told apart from "null"
+            byte[] bytes = field == null ? new byte[0] : String.valueOf(field).getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(field == null ? -1 : bytes.length).array());
+            digest.update(bytes);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Write the store to the store file, replacing it
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        file.save(passInstance, out -> {
+            int written = 0;
+            for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue());
+                written++;
+            }
+            return written;
+        });
+    }
+
+}
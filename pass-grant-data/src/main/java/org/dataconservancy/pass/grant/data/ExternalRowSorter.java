@@ -0,0 +1,280 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts rows on the value of one field, such as the grant local key, so that rows which are not ordered - from a pull
+ * file, say - can be taken a grant at a time. Rows are held in memory until their estimated size passes a budget;
+ * they are then sorted and spilled to a temporary file as a run, and the next run is started. Once the input has been
+ * read, the runs are merged. The merge reads each run through a memory map, so the runs are paged in from the file
+ * system cache as they are needed rather than being read back onto the heap; the heap holds just the row at the head
+ * of each run. If the rows never pass the budget, they are sorted in memory and nothing is written.
+ *
+ * The sort is stable: rows with equal keys come out in the order they went in, as they would be taken by an update
+ * of unsorted rows. Rows without the key come first. The spill files are deleted when the sorted cursor is closed.
+ *
+ * @author jrm
+ */
+class ExternalRowSorter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalRowSorter.class);
+
+    //a rough count of the heap taken by a row map, its entries, and each value
+    private static final int ROW_OVERHEAD = 64;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final Comparator<String> KEY_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private final String keyField;
+    private final long budget;
+    private final Path directory;
+    private int runs = 0;
+    private long rows = 0;
+
+    /**
+     * @param keyField the field the rows are sorted on
+     * @param budget the estimated bytes of rows which may be held before a run is spilled
+     * @param directory the directory the spill files are written in
+     */
+    ExternalRowSorter(String keyField, long budget, Path directory) {
+        this.keyField = keyField;
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    /**
+     * Sort rows. The source is read to the end before this returns.
+     * @param source the rows
+     * @return a cursor over the rows in order, which must be closed to delete the spill files
+     * @throws IOException if a run cannot be spilled
+     */
+    RecordCursor sort(Iterable<Map<String, String>> source) throws IOException {
+        runs = 0;
+        rows = 0;
+        List<Path> spills = new ArrayList<>();
+        List<Map<String, String>> run = new ArrayList<>();
+        long size = 0;
+        try {
+            for (Map<String, String> row : source) {
+                run.add(row);
+                rows++;
+                size += sizeOf(row);
+                if (size > budget) {
+                    spills.add(spill(run));
+                    run = new ArrayList<>();
+                    size = 0;
+                }
+            }
+            run.sort((a, b) -> KEY_ORDER.compare(a.get(keyField), b.get(keyField)));
+            if (spills.isEmpty()) {
+                return RecordCursor.of(run);
+            }
+            if (!run.isEmpty()) {
+                spills.add(spill(run));
+            }
+            run = null;
+            LOG.info("Sorted {} rows in {} runs spilled to {}", rows, spills.size(), directory);
+            return new MergingCursor(spills);
+        } catch (IOException | RuntimeException e) {
+            delete(spills);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of runs spilled by the last sort
+     */
+    int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the number of rows sorted
+     */
+    long getRows() {
+        return rows;
+    }
+
+    private Path spill(List<Map<String, String>> run) throws IOException {
+        run.sort((a, b) -> KEY_ORDER.compare(a.get(keyField), b.get(keyField)));
+        Path file = Files.createTempFile(directory, "grant-rows-", ".run");
+        try (OutputStream stream = Files.newOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            for (Map<String, String> row : run) {
+                out.writeInt(row.size());
+                for (Map.Entry<String, String> entry : row.entrySet()) {
+                    writeValue(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        runs++;
+        return file;
+    }
+
+    private static long sizeOf(Map<String, String> row) {
+        long size = ROW_OVERHEAD;
+        for (String value : row.values()) {
+            size += ENTRY_OVERHEAD + (value == null ? 0 : STRING_OVERHEAD + 2L * value.length());
+        }
+        return size;
+    }
+
+    //values are not bounded in length, so unlike the cache files the length is an int
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readValue(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void delete(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Could not delete sort file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * The row at the head of a spilled run
+     */
+    private static final class Run {
+        private final int index;
+        private final MappedByteBuffer buffer;
+        //the keys of a run's rows are the same few field names, so each run shares one copy of them
+        private final Map<String, String> fieldNames = new HashMap<>();
+        private Map<String, String> head;
+
+        private Run(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        //move to the next row of the run, returning false at its end
+        private boolean advance() {
+            if (!buffer.hasRemaining()) {
+                head = null;
+                return false;
+            }
+            int entries = buffer.getInt();
+            Map<String, String> row = new HashMap<>();
+            for (int i = 0; i < entries; i++) {
+                String field = readValue(buffer);
+                String existing = fieldNames.putIfAbsent(field, field);
+                row.put(existing == null ? field : existing, readValue(buffer));
+            }
+            head = row;
+            return true;
+        }
+    }
+
+    /**
+     * Merges the spilled runs, taking rows with equal keys from the earlier run first, so the sort is stable
+     */
+    private final class MergingCursor implements RecordCursor {
+        private final List<Path> spills;
+        private final PriorityQueue<Run> heads;
+
+        private MergingCursor(List<Path> spills) throws IOException {
+            this.spills = spills;
+            this.heads = new PriorityQueue<>(Math.max(1, spills.size()), (a, b) -> {
+                int order = KEY_ORDER.compare(a.head.get(keyField), b.head.get(keyField));
+                return order != 0 ? order : Integer.compare(a.index, b.index);
+            });
+            for (int i = 0; i < spills.size(); i++) {
+                try (FileChannel channel = FileChannel.open(spills.get(i), StandardOpenOption.READ)) {
+                    Run run = new Run(i, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                    if (run.advance()) {
+                        heads.add(run);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map<String, String> next() {
+            Run run = heads.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            Map<String, String> row = run.head;
+            try {
+                if (run.advance()) {
+                    heads.add(run);
+                }
+            } catch (RuntimeException e) {
+                throw new UncheckedIOException(new IOException("Sort file " + spills.get(run.index) + " is damaged", e));
+            }
+            return row;
+        }
+
+        @Override
+        public void close() {
+            heads.clear();
+            delete(spills);
+        }
+    }
+
+}
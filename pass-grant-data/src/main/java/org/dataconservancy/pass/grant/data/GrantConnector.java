@@ -29,24 +29,59 @@ import java.util.Map;
 public interface GrantConnector {
 
     /**
-     * If the grant data source is a database, we will need a query string
+     * If the grant data source is a database, we will need a query
      * @param startDate - the date of the earlieat record we wish to get on this pull
      * @param mode - indicates whether the data pull is for grants, or users
-     * @return the query string
+     * @return the query, with the values to bind to it
+     */
+    GrantQuery buildQueryString(String startDate, String awardEndDate, String mode);
+
+    /**
+     * This method opens a cursor over the data from a data source - one element for each grant or user record.
+     * Records are produced as the cursor is advanced, so that the caller need not hold the entire result in memory.
+     * The caller is responsible for closing the cursor.
+     * @param query - a query, if required
+     * @param mode - indicates whether the data pull is for grants, or users
+     * @return the cursor
+     * @throws ClassNotFoundException if the driver is not found
+     * @throws SQLException if there is an SQL exception
+     * @throws IOException if there is an IO exception
      */
-    String buildQueryString(String startDate, String awardEndDate, String mode);
+    RecordCursor openUpdates(GrantQuery query, String mode) throws
+            ClassNotFoundException, SQLException, IOException;
 
     /**
      * This method retrieves the data from a data source. The format is a List of Maps - one List element for each
-     * grant or user record.
-     * @param queryString - a query string, if required
+     * grant or user record. This materializes the whole result; prefer {@link #openUpdates(GrantQuery, String)} for
+     * large pulls.
+     * @param query - a query, if required
      * @param mode - indicates whether the data pull is for grants, or users
      * @return the query string
      * @throws ClassNotFoundException if the driver is not found
      * @throws SQLException if there is an SQL exception
      * @throws IOException if there is an IO exception
      */
-    List<Map<String, String>> retrieveUpdates(String queryString, String mode)throws
-            ClassNotFoundException, SQLException, IOException;
+    default List<Map<String, String>> retrieveUpdates(GrantQuery query, String mode)throws
+            ClassNotFoundException, SQLException, IOException {
+        List<Map<String, String>> mapList = new ArrayList<>();
+        try (RecordCursor cursor = openUpdates(query, mode)) {
+            cursor.forEachRemaining(mapList::add);
+        }
+        return mapList;
+    }
+
+    /**
+     * This returns the statistics for the most recent pull. These are complete once the cursor has been exhausted.
+     * @return the statistics object
+     */
+    PullStatistics getStatistics();
+
+    /**
+     * This returns a report of the statistics of the most recent pull
+     * @return the report
+     */
+    default String getReport() {
+        return getStatistics().getReport();
+    }
 
 }
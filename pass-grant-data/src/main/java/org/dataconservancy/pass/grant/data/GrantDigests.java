@@ -0,0 +1,181 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.readString;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.writeString;
+
+/**
+ * A store of digests of the COEUS rows of each grant, as of the last load which succeeded, keyed by the grant's local
+ * key. A grant whose rows have the same digest in a later pull has not changed in COEUS, so it need not be built or
+ * written again.
+ *
+ * The digest of a grant is taken over its normalized rows: the update timestamp is left out, since it advances
+ * without anything else changing, and neither the order of a row's columns nor the order of the rows matters.
+ *
+ * The store also keeps the average time it took to load a grant, so that the time saved by skipping grants can be
+ * estimated. The store is kept in a {@link KeyedStoreFile}.
+ *
+ * @author jrm
+ */
+class GrantDigests {
+
+    private static final int MAGIC = 0x50474447; //PGDG
+    private static final int VERSION = 1;
+
+    private final KeyedStoreFile file;
+    private final String passInstance;
+    private final Map<String, Long> digests = new ConcurrentHashMap<>();
+    private double millisPerGrant = 0;
+
+    /**
+     * @param file the store file, or null to keep the store in memory only
+     * @param passInstance the base URL of the PASS instance the grants were loaded into
+     */
+    GrantDigests(Path file, String passInstance) {
+        this.file = new KeyedStoreFile(file, MAGIC, VERSION, "grant digests");
+        this.passInstance = passInstance == null ? "" : passInstance;
+        this.file.load(this.passInstance, buffer -> millisPerGrant = buffer.getDouble(),
+                buffer -> digests.put(readString(buffer), buffer.getLong()), () -> {
+                    digests.clear();
+                    millisPerGrant = 0;
+                });
+    }
+
+    /**
+     * @param grantLocalKey the local key of a grant
+     * @param digest the digest of the grant's rows in this pull
+     * @return true if the grant's rows had the same digest at the last successful load
+     */
+    boolean unchanged(String grantLocalKey, long digest) {
+        Long last = grantLocalKey == null ? null : digests.get(grantLocalKey);
+        return last != null && last == digest;
+    }
+
+    /**
+     * Record the digest of a grant which has been loaded
+     * @param grantLocalKey the local key of the grant
+     * @param digest the digest of the grant's rows
+     */
+    void put(String grantLocalKey, long digest) {
+        if (grantLocalKey != null) {
+            digests.put(grantLocalKey, digest);
+        }
+    }
+
+    int size() {
+        return digests.size();
+    }
+
+    /**
+     * @return the average time, in milliseconds, it took to load a grant in the last load which loaded any
+     */
+    double getMillisPerGrant() {
+        return millisPerGrant;
+    }
+
+    /**
+     * Record how long a load took, to estimate the time saved by later skips
+     * @param grants the number of grants loaded
+     * @param millis the time it took
+     */
+    void recordLoad(int grants, long millis) {
+        if (grants > 0) {
+            millisPerGrant = (double) millis / grants;
+        }
+    }
+
+    /**
+     * The hash of one normalized row
+     * @param row the row
+     * @return the hash
+     */
+    static long rowHash(Map<String, String> row) {
+        MessageDigest digest = sha256();
+        for (Map.Entry<String, String> column : new TreeMap<>(row).entrySet()) {
+            if (!CoeusFieldNames.C_UPDATE_TIMESTAMP.equals(column.getKey())) {
+                update(digest, column.getKey());
+                update(digest, column.getValue());
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * The digest of a grant, from the hashes of its rows
+     * @param seed the name of the update policy, so that digests taken under one policy never match under another
+     * @param rowHashes the hashes of the grant's rows, in any order
+     * @return the digest
+     */
+    static long digest(String seed, List<Long> rowHashes) {
+        List<Long> sorted = new ArrayList<>(rowHashes);
+        Collections.sort(sorted);
+        MessageDigest digest = sha256();
+        update(digest, seed);
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        for (long rowHash : sorted) {
+            buffer.putLong(0, rowHash);
+            digest.update(buffer.array());
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //each value is length-prefixed, and null is told apart from "null"
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(value == null ? -1 : bytes.length).array());
+        digest.update(bytes);
+    }
+
+    /**
+     * Write the store to the store file, replacing it
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        file.save(passInstance, out -> out.writeDouble(millisPerGrant), out -> {
+            int written = 0;
+            for (Map.Entry<String, Long> entry : digests.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue());
+                written++;
+            }
+            return written;
+        });
+    }
+
+}
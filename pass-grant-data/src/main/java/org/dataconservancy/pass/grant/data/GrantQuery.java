@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.grant.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query built by a {@link GrantConnector}: the statement text, with a {@code ?} for each value, and the values to
+ * bind to it, in order. Keeping the values out of the text means the text is the same from run to run, so that the
+ * database can reuse its plan.
+ *
+ * @author jrm
+ */
+public final class GrantQuery {
+
+    private final String sql;
+    private final List<Object> bindValues;
+
+    /**
+     * @param sql the statement text
+     * @param bindValues the values for the statement's bind variables, in order
+     */
+    public GrantQuery(String sql, List<?> bindValues) {
+        this.sql = sql;
+        this.bindValues = Collections.unmodifiableList(new ArrayList<>(bindValues));
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Object> getBindValues() {
+        return bindValues;
+    }
+
+    /**
+     * A query which runs this one restricted by a further predicate, with any further values bound after these
+     * @param predicate the predicate, on the columns of this query
+     * @param values the values for the predicate's bind variables, in order
+     * @return the restricted query
+     */
+    GrantQuery where(String predicate, Object... values) {
+        List<Object> restrictedBindValues = new ArrayList<>(bindValues);
+        Collections.addAll(restrictedBindValues, values);
+        return new GrantQuery("SELECT * FROM (" + sql + ") WHERE " + predicate, restrictedBindValues);
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -50,6 +51,7 @@ public class HarvardPilotConnector implements GrantConnector {
 
     private String xlsxDataFilePath;
     private final Properties funderPolicyProperties;
+    private final PullStatistics statistics = new PullStatistics();
 
     private static final Logger LOG = LoggerFactory.getLogger(HarvardPilotConnector.class);
 
@@ -67,34 +69,34 @@ public class HarvardPilotConnector implements GrantConnector {
      * @param mode - indicates whether the data pull is for grants, or users
      * @return null
      */
-    public String buildQueryString(String startDate, String awardEndDate, String mode) {
+    public GrantQuery buildQueryString(String startDate, String awardEndDate, String mode) {
         return null;
     }
 
-    public List<Map<String, String>> retrieveUpdates(String queryString, String mode) throws IOException {
+    public RecordCursor openUpdates(GrantQuery query, String mode) throws IOException {
+        statistics.reset();
 
-        Sheet grantSheet;
         //First associate funder IDs with their names
         Map<String, String> funderNameMap = new HashMap<>();
+        XSSFWorkbook workbook;
         try (FileInputStream excelFile = new FileInputStream(new File(xlsxDataFilePath))
         ) {
-
-            XSSFWorkbook workbook = new XSSFWorkbook(excelFile);
-            Sheet funderSheet = workbook.getSheetAt(1);
-            for (Row cells : funderSheet) {
-                if (cells.getRowNum() > 0) {//skip header
-                    funderNameMap.put(stringify(cells.getCell(0)),
-                            stringify(cells.getCell(1)));
-                }
+            workbook = new XSSFWorkbook(excelFile);
+        }
+        Sheet funderSheet = workbook.getSheetAt(1);
+        for (Row cells : funderSheet) {
+            if (cells.getRowNum() > 0) {//skip header
+                funderNameMap.put(stringify(cells.getCell(0)),
+                        stringify(cells.getCell(1)));
             }
-            grantSheet = workbook.getSheetAt(0);
         }
 
-        List<Map<String, String>> resultSet = new ArrayList<>();
-
         if (mode.equals("funder")) {
+            workbook.close();
 
+            List<Map<String, String>> resultSet = new ArrayList<>();
             for (Object localKey : funderNameMap.keySet()) {
+                statistics.addRowRead();
                 LOG.debug("Processing funder object with localKey {}", localKey);
                 Map<String, String> rowMap = new HashMap<>();
                 rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, localKey.toString());
@@ -104,53 +106,84 @@ public class HarvardPilotConnector implements GrantConnector {
                 }
                 resultSet.add(rowMap);
             }
+            return RecordCursor.of(resultSet);
 
         } else {//"grant" mode is default
-            for (Row cells : grantSheet) {
-                if (cells.getRowNum() > 0) {//skip header
-
-                    //we only process rows with a Harvard ID
-                    String employeeId = stringify(cells.getCell(6));
-                    //String email = stringify(cells.getCell(7));
-
-                    if(employeeId != null && employeeId.length()>0)  {
-                        Map<String, String> rowMap = new HashMap<>();
-
-                        rowMap.put(C_GRANT_LOCAL_KEY, stringify(cells.getCell(0))); //A: Harvard grant ID
-                        rowMap.put(C_GRANT_AWARD_NUMBER, stringify(cells.getCell(1))); //B: Funder grant ID
-                        rowMap.put(C_GRANT_PROJECT_NAME, stringify(cells.getCell(2))); //C: Grant Name
-                        rowMap.put(C_USER_FIRST_NAME, stringify(cells.getCell(3))); //D: PI First Name
-                        rowMap.put(C_USER_LAST_NAME, stringify(cells.getCell(4))); //E: PI Last Name
-
-                        String role = stringify(cells.getCell(5)); //F: Role
-                        rowMap.put(C_ABBREVIATED_ROLE, sortRole(role));
-
-                        rowMap.put(C_USER_EMPLOYEE_ID, stringify(cells.getCell(6))); //row G used to be Harvard id, we hack it for now
-                        rowMap.put(C_USER_EMAIL, stringify(cells.getCell(7))); //H: PI Email
-
-                        String funderLocalKey = stringify(cells.getCell(8)); //I: Funder ID
-                        if (funderLocalKey != null) {
-                            rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, funderLocalKey);
-                            rowMap.put(C_DIRECT_FUNDER_NAME, funderNameMap.get(funderLocalKey));
-                            rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, funderLocalKey);
-                            rowMap.put(C_PRIMARY_FUNDER_NAME, funderNameMap.get(funderLocalKey));
-                            if (funderPolicyProperties.stringPropertyNames().contains(funderLocalKey)) {
-                                rowMap.put(C_DIRECT_FUNDER_POLICY, funderPolicyProperties.getProperty(funderLocalKey));
-                                rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(funderLocalKey));
+            Iterator<Row> rows = workbook.getSheetAt(0).iterator();
+            return new AbstractRecordCursor() {
+                @Override
+                protected Map<String, String> fetchNext() {
+                    while (rows.hasNext()) {
+                        Row cells = rows.next();
+                        if (cells.getRowNum() > 0) {//skip header
+                            statistics.addRowRead();
+                            Map<String, String> rowMap = processGrantRow(cells, funderNameMap);
+                            if (rowMap != null) {
+                                return rowMap;
                             }
                         }
+                    }
+                    return null;
+                }
 
-                        rowMap.put(C_GRANT_START_DATE, stringifyDate(cells.getCell(9))); //J: Grant Start Date
-                        rowMap.put(C_GRANT_END_DATE, stringifyDate(cells.getCell(10))); //K: Grant End Date
-                        resultSet.add(rowMap);
-                        LOG.debug("Added row to result set: {}", rowMap);
+                @Override
+                protected void release() {
+                    try {
+                        workbook.close();
+                    } catch (IOException e) {
+                        LOG.warn("Error closing data file {}", xlsxDataFilePath, e);
                     }
                 }
-            }
+            };
         }
 
-        return resultSet;
+    }
+
+    /**
+     * Build a record from a row of the grant sheet
+     *
+     * @param cells the spreadsheet row
+     * @param funderNameMap funder names keyed on funder ID
+     * @return the record, or null if the row has no Harvard ID
+     */
+    private Map<String, String> processGrantRow(Row cells, Map<String, String> funderNameMap) {
+        //we only process rows with a Harvard ID
+        String employeeId = stringify(cells.getCell(6));
+        //String email = stringify(cells.getCell(7));
 
+        if (employeeId == null || employeeId.length() == 0) {
+            return null;
+        }
+        Map<String, String> rowMap = new HashMap<>();
+
+        rowMap.put(C_GRANT_LOCAL_KEY, stringify(cells.getCell(0))); //A: Harvard grant ID
+        rowMap.put(C_GRANT_AWARD_NUMBER, stringify(cells.getCell(1))); //B: Funder grant ID
+        rowMap.put(C_GRANT_PROJECT_NAME, stringify(cells.getCell(2))); //C: Grant Name
+        rowMap.put(C_USER_FIRST_NAME, stringify(cells.getCell(3))); //D: PI First Name
+        rowMap.put(C_USER_LAST_NAME, stringify(cells.getCell(4))); //E: PI Last Name
+
+        String role = stringify(cells.getCell(5)); //F: Role
+        rowMap.put(C_ABBREVIATED_ROLE, sortRole(role));
+
+        rowMap.put(C_USER_EMPLOYEE_ID, stringify(cells.getCell(6))); //row G used to be Harvard id, we hack it for now
+        rowMap.put(C_USER_EMAIL, stringify(cells.getCell(7))); //H: PI Email
+
+        String funderLocalKey = stringify(cells.getCell(8)); //I: Funder ID
+        if (funderLocalKey != null) {
+            rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, funderLocalKey);
+            rowMap.put(C_DIRECT_FUNDER_NAME, funderNameMap.get(funderLocalKey));
+            rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, funderLocalKey);
+            rowMap.put(C_PRIMARY_FUNDER_NAME, funderNameMap.get(funderLocalKey));
+            if (funderPolicyProperties.stringPropertyNames().contains(funderLocalKey)) {
+                rowMap.put(C_DIRECT_FUNDER_POLICY, funderPolicyProperties.getProperty(funderLocalKey));
+                rowMap.put(C_PRIMARY_FUNDER_POLICY, funderPolicyProperties.getProperty(funderLocalKey));
+            }
+        }
+
+        rowMap.put(C_GRANT_START_DATE, stringifyDate(cells.getCell(9))); //J: Grant Start Date
+        rowMap.put(C_GRANT_END_DATE, stringifyDate(cells.getCell(10))); //K: Grant End Date
+        LOG.debug("Added row to result set: {}", rowMap);
+        return rowMap;
     }
 
     /**
@@ -189,4 +222,8 @@ public class HarvardPilotConnector implements GrantConnector {
         return "C";
         }
 
+    public PullStatistics getStatistics() {
+        return statistics;
+    }
+
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.readString;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.writeString;
+
+/**
+ * A cache of the PASS URIs of the entities we have seen, keyed by serialized {@code Identifier} - the local key of a
+ * grant or funder, or a locator ID of a user - which persists between runs. Entities are rarely deleted from PASS,
+ * so entries do not expire; instead a URI from the cache is checked when the entity is read, and if it cannot be
+ * read, the caller invalidates it and searches for the entity again. The cache is kept in a {@link KeyedStoreFile}.
+ *
+ * @author jrm
+ */
+class IdentityCache {
+
+    private static final int MAGIC = 0x50494443; //PIDC
+    private static final int VERSION = 1;
+
+    private final KeyedStoreFile file;
+    private final String passInstance;
+    private final Map<String, String> uris = new ConcurrentHashMap<>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger invalidated = new AtomicInteger();
+    private int loaded = 0;
+
+    /**
+     * @param file the cache file, or null to keep the cache in memory only
+     * @param passInstance the base URL of the PASS instance the URIs belong to
+     */
+    IdentityCache(Path file, String passInstance) {
+        this.file = new KeyedStoreFile(file, MAGIC, VERSION, "identity cache");
+        this.passInstance = passInstance == null ? "" : passInstance;
+        this.file.load(this.passInstance, buffer -> {
+            uris.put(readString(buffer), readString(buffer));
+            loaded++;
+        }, () -> {
+            uris.clear();
+            loaded = 0;
+        });
+    }
+
+    /**
+     * @param key a serialized identifier
+     * @return the cached URI of the entity with the identifier, or null if there is none
+     */
+    URI get(String key) {
+        String uri = key == null ? null : uris.get(key);
+        if (uri == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return URI.create(uri);
+    }
+
+    /**
+     * Cache the URI of an entity
+     * @param key a serialized identifier of the entity
+     * @param uri the URI of the entity
+     */
+    void put(String key, URI uri) {
+        if (key != null && uri != null) {
+            uris.put(key, uri.toString());
+        }
+    }
+
+    /**
+     * Remove every entry for a URI which could not be read
+     * @param uri the URI
+     * @return true if there were any entries for the URI
+     */
+    boolean invalidate(URI uri) {
+        boolean removed = uris.values().removeIf(cached -> Objects.equals(cached, uri.toString()));
+        if (removed) {
+            invalidated.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Write the cache to the cache file, replacing it
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        file.save(passInstance, out -> {
+            int written = 0;
+            for (Map.Entry<String, String> entry : uris.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+                written++;
+            }
+            return written;
+        });
+    }
+
+    int size() {
+        return uris.size();
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    int getInvalidated() {
+        return invalidated.get();
+    }
+
+    String getReport() {
+        return format("Identity cache: %s entries loaded; %s hits, %s misses, %s invalidated",
+                loaded, hits.get(), misses.get(), invalidated.get());
+    }
+
+}
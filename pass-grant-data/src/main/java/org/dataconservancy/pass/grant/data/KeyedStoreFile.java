@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The file behind one of the keyed stores which are kept in COEUS_HOME between runs - the identity cache, the entity
+ * fingerprints, the grant digests and the directory cache. A file starts with a magic number and a version, then,
+ * for a store which belongs to a PASS instance, the instance; then any header fields of the store's own, a count,
+ * and the entries.
+ *
+ * A file is memory-mapped to load it, and is ignored if it was built against another PASS instance, or cannot be
+ * read. It is saved by writing a temporary file which then replaces it, so it is never left half written. If there
+ * is no file, the store lives in memory only, and loading and saving do nothing.
+ *
+ * @author jrm
+ */
+final class KeyedStoreFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedStoreFile.class);
+
+    /**
+     * Reads part of a store file
+     */
+    interface BufferReader {
+        void read(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Writes part of a store file
+     */
+    interface StreamWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the entries of a store file
+     */
+    interface EntryWriter {
+        /**
+         * @param out the file
+         * @return the number of entries written
+         */
+        int write(DataOutputStream out) throws IOException;
+    }
+
+    private static final StreamWriter NO_HEADER = out -> { };
+
+    private final Path file;
+    private final int magic;
+    private final int version;
+    private final String name;
+
+    /**
+     * @param file the file, or null to keep the store in memory only
+     * @param magic the magic number of the store
+     * @param version the version of the store's format
+     * @param name the name of the store, for messages
+     */
+    KeyedStoreFile(Path file, int magic, int version, String name) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        this.name = name;
+    }
+
+    /**
+     * Load the file, if there is one, reading each entry. A file which cannot be read is ignored, and the reset is
+     * run to drop whatever was read from it before it failed.
+     * @param passInstance the PASS instance of the store, or null if the store does not belong to one
+     * @param header reads the header fields of the store's own
+     * @param entry reads one entry
+     * @param reset empties the store
+     */
+    void load(String passInstance, BufferReader header, BufferReader entry, Runnable reset) {
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        try {
+            int count = read(passInstance, header, entry);
+            if (count >= 0) {
+                LOG.info("Loaded {} entries from {} {}", count, name, file);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not load {} {}, starting with an empty store", name, file, e);
+            reset.run();
+        }
+    }
+
+    void load(String passInstance, BufferReader entry, Runnable reset) {
+        load(passInstance, buffer -> { }, entry, reset);
+    }
+
+    //the number of entries read, or -1 if the file is for another PASS instance
+    private int read(String passInstance, BufferReader header, BufferReader entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != magic || buffer.getInt() != version) {
+                throw new IOException("Not a " + name + " file of version " + version);
+            }
+            if (passInstance != null) {
+                String instance = readString(buffer);
+                if (!passInstance.equals(instance)) {
+                    LOG.info("The {} {} is for PASS instance {}, not {}; starting with an empty store", name, file,
+                            instance, passInstance);
+                    return -1;
+                }
+            }
+            header.read(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                entry.read(buffer);
+            }
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The " + name + " file is truncated", e);
+        }
+    }
+
+    /**
+     * Write the store to the file, replacing it
+     * @param passInstance the PASS instance of the store, or null if the store does not belong to one
+     * @param header writes the header fields of the store's own
+     * @param entries writes the entries
+     * @throws IOException if the file cannot be written
+     */
+    void save(String passInstance, StreamWriter header, EntryWriter entries) throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        int written;
+        try {
+            //the count is not known until the entries have been written, so it is patched in after them
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(magic);
+                out.writeInt(version);
+                if (passInstance != null) {
+                    writeString(out, passInstance);
+                }
+                header.write(out);
+                long countOffset = out.size();
+                out.writeInt(0);
+                written = entries.write(out);
+                out.flush();
+                channel.write(ByteBuffer.allocate(4).putInt(0, written), countOffset);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        LOG.info("Saved {} entries to {} {}", written, name, file);
+    }
+
+    void save(String passInstance, EntryWriter entries) throws IOException {
+        save(passInstance, NO_HEADER, entries);
+    }
+
+    //strings are written as a length followed by UTF-8 bytes; a length of -1 is null
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
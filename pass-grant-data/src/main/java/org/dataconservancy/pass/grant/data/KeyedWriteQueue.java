@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the writes of an update stage on a number of worker threads. Each write is submitted with the key of the
+ * entity it writes, and all writes for the same key go to the same worker - a lane - so they are made one after the
+ * other, in the order they were submitted. Writes for different keys run concurrently.
+ *
+ * A write which fails does not stop the others: the failure is recorded against its key, and the failures are
+ * reported by {@link #await()} once every write has finished. With a single worker the writes are made on the
+ * calling thread, as they were before there were workers.
+ *
+ * A queue may be given a capacity, the number of writes which may be waiting or running at once; beyond that,
+ * {@link #submit(String, Runnable)} blocks until a write finishes, so that a caller reading its input as it goes does
+ * not get ahead of the writers by more than that.
+ *
+ * A queue is used for one stage: once {@link #await()} has been called, no more writes may be submitted.
+ *
+ * @author jrm
+ */
+class KeyedWriteQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedWriteQueue.class);
+
+    private final ExecutorService[] lanes;
+    private final ConcurrentLinkedQueue<Map.Entry<String, RuntimeException>> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger submitted = new AtomicInteger();
+    //the writes which may still be waiting or running, or null if there is no limit
+    private final Semaphore capacity;
+
+    /**
+     * @param workers the number of workers; values below 1 are taken as 1
+     * @param name the name of the stage, used to name the worker threads
+     */
+    KeyedWriteQueue(int workers, String name) {
+        this(workers, name, 0);
+    }
+
+    /**
+     * @param workers the number of workers; values below 1 are taken as 1
+     * @param name the name of the stage, used to name the worker threads
+     * @param capacity the number of writes which may be waiting or running at once, or 0 for no limit
+     */
+    KeyedWriteQueue(int workers, String name, int capacity) {
+        if (workers <= 1) {
+            this.lanes = new ExecutorService[0];
+            this.capacity = null;
+            return;
+        }
+        this.capacity = capacity > 0 ? new Semaphore(capacity) : null;
+        this.lanes = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String threadName = "pass-" + name + "-writer-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Submit a write
+     * @param key the key of the entity written; writes with equal keys are made in submission order
+     * @param write the write
+     */
+    void submit(String key, Runnable write) {
+        submitted.incrementAndGet();
+        Runnable guarded = () -> {
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                LOG.error("Could not write entity with key {} to PASS", key, e);
+                failures.add(new AbstractMap.SimpleImmutableEntry<>(key, e));
+            } finally {
+                if (capacity != null) {
+                    capacity.release();
+                }
+            }
+        };
+        if (lanes.length == 0) {
+            guarded.run();
+        } else {
+            if (capacity != null) {
+                try {
+                    capacity.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting to submit a PASS write", e);
+                }
+            }
+            lanes[Math.floorMod(key == null ? 0 : key.hashCode(), lanes.length)].execute(guarded);
+        }
+    }
+
+    /**
+     * Wait for all submitted writes to finish
+     * @return the key and exception of each write which failed, in no particular order; empty if none failed
+     */
+    List<Map.Entry<String, RuntimeException>> await() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ExecutorService lane : lanes) {
+                while (!lane.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOG.info("Waiting for PASS writes to finish");
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for PASS writes", e);
+        }
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * @return the number of writes submitted
+     */
+    int getSubmitted() {
+        return submitted.get();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cursor which merges the records of several disjoint partitions of a pull. Each partition is opened and drained
+ * on its own thread, and records are handed to the consumer through a bounded queue, so that a slow consumer holds
+ * back the partitions rather than letting them fill the heap. Records from different partitions are interleaved in
+ * no particular order.
+ *
+ * If any partition fails, the consumer sees the failure on its next call to {@link #hasNext()}, and the remaining
+ * partitions are stopped when the cursor is closed.
+ *
+ * @author jrm
+ */
+class PartitionedRecordCursor extends AbstractRecordCursor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedRecordCursor.class);
+
+    //marks the end of a partition on the queue
+    private static final Object END_OF_PARTITION = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final ExecutorService executor;
+    private final int partitionCount;
+    private int partitionsFinished = 0;
+
+    /**
+     * Start draining the supplied partitions
+     * @param partitions a list of tasks, each opening the cursor for one partition
+     * @param queueCapacity the number of records which may be waiting for the consumer
+     * @param statistics the statistics for the pull, to which per-partition counts and timings are added
+     */
+    PartitionedRecordCursor(List<Callable<RecordCursor>> partitions, int queueCapacity, PullStatistics statistics) {
+        this.partitionCount = partitions.size();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(partitionCount, runnable -> {
+            Thread thread = new Thread(runnable, "coeus-partition-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < partitionCount; i++) {
+            int partition = i;
+            Callable<RecordCursor> opener = partitions.get(i);
+            executor.execute(() -> drain(partition, opener, statistics));
+        }
+    }
+
+    private void drain(int partition, Callable<RecordCursor> opener, PullStatistics statistics) {
+        long start = System.currentTimeMillis();
+        int rows = 0;
+        Object last = END_OF_PARTITION;
+        try (RecordCursor cursor = opener.call()) {
+            while (cursor.hasNext()) {
+                queue.put(cursor.next());
+                rows++;
+            }
+            statistics.addPartition(partition, rows, System.currentTimeMillis() - start);
+            LOG.debug("Partition {} finished: {} records in {} ms", partition, rows, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return; //the cursor has been closed, nobody is listening
+        } catch (Exception e) {
+            last = new PartitionFailure(partition, e);
+        }
+        try {
+            queue.put(last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Map<String, String> fetchNext() {
+        while (partitionsFinished < partitionCount) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for partitioned pull", e);
+            }
+            if (item == END_OF_PARTITION) {
+                partitionsFinished++;
+            } else if (item instanceof PartitionFailure) {
+                PartitionFailure failure = (PartitionFailure) item;
+                LOG.error("Partition {} of the pull failed", failure.partition, failure.cause);
+                if (failure.cause instanceof RuntimeException) {
+                    throw (RuntimeException) failure.cause;
+                }
+                throw new RuntimeException("Partition " + failure.partition + " of the pull failed", failure.cause);
+            } else {
+                return (Map<String, String>) item;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void release() {
+        executor.shutdownNow();
+    }
+
+    private static class PartitionFailure {
+        private final int partition;
+        private final Exception cause;
+
+        PartitionFailure(int partition, Exception cause) {
+            this.partition = partition;
+            this.cause = cause;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.dataconservancy.pass.model.PassEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Resolves the PASS URIs of many entities at once, by the value of an attribute such as a local key or a locator ID.
+ * The PASS client can only look up one value per search, so we query the PASS index directly, with the same kind of
+ * query string the client uses, but with the values of a whole chunk OR-ed together.
+ *
+ * The answer for each value is the URI of the one entity which has it, or null if no entity has it. A value which
+ * more than one entity has is left out of the answer, as is every value of a chunk whose results were cut short, so
+ * that the caller falls back to a search for that value alone and gets the usual handling.
+ *
+ * @author jrm
+ */
+class PassIdentityResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PassIdentityResolver.class);
+
+    static final String PASS_ELASTICSEARCH_URL = "pass.elasticsearch.url";
+    private static final String DEFAULT_PASS_ELASTICSEARCH_URL = "http://localhost:9200/pass";
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final String ID_FIELD = "@id";
+
+    //the index allows 1024 clauses in a query by default
+    static final int DEFAULT_CHUNK_SIZE = 200;
+
+    private final String searchUrl;
+    private final int chunkSize;
+    private final OkHttpClient client;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param indexUrl the URL of the PASS index
+     * @param chunkSize the number of values looked up in each query
+     */
+    PassIdentityResolver(String indexUrl, int chunkSize) {
+        this.searchUrl = (indexUrl.endsWith("/") ? indexUrl : indexUrl + "/") + "_search";
+        this.chunkSize = chunkSize;
+        this.client = new OkHttpClient.Builder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * A resolver for the index the PASS client is configured to use. If several index URLs are configured, the
+     * first is used.
+     * @return the resolver
+     */
+    static PassIdentityResolver fromSystemProperties() {
+        String indexUrl = System.getProperty(PASS_ELASTICSEARCH_URL, DEFAULT_PASS_ELASTICSEARCH_URL).split(",")[0];
+        return new PassIdentityResolver(indexUrl.trim(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Resolve the URIs of the entities of a type which have the given values of an attribute
+     * @param type the type of entity
+     * @param attribute the attribute, for example {@code localKey} or {@code locatorIds}
+     * @param values the values to resolve
+     * @param <T> the type of entity
+     * @return a map from each resolved value to the URI of the entity which has it, or to null if no entity has it
+     * @throws IOException if the index cannot be queried
+     */
+    <T extends PassEntity> Map<String, URI> resolve(Class<T> type, String attribute, Collection<String> values)
+            throws IOException {
+        Map<String, URI> resolved = new HashMap<>();
+        List<String> distinct = new ArrayList<>(new HashSet<>(values));
+        distinct.remove(null);
+        int queries = 0;
+        for (int i = 0; i < distinct.size(); i += chunkSize) {
+            List<String> chunk = distinct.subList(i, Math.min(i + chunkSize, distinct.size()));
+            resolveChunk(type.getSimpleName(), attribute, chunk, resolved);
+            queries++;
+        }
+        LOG.info("Resolved {} of {} {} {} values in {} queries", resolved.size(), distinct.size(),
+                type.getSimpleName(), attribute, queries);
+        return resolved;
+    }
+
+    private void resolveChunk(String type, String attribute, List<String> chunk, Map<String, URI> resolved)
+            throws IOException {
+        StringBuilder query = new StringBuilder(format("@type:%s AND %s:(", type, attribute));
+        for (int i = 0; i < chunk.size(); i++) {
+            query.append(i == 0 ? "" : " OR ").append('"').append(escape(chunk.get(i))).append('"');
+        }
+        query.append(')');
+
+        //an entity with several of the values is returned once, so there can be no more hits than values,
+        //unless a value is ambiguous. we ask for one more than that so that we can tell.
+        ObjectNode body = mapper.createObjectNode();
+        body.put("size", chunk.size() + 1);
+        body.putArray("_source").add(ID_FIELD).add(attribute);
+        ObjectNode queryString = body.putObject("query").putObject("query_string");
+        queryString.put("query", query.toString());
+        queryString.put("default_operator", "AND");
+
+        Request request = new Request.Builder()
+                .url(searchUrl)
+                .post(RequestBody.create(JSON, mapper.writeValueAsBytes(body)))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException(format("Query of PASS index failed with status %s", response.code()));
+            }
+            try (InputStream in = response.body().byteStream()) {
+                readHits(mapper.readTree(in), attribute, chunk, resolved);
+            }
+        }
+    }
+
+    private void readHits(JsonNode result, String attribute, List<String> chunk, Map<String, URI> resolved) {
+        JsonNode hits = result.path("hits");
+        JsonNode total = hits.path("total");
+        long totalHits = total.isObject() ? total.path("value").asLong() : total.asLong();
+
+        Set<String> wanted = new HashSet<>(chunk);
+        Map<String, URI> found = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        int returned = 0;
+        for (JsonNode hit : hits.path("hits")) {
+            returned++;
+            JsonNode source = hit.path("_source");
+            URI uri = URI.create(source.path(ID_FIELD).asText());
+            JsonNode values = source.path(attribute);
+            for (JsonNode value : values.isArray() ? values : Collections.singletonList(values)) {
+                String text = value.asText();
+                if (wanted.contains(text) && found.put(text, uri) != null) {
+                    ambiguous.add(text);
+                }
+            }
+        }
+
+        if (returned < totalHits) {
+            //we did not see every hit, so we cannot say a value is absent, or that one we saw is unambiguous
+            LOG.warn("Query of PASS index returned {} of {} hits, resolving {} values one at a time", returned,
+                    totalHits, chunk.size());
+            return;
+        }
+        for (String value : chunk) {
+            if (!ambiguous.contains(value)) {
+                resolved.put(value, found.get(value));
+            }
+        }
+    }
+
+    //values are quoted in the query, so only quotes and backslashes need escaping
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}
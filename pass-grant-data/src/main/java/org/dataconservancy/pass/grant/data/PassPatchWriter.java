@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.Credentials;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.dataconservancy.pass.client.PassJsonAdapter;
+import org.dataconservancy.pass.client.adapter.PassJsonAdapterBasic;
+import org.dataconservancy.pass.client.fedora.FedoraConfig;
+import org.dataconservancy.pass.model.PassEntity;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Writes updates to PASS as JSON merge patches which carry only the fields which changed. The PASS client sends the
+ * whole of an entity for each update, although the loader usually changes only a field or two, such as the award
+ * status or end date of a grant; a patch of just those fields is much smaller, and leaves less for the repository and
+ * its indexer to do.
+ *
+ * A patch is built from the JSON-LD the PASS client would send, so the fields are written just as the client would
+ * write them; a field which was cleared is sent as null, which removes it. The patch is sent with the version tag of
+ * the entity as it was read, so if the entity was changed by anything else since it was read, the patch is refused
+ * rather than overwriting that change.
+ *
+ * @author jrm
+ */
+class PassPatchWriter {
+
+    /**
+     * The system property which turns patches off, so that each update sends the whole entity through the PASS
+     * client, as it used to. Patches are on by default.
+     */
+    static final String PASS_UPDATER_PATCHES = "pass.updater.patches";
+
+    private static final MediaType MERGE_PATCH = MediaType.parse("application/merge-patch+json; charset=utf-8");
+    //the fields which identify the entity and give the meaning of the others; these are in every patch
+    private static final String[] HEADER_FIELDS = {"@id", "@context"};
+
+    private final OkHttpClient client;
+    private final PassJsonAdapter adapter;
+    private final String credentials;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param user the PASS repository user
+     * @param password the PASS repository password
+     * @param adapter the adapter which serializes entities as the PASS client does
+     */
+    PassPatchWriter(String user, String password, PassJsonAdapter adapter) {
+        this.adapter = adapter;
+        this.credentials = Credentials.basic(user, password);
+        this.client = new OkHttpClient.Builder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * A writer for the PASS repository the PASS client is configured to use, or null if patches are turned off
+     * @return the writer, or null
+     */
+    static PassPatchWriter fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty(PASS_UPDATER_PATCHES, "true"))) {
+            return null;
+        }
+        return new PassPatchWriter(FedoraConfig.getUserName(), FedoraConfig.getPassword(), new PassJsonAdapterBasic());
+    }
+
+    /**
+     * Send the changed fields of an entity to PASS
+     * @param uri the URI of the entity
+     * @param entity the entity, as updated
+     * @param fields the names of the fields which changed
+     * @param statistics the statistics the size of the patch is added to
+     * @throws IOException if the patch cannot be sent, or is refused
+     */
+    void patch(URI uri, PassEntity entity, Collection<String> fields, PassUpdateStatistics statistics)
+            throws IOException {
+        byte[] whole = adapter.toJson(entity, true);
+        byte[] patch = patchBody(whole, fields);
+
+        Request.Builder request = new Request.Builder()
+                .url(uri.toString())
+                .header("Authorization", credentials)
+                .header("Prefer", "handling=lenient; received=\"minimal\"")
+                .patch(RequestBody.create(MERGE_PATCH, patch));
+        if (entity.getVersionTag() != null) {
+            request.header("If-Match", entity.getVersionTag());
+        }
+        try (Response response = client.newCall(request.build()).execute()) {
+            if (response.code() == 412) {
+                throw new IOException(format("Failed to update %s - it has changed since it was read", uri));
+            } else if (!response.isSuccessful()) {
+                throw new IOException(format("Failed to update %s - PASS answered %s %s", uri, response.code(),
+                        response.message()));
+            }
+        }
+        statistics.addPatch(patch.length, whole.length);
+    }
+
+    /**
+     * Cut down the JSON-LD of an entity to a merge patch of the given fields
+     * @param whole the JSON-LD of the whole entity
+     * @param fields the names of the fields to patch
+     * @return the patch
+     * @throws IOException if the JSON-LD cannot be read
+     */
+    byte[] patchBody(byte[] whole, Collection<String> fields) throws IOException {
+        JsonNode entity = mapper.readTree(whole);
+        ObjectNode patch = mapper.createObjectNode();
+        for (String field : HEADER_FIELDS) {
+            if (entity.has(field)) {
+                patch.set(field, entity.get(field));
+            }
+        }
+        for (String field : fields) {
+            //the client leaves out empty fields, so a field which is missing has been cleared
+            patch.set(field, entity.has(field) ? entity.get(field) : patch.nullNode());
+        }
+        return mapper.writeValueAsBytes(patch);
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown at the end of an update in which some entities could not be written to PASS. The other entities of the
+ * update have been written. Since the update is incomplete, the caller should not record its timestamp as the
+ * starting point for the next update.
+ *
+ * @author jrm
+ */
+public class PassUpdateException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> failedKeys;
+
+    PassUpdateException(String message, List<String> failedKeys, Throwable cause) {
+        super(message, cause);
+        this.failedKeys = Collections.unmodifiableList(failedKeys);
+    }
+
+    /**
+     * @return the keys of the entities which could not be written
+     */
+    public List<String> getFailedKeys() {
+        return failedKeys;
+    }
+
+}
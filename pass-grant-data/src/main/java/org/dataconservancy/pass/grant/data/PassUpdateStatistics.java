@@ -16,10 +16,14 @@
 
 package org.dataconservancy.pass.grant.data;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static java.lang.String.format;
 
 /**
- * A utility class to collect and disseminate statistics related to an update
+ * A utility class to collect and disseminate statistics related to an update. Entities may be written to PASS by
+ * several threads, so all access is synchronized.
  */
 public class PassUpdateStatistics {
 
@@ -29,18 +33,29 @@ public class PassUpdateStatistics {
     private int grantsCreated = 0;
     private int fundersCreated = 0;
     private int usersCreated = 0;
+    private int grantsSkipped = 0;
+    private int fundersSkipped = 0;
+    private int usersSkipped = 0;
+    private int grantsUnchanged = 0;
+    private long unchangedMillisSaved = 0;
+    private int resumed = 0;
+    private int sortRuns = 0;
+    private int patchesSent = 0;
+    private long patchBytes = 0;
+    private long wholeBytes = 0;
     private int pisAdded = 0;
     private int coPisAdded = 0;
     private String latestUpdateString = "";
     private String report ="";
+    private final Map<String, String> phases = new LinkedHashMap<>();
 
     private String type;
 
-    String getReport() {
+    synchronized String getReport() {
         return report;
     }
 
-    void setReport(int resultSetSize, int size) {
+    synchronized void setReport(int resultSetSize, int size) {
         StringBuilder sb = new StringBuilder();
 
         switch (type) {
@@ -49,7 +64,13 @@ public class PassUpdateStatistics {
                         resultSetSize, latestUpdateString));
                 sb.append("\n");
                 sb.append(format("%s Pis and %s Co-Pis were processed on %s grants", pisAdded, coPisAdded, size));
-                sb.append("\n\n");
+                sb.append("\n");
+                if (grantsUnchanged > 0) {
+                    sb.append(format("%s grants were unchanged in COEUS since they were last loaded, and were skipped, " +
+                            "saving about %s ms", grantsUnchanged, unchangedMillisSaved));
+                    sb.append("\n");
+                }
+                sb.append("\n");
                 sb.append("Pass Activity");
                 sb.append("\n\n");
                 sb.append(format("%s Grants were created; %s Grants were updated", grantsCreated, grantsUpdated));
@@ -58,6 +79,18 @@ public class PassUpdateStatistics {
                 sb.append("\n");
                 sb.append(format("%s Funders were created; %s Funders were updated", fundersCreated, fundersUpdated));
                 sb.append("\n");
+                if (grantsSkipped + usersSkipped + fundersSkipped > 0) {
+                    sb.append(format("%s Grants, %s Users and %s Funders were unchanged since they were last written, " +
+                            "and were not read", grantsSkipped, usersSkipped, fundersSkipped));
+                    sb.append("\n");
+                }
+                if (!phases.isEmpty()) {
+                    sb.append("\n");
+                    for (Map.Entry<String, String> phase : phases.entrySet()) {
+                        sb.append(format("Phase %s: %s", phase.getKey(), phase.getValue()));
+                        sb.append("\n");
+                    }
+                }
                 break;
             case "user":
                 sb.append(format("%s user records processed; the most recent update in this batch has timestamp %s",
@@ -67,6 +100,11 @@ public class PassUpdateStatistics {
                 sb.append("\n\n");
                 sb.append(format("%s Users were created; %s Users were updated", usersCreated, usersUpdated));
                 sb.append("\n");
+                if (usersSkipped > 0) {
+                    sb.append(format("%s Users were unchanged since they were last written, and were not read",
+                            usersSkipped));
+                    sb.append("\n");
+                }
                 break;
             case "funder":
                 sb.append(format("%s funder records processed",
@@ -74,97 +112,223 @@ public class PassUpdateStatistics {
                 sb.append("\n\n");
                 sb.append(format("%s Funders were created; %s Funders were updated", fundersCreated, fundersUpdated));
                 sb.append("\n");
+                if (fundersSkipped > 0) {
+                    sb.append(format("%s Funders were unchanged since they were last written, and were not read",
+                            fundersSkipped));
+                    sb.append("\n");
+                }
                 break;
         }
+        if (sortRuns > 0) {
+            sb.append(format("The grant rows were sorted in %s runs spilled to disk", sortRuns));
+            sb.append("\n");
+        }
+        if (resumed > 0) {
+            sb.append(format("%s records were written by an earlier update which did not finish, and were skipped",
+                    resumed));
+            sb.append("\n");
+        }
+        if (patchesSent > 0) {
+            sb.append(format("%s updates were sent as patches of %s bytes in all, where the whole records would " +
+                    "have been %s bytes", patchesSent, patchBytes, wholeBytes));
+            sb.append("\n");
+        }
         this.report = sb.toString();
     }
 
-    void reset() {
+    synchronized void reset() {
         grantsUpdated = 0;
         fundersUpdated = 0;
         usersUpdated = 0;
         grantsCreated = 0;
         fundersCreated = 0;
         usersCreated = 0;
+        grantsSkipped = 0;
+        fundersSkipped = 0;
+        usersSkipped = 0;
+        grantsUnchanged = 0;
+        unchangedMillisSaved = 0;
+        resumed = 0;
+        sortRuns = 0;
+        patchesSent = 0;
+        patchBytes = 0;
+        wholeBytes = 0;
         pisAdded = 0;
         coPisAdded = 0;
         latestUpdateString = "";
         report ="";
+        phases.clear();
+    }
+
+    /**
+     * Record how long a phase of the update took
+     * @param phase the name of the phase
+     * @param count the number of things the phase handled
+     * @param things what the phase handled
+     * @param millis the time the phase took
+     */
+    synchronized void addPhase(String phase, int count, String things, long millis) {
+        phases.put(phase, format("%s %s in %s ms", count, things, millis));
     }
 
-    public int getGrantsUpdated() {
+    public synchronized Map<String, String> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    public synchronized int getGrantsUpdated() {
         return grantsUpdated;
     }
 
-    void addGrantsUpdated() {
+    synchronized void addGrantsUpdated() {
         grantsUpdated++;
     }
 
-    public int getFundersUpdated() {
+    public synchronized int getFundersUpdated() {
         return fundersUpdated;
     }
 
-    void addFundersUpdated() {
+    synchronized void addFundersUpdated() {
         fundersUpdated++;
     }
 
-    public int getUsersUpdated() {
+    public synchronized int getUsersUpdated() {
         return usersUpdated;
     }
 
-    void addUsersUpdated() {
+    synchronized void addUsersUpdated() {
         usersUpdated++;
     }
 
-    public int getGrantsCreated() {
+    public synchronized int getGrantsCreated() {
         return grantsCreated;
     }
 
-    void addGrantsCreated() {
+    synchronized void addGrantsCreated() {
         grantsCreated++;
     }
 
-    public int getFundersCreated() {
+    public synchronized int getFundersCreated() {
         return fundersCreated;
     }
 
-    void addFundersCreated(){
+    synchronized void addFundersCreated(){
         fundersCreated++;
     }
 
-    public int getUsersCreated() {
+    public synchronized int getUsersCreated() {
         return usersCreated;
     }
 
-    void addUsersCreated(){
+    synchronized void addUsersCreated(){
         usersCreated++;
     }
 
-    public int getPisAdded() {
+    public synchronized int getGrantsSkipped() {
+        return grantsSkipped;
+    }
+
+    synchronized void addGrantsSkipped() {
+        grantsSkipped++;
+    }
+
+    public synchronized int getFundersSkipped() {
+        return fundersSkipped;
+    }
+
+    synchronized void addFundersSkipped() {
+        fundersSkipped++;
+    }
+
+    public synchronized int getUsersSkipped() {
+        return usersSkipped;
+    }
+
+    synchronized void addUsersSkipped() {
+        usersSkipped++;
+    }
+
+    public synchronized int getGrantsUnchanged() {
+        return grantsUnchanged;
+    }
+
+    public synchronized long getUnchangedMillisSaved() {
+        return unchangedMillisSaved;
+    }
+
+    /**
+     * Record the grants skipped because their rows had not changed since they were last loaded
+     * @param grants the number of grants skipped
+     * @param millisSaved an estimate of the time it would have taken to load them
+     */
+    synchronized void setGrantsUnchanged(int grants, long millisSaved) {
+        grantsUnchanged = grants;
+        unchangedMillisSaved = millisSaved;
+    }
+
+    public synchronized int getSortRuns() {
+        return sortRuns;
+    }
+
+    synchronized void setSortRuns(int sortRuns) {
+        this.sortRuns = sortRuns;
+    }
+
+    public synchronized int getResumed() {
+        return resumed;
+    }
+
+    synchronized void addResumed() {
+        resumed++;
+    }
+
+    public synchronized int getPatchesSent() {
+        return patchesSent;
+    }
+
+    public synchronized long getPatchBytes() {
+        return patchBytes;
+    }
+
+    public synchronized long getWholeBytes() {
+        return wholeBytes;
+    }
+
+    /**
+     * Record an update sent as a patch of the fields which changed
+     * @param bytes the size of the patch
+     * @param whole the size of the whole record, which would have been sent without the patch
+     */
+    synchronized void addPatch(long bytes, long whole) {
+        patchesSent++;
+        patchBytes += bytes;
+        wholeBytes += whole;
+    }
+
+    public synchronized int getPisAdded() {
         return pisAdded;
     }
 
-    void addPi() {
+    synchronized void addPi() {
         pisAdded++;
     }
 
-    public int getCoPisAdded() {
+    public synchronized int getCoPisAdded() {
         return coPisAdded;
     }
 
-    void addCoPi() {
+    synchronized void addCoPi() {
         coPisAdded++;
     }
 
-    public String getLatestUpdateString() {
+    public synchronized String getLatestUpdateString() {
         return latestUpdateString;
     }
 
-    void setLatestUpdateString(String latestUpdateString) {
+    synchronized void setLatestUpdateString(String latestUpdateString) {
         this.latestUpdateString = latestUpdateString;
     }
 
-    void setType(String type) {
+    synchronized void setType(String type) {
         this.type = type;
     }
 
@@ -19,11 +19,10 @@ import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.model.Grant;
 
 import java.net.URI;
-import java.util.Collection;
 import java.util.Map;
 
 public interface PassUpdater {
-    void updatePass(Collection<Map<String, String>> results, String mode);
+    void updatePass(Iterable<Map<String, String>> results, String mode);
 
     String getLatestUpdate();
 
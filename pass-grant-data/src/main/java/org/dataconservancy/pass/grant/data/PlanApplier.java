@@ -0,0 +1,401 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.client.PassClientFactory;
+import org.dataconservancy.pass.model.PassEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static org.dataconservancy.pass.grant.data.DefaultPassUpdater.FINGERPRINTS_FILE_NAME;
+import static org.dataconservancy.pass.grant.data.DefaultPassUpdater.GRANT_DIGESTS_FILE_NAME;
+import static org.dataconservancy.pass.grant.data.DefaultPassUpdater.IDENTITY_CACHE_FILE_NAME;
+
+/**
+ * Applies a change plan written by a {@link DefaultPassUpdater} in plan mode to PASS.
+ *
+ * The operations are applied in phases - funders, then users, then grants - since grants refer to funders and users
+ * which may be created by the plan. Within a phase, the operations are made by the parallel workers, as many as are
+ * given by {@value DefaultPassUpdater#PASS_UPDATER_WORKERS}, and the operations on any one entity are made in the
+ * order they were planned. If an operation fails, the phase is finished, and the plan fails before the next phase.
+ *
+ * An update reads the entity as it is in PASS at the time, sets the fields which the plan changes, and writes it, so
+ * the fields the plan does not change are left as they are.
+ *
+ * Each operation made is recorded in a progress file next to the plan, along with the URI of any entity it created.
+ * If a plan fails part way through, applying it again resumes it: the operations already made are skipped, and the
+ * entities they created are used in place of their placeholders. The progress file begins with the id of the plan,
+ * and one left by another plan written to the same file is ignored. It is deleted once the plan has been applied.
+ *
+ * Once every operation has been made, the records of the plan are saved to the identity cache, the entity
+ * fingerprints and the grant digests in COEUS_HOME, with the placeholders replaced, so that the next update skips
+ * what the plan has written as it would had the update written it.
+ *
+ * @author jrm
+ */
+public class PlanApplier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PlanApplier.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String[] PHASES = {"Funder", "User", "Grant"};
+    private static final String PLAN_ID = "plan\t";
+
+    private final PassClient passClient;
+    private final Path planFile;
+    private final Path progressFile;
+    //sends updates as patches of the fields the plan changes. if null, updates go through the PASS client
+    private PassPatchWriter patchWriter;
+    private final PassUpdateStatistics patchStatistics = new PassUpdateStatistics();
+    //the folder of the stores the records of the plan are saved to. if null, they are not saved
+    private Path storeDirectory;
+
+    //the URIs of the entities the plan has created, by placeholder
+    private final Map<String, URI> created = new ConcurrentHashMap<>();
+    private final AtomicInteger creates = new AtomicInteger();
+    private final AtomicInteger updates = new AtomicInteger();
+    private String planId;
+    private String mode;
+    private String latestUpdate;
+    private String passInstance;
+    private String storeSuffix;
+    private List<JsonNode> ops;
+    private final List<JsonNode> records = new ArrayList<>();
+    private Set<Integer> done;
+    private int operations;
+    private int alreadyApplied;
+
+    /**
+     * @param planFile the plan to apply
+     */
+    public PlanApplier(Path planFile) {
+        this(PassClientFactory.getPassClient(), planFile);
+        this.patchWriter = PassPatchWriter.fromSystemProperties();
+    }
+
+    //used in unit testing for injecting a mock client
+    PlanApplier(PassClient passClient, Path planFile) {
+        this.passClient = passClient;
+        this.planFile = planFile;
+        this.progressFile = ChangePlan.progressFile(planFile);
+        if (System.getProperty("COEUS_HOME") != null) {
+            this.storeDirectory = Paths.get(System.getProperty("COEUS_HOME"));
+        }
+    }
+
+    /**
+     * Read the plan, and the progress of any earlier attempt to apply it, so that it can be checked before it is
+     * applied
+     * @throws IOException if the plan is incomplete, or it or its progress file cannot be read
+     */
+    public void load() throws IOException {
+        ops = read();
+        done = readProgress();
+        alreadyApplied = done.size();
+        if (alreadyApplied > 0) {
+            LOG.info("Resuming change plan {}: {} of {} operations were applied by an earlier run", planFile,
+                    alreadyApplied, operations);
+        }
+    }
+
+    /**
+     * Apply the plan, resuming it if an earlier attempt did not finish. The plan is loaded first if it has not been.
+     * @throws IOException if the plan is incomplete or cannot be read, or the progress file cannot be written
+     * @throws PassUpdateException if any operation fails
+     */
+    public void apply() throws IOException {
+        if (ops == null) {
+            load();
+        }
+
+        boolean started = Files.exists(progressFile);
+        try (BufferedWriter progress = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (!started) {
+                progress.write(PLAN_ID + planId);
+                progress.newLine();
+                progress.flush();
+            }
+            for (String phase : PHASES) {
+                KeyedWriteQueue writes = new KeyedWriteQueue(DefaultPassUpdater.getWorkers(),
+                        "apply-" + phase.toLowerCase());
+                for (JsonNode op : ops) {
+                    int seq = op.get("seq").asInt();
+                    if (phase.equals(op.get("type").asText()) && !done.contains(seq)) {
+                        String key = op.get("key").isNull() ? String.valueOf(seq) : op.get("key").asText();
+                        writes.submit(key, () -> record(progress, seq, execute(op)));
+                    }
+                }
+                DefaultPassUpdater.checkWrites(writes, phase.toLowerCase());
+            }
+        }
+        saveRecords();
+        Files.delete(progressFile);
+        LOG.info(getReport());
+    }
+
+    private URI execute(JsonNode op) {
+        String type = op.get("type").asText();
+        if ("create".equals(op.get("op").asText())) {
+            PassEntity entity = EntityFields.newEntity(type);
+            setFields(entity, op.get("fields"));
+            URI uri = passClient.createResource(entity);
+            created.put(op.get("ref").asText(), uri);
+            creates.incrementAndGet();
+            return uri;
+        }
+        URI uri = resolve(op.get("uri").asText());
+        PassEntity stored = passClient.readResource(uri, EntityFields.typeOf(type));
+        if (stored == null) {
+            throw new RuntimeException(format("Could not read %s object with URI %s", type, uri));
+        }
+        setFields(stored, op.get("fields"));
+        if (patchWriter != null) {
+            List<String> fields = new ArrayList<>();
+            op.get("fields").fieldNames().forEachRemaining(fields::add);
+            try {
+                patchWriter.patch(uri, stored, fields, patchStatistics);
+            } catch (IOException e) {
+                throw new RuntimeException(format("Could not update %s object with URI %s", type, uri), e);
+            }
+        } else {
+            passClient.updateResource(stored);
+        }
+        updates.incrementAndGet();
+        return uri;
+    }
+
+    private void setFields(PassEntity entity, JsonNode fields) {
+        Iterator<Map.Entry<String, JsonNode>> iterator = fields.fields();
+        while (iterator.hasNext()) {
+            Map.Entry<String, JsonNode> field = iterator.next();
+            EntityFields.set(entity, field.getKey(), resolve(field.getValue()));
+        }
+    }
+
+    //replace the placeholders in a value with the URIs of the entities created for them
+    private JsonNode resolve(JsonNode value) {
+        if (value.isTextual() && value.asText().startsWith(ChangePlan.PLACEHOLDER)) {
+            return TextNode.valueOf(resolve(value.asText()).toString());
+        } else if (value.isArray()) {
+            ArrayNode resolved = JsonNodeFactory.instance.arrayNode();
+            for (JsonNode element : value) {
+                resolved.add(resolve(element));
+            }
+            return resolved;
+        }
+        return value;
+    }
+
+    private URI resolve(String uri) {
+        if (!uri.startsWith(ChangePlan.PLACEHOLDER)) {
+            return URI.create(uri);
+        }
+        URI resolved = created.get(uri);
+        if (resolved == null) {
+            throw new IllegalStateException(format("Plan refers to %s, which has not been created", uri));
+        }
+        return resolved;
+    }
+
+    /**
+     * Save the records of the plan to the stores, now that what they describe has been written
+     */
+    private void saveRecords() {
+        if (storeDirectory == null) {
+            return;
+        }
+        IdentityCache identityCache = DefaultPassUpdater.sharedStore(IdentityCache.class,
+                storeDirectory.resolve(IDENTITY_CACHE_FILE_NAME + storeSuffix), passInstance, IdentityCache::new);
+        EntityFingerprints fingerprints = DefaultPassUpdater.sharedStore(EntityFingerprints.class,
+                storeDirectory.resolve(FINGERPRINTS_FILE_NAME + storeSuffix), passInstance, EntityFingerprints::new);
+        GrantDigests grantDigests = DefaultPassUpdater.sharedStore(GrantDigests.class,
+                storeDirectory.resolve(GRANT_DIGESTS_FILE_NAME + storeSuffix), passInstance, GrantDigests::new);
+        for (JsonNode record : records) {
+            String key = record.get("key").asText();
+            switch (record.get("record").asText()) {
+                case "identity":
+                    identityCache.put(key, resolve(record.get("uri").asText()));
+                    break;
+                case "fingerprint":
+                    fingerprints.put(resolve(key), record.get("value").asLong());
+                    break;
+                case "digest":
+                    grantDigests.put(key, record.get("value").asLong());
+                    break;
+            }
+        }
+        try {
+            identityCache.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the identity cache", e);
+        }
+        try {
+            fingerprints.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the entity fingerprints", e);
+        }
+        try {
+            grantDigests.save();
+        } catch (IOException e) {
+            LOG.warn("Could not save the grant digests", e);
+        }
+    }
+
+    //each operation is flushed as soon as it is made, so that a failed run can be resumed from it
+    private void record(BufferedWriter progress, int seq, URI uri) {
+        synchronized (progress) {
+            try {
+                progress.write(seq + "\t" + uri);
+                progress.newLine();
+                progress.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write to progress file " + progressFile, e);
+            }
+        }
+    }
+
+    private List<JsonNode> read() throws IOException {
+        List<JsonNode> ops = new ArrayList<>();
+        JsonNode trailer = null;
+        records.clear();
+        try (BufferedReader reader = Files.newBufferedReader(planFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            JsonNode header = line == null ? null : MAPPER.readTree(line);
+            if (header == null || header.path("plan").asInt() != ChangePlan.VERSION) {
+                throw new IOException(format("%s is not a change plan of version %s", planFile, ChangePlan.VERSION));
+            }
+            planId = header.path("id").asText();
+            mode = header.path("mode").asText();
+            passInstance = header.path("passInstance").asText(null);
+            storeSuffix = header.path("storeSuffix").asText("");
+            String currentInstance = System.getProperty("pass.fedora.baseurl");
+            if (passInstance != null && currentInstance != null && !passInstance.equals(currentInstance)) {
+                throw new IOException(format("Change plan %s was made against PASS instance %s, not %s", planFile,
+                        passInstance, currentInstance));
+            }
+            while ((line = reader.readLine()) != null) {
+                JsonNode node = MAPPER.readTree(line);
+                if (node.path("end").asBoolean()) {
+                    trailer = node;
+                    break;
+                } else if (node.has("record")) {
+                    records.add(node);
+                } else {
+                    ops.add(node);
+                }
+            }
+        }
+        if (trailer == null || trailer.path("operations").asInt() != ops.size() ||
+                trailer.path("records").asInt() != records.size()) {
+            throw new IOException(format("Change plan %s is incomplete, and cannot be applied", planFile));
+        }
+        latestUpdate = trailer.path("latestUpdate").asText("");
+        operations = ops.size();
+        return ops;
+    }
+
+    private Set<Integer> readProgress() throws IOException {
+        Set<Integer> done = new HashSet<>();
+        if (!Files.exists(progressFile)) {
+            return done;
+        }
+        String progress = new String(Files.readAllBytes(progressFile), StandardCharsets.UTF_8);
+        //a last line without its line end was cut short when the last run stopped, and is ignored
+        String[] lines = progress.substring(0, progress.lastIndexOf('\n') + 1).split("\\R");
+        if (!lines[0].equals(PLAN_ID + planId)) {
+            LOG.warn("Progress file {} is not for change plan {}, and is ignored", progressFile, planFile);
+            Files.delete(progressFile);
+            return done;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String[] parts = lines[i].split("\t");
+            if (parts.length != 2) {
+                continue;
+            }
+            int seq = Integer.parseInt(parts[0]);
+            done.add(seq);
+            created.put(ChangePlan.PLACEHOLDER + seq, URI.create(parts[1]));
+        }
+        return done;
+    }
+
+    /**
+     * @return the mode of the update the plan was made by - grant, user or funder
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the latest update timestamp of the records the plan was made from
+     */
+    public String getLatestUpdate() {
+        return latestUpdate;
+    }
+
+    /**
+     * @return a summary of what was applied
+     */
+    public String getReport() {
+        String report = format("Applied change plan %s: %s operations, of which %s were applied by an earlier run; " +
+                "%s entities were created and %s updated", planFile, operations, alreadyApplied, creates.get(),
+                updates.get());
+        if (patchStatistics.getPatchesSent() > 0) {
+            report += format("\n%s updates were sent as patches of %s bytes in all, where the whole records would " +
+                    "have been %s bytes", patchStatistics.getPatchesSent(), patchStatistics.getPatchBytes(),
+                    patchStatistics.getWholeBytes());
+        }
+        return report;
+    }
+
+    //used in unit testing
+    void setStoreDirectory(Path storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    //used in unit testing
+    void setPatchWriter(PassPatchWriter patchWriter) {
+        this.patchWriter = patchWriter;
+    }
+
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The file the rows of a pull are saved in, to be loaded later. The rows are written as they are pulled and read as
+ * they are loaded, so neither end holds the whole pull.
+ *
+ * The file starts with a header giving the format and its version, and whether the rows which follow are compressed
+ * with gzip. Each row is its number of fields followed by the name and value of each. Most names and many values -
+ * statuses, roles, funder names - are the same from row to row, so the file carries a dictionary of strings: the first
+ * time a short string is written it is given the next number in the dictionary, and after that just its number is
+ * written. The dictionary is built the same way as the rows are read, so it is never written out as a whole, and it is
+ * bounded, so that the reader holds at most {@value #MAX_DICTIONARY} short strings. The rows end with a trailer giving
+ * their number; a file without one was cut short, and is not loaded.
+ *
+ * A pull may be split into shards by the hash of a field, such as the grant local key, so that every row of a grant
+ * is in the same shard, and the shards can be loaded by separate processes. Each shard is a pull file of its own,
+ * named after the pull file with {@code .k-of-N} added, and the pull file itself becomes a manifest: the field the
+ * rows were split on, and the name, number of rows, size and CRC-32 checksum of each shard. A shard which does not
+ * match the manifest - left over from another pull, say - is not loaded. Opening the manifest reads all of the
+ * shards, one after another.
+ *
+ * A file is written beside the one it replaces and moved into place when it is complete, so that a pull which fails
+ * leaves any earlier file as it was. The manifest is moved into place after its shards.
+ *
+ * Pull files used to be written as a list of maps with Java serialization, and these can still be read. They are
+ * read whole, as before, but only lists, maps and strings are allowed in them.
+ *
+ * @author jrm
+ */
+public final class PullFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PullFile.class);
+
+    private static final int MAGIC = 0x50505546; //PPUF
+    private static final int MANIFEST_MAGIC = 0x5050534d; //PPSM
+    static final int VERSION = 1;
+    private static final byte COMPRESSED = 1;
+    //the first two bytes of a Java serialization stream
+    private static final int LEGACY_MAGIC = 0xaced;
+    private static final String LEGACY_FILTER = "java.util.ArrayList;java.util.HashMap;java.util.LinkedHashMap;"
+            + "java.lang.String;java.lang.Object;java.util.Map$Entry;maxdepth=5;!*";
+
+    //strings longer than this are written out each time, rather than added to the dictionary
+    static final int MAX_DICTIONARY_VALUE = 64;
+    static final int MAX_DICTIONARY = 1 << 16;
+    public static final int MAX_SHARDS = 256;
+
+    //how a string is written: null, spelled out, spelled out and added to the dictionary, or from the dictionary
+    private static final int NULL = 0;
+    private static final int LITERAL = 1;
+    private static final int DEFINE = 2;
+    private static final int ENTRY = 3;
+
+    private PullFile() {
+    }
+
+    /**
+     * Start writing a pull file
+     * @param file the file, which is replaced when the writer is committed
+     * @param compressed true if the rows are to be compressed
+     * @return the writer
+     * @throws IOException if the file cannot be written
+     */
+    public static Writer create(Path file, boolean compressed) throws IOException {
+        return new Writer(file, compressed, null, 1);
+    }
+
+    /**
+     * Start writing a pull file split into shards. With one shard, this is the same as an unsharded pull file.
+     * @param file the manifest, which is replaced when the writer is committed
+     * @param compressed true if the rows are to be compressed
+     * @param keyField the field whose hash decides the shard of a row
+     * @param shards the number of shards
+     * @return the writer
+     * @throws IOException if the files cannot be written
+     */
+    public static Writer create(Path file, boolean compressed, String keyField, int shards) throws IOException {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("A pull may be split into between 1 and " + MAX_SHARDS + " shards");
+        }
+        return new Writer(file, compressed, keyField, shards);
+    }
+
+    /**
+     * Open a pull file, in this format or the older serialized one. If the file is the manifest of a sharded pull,
+     * all of its shards are read.
+     * @param file the file
+     * @return a cursor over the rows of the file, which are read as it is advanced
+     * @throws IOException if the file cannot be read, or is not a pull file
+     */
+    public static RecordCursor open(Path file) throws IOException {
+        InputStream raw = Files.newInputStream(file);
+        CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+        InputStream in = new BufferedInputStream(checked, 1 << 16);
+        try {
+            in.mark(4);
+            int magic = new DataInputStream(in).readInt();
+            in.reset();
+            if (magic >>> 16 == LEGACY_MAGIC) {
+                return readLegacy(file, in);
+            } else if (magic == MANIFEST_MAGIC) {
+                in.close();
+                return new ShardsCursor(readManifest(file));
+            }
+            return openRows(file, checked, in, null);
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException("Not a pull file: " + file, e);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open one shard of a sharded pull file. A pull file which was not sharded may be opened as its only shard.
+     * @param file the manifest
+     * @param shard the shard to be read, counting from 1
+     * @param shards the number of shards the pull was split into
+     * @return a cursor over the rows of the shard
+     * @throws IOException if the shard cannot be read, was not split this way, or does not match its manifest
+     */
+    public static RecordCursor open(Path file, int shard, int shards) throws IOException {
+        if (shard < 1 || shard > shards) {
+            throw new IllegalArgumentException("There is no shard " + shard + " of " + shards);
+        }
+        if (!isManifest(file)) {
+            if (shards == 1) {
+                return open(file);
+            }
+            throw new IOException("Pull file " + file + " was not split into shards");
+        }
+        Manifest manifest = readManifest(file);
+        if (manifest.shards.size() != shards) {
+            throw new IOException("Pull file " + file + " was split into " + manifest.shards.size() + " shards, not "
+                    + shards);
+        }
+        return openShard(manifest.shards.get(shard - 1));
+    }
+
+    /**
+     * The name of a shard of a pull file
+     * @param file the manifest
+     * @param shard the shard, counting from 1
+     * @param shards the number of shards
+     * @return the name of the shard file, in the same directory as the manifest
+     */
+    static Path shardFile(Path file, int shard, int shards) {
+        return file.resolveSibling(file.getFileName().toString() + "." + shard + "-of-" + shards);
+    }
+
+    private static boolean isManifest(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MANIFEST_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static Manifest readManifest(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MANIFEST_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a pull file manifest of version " + VERSION + ": " + file);
+            }
+            String keyField = in.readUTF();
+            int count = in.readInt();
+            if (count < 1 || count > MAX_SHARDS) {
+                throw new IOException("Pull file manifest " + file + " has " + count + " shards");
+            }
+            List<Shard> shards = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                shards.add(new Shard(file.resolveSibling(in.readUTF()), in.readLong(), in.readLong(), in.readLong()));
+            }
+            return new Manifest(keyField, shards);
+        } catch (EOFException e) {
+            throw new IOException("Pull file manifest " + file + " is incomplete", e);
+        }
+    }
+
+    private static RecordCursor openShard(Shard shard) throws IOException {
+        if (!Files.exists(shard.file) || Files.size(shard.file) != shard.bytes) {
+            throw new IOException("Pull file shard " + shard.file + " does not match its manifest");
+        }
+        CheckedInputStream checked = new CheckedInputStream(Files.newInputStream(shard.file), new CRC32());
+        InputStream in = new BufferedInputStream(checked, 1 << 16);
+        try {
+            return openRows(shard.file, checked, in, shard);
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException("Not a pull file: " + shard.file, e);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static RecordCursor openRows(Path file, CheckedInputStream checked, InputStream in, Shard shard)
+            throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+            throw new IOException("Not a pull file of version " + VERSION + ": " + file);
+        }
+        boolean compressed = (header.readByte() & COMPRESSED) != 0;
+        InputStream body = compressed ? new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16) : in;
+        return new Reader(file, new DataInputStream(body), checked, shard);
+    }
+
+    //a serialized list of maps, which is only trusted to hold lists, maps and strings
+    @SuppressWarnings("unchecked")
+    private static RecordCursor readLegacy(Path file, InputStream in) throws IOException {
+        Object rows;
+        try (ObjectInputStream objects = new ObjectInputStream(in)) {
+            objects.setObjectInputFilter(ObjectInputFilter.Config.createFilter(LEGACY_FILTER));
+            rows = objects.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a pull file: " + file, e);
+        }
+        if (!(rows instanceof List)) {
+            throw new IOException("Not a pull file: " + file);
+        }
+        for (Object row : (List<?>) rows) {
+            if (!(row instanceof Map)) {
+                throw new IOException("Not a pull file: " + file);
+            }
+            for (Map.Entry<?, ?> field : ((Map<?, ?>) row).entrySet()) {
+                if (!(field.getKey() instanceof String) || field.getValue() != null && !(field.getValue() instanceof String)) {
+                    throw new IOException("Not a pull file: " + file);
+                }
+            }
+        }
+        LOG.info("Read {} rows from serialized pull file {}", ((List<?>) rows).size(), file);
+        return RecordCursor.of((List<Map<String, String>>) rows);
+    }
+
+    private static void writeNumber(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readNumber(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the rows of a pull, to one file or split into shards. The files are only replaced once the writer is
+     * committed; a writer which is closed without being committed leaves no trace.
+     */
+    public static final class Writer implements Closeable {
+        private final Path file;
+        private final String keyField;
+        private final Output[] outputs;
+        private long rows = 0;
+        private boolean committed = false;
+
+        private Writer(Path file, boolean compressed, String keyField, int shards) throws IOException {
+            this.file = file;
+            this.keyField = keyField;
+            this.outputs = new Output[shards];
+            try {
+                for (int i = 0; i < shards; i++) {
+                    outputs[i] = new Output(shards == 1 ? file : shardFile(file, i + 1, shards), compressed);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Write a row, to the shard given by the hash of its key
+         * @param row the row
+         * @throws IOException if the row cannot be written
+         */
+        public void write(Map<String, String> row) throws IOException {
+            int shard = outputs.length == 1 ? 0 : Math.floorMod(Objects.hashCode(row.get(keyField)), outputs.length);
+            outputs[shard].write(row);
+            rows++;
+        }
+
+        /**
+         * Finish the files, and move them into place
+         * @throws IOException if the files cannot be finished or moved
+         */
+        public void commit() throws IOException {
+            for (Output output : outputs) {
+                output.finish();
+            }
+            if (outputs.length == 1) {
+                move(outputs[0].part, file);
+            } else {
+                for (Output output : outputs) {
+                    move(output.part, output.file);
+                }
+                writeManifest();
+            }
+            committed = true;
+            LOG.info("Wrote {} rows to pull file {} in {} shard(s)", rows, file, outputs.length);
+        }
+
+        /**
+         * @return the number of rows written
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @param shard the shard, counting from 1
+         * @return the number of rows written to the shard
+         */
+        public long getRows(int shard) {
+            return outputs[shard - 1].rows;
+        }
+
+        /**
+         * Close the writer, deleting the files being written unless they have been committed
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            for (Output output : outputs) {
+                if (output != null) {
+                    output.abandon();
+                }
+            }
+        }
+
+        private void writeManifest() throws IOException {
+            Path part = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString() + ".", ".part");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(part)))) {
+                    out.writeInt(MANIFEST_MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(keyField);
+                    out.writeInt(outputs.length);
+                    for (Output output : outputs) {
+                        out.writeUTF(output.file.getFileName().toString());
+                        out.writeLong(output.rows);
+                        out.writeLong(Files.size(output.file));
+                        out.writeLong(output.checksum.getChecksum().getValue());
+                    }
+                }
+                move(part, file);
+            } catch (IOException e) {
+                Files.deleteIfExists(part);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * One file being written
+     */
+    private static final class Output {
+        private final Path file;
+        private final Path part;
+        private final OutputStream stream;
+        private final CheckedOutputStream checksum;
+        private final GZIPOutputStream gzip;
+        private final DataOutputStream out;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long rows = 0;
+        private boolean closed = false;
+
+        private Output(Path file, boolean compressed) throws IOException {
+            this.file = file;
+            Path directory = file.toAbsolutePath().getParent();
+            this.part = Files.createTempFile(directory, file.getFileName().toString() + ".", ".part");
+            this.stream = Files.newOutputStream(part);
+            try {
+                this.checksum = new CheckedOutputStream(stream, new CRC32());
+                DataOutputStream header = new DataOutputStream(checksum);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeByte(compressed ? COMPRESSED : 0);
+                this.gzip = compressed ? new GZIPOutputStream(checksum, 1 << 16) : null;
+                this.out = new DataOutputStream(new BufferedOutputStream(compressed ? gzip : checksum, 1 << 16));
+            } catch (IOException e) {
+                stream.close();
+                Files.deleteIfExists(part);
+                throw e;
+            }
+        }
+
+        private void write(Map<String, String> row) throws IOException {
+            writeNumber(out, row.size() + 1);
+            for (Map.Entry<String, String> field : row.entrySet()) {
+                writeValue(field.getKey());
+                writeValue(field.getValue());
+            }
+            rows++;
+        }
+
+        private void finish() throws IOException {
+            writeNumber(out, 0);
+            writeNumber(out, rows);
+            out.flush();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            closed = true;
+            stream.close();
+            LOG.debug("Wrote {} rows with a dictionary of {} strings to {}", rows, dictionary.size(), file);
+        }
+
+        private void abandon() {
+            try {
+                if (!closed) {
+                    closed = true;
+                    stream.close();
+                }
+                Files.deleteIfExists(part);
+            } catch (IOException e) {
+                LOG.warn("Could not delete incomplete pull file {}", part, e);
+            }
+        }
+
+        private void writeValue(String value) throws IOException {
+            if (value == null) {
+                writeNumber(out, NULL);
+                return;
+            }
+            Integer entry = dictionary.get(value);
+            if (entry != null) {
+                writeNumber(out, ENTRY + (long) entry);
+                return;
+            }
+            if (value.length() <= MAX_DICTIONARY_VALUE && dictionary.size() < MAX_DICTIONARY) {
+                dictionary.put(value, dictionary.size());
+                writeNumber(out, DEFINE);
+            } else {
+                writeNumber(out, LITERAL);
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeNumber(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * The shards of a pull, as given in its manifest
+     */
+    private static final class Manifest {
+        private final String keyField;
+        private final List<Shard> shards;
+
+        private Manifest(String keyField, List<Shard> shards) {
+            this.keyField = keyField;
+            this.shards = shards;
+        }
+    }
+
+    private static final class Shard {
+        private final Path file;
+        private final long rows;
+        private final long bytes;
+        private final long crc;
+
+        private Shard(Path file, long rows, long bytes, long crc) {
+            this.file = file;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Reads the rows of a pull file as the cursor is advanced. The next row is read ahead, so that the end of the
+     * rows, and a file which was cut short, are found by {@link #hasNext()}. The rows of a shard are checked against
+     * its manifest once they have all been read.
+     */
+    private static final class Reader implements RecordCursor {
+        private final Path file;
+        private final DataInputStream in;
+        private final CheckedInputStream checked;
+        private final Shard shard;
+        private final List<String> dictionary = new ArrayList<>();
+        private Map<String, String> next;
+        private long rows = 0;
+        private boolean closed = false;
+
+        private Reader(Path file, DataInputStream in, CheckedInputStream checked, Shard shard) throws IOException {
+            this.file = file;
+            this.in = in;
+            this.checked = checked;
+            this.shard = shard;
+            try {
+                advance();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map<String, String> row = next;
+            advance();
+            return row;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOG.warn("Could not close pull file {}", file, e);
+                }
+            }
+        }
+
+        private void advance() {
+            try {
+                int fields = (int) readNumber(in) - 1;
+                if (fields < 0) {
+                    long count = readNumber(in);
+                    if (count != rows) {
+                        throw new IOException("Pull file " + file + " has " + rows + " rows, but should have " + count);
+                    }
+                    if (shard != null) {
+                        verify();
+                    }
+                    next = null;
+                    close();
+                    return;
+                }
+                Map<String, String> row = new HashMap<>(Math.max(4, fields * 4 / 3 + 1));
+                for (int i = 0; i < fields; i++) {
+                    row.put(readValue(), readValue());
+                }
+                next = row;
+                rows++;
+            } catch (EOFException e) {
+                close();
+                throw new ReadException(new IOException("Pull file " + file + " is incomplete after " + rows + " rows", e));
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw new ReadException(e instanceof IOException ? (IOException) e
+                        : new IOException("Pull file " + file + " is damaged after " + rows + " rows", e));
+            }
+        }
+
+        //the checksum covers the whole file, so read whatever is left after the trailer before checking it
+        private void verify() throws IOException {
+            byte[] rest = new byte[1 << 12];
+            while (checked.read(rest) >= 0) {
+                //just reading
+            }
+            if (rows != shard.rows || checked.getChecksum().getValue() != shard.crc) {
+                throw new IOException("Pull file shard " + file + " does not match its manifest");
+            }
+        }
+
+        private String readValue() throws IOException {
+            long tag = readNumber(in);
+            if (tag == NULL) {
+                return null;
+            }
+            if (tag >= ENTRY) {
+                return dictionary.get((int) (tag - ENTRY));
+            }
+            long length = readNumber(in);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Pull file " + file + " has a string of " + length + " bytes");
+            }
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (tag == DEFINE) {
+                if (dictionary.size() >= MAX_DICTIONARY) {
+                    throw new IOException("Pull file " + file + " has too many dictionary entries");
+                }
+                dictionary.add(value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Reads all of the shards of a pull, one after another
+     */
+    private static final class ShardsCursor implements RecordCursor {
+        private final Manifest manifest;
+        private int shard = 0;
+        private RecordCursor current;
+
+        private ShardsCursor(Manifest manifest) {
+            this.manifest = manifest;
+            LOG.info("Reading the {} shards of a pull split on {}", manifest.shards.size(), manifest.keyField);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                if (shard == manifest.shards.size()) {
+                    return false;
+                }
+                try {
+                    current = openShard(manifest.shards.get(shard++));
+                } catch (IOException e) {
+                    throw new ReadException(e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            shard = manifest.shards.size();
+        }
+    }
+
+    /**
+     * Reports a pull file which could not be read, or was damaged or cut short, while its rows were being read
+     */
+    public static final class ReadException extends UncheckedIOException {
+        private static final long serialVersionUID = 1L;
+
+        ReadException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+}
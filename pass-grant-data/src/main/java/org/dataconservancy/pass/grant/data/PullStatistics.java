@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static java.lang.String.format;
+
+/**
+ * A utility class to collect and disseminate statistics related to a pull from a grant data source. Partitioned
+ * pulls update these from several threads, so access is synchronized.
+ */
+public class PullStatistics {
+
+    private int rowsRead = 0;
+    private int duplicatesDropped = 0;
+    private int statements = 0;
+    private long prepareNanos = 0;
+    private long executeNanos = 0;
+    private long fetchNanos = 0;
+    private int connectionsBorrowed = 0;
+    private long connectionWaitNanos = 0;
+    private int employeeIdsLookedUp = 0;
+    private int directoryCacheHits = 0;
+    private long drainMillis = 0;
+    private long lookupMillis = 0;
+    private final SortedMap<Integer, String> partitions = new TreeMap<>();
+
+    /**
+     * The report is built on demand, since a pull is only complete once its cursor has been exhausted
+     * @return the report
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Pull Activity");
+        sb.append("\n\n");
+        sb.append(format("%s rows were read from the data source; %s duplicate rows were dropped",
+                rowsRead, duplicatesDropped));
+        sb.append("\n");
+        if (connectionsBorrowed > 0) {
+            sb.append(format("%s connections were borrowed from the pool, waiting %s ms in all",
+                    connectionsBorrowed, connectionWaitNanos / 1000000));
+            sb.append("\n");
+        }
+        if (statements > 0) {
+            sb.append(format("%s statements were prepared in %s ms and executed in %s ms; rows were fetched in %s ms",
+                    statements, prepareNanos / 1000000, executeNanos / 1000000, fetchNanos / 1000000));
+            sb.append("\n");
+        }
+        for (Map.Entry<Integer, String> partition : partitions.entrySet()) {
+            sb.append(format("Partition %s: %s", partition.getKey(), partition.getValue()));
+            sb.append("\n");
+        }
+        if (employeeIdsLookedUp > 0) {
+            sb.append(format("Rows were read in %s ms; Hopkins IDs for %s distinct employee IDs were looked up in %s ms: " +
+                    "%s directory cache hits, %s misses", drainMillis, employeeIdsLookedUp, lookupMillis,
+                    directoryCacheHits, employeeIdsLookedUp - directoryCacheHits));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    synchronized void reset() {
+        rowsRead = 0;
+        duplicatesDropped = 0;
+        statements = 0;
+        prepareNanos = 0;
+        executeNanos = 0;
+        fetchNanos = 0;
+        connectionsBorrowed = 0;
+        connectionWaitNanos = 0;
+        employeeIdsLookedUp = 0;
+        directoryCacheHits = 0;
+        drainMillis = 0;
+        lookupMillis = 0;
+        partitions.clear();
+    }
+
+    public synchronized int getRowsRead() {
+        return rowsRead;
+    }
+
+    synchronized void addRowRead() {
+        rowsRead++;
+    }
+
+    public synchronized int getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+
+    synchronized void addDuplicateDropped() {
+        duplicatesDropped++;
+    }
+
+    public synchronized int getStatements() {
+        return statements;
+    }
+
+    public synchronized long getPrepareNanos() {
+        return prepareNanos;
+    }
+
+    public synchronized long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    public synchronized long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * Record the time taken to prepare a statement (including binding its values), and to execute it - that is,
+     * until the database is ready to return the first rows
+     * @param prepare the time taken to prepare the statement, in nanoseconds
+     * @param execute the time taken to execute the statement, in nanoseconds
+     */
+    synchronized void addStatement(long prepare, long execute) {
+        statements++;
+        prepareNanos += prepare;
+        executeNanos += execute;
+    }
+
+    synchronized void addFetchTime(long fetch) {
+        fetchNanos += fetch;
+    }
+
+    public synchronized int getConnectionsBorrowed() {
+        return connectionsBorrowed;
+    }
+
+    public synchronized long getConnectionWaitNanos() {
+        return connectionWaitNanos;
+    }
+
+    /**
+     * Record the time spent waiting to borrow a connection from the pool
+     * @param wait the time waited, in nanoseconds
+     */
+    synchronized void addConnectionWait(long wait) {
+        connectionsBorrowed++;
+        connectionWaitNanos += wait;
+    }
+
+    public synchronized int getEmployeeIdsLookedUp() {
+        return employeeIdsLookedUp;
+    }
+
+    public synchronized int getDirectoryCacheHits() {
+        return directoryCacheHits;
+    }
+
+    /**
+     * Record the outcome of the directory enrichment stage of a pull
+     * @param employeeIds the number of distinct employee IDs looked up
+     * @param cacheHits the number of these which were answered from the directory cache
+     * @param drain the time taken to read the rows before the lookups, in milliseconds
+     * @param lookup the time taken by the lookups, in milliseconds
+     */
+    synchronized void addEnrichment(int employeeIds, int cacheHits, long drain, long lookup) {
+        employeeIdsLookedUp += employeeIds;
+        directoryCacheHits += cacheHits;
+        drainMillis += drain;
+        lookupMillis += lookup;
+    }
+
+    /**
+     * Record the outcome of one partition of a partitioned pull
+     * @param partition the partition number
+     * @param rows the number of records the partition produced
+     * @param millis the time taken to open and drain the partition
+     */
+    synchronized void addPartition(int partition, int rows, long millis) {
+        partitions.put(partition, format("%s records in %s ms", rows, millis));
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A forward-only cursor over the records produced by a {@link GrantConnector}. Records are produced lazily as the
+ * cursor is advanced, so a consumer only ever holds the current record (plus whatever the underlying driver buffers)
+ * rather than the whole result of a pull.
+ *
+ * A cursor may only be iterated once - {@link #iterator()} returns the cursor itself. Errors encountered while
+ * advancing the cursor are reported as {@code RuntimeException}s whose cause is the underlying {@code SQLException}
+ * or {@code IOException}. The cursor must be closed to release the resources behind it.
+ *
+ * @author jrm
+ */
+public interface RecordCursor extends Iterator<Map<String, String>>, Iterable<Map<String, String>>, AutoCloseable {
+
+    @Override
+    default Iterator<Map<String, String>> iterator() {
+        return this;
+    }
+
+    /**
+     * Release any resources held by this cursor. Closing an exhausted or already closed cursor has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Wrap a collection of records which has already been materialized, such as one read back from a data file
+     * @param records the records
+     * @return a cursor over the supplied records
+     */
+    static RecordCursor of(Iterable<Map<String, String>> records) {
+        Iterator<Map<String, String>> iterator = records.iterator();
+        return new RecordCursor() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Map<String, String> next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+}
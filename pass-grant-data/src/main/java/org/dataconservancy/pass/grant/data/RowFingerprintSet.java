@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import java.util.Map;
+
+/**
+ * A compact set of 128-bit row fingerprints, used to drop duplicate rows from a pull without holding on to the rows
+ * themselves. Fingerprints are kept in an open-addressed table of longs, so each distinct row costs 32 bytes at
+ * worst rather than the size of its map.
+ *
+ * A fingerprint is computed from every key/value pair of the row and does not depend on iteration order, so two
+ * rows which are equal as maps always have the same fingerprint. Two different rows colliding in all 128 bits is
+ * vanishingly unlikely for the sizes of pulls we see.
+ *
+ * @author jrm
+ */
+class RowFingerprintSet {
+
+    private static final int INITIAL_CAPACITY = 1024; //in fingerprints; always a power of two
+
+    //fingerprint i occupies table[2i] and table[2i+1]; an all-zero slot is empty
+    private long[] table = new long[INITIAL_CAPACITY * 2];
+    private int size = 0;
+
+    /**
+     * Add the fingerprint of a row to this set
+     * @param row the row
+     * @return true if the row had not been seen before, false if it is a duplicate
+     */
+    boolean add(Map<String, String> row) {
+        long hi = 0;
+        long lo = 0;
+        for (Map.Entry<String, String> entry : row.entrySet()) {
+            //summing the entry hashes makes the fingerprint independent of iteration order
+            hi += entryHash(entry, 0xcbf29ce484222325L, 0x100000001b3L);
+            lo += entryHash(entry, 0x84222325cbf29ce4L, 0x9e3779b97f4a7c15L);
+        }
+        if (hi == 0 && lo == 0) {
+            lo = 1; //keep the empty slot marker free
+        }
+        return add(hi, lo);
+    }
+
+    /**
+     * Add a fingerprint to this set
+     * @param hi the high 64 bits of the fingerprint
+     * @param lo the low 64 bits of the fingerprint, not both zero
+     * @return true if the fingerprint was added, false if it was already present
+     */
+    boolean add(long hi, long lo) {
+        if ((size + 1) * 2 > capacity()) {
+            resize();
+        }
+        if (insert(table, hi, lo)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int capacity() {
+        return table.length / 2;
+    }
+
+    private static boolean insert(long[] table, long hi, long lo) {
+        int mask = table.length / 2 - 1;
+        int slot = (int) mix(lo ^ hi) & mask;
+        while (true) {
+            long storedHi = table[slot * 2];
+            long storedLo = table[slot * 2 + 1];
+            if (storedHi == 0 && storedLo == 0) {
+                table[slot * 2] = hi;
+                table[slot * 2 + 1] = lo;
+                return true;
+            }
+            if (storedHi == hi && storedLo == lo) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        long[] larger = new long[table.length * 2];
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != 0 || table[i + 1] != 0) {
+                insert(larger, table[i], table[i + 1]);
+            }
+        }
+        table = larger;
+    }
+
+    private static long entryHash(Map.Entry<String, String> entry, long seed, long prime) {
+        long h = hash(entry.getKey(), seed, prime);
+        h = hash(entry.getValue(), h ^ 0xff, prime); //null and "" must differ, as must key/value boundaries
+        return mix(h);
+    }
+
+    /**
+     * FNV-1a style hash over the characters of a string, seeded so that we can derive two independent lanes
+     */
+    private static long hash(String s, long seed, long prime) {
+        long h = seed;
+        if (s == null) {
+            return (h ^ 0x9e) * prime;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * prime;
+        }
+        return (h ^ s.length()) * prime;
+    }
+
+    /**
+     * The 64-bit finalizer from MurmurHash3, to spread the bits of a hash
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.readString;
+import static org.dataconservancy.pass.grant.data.KeyedStoreFile.writeString;
+
+/**
+ * An append-only journal of the entities an update has written to PASS, or found up to date: the local key or
+ * locator ID of each, its URI, what was done, and the fingerprint of the entity as built from the data source. If
+ * an update dies part way through, so that its timestamp is not recorded, the next run reads the same records again;
+ * each entity found in the journal with the same fingerprint was already written with the same data, so it is not
+ * looked up, read or written again.
+ *
+ * Records are written as the writes succeed, and forced to disk in groups, rather than one at a time, and at the
+ * end of each phase of the update; a record lost in a crash just means that its entity is read and compared again. A
+ * record cut short by a crash is dropped when the journal is next opened. Once the update has succeeded and its
+ * timestamp has been recorded, the journal is truncated, since there is nothing left to resume.
+ *
+ * Like the identity cache, the journal records the PASS instance it was written against, and is discarded if that
+ * changes. If there is no file, nothing is journaled.
+ *
+ * @author jrm
+ */
+class UpdateJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpdateJournal.class);
+
+    private static final int MAGIC = 0x50554a4c; //PUJL
+    private static final int VERSION = 1;
+    //the number of records written between forces
+    static final int GROUP_SIZE = 100;
+
+    static final byte CREATED = 'C';
+    static final byte UPDATED = 'U';
+    static final byte UNCHANGED = 'N';
+
+    private final Path file;
+    private final String passInstance;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private int pending = 0;
+    private int loaded = 0;
+
+    /**
+     * @param file the journal file, or null to journal nothing
+     * @param passInstance the base URL of the PASS instance being written to
+     */
+    UpdateJournal(Path file, String passInstance) {
+        this.file = file;
+        this.passInstance = passInstance == null ? "" : passInstance;
+        if (file == null) {
+            return;
+        }
+        long end = 0;
+        if (Files.exists(file)) {
+            try {
+                end = load();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not load update journal {}, starting a new one", file, e);
+                entries.clear();
+                loaded = 0;
+            }
+        }
+        try {
+            open(end);
+        } catch (IOException e) {
+            LOG.warn("Could not open update journal {}, so this update cannot be resumed if it fails", file, e);
+            channel = null;
+        }
+    }
+
+    /**
+     * @param key the local key or locator ID of an entity
+     * @param fingerprint the fingerprint of the entity as built in this run
+     * @return the URI of the entity if it was written or found up to date with the same fingerprint by an update
+     * which did not finish, or else null
+     */
+    URI completed(String key, long fingerprint) {
+        Entry entry = key == null ? null : entries.get(key);
+        return entry != null && entry.fingerprint == fingerprint ? entry.uri : null;
+    }
+
+    /**
+     * Record an entity which has been written, or found up to date
+     * @param operation what was done - {@link #CREATED}, {@link #UPDATED} or {@link #UNCHANGED}
+     * @param key the local key or locator ID of the entity
+     * @param uri the URI of the entity
+     * @param fingerprint the fingerprint of the entity as built in this run
+     */
+    void record(byte operation, String key, URI uri, long fingerprint) {
+        if (file == null || key == null || uri == null) {
+            return;
+        }
+        entries.put(key, new Entry(uri, fingerprint));
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(operation);
+                writeString(out, key);
+                writeString(out, uri.toString());
+                out.writeLong(fingerprint);
+                channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+                if (++pending >= GROUP_SIZE) {
+                    sync();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not write to update journal {}, so this update cannot be resumed if it fails", file,
+                        e);
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Force the records written since the last force to disk
+     */
+    synchronized void sync() {
+        if (channel == null || pending == 0) {
+            return;
+        }
+        try {
+            channel.force(false);
+            pending = 0;
+        } catch (IOException e) {
+            LOG.warn("Could not force update journal {} to disk", file, e);
+        }
+    }
+
+    /**
+     * The update has succeeded and its timestamp has been recorded: drop the journal's records
+     */
+    synchronized void commit() {
+        entries.clear();
+        pending = 0;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.truncate(0);
+            writeHeader();
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.warn("Could not truncate update journal {}", file, e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Stop journaling, keeping the records written so far
+     */
+    synchronized void close() {
+        sync();
+        if (channel != null) {
+            closeQuietly();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int getLoaded() {
+        return loaded;
+    }
+
+    //returns the end of the last whole record, where new records are appended
+    private long load() throws IOException {
+        long end;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not an update journal of version " + VERSION);
+            }
+            String instance = readString(buffer);
+            if (!passInstance.equals(instance)) {
+                LOG.info("Update journal {} is for PASS instance {}, not {}; starting a new one", file, instance,
+                        passInstance);
+                return 0;
+            }
+            end = buffer.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    buffer.get();
+                    String key = readString(buffer);
+                    URI uri = URI.create(readString(buffer));
+                    long fingerprint = buffer.getLong();
+                    entries.put(key, new Entry(uri, fingerprint));
+                    loaded++;
+                    end = buffer.position();
+                }
+            } catch (BufferUnderflowException e) {
+                LOG.info("Dropping a record of update journal {} which was cut short", file);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Update journal header is truncated", e);
+        }
+        if (loaded > 0) {
+            LOG.info("Loaded {} records of an update which did not finish from {}", loaded, file);
+        }
+        return end;
+    }
+
+    private void open(long end) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channel.truncate(end);
+        if (end == 0) {
+            writeHeader();
+            channel.force(true);
+        }
+        channel.position(channel.size());
+    }
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, passInstance);
+        channel.write(ByteBuffer.wrap(bytes.toByteArray()), 0);
+        channel.position(bytes.size());
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close update journal {}", file, e);
+        }
+        channel = null;
+    }
+
+    private static final class Entry {
+        private final URI uri;
+        private final long fingerprint;
+
+        private Entry(URI uri, long fingerprint) {
+            this.uri = uri;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for planning changes to PASS, and applying the plans
+ *
+ * @author jrm
+ */
+public class ChangePlanTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+    private static final URI FUNDER_URI = URI.create("http://pass/funders/1");
+    private static final URI USER_URI = URI.create("http://pass/users/1");
+    private static final URI GRANT_URI = URI.create("http://pass/grants/1");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path planFile;
+
+    /**
+     * Plan an update in which the funder exists with an old name, and the user and grant are new. Nothing may be
+     * written to PASS while planning.
+     */
+    @Before
+    public void plan() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.findByAttribute(eq(Funder.class), eq("localKey"), any(String.class))).thenReturn(FUNDER_URI);
+        when(passClient.readResource(any(URI.class), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(passClient.createResource(any(User.class))).thenThrow(new RuntimeException("User written while planning"));
+        when(passClient.createResource(any(Grant.class))).thenThrow(new RuntimeException("Grant written while planning"));
+
+        planFile = folder.getRoot().toPath().resolve("grant.plan");
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setPlanFile(planFile);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+
+        assertEquals(1, passUpdater.getStatistics().getFundersUpdated());
+        assertEquals(1, passUpdater.getStatistics().getUsersCreated());
+        assertEquals(1, passUpdater.getStatistics().getGrantsCreated());
+        assertTrue(passUpdater.getReport().contains("2 creates and 1 updates were planned"));
+    }
+
+    /**
+     * The plan holds the funder's changed fields, and the new user and grant, the grant referring to the user by its
+     * placeholder, followed by the records for the stores
+     */
+    @Test
+    public void testPlanContents() throws IOException {
+        List<String> lines = Files.readAllLines(planFile, StandardCharsets.UTF_8);
+        assertTrue(lines.get(0).contains("\"mode\":\"grant\""));
+        assertTrue(lines.get(1).contains("\"op\":\"update\""));
+        assertTrue(lines.get(1).contains("\"uri\":\"" + FUNDER_URI + "\""));
+        assertTrue(lines.get(1).contains("\"name\":\"JHU Department of Synergy\""));
+        assertTrue(lines.get(2).contains("\"ref\":\"urn:plan:2\""));
+        assertTrue(lines.get(3).contains("\"pi\":\"urn:plan:2\""));
+        List<String> records = lines.subList(4, lines.size() - 1);
+        assertTrue(records.contains(
+                "{\"record\":\"identity\",\"key\":\"johnshopkins.edu:grant:10001\",\"uri\":\"urn:plan:3\"}"));
+        assertTrue(records.stream().anyMatch(record -> record.startsWith(
+                "{\"record\":\"fingerprint\",\"key\":\"urn:plan:3\"")));
+        assertTrue(records.stream().anyMatch(record -> record.startsWith(
+                "{\"record\":\"digest\",\"key\":\"10001\"")));
+        String trailer = lines.get(lines.size() - 1);
+        assertTrue(trailer.contains("\"records\":" + records.size()));
+        assertTrue(trailer.contains("\"latestUpdate\":\"2018-01-01 00:00:00.0\""));
+    }
+
+    /**
+     * Applying the plan makes its changes, with the placeholders replaced by the URIs of the entities created
+     */
+    @Test
+    public void testApply() throws IOException {
+        Funder stored = oldFunder();
+        Grant[] created = new Grant[1];
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(FUNDER_URI), eq(Funder.class))).thenReturn(stored);
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            created[0] = invocation.getArgument(0);
+            return GRANT_URI;
+        });
+
+        PlanApplier applier = new PlanApplier(passClient, planFile);
+        applier.apply();
+        assertEquals("grant", applier.getMode());
+        assertEquals("2018-01-01 00:00:00.0", applier.getLatestUpdate());
+        assertEquals("JHU Department of Synergy", stored.getName());
+        assertEquals("johnshopkins.edu:funder:000029282", stored.getLocalKey());
+        assertEquals(USER_URI, created[0].getPi());
+        assertEquals(FUNDER_URI, created[0].getDirectFunder());
+        assertEquals(Grant.AwardStatus.ACTIVE, created[0].getAwardStatus());
+        assertTrue(applier.getReport().contains("2 entities were created and 1 updated"));
+    }
+
+    /**
+     * Once the plan has been applied, the URIs of the entities, their fingerprints and the digest of the grant are
+     * saved to the stores, with the placeholders replaced
+     */
+    @Test
+    public void testApplySavesRecords() throws IOException {
+        Path stores = folder.newFolder("stores").toPath();
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(FUNDER_URI), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenReturn(GRANT_URI);
+        PlanApplier applier = new PlanApplier(passClient, planFile);
+        applier.setStoreDirectory(stores);
+        applier.apply();
+
+        IdentityCache identityCache = new IdentityCache(stores.resolve(DefaultPassUpdater.IDENTITY_CACHE_FILE_NAME),
+                PASS_INSTANCE);
+        assertEquals(FUNDER_URI, identityCache.get("johnshopkins.edu:funder:000029282"));
+        assertEquals(USER_URI, identityCache.get("johnshopkins.edu:employeeid:0000111"));
+        assertEquals(GRANT_URI, identityCache.get("johnshopkins.edu:grant:10001"));
+        EntityFingerprints fingerprints = new EntityFingerprints(
+                stores.resolve(DefaultPassUpdater.FINGERPRINTS_FILE_NAME), PASS_INSTANCE);
+        assertEquals(3, fingerprints.size());
+        String saved = new String(Files.readAllBytes(stores.resolve(DefaultPassUpdater.FINGERPRINTS_FILE_NAME)),
+                StandardCharsets.UTF_8);
+        assertTrue(saved.contains(GRANT_URI.toString()));
+        assertFalse(saved.contains(ChangePlan.PLACEHOLDER));
+        assertEquals(1, new GrantDigests(stores.resolve(DefaultPassUpdater.GRANT_DIGESTS_FILE_NAME), PASS_INSTANCE)
+                .size());
+    }
+
+    /**
+     * A plan which failed part way through is resumed from where it stopped, using the entities created before
+     */
+    @Test
+    public void testResume() throws IOException {
+        PassClient failing = mock(PassClient.class);
+        when(failing.readResource(eq(FUNDER_URI), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(failing.createResource(any(User.class))).thenReturn(USER_URI);
+        when(failing.createResource(any(Grant.class))).thenThrow(new RuntimeException("PASS is down"));
+        try {
+            new PlanApplier(failing, planFile).apply();
+            fail("The grant could not be created, so the plan should fail");
+        } catch (PassUpdateException e) {
+            assertEquals(1, e.getFailedKeys().size());
+        }
+
+        Grant[] created = new Grant[1];
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(any(URI.class), eq(Funder.class)))
+                .thenThrow(new RuntimeException("Funder updated again"));
+        when(passClient.createResource(any(User.class))).thenThrow(new RuntimeException("User created again"));
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            created[0] = invocation.getArgument(0);
+            return GRANT_URI;
+        });
+        PlanApplier applier = new PlanApplier(passClient, planFile);
+        applier.apply();
+        assertEquals(USER_URI, created[0].getPi());
+        assertTrue(applier.getReport().contains("of which 2 were applied by an earlier run"));
+    }
+
+    /**
+     * A new plan written to the file of one which has been applied is applied in full, and its placeholders are not
+     * taken for the entities created by the old one
+     */
+    @Test
+    public void testReplanToSameFile() throws IOException {
+        Path progressFile = ChangePlan.progressFile(planFile);
+        String oldHeader = Files.readAllLines(planFile, StandardCharsets.UTF_8).get(0);
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(FUNDER_URI), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenReturn(GRANT_URI);
+        new PlanApplier(passClient, planFile).apply();
+        assertFalse(Files.exists(progressFile));
+
+        plan();
+        assertNotEquals(oldHeader, Files.readAllLines(planFile, StandardCharsets.UTF_8).get(0));
+
+        URI newUserUri = URI.create("http://pass/users/2");
+        Grant[] created = new Grant[1];
+        passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(FUNDER_URI), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(passClient.createResource(any(User.class))).thenReturn(newUserUri);
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            created[0] = invocation.getArgument(0);
+            return GRANT_URI;
+        });
+        PlanApplier applier = new PlanApplier(passClient, planFile);
+        applier.apply();
+        assertEquals(newUserUri, created[0].getPi());
+        assertTrue(applier.getReport().contains("of which 0 were applied by an earlier run"));
+        assertTrue(applier.getReport().contains("2 entities were created and 1 updated"));
+        assertFalse(Files.exists(progressFile));
+    }
+
+    /**
+     * A progress file left by another plan is not used to resume this one
+     */
+    @Test
+    public void testProgressOfAnotherPlanIsIgnored() throws IOException {
+        Files.write(ChangePlan.progressFile(planFile), "plan\tanother\n2\thttp://pass/users/9\n".getBytes(
+                StandardCharsets.UTF_8));
+        Grant[] created = new Grant[1];
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(FUNDER_URI), eq(Funder.class))).thenAnswer(invocation -> oldFunder());
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            created[0] = invocation.getArgument(0);
+            return GRANT_URI;
+        });
+        PlanApplier applier = new PlanApplier(passClient, planFile);
+        applier.apply();
+        assertEquals(USER_URI, created[0].getPi());
+        assertTrue(applier.getReport().contains("of which 0 were applied by an earlier run"));
+    }
+
+    /**
+     * A plan without its trailer was not finished, and is not applied
+     */
+    @Test(expected = IOException.class)
+    public void testIncompletePlanIsRefused() throws IOException {
+        List<String> lines = Files.readAllLines(planFile, StandardCharsets.UTF_8);
+        Files.write(planFile, lines.subList(0, lines.size() - 1), StandardCharsets.UTF_8);
+        new PlanApplier(mock(PassClient.class), planFile).load();
+    }
+
+    private static Funder oldFunder() {
+        Funder funder = new Funder();
+        funder.setLocalKey("johnshopkins.edu:funder:000029282");
+        funder.setName("JHU Department of Old Synergy");
+        return funder;
+    }
+
+}
@@ -22,8 +22,23 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_EMPLOYEE_ID;
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_FIRST_NAME;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 /**
  * Test class for the COEUS connector
  *
@@ -67,13 +82,15 @@ public class CoeusConnectorTest {
                 " ON B.EMPLOYEE_ID = C.EMPLOYEE_ID" +
                 " LEFT JOIN COEUS.SWIFT_SPONSOR D" +
                 " ON A.PRIME_SPONSOR_CODE = D.SPONSOR_CODE" +
-                " WHERE A.UPDATE_TIMESTAMP > TIMESTAMP '2018-06-01 06:00:00.0'" +
-                " AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE('01/01/2011', 'MM/DD/YYYY')" +
+                " WHERE A.UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF')" +
+                " AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE(?, 'MM/DD/YYYY')" +
                 " AND A.PROPOSAL_STATUS = 'Funded'" +
                 " AND (B.ABBREVIATED_ROLE = 'P' OR B.ABBREVIATED_ROLE = 'C' OR REGEXP_LIKE (UPPER(B.ROLE), '^CO ?-?INVESTIGATOR$'))" +
                 " AND A.GRANT_NUMBER IS NOT NULL";
 
-        Assert.assertEquals(expectedQueryString, connector.buildQueryString("2018-06-01 06:00:00.0", "01/01/2011", "grant"));
+        GrantQuery query = connector.buildQueryString("2018-06-01 06:00:00.0", "01/01/2011", "grant");
+        Assert.assertEquals(expectedQueryString, query.getSql());
+        Assert.assertEquals(Arrays.asList("2018-06-01 06:00:00.0", "01/01/2011"), query.getBindValues());
 
 
         expectedQueryString = "SELECT A.AWARD_ID, A.AWARD_STATUS, A.GRANT_NUMBER, A.TITLE, A.AWARD_DATE," +
@@ -87,13 +104,16 @@ public class CoeusConnectorTest {
                 " ON B.EMPLOYEE_ID = C.EMPLOYEE_ID" +
                 " LEFT JOIN COEUS.SWIFT_SPONSOR D" +
                 " ON A.PRIME_SPONSOR_CODE = D.SPONSOR_CODE" +
-                " WHERE A.UPDATE_TIMESTAMP > TIMESTAMP '2018-06-01 06:00:00.0'" +
-                " AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE('02/03/1999', 'MM/DD/YYYY')" +
+                " WHERE A.UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF')" +
+                " AND TO_DATE(A.AWARD_END, 'MM/DD/YYYY') >= TO_DATE(?, 'MM/DD/YYYY')" +
                 " AND A.PROPOSAL_STATUS = 'Funded'" +
                 " AND (B.ABBREVIATED_ROLE = 'P' OR B.ABBREVIATED_ROLE = 'C' OR REGEXP_LIKE (UPPER(B.ROLE), '^CO ?-?INVESTIGATOR$'))" +
                 " AND A.GRANT_NUMBER IS NOT NULL";
 
-        Assert.assertEquals(expectedQueryString, connector.buildQueryString("2018-06-01 06:00:00.0", "02/03/1999", "grant"));
+        //the statement text does not change with the dates, only the bind values do
+        query = connector.buildQueryString("2018-06-01 06:00:00.0", "02/03/1999", "grant");
+        Assert.assertEquals(expectedQueryString, query.getSql());
+        Assert.assertEquals(Arrays.asList("2018-06-01 06:00:00.0", "02/03/1999"), query.getBindValues());
 
     }
 
@@ -102,20 +122,125 @@ public class CoeusConnectorTest {
 
         String expectedQueryString = "SELECT FIRST_NAME, MIDDLE_NAME, LAST_NAME, EMAIL_ADDRESS, JHED_ID, EMPLOYEE_ID, " +
                 "UPDATE_TIMESTAMP FROM COEUS.JHU_FACULTY_FORCE_PRSN_DETAIL " +
-                "WHERE UPDATE_TIMESTAMP > TIMESTAMP '2018-13-14 06:00:00.0'";
-        Assert.assertEquals(expectedQueryString, connector.buildQueryString("2018-13-14 06:00:00.0", "01/01/2011", "user"));
+                "WHERE UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF')";
+        GrantQuery query = connector.buildQueryString("2018-13-14 06:00:00.0", "01/01/2011", "user");
+        Assert.assertEquals(expectedQueryString, query.getSql());
+        Assert.assertEquals(Collections.singletonList("2018-13-14 06:00:00.0"), query.getBindValues());
 
     }
 
     @Test
     public void testBuildFunderQueryString() {
 
-        String expectedQueryString1 = "SELECT SPONSOR_NAME, SPONSOR_CODE FROM COEUS.SWIFT_SPONSOR WHERE SPONSOR_CODE IN (moo, baa)";
-        String expectedQueryString2 = "SELECT SPONSOR_NAME, SPONSOR_CODE FROM COEUS.SWIFT_SPONSOR WHERE SPONSOR_CODE IN (baa, moo)";
-        String actualQueryString = connector.buildQueryString(null, null, "funder");
-        Assert.assertTrue(expectedQueryString1.equals(actualQueryString) ||
-                expectedQueryString2.equals(actualQueryString));
+        String expectedQueryString = "SELECT SPONSOR_NAME, SPONSOR_CODE FROM COEUS.SWIFT_SPONSOR WHERE SPONSOR_CODE IN (?, ?)";
+        GrantQuery query = connector.buildQueryString(null, null, "funder");
+        Assert.assertEquals(expectedQueryString, query.getSql());
+        Assert.assertEquals(Arrays.asList("baa", "moo"), query.getBindValues());
+    }
+
+    /**
+     * In aggregate mode the iterations of each grant are merged in the database, one row per grant and person,
+     * with the same bind values as the plain grant query
+     */
+    @Test
+    public void testBuildAggregateGrantQueryString() {
+        Properties aggregateProperties = new Properties();
+        aggregateProperties.setProperty("coeus.grant.query.mode", CoeusConnector.GRANT_QUERY_MODE_AGGREGATE);
+        CoeusConnector aggregateConnector = new CoeusConnector(aggregateProperties, policyProperties);
+
+        GrantQuery query = aggregateConnector.buildQueryString("2018-13-14 06:00:00.0", "01/01/2011", "grant");
+        String queryString = query.getSql();
+        Assert.assertTrue(queryString.startsWith("SELECT MAX(G.AWARD_ID) AS AWARD_ID, MAX(G.AWARD_STATUS) AS AWARD_STATUS, " +
+                "G.GRANT_NUMBER, "));
+        Assert.assertTrue(queryString.contains("FIRST_VALUE(A.AWARD_ID) OVER (PARTITION BY A.GRANT_NUMBER ORDER BY " +
+                "TO_DATE(A.AWARD_DATE, 'MM/DD/YYYY') ASC NULLS LAST"));
+        Assert.assertTrue(queryString.contains("FIRST_VALUE(A.AWARD_END) OVER (PARTITION BY A.GRANT_NUMBER ORDER BY " +
+                "TO_DATE(A.AWARD_DATE, 'MM/DD/YYYY') DESC NULLS LAST"));
+        Assert.assertTrue(queryString.contains("MAX(A.UPDATE_TIMESTAMP) OVER (PARTITION BY A.GRANT_NUMBER) AS UPDATE_TIMESTAMP"));
+        Assert.assertTrue(queryString.contains(" WHERE A.UPDATE_TIMESTAMP > TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS.FF') "));
+        Assert.assertTrue(queryString.endsWith(") G GROUP BY G.GRANT_NUMBER, G.EMPLOYEE_ID"));
+        Assert.assertEquals(Arrays.asList("2018-13-14 06:00:00.0", "01/01/2011"),
+                query.getBindValues());
+    }
+
+    /**
+     * An ordered grant pull is sorted on the bytes of the grant number, in either form of the query
+     */
+    @Test
+    public void testBuildOrderedGrantQueryString() {
+        Properties orderedProperties = new Properties();
+        orderedProperties.setProperty("coeus.grant.ordered", "true");
+        CoeusConnector orderedConnector = new CoeusConnector(orderedProperties, policyProperties);
+        String queryString = orderedConnector.buildQueryString("2018-13-14 06:00:00.0", "01/01/2011", "grant").getSql();
+        Assert.assertTrue(queryString.endsWith(" AND A.GRANT_NUMBER IS NOT NULL" +
+                " ORDER BY NLSSORT(A.GRANT_NUMBER, 'NLS_SORT=BINARY')"));
+
+        orderedProperties.setProperty("coeus.grant.query.mode", CoeusConnector.GRANT_QUERY_MODE_AGGREGATE);
+        orderedConnector = new CoeusConnector(orderedProperties, policyProperties);
+        queryString = orderedConnector.buildQueryString("2018-13-14 06:00:00.0", "01/01/2011", "grant").getSql();
+        Assert.assertTrue(queryString.endsWith(") G GROUP BY G.GRANT_NUMBER, G.EMPLOYEE_ID" +
+                " ORDER BY NLSSORT(G.GRANT_NUMBER, 'NLS_SORT=BINARY')"));
     }
-}
 
+    /**
+     * Oracle allows at most 1000 expressions in an IN list, so we expect the sponsor codes to be split
+     */
+    @Test
+    public void testBuildLongFunderQueryString() {
+        Properties manyPolicies = new Properties();
+        for (int i = 0; i < 2500; i++) {
+            manyPolicies.setProperty(String.format("%05d", i), "policy/" + i);
+        }
+        CoeusConnector manyConnector = new CoeusConnector(null, manyPolicies);
+
+        GrantQuery query = manyConnector.buildQueryString(null, null, "funder");
+        String queryString = query.getSql();
+        Assert.assertTrue(queryString.startsWith("SELECT SPONSOR_NAME, SPONSOR_CODE FROM COEUS.SWIFT_SPONSOR WHERE " +
+                "(SPONSOR_CODE IN (?, "));
+        Assert.assertEquals(2, queryString.split(" OR ").length - 1);
+        Assert.assertEquals(2500, queryString.chars().filter(c -> c == '?').count());
+        Assert.assertEquals(2500, query.getBindValues().size());
+        Assert.assertEquals("00000", query.getBindValues().get(0));
+    }
 
+    /**
+     * The user query is run as a prepared statement with its bind values against a stand-in connection, and
+     * the statement timings are recorded
+     */
+    @Test
+    public void testOpenUserUpdates() throws Exception {
+        Connection connection = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, true, false);
+        when(resultSet.getString(anyString())).thenAnswer(invocation -> {
+            String column = invocation.getArgument(0);
+            return C_USER_EMPLOYEE_ID.equals(column) ? null : column.toLowerCase();
+        });
+
+        CoeusConnector standIn = new CoeusConnector(null, policyProperties) {
+            @Override
+            Connection openConnection() {
+                return connection;
+            }
+        };
+
+        GrantQuery query = standIn.buildQueryString("2018-06-01 06:00:00.0", null, "user");
+        List<Map<String, String>> records = standIn.retrieveUpdates(query, "user");
+
+        //every row is the same, so all but the first are dropped
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("first_name", records.get(0).get(C_USER_FIRST_NAME));
+        verify(statement).setObject(1, "2018-06-01 06:00:00.0");
+        verify(statement).setFetchSize(500);
+        verify(connection).close();
+
+        PullStatistics statistics = standIn.getStatistics();
+        Assert.assertEquals(3, statistics.getRowsRead());
+        Assert.assertEquals(2, statistics.getDuplicatesDropped());
+        Assert.assertEquals(1, statistics.getStatements());
+        Assert.assertTrue(statistics.getReport().contains("1 statements were prepared"));
+    }
+}
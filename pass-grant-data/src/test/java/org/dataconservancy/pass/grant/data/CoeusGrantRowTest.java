@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for the typed grant row
+ *
+ * @author jrm
+ */
+public class CoeusGrantRowTest {
+
+    //the columns of the grant query, in the order the stand-in result set returns them
+    private static final List<String> QUERY_COLUMNS = Arrays.asList(C_GRANT_AWARD_NUMBER, C_GRANT_AWARD_STATUS,
+            C_GRANT_LOCAL_KEY, C_GRANT_PROJECT_NAME, C_GRANT_AWARD_DATE, C_GRANT_START_DATE, C_GRANT_END_DATE,
+            C_DIRECT_FUNDER_NAME, C_DIRECT_FUNDER_LOCAL_KEY, C_UPDATE_TIMESTAMP, C_ABBREVIATED_ROLE,
+            C_USER_EMPLOYEE_ID, C_USER_FIRST_NAME, C_USER_MIDDLE_NAME, C_USER_LAST_NAME, C_USER_EMAIL,
+            C_USER_INSTITUTIONAL_ID, C_PRIMARY_FUNDER_NAME, C_PRIMARY_FUNDER_LOCAL_KEY);
+
+    /**
+     * A row read from a result set is equal to the map we used to build for it, and shares the values of
+     * low-cardinality columns with other rows
+     */
+    @Test
+    public void testReadRow() throws Exception {
+        String[] current = new String[QUERY_COLUMNS.size()];
+        ResultSet rs = standInResultSet(current);
+        CoeusGrantRow.Reader reader = new CoeusGrantRow.Reader();
+
+        fill(current, 1);
+        CoeusGrantRow first = reader.read(rs);
+        fill(current, 6);
+        CoeusGrantRow second = reader.read(rs);
+
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < current.length; i++) {
+            expected.put(QUERY_COLUMNS.get(i), column(QUERY_COLUMNS.get(i), 1));
+        }
+        assertEquals(expected, first);
+        assertEquals(expected.hashCode(), first.hashCode());
+        assertEquals(QUERY_COLUMNS.size(), first.size());
+        assertTrue(first.containsKey(C_USER_MIDDLE_NAME));
+        assertNull(first.get(C_USER_MIDDLE_NAME));
+        assertFalse(first.containsKey(C_USER_HOPKINS_ID));
+
+        assertEquals("Funder 7", second.get(C_PRIMARY_FUNDER_NAME));
+        assertFalse(first.getGrantLocalKey().equals(second.getGrantLocalKey()));
+        assertSame(first.get(C_PRIMARY_FUNDER_NAME), second.get(C_PRIMARY_FUNDER_NAME));
+        assertSame(first.get(C_GRANT_AWARD_STATUS), second.get(C_GRANT_AWARD_STATUS));
+        assertFalse(first.getEmployeeId().equals(second.getEmployeeId()));
+    }
+
+    /**
+     * Added columns become keys, and a row is written to a pull file as a plain map
+     */
+    @Test
+    public void testSetAndSerialize() throws Exception {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_LOCAL_KEY, "10000001");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put("NOT_A_COLUMN", "dropped");
+
+        CoeusGrantRow row = CoeusGrantRow.of(rowMap);
+        assertSame(row, CoeusGrantRow.of(row));
+        assertEquals(2, row.size());
+        assertFalse(row.containsKey(C_GRANT_AWARD_NUMBER));
+
+        row.set(CoeusGrantRow.HOPKINS_ID, "A1A1A1");
+        row.put(C_PRIMARY_FUNDER_POLICY, "policy1");
+        assertEquals(4, row.size());
+        assertEquals("A1A1A1", row.get(C_USER_HOPKINS_ID));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(row);
+        }
+        Object copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = in.readObject();
+        }
+        assertEquals(HashMap.class, copy.getClass());
+        assertEquals(row, copy);
+    }
+
+    /**
+     * Measure the retained heap per row of a grant pull, as maps and as typed rows. Each column value is a new
+     * String, as it is when it comes from the JDBC driver.
+     */
+    @Ignore
+    @Test
+    public void measureHeapPerRow() throws Exception {
+        int size = 200000;
+        String[] current = new String[QUERY_COLUMNS.size()];
+        ResultSet rs = standInResultSet(current);
+
+        long baseline = usedHeap();
+        List<Map<String, String>> maps = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            fill(current, i);
+            Map<String, String> rowMap = new HashMap<>();
+            for (int column = 0; column < current.length; column++) {
+                rowMap.put(QUERY_COLUMNS.get(column), current[column]);
+            }
+            maps.add(rowMap);
+        }
+        long mapBytes = usedHeap() - baseline;
+        assertEquals(size, maps.size());
+        maps = null;
+
+        baseline = usedHeap();
+        CoeusGrantRow.Reader reader = new CoeusGrantRow.Reader();
+        List<CoeusGrantRow> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            fill(current, i);
+            rows.add(reader.read(rs));
+        }
+        long rowBytes = usedHeap() - baseline;
+        assertEquals(size, rows.size());
+
+        System.out.println(String.format("%d rows: HashMap %d bytes/row, CoeusGrantRow %d bytes/row " +
+                "(%d dictionary entries)", size, mapBytes / size, rowBytes / size, reader.dictionarySize()));
+    }
+
+    /**
+     * A result set which returns the values in {@code current}, each as a new String
+     */
+    private static ResultSet standInResultSet(String[] current) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.findColumn(anyString())).thenAnswer(invocation ->
+                QUERY_COLUMNS.indexOf((String) invocation.getArgument(0)) + 1);
+        when(rs.getString(anyInt())).thenAnswer(invocation -> {
+            String value = current[(Integer) invocation.getArgument(0) - 1];
+            return value == null ? null : new String(value.toCharArray());
+        });
+        return rs;
+    }
+
+    private static void fill(String[] current, int n) {
+        for (int i = 0; i < current.length; i++) {
+            current[i] = column(QUERY_COLUMNS.get(i), n);
+        }
+    }
+
+    /**
+     * Values shaped like those of a COEUS grant pull: a handful of funders, statuses and roles
+     */
+    private static String column(String name, int n) {
+        switch (name) {
+            case C_GRANT_AWARD_STATUS:
+                return n % 10 == 0 ? "Terminated" : "Active";
+            case C_GRANT_LOCAL_KEY:
+                return String.valueOf(10000000 + n / 3);
+            case C_GRANT_PROJECT_NAME:
+                return "Synthetic project number " + n / 3;
+            case C_DIRECT_FUNDER_NAME:
+            case C_PRIMARY_FUNDER_NAME:
+                return "Funder " + n % 5 * 7;
+            case C_DIRECT_FUNDER_LOCAL_KEY:
+            case C_PRIMARY_FUNDER_LOCAL_KEY:
+                return String.valueOf(n % 5 * 7);
+            case C_ABBREVIATED_ROLE:
+                return n % 3 == 0 ? "P" : "C";
+            case C_USER_MIDDLE_NAME:
+                return null;
+            case C_USER_EMPLOYEE_ID:
+                return String.valueOf(1000000 + n % 5000);
+            case C_UPDATE_TIMESTAMP:
+                return "2019-07-01 00:00:00.0";
+            default:
+                return name.toLowerCase() + " " + n;
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the persistent directory lookup cache
+ *
+ * @author jrm
+ */
+public class DirectoryCacheTest {
+
+    private static final long TTL = 1000;
+    private static final long NEGATIVE_TTL = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(10000);
+
+    /**
+     * A lookup fills both directions, and a negative answer is cached as one
+     */
+    @Test
+    public void testLookupsAreCached() {
+        DirectoryCache cache = new DirectoryCache(null, TTL, NEGATIVE_TTL, now::get);
+
+        assertNull(cache.getHopkinsId("0000111"));
+        cache.putHopkinsId("0000111", "A1A1A1");
+        cache.putHopkinsId("0000222", null);
+
+        assertEquals("A1A1A1", cache.getHopkinsId("0000111").getValue());
+        assertEquals("0000111", cache.getEmployeeId("A1A1A1").getValue());
+        DirectoryCache.Entry negative = cache.getHopkinsId("0000222");
+        assertNotNull(negative);
+        assertNull(negative.getValue());
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Negative answers expire sooner than answers with an ID
+     */
+    @Test
+    public void testEntriesExpire() {
+        DirectoryCache cache = new DirectoryCache(null, TTL, NEGATIVE_TTL, now::get);
+        cache.putHopkinsId("0000111", "A1A1A1");
+        cache.putHopkinsId("0000222", null);
+
+        now.addAndGet(NEGATIVE_TTL);
+        assertNull(cache.getHopkinsId("0000222"));
+        assertNotNull(cache.getHopkinsId("0000111"));
+
+        now.addAndGet(TTL);
+        assertNull(cache.getHopkinsId("0000111"));
+        assertEquals(2, cache.getExpired());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * The cache survives a restart, and expired entries are dropped from the file when it is saved
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("directory.cache");
+        DirectoryCache cache = new DirectoryCache(file, TTL, NEGATIVE_TTL, now::get);
+        cache.putHopkinsId("0000111", "A1A1A1");
+        cache.putEmployeeId("B2B2B2", "0000222");
+        cache.putHopkinsId("0000333", null);
+        cache.save();
+
+        DirectoryCache reloaded = new DirectoryCache(file, TTL, NEGATIVE_TTL, now::get);
+        assertEquals(5, reloaded.size());
+        assertEquals("A1A1A1", reloaded.getHopkinsId("0000111").getValue());
+        assertEquals("0000222", reloaded.getEmployeeId("B2B2B2").getValue());
+        assertEquals("B2B2B2", reloaded.getHopkinsId("0000222").getValue());
+        assertNull(reloaded.getHopkinsId("0000333").getValue());
+        long fullSize = Files.size(file);
+
+        //the negative entry expires, and is not written again
+        now.addAndGet(NEGATIVE_TTL);
+        reloaded.save();
+        assertTrue(Files.size(file) < fullSize);
+        DirectoryCache compacted = new DirectoryCache(file, TTL, NEGATIVE_TTL, now::get);
+        assertEquals(4, compacted.size());
+        assertTrue(compacted.getReport().contains("4 entries loaded"));
+        assertEquals(1, Files.list(folder.getRoot().toPath()).count());
+    }
+
+    /**
+     * A damaged cache file only costs us the cache
+     */
+    @Test
+    public void testDamagedFileIsIgnored() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("directory.cache");
+        Files.write(file, "not a cache".getBytes(StandardCharsets.UTF_8));
+
+        DirectoryCache cache = new DirectoryCache(file, TTL, NEGATIVE_TTL, now::get);
+        assertEquals(0, cache.size());
+        cache.putHopkinsId("0000111", "A1A1A1");
+        cache.save();
+        assertEquals(2, new DirectoryCache(file, TTL, NEGATIVE_TTL, now::get).size());
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_GRANT_LOCAL_KEY;
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_EMPLOYEE_ID;
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_USER_HOPKINS_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for the directory enrichment stage of a pull
+ *
+ * @author jrm
+ */
+public class DirectoryEnrichmentTest {
+
+    /**
+     * Each distinct employee ID is looked up once, and the result is set on every row for the employee
+     */
+    @Test
+    public void testEnrichment() throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_GRANT_LOCAL_KEY, String.valueOf(i));
+            row.put(C_USER_EMPLOYEE_ID, i % 10 == 9 ? null : String.valueOf(i % 20));
+            rows.add(row);
+        }
+
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        Executor directory = CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS);
+        DirectoryEnrichment.HopkinsIdLookup lookup = employeeId -> {
+            calls.computeIfAbsent(employeeId, id -> new AtomicInteger()).incrementAndGet();
+            //odd employees have no Hopkins ID; employees below 5 are in the cache
+            String hopkinsId = Integer.parseInt(employeeId) % 2 == 0 ? "H" + employeeId : null;
+            return Integer.parseInt(employeeId) < 5 ? CompletableFuture.completedFuture(hopkinsId)
+                    : CompletableFuture.supplyAsync(() -> hopkinsId, directory);
+        };
+
+        PullStatistics statistics = new PullStatistics();
+        List<Map<String, String>> enriched = new ArrayList<>();
+        try (RecordCursor cursor = new DirectoryEnrichment(lookup, statistics).enrich(RecordCursor.of(rows))) {
+            cursor.forEachRemaining(enriched::add);
+        }
+
+        assertEquals(60, enriched.size());
+        for (Map<String, String> row : enriched) {
+            String employeeId = row.get(C_USER_EMPLOYEE_ID);
+            if (employeeId == null) {
+                assertFalse(row.containsKey(C_USER_HOPKINS_ID));
+            } else if (Integer.parseInt(employeeId) % 2 == 0) {
+                assertEquals("H" + employeeId, row.get(C_USER_HOPKINS_ID));
+            } else {
+                assertTrue(row.containsKey(C_USER_HOPKINS_ID));
+                assertNull(row.get(C_USER_HOPKINS_ID));
+            }
+        }
+
+        //ids 0-19 except 9 and 19, which only appear on rows without an employee id
+        assertEquals(18, calls.size());
+        for (AtomicInteger count : calls.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(18, statistics.getEmployeeIdsLookedUp());
+        assertEquals(5, statistics.getDirectoryCacheHits());
+        assertTrue(statistics.getReport().contains("5 directory cache hits, 13 misses"));
+    }
+
+    /**
+     * Rows are taken from the source a batch at a time, so that no more than a batch is held, and the IDs of each
+     * batch are looked up before the batch is passed on
+     */
+    @Test
+    public void testBatches() throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_USER_EMPLOYEE_ID, String.valueOf(i % 3));
+            rows.add(row);
+        }
+        AtomicInteger rowsRead = new AtomicInteger();
+        AtomicBoolean sourceClosed = new AtomicBoolean();
+        Iterator<Map<String, String>> source = rows.iterator();
+        RecordCursor counting = new RecordCursor() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Map<String, String> next() {
+                rowsRead.incrementAndGet();
+                return source.next();
+            }
+
+            @Override
+            public void close() {
+                sourceClosed.set(true);
+            }
+        };
+
+        AtomicInteger lookups = new AtomicInteger();
+        AtomicBoolean finished = new AtomicBoolean();
+        DirectoryEnrichment.HopkinsIdLookup lookup = employeeId -> {
+            lookups.incrementAndGet();
+            return CompletableFuture.completedFuture("H" + employeeId);
+        };
+        PullStatistics statistics = new PullStatistics();
+        RecordCursor cursor = new DirectoryEnrichment(lookup, () -> finished.set(true), statistics, 10)
+                .enrich(counting);
+
+        //the first batch is read and looked up before enrich returns
+        assertEquals(10, rowsRead.get());
+        assertEquals(3, lookups.get());
+
+        int enriched = 0;
+        while (cursor.hasNext()) {
+            Map<String, String> row = cursor.next();
+            assertEquals("H" + row.get(C_USER_EMPLOYEE_ID), row.get(C_USER_HOPKINS_ID));
+            enriched++;
+            assertTrue(rowsRead.get() <= ((enriched - 1) / 10 + 1) * 10);
+        }
+        assertEquals(25, enriched);
+        //each batch looks up its own distinct IDs
+        assertEquals(9, lookups.get());
+        assertEquals(9, statistics.getEmployeeIdsLookedUp());
+        assertEquals(9, statistics.getDirectoryCacheHits());
+        assertTrue(sourceClosed.get());
+        assertTrue(finished.get());
+    }
+
+    /**
+     * A lookup which fails after the first batch is reported when the cursor is advanced
+     */
+    @Test
+    public void testLaterLookupFailure() throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_USER_EMPLOYEE_ID, String.valueOf(i));
+            rows.add(row);
+        }
+        DirectoryEnrichment.HopkinsIdLookup lookup = employeeId -> {
+            CompletableFuture<String> answer = new CompletableFuture<>();
+            if (employeeId.equals("3")) {
+                answer.completeExceptionally(new IOException("directory unavailable"));
+            } else {
+                answer.complete("H" + employeeId);
+            }
+            return answer;
+        };
+        AtomicBoolean finished = new AtomicBoolean();
+        RecordCursor cursor = new DirectoryEnrichment(lookup, () -> finished.set(true), new PullStatistics(), 2)
+                .enrich(RecordCursor.of(rows));
+        assertEquals("H0", cursor.next().get(C_USER_HOPKINS_ID));
+        assertEquals("H1", cursor.next().get(C_USER_HOPKINS_ID));
+        try {
+            cursor.next();
+            fail("Expected the lookup failure");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        cursor.close();
+        assertTrue(finished.get());
+    }
+
+    /**
+     * A failed lookup fails the pull with the original exception
+     */
+    @Test(expected = IOException.class)
+    public void testLookupFailure() throws Exception {
+        Map<String, String> row = new HashMap<>();
+        row.put(C_USER_EMPLOYEE_ID, "0000111");
+        List<Map<String, String>> rows = new ArrayList<>();
+        rows.add(row);
+
+        DirectoryEnrichment.HopkinsIdLookup lookup = employeeId -> {
+            CompletableFuture<String> answer = new CompletableFuture<>();
+            answer.completeExceptionally(new IOException("directory unavailable"));
+            return answer;
+        };
+        new DirectoryEnrichment(lookup, new PullStatistics()).enrich(RecordCursor.of(rows));
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.dataconservancy.pass.grant.data.DirectoryServiceUtil.DIRECTORY_CONNECTION_POOL_SIZE;
+import static org.dataconservancy.pass.grant.data.DirectoryServiceUtil.DIRECTORY_LOOKUP_PARALLELISM;
+import static org.dataconservancy.pass.grant.data.DirectoryServiceUtil.DIRECTORY_SERVICE_BASE_URL;
+import static org.dataconservancy.pass.grant.data.DirectoryServiceUtil.DIRECTORY_SERVICE_CLIENT_ID;
+import static org.dataconservancy.pass.grant.data.DirectoryServiceUtil.DIRECTORY_SERVICE_CLIENT_SECRET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for the lookups made by {@code DirectoryServiceUtil}, against a local stand-in for the directory
+ * service. The stand-in answers every employee ID with "H" followed by the ID, except for IDs starting with 9, which
+ * have no Hopkins ID; IDs starting with 5 get an error status, those starting with 7 a JSON null, and those starting
+ * with 8 an answer without the ID.
+ *
+ * @author jrm
+ */
+public class DirectoryServiceLookupTest {
+
+    static {
+        //otherwise the stand-in writes the headers and body of an answer separately, and waits on a delayed ACK
+        //between them whenever a connection is reused
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long delayMillis = 100;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/EmployeeID_to_HopkinsID", exchange -> answer(exchange, "employeeid=", "H", ""));
+        server.createContext("/HopkinsID_to_EmployeeID", exchange -> answer(exchange, "hopkinsid=", "", "H"));
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * Concurrent lookups of the same ID share one call, and later lookups are answered from the cache
+     */
+    @Test
+    public void testLookupsAreCoalesced() throws Exception {
+        DirectoryServiceUtil underTest = new DirectoryServiceUtil(connectionProperties(4));
+
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            answers.add(underTest.lookupHopkinsIdForEmployeeId("0000111"));
+        }
+        for (CompletableFuture<String> answer : answers) {
+            assertEquals("H0000111", answer.get());
+        }
+        assertEquals(1, requests.get());
+
+        assertEquals("H0000111", underTest.getHopkinsIdForEmployeeId("0000111"));
+        //the reverse direction was filled by the same lookup
+        assertEquals("0000111", underTest.getEmployeeIdForHopkinsId("H0000111"));
+        assertEquals(1, requests.get());
+    }
+
+    /**
+     * No more lookups are in flight than the configured limit
+     */
+    @Test
+    public void testConcurrencyIsLimited() throws Exception {
+        DirectoryServiceUtil underTest = new DirectoryServiceUtil(connectionProperties(3));
+
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            answers.add(underTest.lookupHopkinsIdForEmployeeId("000010" + i));
+        }
+        for (int i = 0; i < 12; i++) {
+            assertEquals("H000010" + i, answers.get(i).get());
+        }
+        assertEquals(12, requests.get());
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 3);
+    }
+
+    /**
+     * An answer of NULL is no Hopkins ID, and is cached as such
+     */
+    @Test
+    public void testNullAnswer() throws Exception {
+        DirectoryServiceUtil underTest = new DirectoryServiceUtil(connectionProperties(4));
+
+        assertNull(underTest.getHopkinsIdForEmployeeId("9000111"));
+        assertNull(underTest.getHopkinsIdForEmployeeId("9000111"));
+        assertEquals(1, requests.get());
+    }
+
+    /**
+     * An error status is reported as an IOException, and nothing is cached, so the next lookup asks again
+     */
+    @Test
+    public void testErrorStatus() throws Exception {
+        DirectoryServiceUtil underTest = new DirectoryServiceUtil(connectionProperties(4));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                underTest.getHopkinsIdForEmployeeId("5000111");
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("503"));
+            }
+        }
+        assertEquals(2, requests.get());
+    }
+
+    /**
+     * An answer with a JSON null, or without the ID, is no Hopkins ID, but is not cached
+     */
+    @Test
+    public void testMissingAnswer() throws Exception {
+        DirectoryServiceUtil underTest = new DirectoryServiceUtil(connectionProperties(4));
+
+        assertNull(underTest.getHopkinsIdForEmployeeId("7000111"));
+        assertNull(underTest.getHopkinsIdForEmployeeId("8000111"));
+        assertNull(underTest.getHopkinsIdForEmployeeId("7000111"));
+        assertNull(underTest.getHopkinsIdForEmployeeId("8000111"));
+        assertEquals(4, requests.get());
+    }
+
+    /**
+     * A service which cannot be reached is reported as an IOException
+     */
+    @Test(expected = IOException.class)
+    public void testServiceUnavailable() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        Properties properties = connectionProperties(4);
+        properties.setProperty(DIRECTORY_SERVICE_BASE_URL, "http://localhost:" + closedPort);
+        new DirectoryServiceUtil(properties).getHopkinsIdForEmployeeId("0000111");
+    }
+
+    /**
+     * Measure lookups per second against the stand-in service, with connections reused from the pool and with a
+     * new connection for every lookup
+     */
+    @Ignore
+    @Test
+    public void benchmarkLookups() throws Exception {
+        delayMillis = 0;
+        int lookups = 5000;
+        for (String poolSize : new String[] {"0", "8", "0", "8"}) {
+            Properties properties = connectionProperties(8);
+            properties.setProperty(DIRECTORY_CONNECTION_POOL_SIZE, poolSize);
+            DirectoryServiceUtil underTest = new DirectoryServiceUtil(properties);
+
+            long start = System.nanoTime();
+            List<CompletableFuture<String>> answers = new ArrayList<>();
+            for (int i = 0; i < lookups; i++) {
+                answers.add(underTest.lookupHopkinsIdForEmployeeId(String.valueOf(1000000 + i)));
+            }
+            for (CompletableFuture<String> answer : answers) {
+                answer.get();
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println(String.format("connection pool size %s: %d lookups in %d ms, %d lookups/s",
+                    poolSize, lookups, millis, lookups * 1000L / Math.max(millis, 1)));
+        }
+    }
+
+    private Properties connectionProperties(int parallelism) {
+        Properties properties = new Properties();
+        properties.setProperty(DIRECTORY_SERVICE_BASE_URL, "http://localhost:" + server.getAddress().getPort());
+        properties.setProperty(DIRECTORY_SERVICE_CLIENT_ID, "the-client-id");
+        properties.setProperty(DIRECTORY_SERVICE_CLIENT_SECRET, "the-client-secret");
+        properties.setProperty(DIRECTORY_LOOKUP_PARALLELISM, String.valueOf(parallelism));
+        return properties;
+    }
+
+    private void answer(HttpExchange exchange, String parameter, String addPrefix, String removePrefix)
+            throws IOException {
+        requests.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(delayMillis);
+            String sourceId = exchange.getRequestURI().getQuery().substring(parameter.length());
+            String mappedValue = sourceId.startsWith("9") ? "NULL" :
+                    addPrefix + sourceId.substring(removePrefix.length());
+            String json = "{\"" + sourceId + "\":\"" + mappedValue + "\"}";
+            if (sourceId.startsWith("7")) {
+                json = "{\"" + sourceId + "\":null}";
+            } else if (sourceId.startsWith("8")) {
+                json = "{}";
+            }
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(sourceId.startsWith("5") ? 503 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+}
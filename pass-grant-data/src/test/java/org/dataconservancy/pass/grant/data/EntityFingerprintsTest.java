@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for the fingerprints of entities written to PASS
+ *
+ * @author jrm
+ */
+public class EntityFingerprintsTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+    private static final String SEED = CoeusPassEntityUtil.class.getName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A fingerprint changes with the fields of an entity and the update policy, but not with the order of its lists
+     */
+    @Test
+    public void testFingerprints() {
+        Grant grant = new Grant();
+        grant.setLocalKey("johnshopkins.edu:grant:10001");
+        grant.setAwardStatus(Grant.AwardStatus.ACTIVE);
+        grant.getCoPis().add(URI.create("http://pass/users/1"));
+        grant.getCoPis().add(URI.create("http://pass/users/2"));
+        long fingerprint = EntityFingerprints.of(SEED, grant);
+
+        grant.setCoPis(Arrays.asList(URI.create("http://pass/users/2"), URI.create("http://pass/users/1")));
+        assertEquals(fingerprint, EntityFingerprints.of(SEED, grant));
+        assertNotEquals(fingerprint, EntityFingerprints.of(CoeusPassInitEntityUtil.class.getName(), grant));
+        grant.setAwardStatus(Grant.AwardStatus.TERMINATED);
+        assertNotEquals(fingerprint, EntityFingerprints.of(SEED, grant));
+
+        Funder funder = new Funder();
+        funder.setLocalKey("johnshopkins.edu:funder:000029282");
+        long funderFingerprint = EntityFingerprints.of(SEED, funder);
+        funder.setName("null");
+        assertNotEquals(funderFingerprint, EntityFingerprints.of(SEED, funder));
+    }
+
+    /**
+     * Fingerprints survive a save and load against the same PASS instance
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("entity.fingerprints");
+        EntityFingerprints fingerprints = new EntityFingerprints(file, PASS_INSTANCE);
+        fingerprints.put(URI.create("http://pass/grants/1"), 42L);
+        fingerprints.put(URI.create("http://pass/users/1"), -7L);
+        fingerprints.save();
+
+        EntityFingerprints loaded = new EntityFingerprints(file, PASS_INSTANCE);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.matches(URI.create("http://pass/grants/1"), 42L));
+        assertFalse(loaded.matches(URI.create("http://pass/grants/1"), 43L));
+        assertTrue(loaded.matches(URI.create("http://pass/users/1"), -7L));
+        assertFalse(loaded.matches(null, 42L));
+
+        assertEquals(0, new EntityFingerprints(file, "https://pass.example.edu/fcrepo/rest/").size());
+    }
+
+    /**
+     * An update of the same rows as the last one reads nothing, unless it is a full verification
+     */
+    @Test
+    public void testUnchangedEntitiesAreSkipped() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.findByAttribute(eq(Funder.class), eq("localKey"), any(String.class)))
+                .thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.findByAttribute(eq(User.class), eq("locatorIds"), any(String.class)))
+                .thenReturn(URI.create("http://pass/users/1"));
+        when(passClient.findByAttribute(eq(Grant.class), eq("localKey"), any(String.class)))
+                .thenReturn(URI.create("http://pass/grants/1"));
+        when(passClient.readResource(any(URI.class), eq(Funder.class))).thenReturn(new Funder());
+        when(passClient.readResource(any(URI.class), eq(User.class))).thenReturn(new User());
+        //each read gets a new copy of the stored grant, as it would from PASS
+        when(passClient.readResource(any(URI.class), eq(Grant.class))).thenAnswer(invocation -> new Grant());
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+        assertEquals(1, passUpdater.getStatistics().getGrantsUpdated());
+        assertEquals(0, passUpdater.getStatistics().getGrantsSkipped());
+
+        //forget the row digests, so that the grant is not dropped before its entities are looked at, and the
+        //cached URIs, so that the entities are found by searches
+        passUpdater.setGrantDigests(new GrantDigests(null, null));
+        passUpdater.setIdentityCache(new IdentityCache(null, PASS_INSTANCE));
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+        assertEquals(0, passUpdater.getStatistics().getGrantsUpdated());
+        assertEquals(1, passUpdater.getStatistics().getGrantsSkipped());
+        assertEquals(1, passUpdater.getStatistics().getUsersSkipped());
+        assertEquals(1, passUpdater.getStatistics().getFundersSkipped());
+        assertTrue(passUpdater.getReport().contains("1 Grants, 1 Users and 1 Funders were unchanged"));
+        assertEquals(URI.create("http://pass/grants/1"), passUpdater.getGrantUriMap().keySet().iterator().next());
+
+        passUpdater.setFullVerify(true);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+        assertEquals(0, passUpdater.getStatistics().getGrantsSkipped());
+        assertEquals(1, passUpdater.getStatistics().getGrantsUpdated());
+    }
+
+    /**
+     * A fingerprint match is not enough to skip an entity whose URI came only from the identity cache: the entity is
+     * read, and if its URI is stale it is searched for again
+     */
+    @Test
+    public void testCachedUriIsNotSkipped() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenReturn(URI.create("http://pass/users/1"));
+        when(passClient.createResource(any(Grant.class))).thenReturn(URI.create("http://pass/grants/1"));
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+        assertEquals(1, passUpdater.getStatistics().getGrantsCreated());
+
+        //the grant has since been deleted from PASS, and made again under a new URI
+        when(passClient.readResource(eq(URI.create("http://pass/grants/1")), eq(Grant.class)))
+                .thenThrow(new RuntimeException("Not found"));
+        when(passClient.findByAttribute(eq(Grant.class), eq("localKey"), any(String.class)))
+                .thenReturn(URI.create("http://pass/grants/2"));
+        when(passClient.readResource(eq(URI.create("http://pass/grants/2")), eq(Grant.class)))
+                .thenAnswer(invocation -> new Grant());
+        when(passClient.readResource(any(URI.class), eq(Funder.class))).thenReturn(new Funder());
+        when(passClient.readResource(any(URI.class), eq(User.class))).thenReturn(new User());
+
+        passUpdater.setGrantDigests(new GrantDigests(null, null));
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+        assertEquals(0, passUpdater.getStatistics().getGrantsSkipped());
+        assertEquals(URI.create("http://pass/grants/2"), passUpdater.getGrantUriMap().keySet().iterator().next());
+    }
+
+}
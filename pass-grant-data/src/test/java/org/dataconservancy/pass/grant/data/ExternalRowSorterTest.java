@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for sorting rows by grant number, in memory and spilled to disk
+ *
+ * @author jrm
+ */
+public class ExternalRowSorterTest {
+
+    private static final String SEQUENCE = "SEQUENCE";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Rows within the budget are sorted in memory, rows with equal keys staying in the order they came in
+     */
+    @Test
+    public void testSortInMemory() throws Exception {
+        List<Map<String, String>> rows = rows(50, 7);
+        ExternalRowSorter sorter = new ExternalRowSorter(C_GRANT_LOCAL_KEY, Long.MAX_VALUE, folder.getRoot().toPath());
+        try (RecordCursor sorted = sorter.sort(rows)) {
+            assertSorted(sorted, 50);
+        }
+        assertEquals(0, sorter.getRuns());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Rows past the budget are spilled in runs, which merge to the same order, and are deleted once read
+     */
+    @Test
+    public void testSortSpilled() throws Exception {
+        List<Map<String, String>> rows = rows(2000, 97);
+        ExternalRowSorter sorter = new ExternalRowSorter(C_GRANT_LOCAL_KEY, 20000, folder.getRoot().toPath());
+        try (RecordCursor sorted = sorter.sort(rows)) {
+            assertTrue(sorter.getRuns() > 10);
+            assertEquals(sorter.getRuns(), folder.getRoot().list().length);
+            assertSorted(sorted, 2000);
+        }
+        assertEquals(2000, sorter.getRows());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Rows without a grant number, and values which are null or long, survive a spill
+     */
+    @Test
+    public void testSpilledValues() throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        Map<String, String> keyless = new HashMap<>();
+        keyless.put(C_GRANT_PROJECT_NAME, null);
+        rows.add(keyless);
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            title.append((char) ('a' + i % 26));
+        }
+        Map<String, String> longTitle = new HashMap<>();
+        longTitle.put(C_GRANT_LOCAL_KEY, "10001");
+        longTitle.put(C_GRANT_PROJECT_NAME, title.toString() + "\u00e9");
+        rows.add(0, longTitle);
+
+        ExternalRowSorter sorter = new ExternalRowSorter(C_GRANT_LOCAL_KEY, 1, folder.getRoot().toPath());
+        try (RecordCursor sorted = sorter.sort(rows)) {
+            assertEquals(2, sorter.getRuns());
+            Map<String, String> first = sorted.next();
+            assertNull(first.get(C_GRANT_LOCAL_KEY));
+            assertTrue(first.containsKey(C_GRANT_PROJECT_NAME));
+            assertEquals(longTitle, sorted.next());
+        }
+    }
+
+    /**
+     * An update which sorts unordered rows builds the same grants as one which holds them all
+     */
+    @Test
+    public void testSortedUpdate() {
+        System.setProperty("pass.fedora.baseurl", "https://localhost:8080/fcrepo/rest/");
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (Map<String, String> row : rows(300, 40)) {
+            row.put(C_GRANT_AWARD_STATUS, Integer.parseInt(row.get(SEQUENCE)) % 2 == 0 ? "Active" : "Terminated");
+            row.put(C_GRANT_AWARD_DATE, "01/" + (10 + Integer.parseInt(row.get(SEQUENCE)) % 17) + "/2018");
+            row.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+            row.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+            row.put(C_USER_FIRST_NAME, "First");
+            row.put(C_USER_LAST_NAME, "Last");
+            row.put(C_USER_EMPLOYEE_ID, "00001" + row.get(SEQUENCE).charAt(row.get(SEQUENCE).length() - 1));
+            row.put(C_ABBREVIATED_ROLE, Integer.parseInt(row.get(SEQUENCE)) % 3 == 0 ? "P" : "C");
+            row.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+            rows.add(row);
+        }
+
+        Map<String, Grant> held = new ConcurrentHashMap<>();
+        JhuPassUpdater heldUpdater = new JhuPassUpdater(passClient(held));
+        heldUpdater.updatePass(rows, "grant");
+
+        Map<String, Grant> sorted = new ConcurrentHashMap<>();
+        JhuPassUpdater sortedUpdater = new JhuPassUpdater(passClient(sorted));
+        sortedUpdater.setSortBudget(10000);
+        sortedUpdater.updatePass(rows, "grant");
+
+        assertEquals(40, sorted.size());
+        for (Map.Entry<String, Grant> grant : held.entrySet()) {
+            assertEquals(EntityFields.snapshot(grant.getValue()), EntityFields.snapshot(sorted.get(grant.getKey())));
+        }
+        assertTrue(sortedUpdater.getStatistics().getSortRuns() > 1);
+        assertTrue(sortedUpdater.getReport().contains("runs spilled to disk"));
+    }
+
+    //rows with random keys from a number of grants, numbered in the order they are made
+    private static List<Map<String, String>> rows(int count, int grants) {
+        Random random = new Random(42);
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_GRANT_LOCAL_KEY, String.valueOf(10000 + random.nextInt(grants)));
+            row.put(C_GRANT_PROJECT_NAME, "Project " + i);
+            row.put(SEQUENCE, String.valueOf(i));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertSorted(RecordCursor sorted, int count) {
+        String lastKey = null;
+        int lastSequence = -1;
+        int seen = 0;
+        for (Map<String, String> row : sorted) {
+            String key = row.get(C_GRANT_LOCAL_KEY);
+            int sequence = Integer.parseInt(row.get(SEQUENCE));
+            if (lastKey != null) {
+                assertTrue(key.compareTo(lastKey) >= 0);
+                if (key.equals(lastKey)) {
+                    assertTrue(sequence > lastSequence);
+                }
+            }
+            assertEquals("Project " + sequence, row.get(C_GRANT_PROJECT_NAME));
+            lastKey = key;
+            lastSequence = sequence;
+            seen++;
+        }
+        assertEquals(count, seen);
+    }
+
+    private static PassClient passClient(Map<String, Grant> created) {
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenAnswer(invocation ->
+                URI.create("http://pass/users/" + ((User) invocation.getArgument(0)).getLastName()
+                        + ((User) invocation.getArgument(0)).getLocatorIds().get(0).replaceAll(".*:", "")));
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            Grant grant = invocation.getArgument(0);
+            created.put(grant.getLocalKey(), grant);
+            return URI.create("http://pass/grants/" + grant.getLocalKey());
+        });
+        return passClient;
+    }
+
+}
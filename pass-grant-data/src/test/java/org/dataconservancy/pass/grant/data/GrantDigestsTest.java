@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for the digests of the COEUS rows of grants
+ *
+ * @author jrm
+ */
+public class GrantDigestsTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+    private static final String SEED = CoeusPassEntityUtil.class.getName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A digest ignores the update timestamp and the order of rows, but not their contents
+     */
+    @Test
+    public void testDigests() {
+        Map<String, String> pi = row("10001", "0000111", "P", "2018-01-01 00:00:00.0");
+        Map<String, String> coPi = row("10001", "0000222", "C", "2018-01-01 00:00:00.0");
+        long digest = GrantDigests.digest(SEED, Arrays.asList(GrantDigests.rowHash(pi), GrantDigests.rowHash(coPi)));
+
+        Map<String, String> laterCoPi = row("10001", "0000222", "C", "2018-06-01 00:00:00.0");
+        assertEquals(digest, GrantDigests.digest(SEED,
+                Arrays.asList(GrantDigests.rowHash(laterCoPi), GrantDigests.rowHash(pi))));
+        assertNotEquals(digest, GrantDigests.digest(CoeusPassInitEntityUtil.class.getName(),
+                Arrays.asList(GrantDigests.rowHash(pi), GrantDigests.rowHash(coPi))));
+
+        Map<String, String> otherCoPi = row("10001", "0000333", "C", "2018-01-01 00:00:00.0");
+        assertNotEquals(digest, GrantDigests.digest(SEED,
+                Arrays.asList(GrantDigests.rowHash(pi), GrantDigests.rowHash(otherCoPi))));
+        assertNotEquals(digest, GrantDigests.digest(SEED, Arrays.asList(GrantDigests.rowHash(pi))));
+    }
+
+    /**
+     * Digests and the load time survive a save and load against the same PASS instance
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("grant.digests");
+        GrantDigests digests = new GrantDigests(file, PASS_INSTANCE);
+        digests.put("10001", 42L);
+        digests.put("10002", -7L);
+        digests.recordLoad(4, 100);
+        digests.save();
+
+        GrantDigests loaded = new GrantDigests(file, PASS_INSTANCE);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.unchanged("10001", 42L));
+        assertFalse(loaded.unchanged("10001", 43L));
+        assertFalse(loaded.unchanged("10003", 42L));
+        assertEquals(25.0, loaded.getMillisPerGrant(), 0.001);
+
+        assertEquals(0, new GrantDigests(file, "https://pass.example.edu/fcrepo/rest/").size());
+    }
+
+    /**
+     * A grant whose rows have not changed but for their timestamp is skipped, and its timestamp is still recorded
+     */
+    @Test
+    public void testUnchangedGrantsAreSkipped() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenReturn(URI.create("http://pass/users/1"));
+        when(passClient.createResource(any(Grant.class))).thenReturn(URI.create("http://pass/grants/1"));
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.updatePass(Arrays.asList(row("10001", "0000111", "P", "2018-01-01 00:00:00.0")), "grant");
+        assertEquals(1, passUpdater.getStatistics().getGrantsCreated());
+        assertEquals(0, passUpdater.getStatistics().getGrantsUnchanged());
+
+        passUpdater.updatePass(Arrays.asList(row("10001", "0000111", "P", "2018-06-01 00:00:00.0")), "grant");
+        assertEquals(1, passUpdater.getStatistics().getGrantsUnchanged());
+        assertEquals(0, passUpdater.getStatistics().getGrantsCreated());
+        assertEquals("2018-06-01 00:00:00.0", passUpdater.getLatestUpdate());
+        assertTrue(passUpdater.getReport().contains("1 grants were unchanged in COEUS"));
+
+        Map<String, String> changed = row("10001", "0000111", "P", "2018-07-01 00:00:00.0");
+        changed.put(C_GRANT_AWARD_STATUS, "Terminated");
+        passUpdater.updatePass(Arrays.asList(changed), "grant");
+        assertEquals(0, passUpdater.getStatistics().getGrantsUnchanged());
+    }
+
+    private static Map<String, String> row(String grantLocalKey, String employeeId, String role, String timestamp) {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, grantLocalKey);
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, employeeId);
+        rowMap.put(C_UPDATE_TIMESTAMP, timestamp);
+        rowMap.put(C_ABBREVIATED_ROLE, role);
+        return rowMap;
+    }
+
+}
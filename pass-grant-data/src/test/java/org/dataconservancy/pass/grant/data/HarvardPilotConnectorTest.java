@@ -5,14 +5,15 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class HarvardPilotConnectorTest {
 
@@ -36,7 +37,7 @@ public class HarvardPilotConnectorTest {
     }
 
     @Test
-    public void testRetrieveGrantUpdates() throws IOException {
+    public void testRetrieveGrantUpdates() throws Exception {
 
         List<Map<String, String>> grantResultSet =  connector.retrieveUpdates(null, "grant");
         assertEquals(8, grantResultSet.size());
@@ -181,7 +182,7 @@ public class HarvardPilotConnectorTest {
     }
 
     @Test
-    public void testRetrieveFunderUpdates() throws IOException {
+    public void testRetrieveFunderUpdates() throws Exception {
 
         List<Map<String, String>>  funderResultSet = connector.retrieveUpdates(null, "funder");
         assertEquals(5, funderResultSet.size());
@@ -200,4 +201,21 @@ public class HarvardPilotConnectorTest {
         }
     }
 
+    /**
+     * The cursor should produce the same records as the materialized list, and close the workbook once exhausted
+     */
+    @Test
+    public void testOpenGrantUpdates() throws Exception {
+        List<Map<String, String>> grantResultSet = connector.retrieveUpdates(null, "grant");
+
+        List<Map<String, String>> streamed = new ArrayList<>();
+        try (RecordCursor cursor = connector.openUpdates(null, "grant")) {
+            for (Map<String, String> rowMap : cursor) {
+                streamed.add(rowMap);
+            }
+            assertFalse(cursor.hasNext());
+        }
+        assertEquals(grantResultSet, streamed);
+    }
+
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for the persistent cache of PASS identities
+ *
+ * @author jrm
+ */
+public class IdentityCacheTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Entries survive a save and load against the same PASS instance
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("identity.cache");
+        IdentityCache cache = new IdentityCache(file, PASS_INSTANCE);
+        cache.put("johnshopkins.edu:grant:10001", URI.create("http://pass/grants/1"));
+        cache.put("johnshopkins.edu:employeeid:0000111", URI.create("http://pass/users/1"));
+        cache.put("johnshopkins.edu:hopkinsid:A1A1A1", URI.create("http://pass/users/1"));
+        cache.put("johnshopkins.edu:grant:10002", null);
+        cache.save();
+
+        IdentityCache loaded = new IdentityCache(file, PASS_INSTANCE);
+        assertEquals(3, loaded.size());
+        assertEquals(URI.create("http://pass/grants/1"), loaded.get("johnshopkins.edu:grant:10001"));
+        assertEquals(URI.create("http://pass/users/1"), loaded.get("johnshopkins.edu:hopkinsid:A1A1A1"));
+        assertNull(loaded.get("johnshopkins.edu:grant:10002"));
+        assertEquals(2, loaded.getHits());
+        assertEquals(1, loaded.getMisses());
+        assertTrue(loaded.getReport().contains("3 entries loaded"));
+    }
+
+    /**
+     * A cache built against another PASS instance is not used
+     */
+    @Test
+    public void testOtherInstanceIgnored() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("identity.cache");
+        IdentityCache cache = new IdentityCache(file, PASS_INSTANCE);
+        cache.put("johnshopkins.edu:grant:10001", URI.create("http://pass/grants/1"));
+        cache.save();
+
+        IdentityCache loaded = new IdentityCache(file, "https://pass.example.edu/fcrepo/rest/");
+        assertEquals(0, loaded.size());
+    }
+
+    /**
+     * Invalidating a URI removes every key which maps to it
+     */
+    @Test
+    public void testInvalidate() {
+        IdentityCache cache = new IdentityCache(null, PASS_INSTANCE);
+        cache.put("johnshopkins.edu:employeeid:0000111", URI.create("http://pass/users/1"));
+        cache.put("johnshopkins.edu:hopkinsid:A1A1A1", URI.create("http://pass/users/1"));
+        cache.put("johnshopkins.edu:grant:10001", URI.create("http://pass/grants/1"));
+
+        assertTrue(cache.invalidate(URI.create("http://pass/users/1")));
+        assertFalse(cache.invalidate(URI.create("http://pass/users/2")));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getInvalidated());
+    }
+
+    /**
+     * A damaged cache file is ignored, and replaced on the next save
+     */
+    @Test
+    public void testDamagedFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("identity.cache");
+        Files.write(file, "not a cache".getBytes(StandardCharsets.UTF_8));
+
+        IdentityCache cache = new IdentityCache(file, PASS_INSTANCE);
+        assertEquals(0, cache.size());
+        cache.put("johnshopkins.edu:grant:10001", URI.create("http://pass/grants/1"));
+        cache.save();
+        assertEquals(1, new IdentityCache(file, PASS_INSTANCE).size());
+    }
+
+    /**
+     * A cached grant URI which can no longer be read is invalidated, and the grant is searched for again. The URIs
+     * found during the update are cached for the next one.
+     */
+    @Test
+    public void testStaleEntryInvalidated() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        IdentityCache cache = new IdentityCache(null, PASS_INSTANCE);
+        cache.put("johnshopkins.edu:grant:10001", URI.create("http://pass/grants/deleted"));
+
+        Grant storedGrant = new Grant();
+        storedGrant.setLocalKey("johnshopkins.edu:grant:10001");
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(URI.create("http://pass/grants/deleted")), eq(Grant.class)))
+                .thenThrow(new RuntimeException("Not found"));
+        when(passClient.findByAttribute(eq(Grant.class), eq("localKey"), any(String.class)))
+                .thenReturn(URI.create("http://pass/grants/1"));
+        when(passClient.readResource(eq(URI.create("http://pass/grants/1")), eq(Grant.class))).thenReturn(storedGrant);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenReturn(URI.create("http://pass/users/1"));
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setIdentityCache(cache);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+
+        assertEquals(URI.create("http://pass/grants/1"), passUpdater.getGrantUriMap().keySet().iterator().next());
+        assertEquals(0, passUpdater.getStatistics().getGrantsCreated());
+        assertEquals(1, cache.getInvalidated());
+        assertEquals(URI.create("http://pass/grants/1"), cache.get("johnshopkins.edu:grant:10001"));
+        assertEquals(URI.create("http://pass/users/1"), cache.get("johnshopkins.edu:employeeid:0000111"));
+        assertEquals(URI.create("http://pass/funders/1"), cache.get("johnshopkins.edu:funder:000029282"));
+    }
+
+}
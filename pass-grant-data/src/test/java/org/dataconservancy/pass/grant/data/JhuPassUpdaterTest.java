@@ -29,14 +29,23 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
 import static org.dataconservancy.pass.grant.data.JhuPassUpdater.returnLaterUpdate;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -191,6 +200,177 @@ public class JhuPassUpdaterTest {
         assertEquals("johnshopkins.edu:grant:8675309", grant.getLocalKey());
     }
 
+    /**
+     * The rows returned by the aggregate form of the COEUS grant query, one per grant and person, should build
+     * the same Grant as the iteration rows they are collapsed from
+     */
+    @Test
+    public void testAggregateGrantBuilding() {
+        List<Map<String, String>> iterationRows = new ArrayList<>();
+        //first iteration - 0000111 is PI, 0000222 is co-PI
+        iterationRows.add(buildGrantRow("A1", "First Title", "01/01/2015", "01/01/2015", "12/31/2016",
+                "Terminated", "0000111", "P"));
+        iterationRows.add(buildGrantRow("A1", "First Title", "01/01/2015", "01/01/2015", "12/31/2016",
+                "Terminated", "0000222", "C"));
+        //second iteration - 0000222 takes over as PI, 0000333 is co-PI
+        iterationRows.add(buildGrantRow("A2", "Second Title", "01/01/2017", "01/01/2017", "12/31/2019",
+                "Active", "0000222", "P"));
+        iterationRows.add(buildGrantRow("A2", "Second Title", "01/01/2017", "01/01/2017", "12/31/2019",
+                "Active", "0000333", "C"));
+
+        //the same grant as collapsed by the database: earliest award number, title and dates, latest end date
+        //and status; PI on the latest iteration is P, anyone else who was ever PI or co-PI is C
+        List<Map<String, String>> aggregateRows = new ArrayList<>();
+        aggregateRows.add(buildGrantRow("A1", "First Title", "01/01/2015", "01/01/2015", "12/31/2019",
+                "Active", "0000111", "C"));
+        aggregateRows.add(buildGrantRow("A1", "First Title", "01/01/2015", "01/01/2015", "12/31/2019",
+                "Active", "0000222", "P"));
+        aggregateRows.add(buildGrantRow("A1", "First Title", "01/01/2015", "01/01/2015", "12/31/2019",
+                "Active", "0000333", "C"));
+
+        JhuPassUpdater iterationUpdater = new JhuPassUpdater(userUriMockClient());
+        iterationUpdater.updatePass(iterationRows, "grant");
+        JhuPassUpdater aggregateUpdater = new JhuPassUpdater(userUriMockClient());
+        aggregateUpdater.updatePass(aggregateRows, "grant");
+
+        Grant iterationGrant = iterationUpdater.getGrantUriMap().get(grantUri);
+        Grant aggregateGrant = aggregateUpdater.getGrantUriMap().get(grantUri);
+
+        assertEquals(iterationUpdater.getUserMap().get("0000222"), iterationGrant.getPi());
+        assertEquals(iterationGrant.getPi(), aggregateGrant.getPi());
+        assertEquals(new HashSet<>(Arrays.asList(iterationUpdater.getUserMap().get("0000111"),
+                iterationUpdater.getUserMap().get("0000333"))), new HashSet<>(iterationGrant.getCoPis()));
+        assertEquals(new HashSet<>(iterationGrant.getCoPis()), new HashSet<>(aggregateGrant.getCoPis()));
+
+        assertEquals("A1", aggregateGrant.getAwardNumber());
+        assertEquals(iterationGrant.getAwardNumber(), aggregateGrant.getAwardNumber());
+        assertEquals(iterationGrant.getProjectName(), aggregateGrant.getProjectName());
+        assertEquals(iterationGrant.getAwardDate(), aggregateGrant.getAwardDate());
+        assertEquals(iterationGrant.getStartDate(), aggregateGrant.getStartDate());
+        assertEquals(DateTimeUtil.createJodaDateTime("12/31/2019"), aggregateGrant.getEndDate());
+        assertEquals(iterationGrant.getEndDate(), aggregateGrant.getEndDate());
+        assertEquals(Grant.AwardStatus.ACTIVE, aggregateGrant.getAwardStatus());
+        assertEquals(iterationGrant.getAwardStatus(), aggregateGrant.getAwardStatus());
+    }
+
+    private Map<String, String> buildGrantRow(String awardNumber, String projectName, String awardDate,
+                                              String startDate, String endDate, String awardStatus,
+                                              String employeeId, String role) {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, awardNumber);
+        rowMap.put(C_GRANT_AWARD_STATUS, awardStatus);
+        rowMap.put(C_GRANT_LOCAL_KEY, "8675309");
+        rowMap.put(C_GRANT_PROJECT_NAME, projectName);
+        rowMap.put(C_GRANT_AWARD_DATE, awardDate);
+        rowMap.put(C_GRANT_START_DATE, startDate);
+        rowMap.put(C_GRANT_END_DATE, endDate);
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_PRIMARY_FUNDER_LOCAL_KEY, "8675309");
+        rowMap.put(C_PRIMARY_FUNDER_NAME, "J. L. Gotrocks Foundation");
+        rowMap.put(C_USER_FIRST_NAME, "First" + employeeId);
+        rowMap.put(C_USER_LAST_NAME, "Last" + employeeId);
+        rowMap.put(C_USER_EMPLOYEE_ID, employeeId);
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, role);
+        return rowMap;
+    }
+
+    /**
+     * With several workers, grants are written concurrently; a grant which cannot be written does not stop the
+     * others, and the update then fails naming it
+     */
+    @Test
+    public void testParallelGrantWrites() {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Map<String, String> rowMap = buildGrantRow("A" + i, "Project " + i, "01/01/2018", "01/01/2018",
+                    "12/31/2018", "Active", "0000111", "P");
+            rowMap.put(C_GRANT_LOCAL_KEY, String.valueOf(10000 + i));
+            rows.add(rowMap);
+        }
+
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        PassClient passClient = userUriMockClient();
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            Grant grant = invocation.getArgument(0);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                if (grant.getLocalKey().endsWith("10013")) {
+                    throw new RuntimeException("Fedora is unhappy");
+                }
+                return URI.create("grant" + grant.getAwardNumber());
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+
+        System.setProperty(DefaultPassUpdater.PASS_UPDATER_WORKERS, "4");
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        try {
+            passUpdater.updatePass(rows, "grant");
+            fail("Expected the update to fail");
+        } catch (PassUpdateException e) {
+            assertEquals(Collections.singletonList("10013"), e.getFailedKeys());
+            assertTrue(e.getMessage().startsWith("1 of 40 grant updates failed"));
+        } finally {
+            System.clearProperty(DefaultPassUpdater.PASS_UPDATER_WORKERS);
+        }
+
+        assertEquals(39, passUpdater.getStatistics().getGrantsCreated());
+        assertEquals(39, passUpdater.getGrantUriMap().size());
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 4);
+    }
+
+    /**
+     * Funders and users are written before any grants, each in a timed phase, and a funder which cannot be written
+     * stops the update before the grants which refer to it are written
+     */
+    @Test
+    public void testPhasedGrantUpdate() {
+        List<Map<String, String>> rows = new ArrayList<>();
+        rows.add(buildGrantRow("A1", "Project", "01/01/2018", "01/01/2018", "12/31/2018", "Active", "0000111", "P"));
+        rows.add(buildGrantRow("A1", "Project", "01/01/2018", "01/01/2018", "12/31/2018", "Active", "0000222", "C"));
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(userUriMockClient());
+        passUpdater.updatePass(rows, "grant");
+        assertEquals(Arrays.asList("scan", "funders", "users", "grants"),
+                new ArrayList<>(passUpdater.getStatistics().getPhases().keySet()));
+        assertEquals("2 funders", passUpdater.getStatistics().getPhases().get("funders").split(" in ")[0]);
+        assertEquals("2 users", passUpdater.getStatistics().getPhases().get("users").split(" in ")[0]);
+        assertTrue(passUpdater.getReport().contains("Phase grants: 1 grants in "));
+        assertEquals(URI.create("user0000222"), passUpdater.getGrantUriMap().get(grantUri).getCoPis().get(0));
+
+        PassClient failingClient = userUriMockClient();
+        when(failingClient.createResource(any(Funder.class))).thenThrow(new RuntimeException("Fedora is unhappy"));
+        JhuPassUpdater failingUpdater = new JhuPassUpdater(failingClient);
+        try {
+            failingUpdater.updatePass(rows, "grant");
+            fail("Expected the update to fail");
+        } catch (PassUpdateException e) {
+            assertEquals(2, e.getFailedKeys().size());
+        }
+        verify(failingClient, never()).createResource(any(Grant.class));
+        assertEquals(0, failingUpdater.getGrantUriMap().size());
+    }
+
+    /**
+     * A PassClient mock which gives each new User a URI derived from its employee ID
+     */
+    private PassClient userUriMockClient() {
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Grant.class))).thenReturn(grantUri);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("funderuri1"), URI.create("funderuri2"));
+        when(passClient.createResource(any(User.class))).thenAnswer(invocation -> {
+            User user = invocation.getArgument(0);
+            return URI.create("user" + user.getLocatorIds().get(0).replaceAll("\\D", ""));
+        });
+        return passClient;
+    }
+
     @Test
     public void testUserBuilding() {
 
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.C_GRANT_LOCAL_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the cursor which merges partitioned pulls
+ *
+ * @author jrm
+ */
+public class PartitionedRecordCursorTest {
+
+    /**
+     * Every record of every partition comes out of the merged cursor exactly once, and the per-partition
+     * counts are reported
+     */
+    @Test
+    public void testPartitionsAreMerged() {
+        PullStatistics statistics = new PullStatistics();
+        List<Callable<RecordCursor>> partitions = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            partitions.add(partition(p, 1000 * (p + 1)));
+        }
+
+        Set<String> keys = new HashSet<>();
+        int count = 0;
+        //a small queue makes the partitions wait on the consumer
+        try (RecordCursor cursor = new PartitionedRecordCursor(partitions, 10, statistics)) {
+            for (Map<String, String> record : cursor) {
+                keys.add(record.get(C_GRANT_LOCAL_KEY));
+                count++;
+            }
+        }
+        assertEquals(10000, count);
+        assertEquals(10000, keys.size());
+        assertTrue(statistics.getReport().contains("Partition 3: 4000 records"));
+    }
+
+    /**
+     * A failure in a partition is reported to the consumer with its cause
+     */
+    @Test
+    public void testPartitionFailureIsReported() {
+        List<Callable<RecordCursor>> partitions = new ArrayList<>();
+        partitions.add(partition(0, 100));
+        partitions.add(() -> {
+            throw new SQLException("no such view");
+        });
+
+        RuntimeException thrown = null;
+        try (RecordCursor cursor = new PartitionedRecordCursor(partitions, 10, new PullStatistics())) {
+            cursor.forEachRemaining(record -> { });
+        } catch (RuntimeException e) {
+            thrown = e;
+        }
+        assertTrue(thrown != null && thrown.getCause() instanceof SQLException);
+    }
+
+    private static Callable<RecordCursor> partition(int partition, int size) {
+        return () -> {
+            List<Map<String, String>> records = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Map<String, String> record = new HashMap<>();
+                record.put(C_GRANT_LOCAL_KEY, partition + "-" + i);
+                records.add(record);
+            }
+            return RecordCursor.of(records);
+        };
+    }
+
+}
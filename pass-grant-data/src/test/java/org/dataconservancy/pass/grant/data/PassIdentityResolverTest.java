@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for batched resolution of PASS identities, against a local stand-in for the PASS index. The stand-in
+ * holds a few documents, and answers a query string of OR-ed quoted values with the documents which have any of them.
+ *
+ * @author jrm
+ */
+public class PassIdentityResolverTest {
+
+    private static final Pattern QUOTED = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<JsonNode> documents = new ArrayList<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private HttpServer server;
+
+    @Before
+    public void setup() throws IOException {
+        addDocument("http://pass/grants/1", "localKey", "johnshopkins.edu:grant:10001");
+        addDocument("http://pass/grants/2", "localKey", "johnshopkins.edu:grant:10002");
+        //two grants with the same local key
+        addDocument("http://pass/grants/3", "localKey", "johnshopkins.edu:grant:10003");
+        addDocument("http://pass/grants/4", "localKey", "johnshopkins.edu:grant:10003");
+        addDocument("http://pass/users/1", "locatorIds", "johnshopkins.edu:employeeid:0000111",
+                "johnshopkins.edu:hopkinsid:A1A1A1");
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/pass/_search", this::search);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * Values are resolved in chunks: each found once is resolved to its URI, each not found is resolved to null, and
+     * one found more than once is not resolved
+     */
+    @Test
+    public void testResolveLocalKeys() throws Exception {
+        PassIdentityResolver underTest = new PassIdentityResolver(indexUrl(), 2);
+
+        Map<String, URI> resolved = underTest.resolve(Grant.class, "localKey", Arrays.asList(
+                "johnshopkins.edu:grant:10001", "johnshopkins.edu:grant:10002", "johnshopkins.edu:grant:10003",
+                "johnshopkins.edu:grant:10004", "johnshopkins.edu:grant:10001", "johnshopkins.edu:grant:\"10005\""));
+
+        assertEquals(3, queries.get());
+        assertEquals(URI.create("http://pass/grants/1"), resolved.get("johnshopkins.edu:grant:10001"));
+        assertEquals(URI.create("http://pass/grants/2"), resolved.get("johnshopkins.edu:grant:10002"));
+        assertFalse(resolved.containsKey("johnshopkins.edu:grant:10003"));
+        assertTrue(resolved.containsKey("johnshopkins.edu:grant:10004"));
+        assertNull(resolved.get("johnshopkins.edu:grant:10004"));
+        assertTrue(resolved.containsKey("johnshopkins.edu:grant:\"10005\""));
+        assertEquals(4, resolved.size());
+    }
+
+    /**
+     * Every locator ID of a user resolves to the user
+     */
+    @Test
+    public void testResolveLocatorIds() throws Exception {
+        PassIdentityResolver underTest = new PassIdentityResolver(indexUrl(), 200);
+
+        Map<String, URI> resolved = underTest.resolve(User.class, "locatorIds", Arrays.asList(
+                "johnshopkins.edu:employeeid:0000111", "johnshopkins.edu:hopkinsid:A1A1A1",
+                "johnshopkins.edu:jhed:nobody1"));
+
+        assertEquals(1, queries.get());
+        assertEquals(URI.create("http://pass/users/1"), resolved.get("johnshopkins.edu:employeeid:0000111"));
+        assertEquals(URI.create("http://pass/users/1"), resolved.get("johnshopkins.edu:hopkinsid:A1A1A1"));
+        assertNull(resolved.get("johnshopkins.edu:jhed:nobody1"));
+        assertEquals(3, resolved.size());
+    }
+
+    /**
+     * The updater writes to the entities the resolver found, without searching for them one at a time
+     */
+    @Test
+    public void testUpdaterUsesResolvedIdentities() {
+        System.setProperty("pass.fedora.baseurl", "https://localhost:8080/fcrepo/rest/");
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        Grant storedGrant = new Grant();
+        storedGrant.setId(URI.create("http://pass/grants/1"));
+        storedGrant.setLocalKey("johnshopkins.edu:grant:10001");
+        User storedUser = new User();
+        storedUser.setId(URI.create("http://pass/users/1"));
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.readResource(eq(URI.create("http://pass/grants/1")), eq(Grant.class))).thenReturn(storedGrant);
+        when(passClient.readResource(eq(URI.create("http://pass/users/1")), eq(User.class))).thenReturn(storedUser);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setIdentityResolver(new PassIdentityResolver(indexUrl(), 200));
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+
+        assertEquals(URI.create("http://pass/users/1"), passUpdater.getUserMap().get("0000111"));
+        assertEquals(storedGrant.getId(), passUpdater.getGrantUriMap().keySet().iterator().next());
+        assertEquals(0, passUpdater.getStatistics().getGrantsCreated());
+        assertEquals(1, passUpdater.getStatistics().getFundersCreated());
+        //one query each for the funders, the users and the grants
+        assertEquals(3, queries.get());
+    }
+
+    private String indexUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/pass";
+    }
+
+    private void addDocument(String id, String attribute, String... values) {
+        ObjectNode document = mapper.createObjectNode();
+        document.put("@id", id);
+        if (values.length == 1) {
+            document.put(attribute, values[0]);
+        } else {
+            ArrayNode array = document.putArray(attribute);
+            for (String value : values) {
+                array.add(value);
+            }
+        }
+        documents.add(document);
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        queries.incrementAndGet();
+        JsonNode request = mapper.readTree(exchange.getRequestBody());
+        String query = request.path("query").path("query_string").path("query").asText();
+        String attribute = query.replaceFirst("^@type:\\w+ AND (\\w+):\\(.*$", "$1");
+        List<String> values = new ArrayList<>();
+        Matcher matcher = QUOTED.matcher(query);
+        while (matcher.find()) {
+            values.add(matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+        }
+
+        ArrayNode hits = mapper.createArrayNode();
+        int total = 0;
+        for (JsonNode document : documents) {
+            JsonNode documentValues = document.path(attribute);
+            boolean match = false;
+            for (JsonNode value : documentValues.isArray() ? documentValues : Arrays.asList(documentValues)) {
+                match |= values.contains(value.asText());
+            }
+            if (match && total++ < request.path("size").asInt()) {
+                hits.addObject().set("_source", document);
+            }
+        }
+        ObjectNode response = mapper.createObjectNode();
+        response.putObject("hits").put("total", total).set("hits", hits);
+        byte[] body = mapper.writeValueAsBytes(response);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+}
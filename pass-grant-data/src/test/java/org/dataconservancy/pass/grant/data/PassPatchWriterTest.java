@@ -0,0 +1,236 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.client.PassJsonAdapter;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.PassEntity;
+import org.dataconservancy.pass.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for writing updates as patches, against a local stand-in for the PASS repository which records the
+ * patches it is sent, and refuses any whose version tag is out of date
+ *
+ * @author jrm
+ */
+public class PassPatchWriterTest {
+
+    private static final String CONTEXT = "https://oa-pass.github.io/pass-data-model/src/main/resources/context.jsonld";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, JsonNode> patches = new ConcurrentHashMap<>();
+    private final Map<String, String> versionTags = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private PassPatchWriter underTest;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fcrepo/rest/", this::patch);
+        server.start();
+        underTest = new PassPatchWriter("user", "password", new TestAdapter());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * A patch holds the identity of the entity, and the changed fields, with a cleared field as null
+     */
+    @Test
+    public void testPatchBody() throws IOException {
+        Grant grant = new Grant();
+        grant.setId(URI.create("http://pass/grants/1"));
+        grant.setProjectName("Project");
+        grant.setAwardStatus(Grant.AwardStatus.TERMINATED);
+
+        JsonNode patch = mapper.readTree(underTest.patchBody(new TestAdapter().toJson(grant, true),
+                Arrays.asList("awardStatus", "endDate")));
+        assertEquals("http://pass/grants/1", patch.get("@id").asText());
+        assertEquals(CONTEXT, patch.get("@context").asText());
+        assertEquals("TERMINATED", patch.get("awardStatus").asText());
+        assertTrue(patch.get("endDate").isNull());
+        assertFalse(patch.has("projectName"));
+        assertFalse(patch.has("@type"));
+    }
+
+    /**
+     * A patch is sent with the version tag of the entity as it was read, and refused if that is out of date
+     */
+    @Test
+    public void testVersionTag() throws IOException {
+        URI uri = uri("grants/1");
+        versionTags.put(uri.getPath(), "\"v2\"");
+        Grant grant = new Grant();
+        grant.setId(uri);
+        grant.setVersionTag("\"v2\"");
+        PassUpdateStatistics statistics = new PassUpdateStatistics();
+
+        underTest.patch(uri, grant, Arrays.asList("awardStatus"), statistics);
+        assertEquals(1, statistics.getPatchesSent());
+        assertTrue(statistics.getPatchBytes() < statistics.getWholeBytes());
+
+        grant.setVersionTag("\"v1\"");
+        try {
+            underTest.patch(uri, grant, Arrays.asList("awardStatus"), statistics);
+            fail("A patch of an out of date version should be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("has changed since it was read"));
+        }
+        assertEquals(1, statistics.getPatchesSent());
+    }
+
+    /**
+     * The updater sends only the fields which changed, and reports the bytes it sent
+     */
+    @Test
+    public void testUpdaterSendsPatches() {
+        System.setProperty("pass.fedora.baseurl", "https://localhost:8080/fcrepo/rest/");
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Terminated");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.findByAttribute(eq(Funder.class), eq("localKey"), any(String.class)))
+                .thenReturn(uri("funders/1"));
+        when(passClient.findByAttribute(eq(User.class), eq("locatorIds"), any(String.class)))
+                .thenReturn(uri("users/1"));
+        when(passClient.findByAttribute(eq(Grant.class), eq("localKey"), any(String.class)))
+                .thenReturn(uri("grants/1"));
+        when(passClient.readResource(any(URI.class), eq(Funder.class))).thenAnswer(invocation -> new Funder());
+        when(passClient.readResource(any(URI.class), eq(User.class))).thenAnswer(invocation -> new User());
+        when(passClient.readResource(any(URI.class), eq(Grant.class))).thenAnswer(invocation -> {
+            Grant stored = new Grant();
+            stored.setProjectName("Project");
+            stored.setAwardStatus(Grant.AwardStatus.ACTIVE);
+            return stored;
+        });
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setPatchWriter(underTest);
+        passUpdater.updatePass(Arrays.asList(rowMap), "grant");
+
+        assertEquals(1, passUpdater.getStatistics().getGrantsUpdated());
+        assertEquals(3, passUpdater.getStatistics().getPatchesSent());
+        JsonNode grantPatch = patches.get(uri("grants/1").getPath());
+        assertEquals("TERMINATED", grantPatch.get("awardStatus").asText());
+        assertFalse(grantPatch.has("projectName"));
+        assertTrue(passUpdater.getReport().contains("3 updates were sent as patches of"));
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + "/fcrepo/rest/" + path);
+    }
+
+    private void patch(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String expected = versionTags.get(path);
+        int status;
+        if (!"PATCH".equals(exchange.getRequestMethod())
+                || !exchange.getRequestHeaders().getFirst("Content-Type").startsWith("application/merge-patch+json")) {
+            status = 400;
+        } else if (expected != null && !expected.equals(exchange.getRequestHeaders().getFirst("If-Match"))) {
+            status = 412;
+        } else {
+            try (InputStream body = exchange.getRequestBody()) {
+                patches.put(path, mapper.readTree(body));
+            }
+            status = 204;
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * Serializes the fields of an entity the loader writes, as the PASS client would, with its identity and context
+     */
+    private class TestAdapter implements PassJsonAdapter {
+        @Override
+        public byte[] toJson(PassEntity entity, boolean includeContext) {
+            ObjectNode json = mapper.createObjectNode();
+            json.put("@id", String.valueOf(entity.getId()));
+            json.put("@type", entity.getClass().getSimpleName());
+            if (includeContext) {
+                json.put("@context", CONTEXT);
+            }
+            for (Map.Entry<String, JsonNode> field : EntityFields.snapshot(entity).entrySet()) {
+                if (!field.getValue().isNull()) {
+                    json.set(field.getKey(), field.getValue());
+                }
+            }
+            try {
+                return mapper.writeValueAsBytes(json);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public <T extends PassEntity> T toModel(byte[] json, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends PassEntity> T toModel(InputStream json, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
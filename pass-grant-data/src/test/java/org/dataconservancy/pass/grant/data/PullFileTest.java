@@ -0,0 +1,341 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for writing and reading pull files
+ *
+ * @author jrm
+ */
+public class PullFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Rows are read back as they were written, with null, empty, long and non-ASCII values, compressed or not
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Map<String, String>> rows = rows(500);
+        Map<String, String> odd = new HashMap<>();
+        odd.put(C_GRANT_LOCAL_KEY, null);
+        odd.put(C_GRANT_PROJECT_NAME, "");
+        StringBuilder title = new StringBuilder("Caf\u00e9 ");
+        for (int i = 0; i < 1000; i++) {
+            title.append("study ");
+        }
+        odd.put(C_GRANT_AWARD_NUMBER, title.toString());
+        rows.add(odd);
+        rows.add(new HashMap<>());
+
+        for (boolean compressed : Arrays.asList(false, true)) {
+            Path file = folder.getRoot().toPath().resolve("pull-" + compressed);
+            write(file, rows, compressed);
+            assertEquals(rows, read(file));
+        }
+    }
+
+    /**
+     * More distinct short strings than the dictionary holds are written out in full once it is full
+     */
+    @Test
+    public void testDictionaryFull() throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < PullFile.MAX_DICTIONARY + 100; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_GRANT_LOCAL_KEY, String.valueOf(i));
+            rows.add(row);
+        }
+        Path file = folder.getRoot().toPath().resolve("pull");
+        write(file, rows, false);
+        assertEquals(rows, read(file));
+    }
+
+    /**
+     * A file is only replaced when its writer is committed, and an uncommitted writer leaves nothing behind
+     */
+    @Test
+    public void testUncommittedWriter() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        List<Map<String, String>> rows = rows(10);
+        write(file, rows, false);
+
+        try (PullFile.Writer writer = PullFile.create(file, false)) {
+            writer.write(rows.get(0));
+        }
+        assertEquals(rows, read(file));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    /**
+     * A file which was cut short is found out when its end is reached
+     */
+    @Test
+    public void testTruncatedFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        write(file, rows(200), false);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+
+        int read = 0;
+        try (RecordCursor cursor = PullFile.open(file)) {
+            while (cursor.hasNext()) {
+                cursor.next();
+                read++;
+            }
+            fail("Expected the file to be incomplete");
+        } catch (PullFile.ReadException e) {
+            assertTrue(e.getMessage().contains("incomplete"));
+        }
+        assertTrue(read > 190);
+    }
+
+    /**
+     * A file which is not a pull file is not read
+     */
+    @Test(expected = IOException.class)
+    public void testNotPullFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        Files.write(file, "grant,user\n".getBytes());
+        PullFile.open(file);
+    }
+
+    /**
+     * Pull files serialized by earlier versions are still read
+     */
+    @Test
+    public void testLegacyFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        List<Map<String, String>> rows = rows(50);
+        serialize(file, rows);
+        assertEquals(rows, read(file));
+    }
+
+    /**
+     * A serialized file holding anything but lists, maps and strings is refused before it is deserialized
+     */
+    @Test
+    public void testLegacyFileFiltered() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        List<Object> rows = new ArrayList<>();
+        Map<String, Object> row = new HashMap<>();
+        row.put(C_GRANT_LOCAL_KEY, new File("/etc/passwd"));
+        rows.add(row);
+        serialize(file, rows);
+        try {
+            PullFile.open(file);
+            fail("Expected the file to be refused");
+        } catch (InvalidClassException e) {
+            assertTrue(e.getMessage().contains("REJECTED"));
+        }
+    }
+
+    /**
+     * The same rows take much less space than they did serialized, and less again compressed
+     */
+    @Test
+    public void testFileSize() throws Exception {
+        List<Map<String, String>> rows = rows(5000);
+        Path serialized = folder.getRoot().toPath().resolve("pull.ser");
+        Path plain = folder.getRoot().toPath().resolve("pull");
+        Path compressed = folder.getRoot().toPath().resolve("pull.gz");
+        serialize(serialized, rows);
+        write(plain, rows, false);
+        write(compressed, rows, true);
+        assertTrue(Files.size(plain) * 2 < Files.size(serialized));
+        assertTrue(Files.size(compressed) < Files.size(plain));
+        assertFalse(Files.size(compressed) == 0);
+    }
+
+    /**
+     * A sharded pull puts every row of a grant in the same shard, and its manifest reads back all of the shards
+     */
+    @Test
+    public void testShards() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        List<Map<String, String>> rows = rows(3000);
+        try (PullFile.Writer writer = PullFile.create(file, true, C_GRANT_LOCAL_KEY, 4)) {
+            for (Map<String, String> row : rows) {
+                writer.write(row);
+            }
+            writer.commit();
+            long shardRows = 0;
+            for (int k = 1; k <= 4; k++) {
+                assertTrue(writer.getRows(k) > 0);
+                shardRows += writer.getRows(k);
+            }
+            assertEquals(3000, shardRows);
+        }
+        assertEquals(5, folder.getRoot().list().length);
+
+        List<Map<String, String>> all = read(file);
+        assertEquals(new HashSet<>(rows), new HashSet<>(all));
+        assertEquals(rows.size(), all.size());
+
+        Map<String, Integer> grantShards = new HashMap<>();
+        List<Map<String, String>> sharded = new ArrayList<>();
+        for (int k = 1; k <= 4; k++) {
+            try (RecordCursor cursor = PullFile.open(file, k, 4)) {
+                for (Map<String, String> row : cursor) {
+                    Integer previous = grantShards.put(row.get(C_GRANT_LOCAL_KEY), k);
+                    assertTrue(previous == null || previous == k);
+                    sharded.add(row);
+                }
+            }
+        }
+        assertEquals(all, sharded);
+    }
+
+    /**
+     * A shard is only loaded as one of the number of shards the pull was split into
+     */
+    @Test
+    public void testShardCount() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        List<Map<String, String>> rows = rows(100);
+        write(file, rows, false);
+        try (RecordCursor cursor = PullFile.open(file, 1, 1)) {
+            assertTrue(cursor.hasNext());
+        }
+        try {
+            PullFile.open(file, 1, 2);
+            fail("Expected an unsharded pull to be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not split"));
+        }
+
+        try (PullFile.Writer writer = PullFile.create(file, false, C_GRANT_LOCAL_KEY, 2)) {
+            for (Map<String, String> row : rows) {
+                writer.write(row);
+            }
+            writer.commit();
+        }
+        try {
+            PullFile.open(file, 1, 3);
+            fail("Expected the shard count to be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("2 shards"));
+        }
+    }
+
+    /**
+     * A shard which was changed after its manifest was written is found out by its checksum
+     */
+    @Test
+    public void testShardChecksum() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("pull");
+        try (PullFile.Writer writer = PullFile.create(file, false, C_GRANT_LOCAL_KEY, 2)) {
+            for (Map<String, String> row : rows(100)) {
+                writer.write(row);
+            }
+            writer.commit();
+        }
+        Path shard = PullFile.shardFile(file, 2, 2);
+        byte[] bytes = Files.readAllBytes(shard);
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        bytes[text.indexOf("Studies")] = 'T';
+        Files.write(shard, bytes);
+
+        try (RecordCursor cursor = PullFile.open(file, 1, 2)) {
+            cursor.forEachRemaining(row -> { });
+        }
+        try (RecordCursor cursor = PullFile.open(file, 2, 2)) {
+            cursor.forEachRemaining(row -> { });
+            fail("Expected the shard to be refused");
+        } catch (PullFile.ReadException e) {
+            assertTrue(e.getMessage().contains("does not match its manifest"));
+        }
+    }
+
+    //rows shaped like a grant pull, in which most values repeat
+    static List<Map<String, String>> rows(int count) {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> row = new HashMap<>();
+            row.put(C_GRANT_AWARD_NUMBER, "R01 AB" + (100000 + i / 3));
+            row.put(C_GRANT_AWARD_STATUS, i % 7 == 0 ? "Terminated" : "Active");
+            row.put(C_GRANT_LOCAL_KEY, String.valueOf(10000 + i / 3));
+            row.put(C_GRANT_PROJECT_NAME, "Studies of the mechanisms of synergy in project " + (i / 3));
+            row.put(C_GRANT_AWARD_DATE, "01/" + (10 + i % 17) + "/2018");
+            row.put(C_GRANT_START_DATE, "07/01/2018");
+            row.put(C_GRANT_END_DATE, "06/30/2023");
+            row.put(C_DIRECT_FUNDER_LOCAL_KEY, "0000" + (29282 + i % 20));
+            row.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy " + i % 20);
+            row.put(C_PRIMARY_FUNDER_LOCAL_KEY, "0000" + (30000 + i % 5));
+            row.put(C_PRIMARY_FUNDER_NAME, "National Institutes of Health " + i % 5);
+            row.put(C_USER_FIRST_NAME, "First" + i % 400);
+            row.put(C_USER_MIDDLE_NAME, null);
+            row.put(C_USER_LAST_NAME, "Last" + i % 400);
+            row.put(C_USER_EMAIL, "user" + i % 400 + "@jhu.edu");
+            row.put(C_USER_EMPLOYEE_ID, String.valueOf(10000000 + i % 400));
+            row.put(C_ABBREVIATED_ROLE, i % 3 == 0 ? "P" : "C");
+            row.put(C_UPDATE_TIMESTAMP, "2018-01-01 0" + i % 10 + ":00:00.0");
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void write(Path file, List<Map<String, String>> rows, boolean compressed) throws IOException {
+        try (PullFile.Writer writer = PullFile.create(file, compressed)) {
+            for (Map<String, String> row : rows) {
+                writer.write(row);
+            }
+            writer.commit();
+            assertEquals(rows.size(), writer.getRows());
+        }
+    }
+
+    private static List<Map<String, String>> read(Path file) throws IOException {
+        List<Map<String, String>> rows = new ArrayList<>();
+        try (RecordCursor cursor = PullFile.open(file)) {
+            cursor.forEachRemaining(rows::add);
+        }
+        return rows;
+    }
+
+    private static void serialize(Path file, Object rows) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(file))) {
+            out.writeObject(rows);
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.grant.data;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the row fingerprint set used to de-duplicate pulls
+ *
+ * @author jrm
+ */
+public class RowFingerprintSetTest {
+
+    /**
+     * Rows which are equal as maps are duplicates, however they were built
+     */
+    @Test
+    public void testEqualRowsAreDuplicates() {
+        RowFingerprintSet underTest = new RowFingerprintSet();
+
+        Map<String, String> row = new HashMap<>();
+        row.put(C_GRANT_LOCAL_KEY, "10000001");
+        row.put(C_USER_EMPLOYEE_ID, "0000111");
+        row.put(C_USER_MIDDLE_NAME, null);
+
+        Map<String, String> sameRow = new LinkedHashMap<>();
+        sameRow.put(C_USER_MIDDLE_NAME, null);
+        sameRow.put(C_USER_EMPLOYEE_ID, "0000111");
+        sameRow.put(C_GRANT_LOCAL_KEY, "10000001");
+
+        assertTrue(underTest.add(row));
+        assertFalse(underTest.add(sameRow));
+        assertEquals(1, underTest.size());
+    }
+
+    /**
+     * Rows differing in a value, a null, or the boundary between key and value are distinct
+     */
+    @Test
+    public void testDifferentRowsAreDistinct() {
+        RowFingerprintSet underTest = new RowFingerprintSet();
+
+        Map<String, String> row = new HashMap<>();
+        row.put(C_GRANT_LOCAL_KEY, "10000001");
+        row.put(C_USER_MIDDLE_NAME, null);
+        assertTrue(underTest.add(row));
+
+        Map<String, String> otherValue = new HashMap<>(row);
+        otherValue.put(C_GRANT_LOCAL_KEY, "10000002");
+        assertTrue(underTest.add(otherValue));
+
+        Map<String, String> emptyValue = new HashMap<>(row);
+        emptyValue.put(C_USER_MIDDLE_NAME, "");
+        assertTrue(underTest.add(emptyValue));
+
+        Map<String, String> shifted = new HashMap<>();
+        shifted.put("ab", "c");
+        Map<String, String> unshifted = new HashMap<>();
+        unshifted.put("a", "bc");
+        assertTrue(underTest.add(shifted));
+        assertTrue(underTest.add(unshifted));
+
+        assertEquals(5, underTest.size());
+    }
+
+    /**
+     * The set keeps its contents as it grows
+     */
+    @Test
+    public void testGrowth() {
+        RowFingerprintSet underTest = new RowFingerprintSet();
+        List<Map<String, String>> rows = syntheticRows(50000, 10);
+        int added = 0;
+        for (Map<String, String> row : rows) {
+            if (underTest.add(row)) {
+                added++;
+            }
+        }
+        assertEquals(5000, added);
+        assertEquals(5000, underTest.size());
+        for (Map<String, String> row : rows) {
+            assertFalse(underTest.add(row));
+        }
+    }
+
+    /**
+     * Compares the CPU time of the pull-side de-duplication against the list scan it replaced. The list scan is
+     * quadratic, so it is only run for the smaller sizes. Run by hand.
+     */
+    @Ignore
+    @Test
+    public void benchmarkDeduplication() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        for (int size : new int[] {10000, 50000, 100000, 500000, 1000000}) {
+            List<Map<String, String>> rows = syntheticRows(size, 3);
+
+            long start = threadBean.getCurrentThreadCpuTime();
+            RowFingerprintSet seen = new RowFingerprintSet();
+            int kept = 0;
+            for (Map<String, String> row : rows) {
+                if (seen.add(row)) {
+                    kept++;
+                }
+            }
+            long fingerprintMillis = (threadBean.getCurrentThreadCpuTime() - start) / 1000000;
+
+            String listMillis = "skipped";
+            if (size <= 50000) {
+                start = threadBean.getCurrentThreadCpuTime();
+                List<Map<String, String>> mapList = new ArrayList<>();
+                for (Map<String, String> row : rows) {
+                    if (!mapList.contains(row)) {
+                        mapList.add(row);
+                    }
+                }
+                listMillis = String.valueOf((threadBean.getCurrentThreadCpuTime() - start) / 1000000);
+                assertEquals(mapList.size(), kept);
+            }
+            System.out.println(String.format("%d rows (%d distinct): fingerprint set %d ms, list scan %s ms",
+                    size, kept, fingerprintMillis, listMillis));
+        }
+    }
+
+    /**
+     * Build rows shaped like a COEUS grant pull, where each distinct row appears {@code copies} times
+     */
+    private static List<Map<String, String>> syntheticRows(int size, int copies) {
+        List<Map<String, String>> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int n = i % (size / copies);
+            Map<String, String> row = new HashMap<>();
+            row.put(C_GRANT_AWARD_NUMBER, "A" + n);
+            row.put(C_GRANT_AWARD_STATUS, "Active");
+            row.put(C_GRANT_LOCAL_KEY, String.valueOf(10000000 + n / 3));
+            row.put(C_GRANT_PROJECT_NAME, "Synthetic project number " + n / 3);
+            row.put(C_GRANT_AWARD_DATE, "07/01/2019");
+            row.put(C_GRANT_START_DATE, "07/01/2019");
+            row.put(C_GRANT_END_DATE, "06/30/2024");
+            row.put(C_DIRECT_FUNDER_NAME, "Funder " + n % 200);
+            row.put(C_DIRECT_FUNDER_LOCAL_KEY, String.valueOf(n % 200));
+            row.put(C_USER_FIRST_NAME, "First" + n % 5000);
+            row.put(C_USER_MIDDLE_NAME, null);
+            row.put(C_USER_LAST_NAME, "Last" + n % 5000);
+            row.put(C_USER_EMAIL, "user" + n % 5000 + "@jhu.edu");
+            row.put(C_USER_EMPLOYEE_ID, String.valueOf(1000000 + n % 5000));
+            row.put(C_UPDATE_TIMESTAMP, "2019-07-01 00:00:00.0");
+            row.put(C_ABBREVIATED_ROLE, n % 3 == 0 ? "P" : "C");
+            rows.add(row);
+        }
+        return rows;
+    }
+
+}
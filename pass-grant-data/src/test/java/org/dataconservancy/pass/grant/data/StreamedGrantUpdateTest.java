@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for updates which take grant rows ordered by grant number, and write each grant as its rows end
+ *
+ * @author jrm
+ */
+public class StreamedGrantUpdateTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+
+    @Before
+    public void setup() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        System.setProperty(DefaultPassUpdater.PASS_UPDATER_WORKERS, "4");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DefaultPassUpdater.PASS_UPDATER_WORKERS);
+    }
+
+    /**
+     * A streamed update builds the same grants as one which holds every row until the pull has been read
+     */
+    @Test
+    public void testStreamedGrantsMatch() {
+        List<Map<String, String>> rows = new ArrayList<>();
+        rows.add(row("10001", "0000111", "P", "01/01/2016", "Active"));
+        rows.add(row("10001", "0000222", "C", "01/01/2016", "Active"));
+        rows.add(row("10001", "0000222", "P", "01/01/2018", "Terminated"));
+        rows.add(row("10002", "0000333", "P", "01/01/2017", "Active"));
+        rows.add(row("10003", "0000111", "C", "01/01/2017", "Pre-Award"));
+        rows.add(row("10003", "0000333", "P", "01/01/2017", "Pre-Award"));
+
+        Map<String, Grant> phased = new ConcurrentHashMap<>();
+        JhuPassUpdater phasedUpdater = new JhuPassUpdater(passClient(phased));
+        phasedUpdater.updatePass(rows, "grant");
+
+        Map<String, Grant> streamed = new ConcurrentHashMap<>();
+        JhuPassUpdater streamedUpdater = new JhuPassUpdater(passClient(streamed));
+        streamedUpdater.setStreaming(true);
+        streamedUpdater.updatePass(rows, "grant");
+
+        assertEquals(3, streamed.size());
+        assertEquals(3, streamedUpdater.getStatistics().getGrantsCreated());
+        assertEquals(phasedUpdater.getLatestUpdate(), streamedUpdater.getLatestUpdate());
+        assertEquals(phasedUpdater.getStatistics().getPisAdded(), streamedUpdater.getStatistics().getPisAdded());
+        assertEquals(phasedUpdater.getStatistics().getCoPisAdded(), streamedUpdater.getStatistics().getCoPisAdded());
+        for (Map.Entry<String, Grant> grant : phased.entrySet()) {
+            Grant streamedGrant = streamed.get(grant.getKey());
+            assertEquals(EntityFields.snapshot(grant.getValue()), EntityFields.snapshot(streamedGrant));
+        }
+        assertEquals(Grant.AwardStatus.TERMINATED, streamed.get("johnshopkins.edu:grant:10001").getAwardStatus());
+        assertEquals(URI.create("http://pass/users/0000222"), streamed.get("johnshopkins.edu:grant:10001").getPi());
+        assertEquals(3, streamedUpdater.getGrantUriMap().size());
+    }
+
+    /**
+     * Grants which are not to be kept once written are not on the grant map
+     */
+    @Test
+    public void testGrantsNotRetained() {
+        Map<String, Grant> streamed = new ConcurrentHashMap<>();
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient(streamed));
+        passUpdater.setStreaming(true);
+        passUpdater.setRetainGrants(false);
+        passUpdater.updatePass(Arrays.asList(row("10001", "0000111", "P", "01/01/2016", "Active")), "grant");
+        assertEquals(1, streamed.size());
+        assertTrue(passUpdater.getGrantUriMap().isEmpty());
+    }
+
+    /**
+     * Rows which are not ordered by grant number fail the update, rather than a grant being written from part of
+     * its rows
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testUnorderedRowsFail() {
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient(new ConcurrentHashMap<>()));
+        passUpdater.setStreaming(true);
+        passUpdater.updatePass(Arrays.asList(
+                row("10002", "0000111", "P", "01/01/2016", "Active"),
+                row("10001", "0000222", "P", "01/01/2016", "Active")), "grant");
+    }
+
+    /**
+     * A funder which cannot be written fails the grants which refer to it, and the update
+     */
+    @Test
+    public void testFailedFunderFailsUpdate() {
+        Map<String, Grant> streamed = new ConcurrentHashMap<>();
+        PassClient passClient = passClient(streamed);
+        when(passClient.createResource(any(Funder.class))).thenThrow(new RuntimeException("PASS is down"));
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setStreaming(true);
+        try {
+            passUpdater.updatePass(Arrays.asList(row("10001", "0000111", "P", "01/01/2016", "Active")), "grant");
+            fail("The funder could not be written, so the update should fail");
+        } catch (PassUpdateException e) {
+            assertTrue(e.getMessage().contains("funder updates failed"));
+        }
+        assertTrue(streamed.isEmpty());
+    }
+
+    /**
+     * A user who cannot be written fails only the grants which refer to them: the other grants are written, whether
+     * the update is streamed or not, and the update still fails
+     */
+    @Test
+    public void testFailedUserFailsOnlyItsGrants() {
+        for (boolean streaming : new boolean[] {false, true}) {
+            Map<String, Grant> written = new ConcurrentHashMap<>();
+            PassClient passClient = passClient(written);
+            when(passClient.createResource(any(User.class))).thenAnswer(invocation -> {
+                String locatorId = ((User) invocation.getArgument(0)).getLocatorIds().get(0);
+                if (locatorId.endsWith("0000222")) {
+                    throw new RuntimeException("PASS is down");
+                }
+                return URI.create("http://pass/users/" + locatorId.replaceAll(".*:", ""));
+            });
+            JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+            passUpdater.setStreaming(streaming);
+            try {
+                passUpdater.updatePass(Arrays.asList(
+                        row("10001", "0000111", "P", "01/01/2016", "Active"),
+                        row("10002", "0000111", "P", "01/01/2016", "Active"),
+                        row("10002", "0000222", "C", "01/01/2016", "Active"),
+                        row("10003", "0000333", "P", "01/01/2016", "Active")), "grant");
+                fail("The user could not be written, so the update should fail");
+            } catch (PassUpdateException e) {
+                assertTrue(e.getMessage().contains("user updates failed"));
+            }
+            assertEquals(2, written.size());
+            assertTrue(written.containsKey("johnshopkins.edu:grant:10001"));
+            assertTrue(written.containsKey("johnshopkins.edu:grant:10003"));
+        }
+    }
+
+    private static PassClient passClient(Map<String, Grant> created) {
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenAnswer(invocation ->
+                URI.create("http://pass/funders/" + ((Funder) invocation.getArgument(0)).getLocalKey()));
+        when(passClient.createResource(any(User.class))).thenAnswer(invocation ->
+                URI.create("http://pass/users/" + ((User) invocation.getArgument(0)).getLocatorIds().get(0)
+                        .replaceAll(".*:", "")));
+        when(passClient.createResource(any(Grant.class))).thenAnswer(invocation -> {
+            Grant grant = invocation.getArgument(0);
+            created.put(grant.getLocalKey(), grant);
+            return URI.create("http://pass/grants/" + grant.getLocalKey());
+        });
+        return passClient;
+    }
+
+    private static Map<String, String> row(String grantLocalKey, String employeeId, String role, String awardDate,
+                                           String status) {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A" + grantLocalKey);
+        rowMap.put(C_GRANT_AWARD_STATUS, status);
+        rowMap.put(C_GRANT_LOCAL_KEY, grantLocalKey);
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project " + awardDate);
+        rowMap.put(C_GRANT_AWARD_DATE, awardDate);
+        rowMap.put(C_GRANT_START_DATE, awardDate);
+        rowMap.put(C_GRANT_END_DATE, "12/31/2019");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last" + employeeId);
+        rowMap.put(C_USER_EMPLOYEE_ID, employeeId);
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-0" + grantLocalKey.charAt(4) + " 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, role);
+        return rowMap;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2021 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dataconservancy.pass.grant.data;
+
+import org.dataconservancy.pass.client.PassClient;
+import org.dataconservancy.pass.model.Funder;
+import org.dataconservancy.pass.model.Grant;
+import org.dataconservancy.pass.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.dataconservancy.pass.grant.data.CoeusFieldNames.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for the journal of the entities written by an update, which lets an update which died be resumed
+ *
+ * @author jrm
+ */
+public class UpdateJournalTest {
+
+    private static final String PASS_INSTANCE = "https://localhost:8080/fcrepo/rest/";
+    private static final URI GRANT_URI = URI.create("http://pass/grants/1");
+    private static final URI USER_URI = URI.create("http://pass/users/1");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records survive a reopen against the same PASS instance, and match only with the same fingerprint
+     */
+    @Test
+    public void testReopen() {
+        Path file = folder.getRoot().toPath().resolve("update.journal");
+        UpdateJournal journal = new UpdateJournal(file, PASS_INSTANCE);
+        journal.record(UpdateJournal.CREATED, "johnshopkins.edu:grant:10001", GRANT_URI, 42L);
+        journal.record(UpdateJournal.UNCHANGED, "johnshopkins.edu:employeeid:0000111", USER_URI, -7L);
+        journal.sync();
+
+        UpdateJournal reopened = new UpdateJournal(file, PASS_INSTANCE);
+        assertEquals(2, reopened.getLoaded());
+        assertEquals(GRANT_URI, reopened.completed("johnshopkins.edu:grant:10001", 42L));
+        assertEquals(USER_URI, reopened.completed("johnshopkins.edu:employeeid:0000111", -7L));
+        assertNull(reopened.completed("johnshopkins.edu:grant:10001", 43L));
+        assertNull(reopened.completed("johnshopkins.edu:grant:10002", 42L));
+
+        assertEquals(0, new UpdateJournal(file, "https://pass.example.edu/fcrepo/rest/").size());
+    }
+
+    /**
+     * A record cut short by a crash is dropped, and the records after it are appended in its place
+     */
+    @Test
+    public void testTruncatedRecordIsDropped() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("update.journal");
+        UpdateJournal journal = new UpdateJournal(file, PASS_INSTANCE);
+        journal.record(UpdateJournal.CREATED, "johnshopkins.edu:grant:10001", GRANT_URI, 42L);
+        journal.record(UpdateJournal.UPDATED, "johnshopkins.edu:grant:10002", URI.create("http://pass/grants/2"), 43L);
+        journal.sync();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        UpdateJournal reopened = new UpdateJournal(file, PASS_INSTANCE);
+        assertEquals(1, reopened.getLoaded());
+        assertNull(reopened.completed("johnshopkins.edu:grant:10002", 43L));
+        reopened.record(UpdateJournal.UPDATED, "johnshopkins.edu:grant:10003", URI.create("http://pass/grants/3"), 44L);
+        reopened.sync();
+
+        UpdateJournal again = new UpdateJournal(file, PASS_INSTANCE);
+        assertEquals(2, again.getLoaded());
+        assertEquals(GRANT_URI, again.completed("johnshopkins.edu:grant:10001", 42L));
+    }
+
+    /**
+     * Once the update is committed, there is nothing left to resume
+     */
+    @Test
+    public void testCommit() {
+        Path file = folder.getRoot().toPath().resolve("update.journal");
+        UpdateJournal journal = new UpdateJournal(file, PASS_INSTANCE);
+        journal.record(UpdateJournal.CREATED, "johnshopkins.edu:grant:10001", GRANT_URI, 42L);
+        journal.commit();
+        assertEquals(0, journal.size());
+        assertEquals(0, new UpdateJournal(file, PASS_INSTANCE).getLoaded());
+    }
+
+    /**
+     * An update which is run again after dying does not look up, read or write the entities it already wrote
+     */
+    @Test
+    public void testResume() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Path file = folder.getRoot().toPath().resolve("update.journal");
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenReturn(GRANT_URI);
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setJournal(new UpdateJournal(file, PASS_INSTANCE));
+        passUpdater.updatePass(Arrays.asList(row()), "grant");
+        assertEquals(1, passUpdater.getStatistics().getGrantsCreated());
+
+        //the timestamp was never recorded, so the same rows are read again
+        PassClient resumed = mock(PassClient.class);
+        when(resumed.findByAttribute(any(), any(String.class), any())).thenThrow(new RuntimeException("Looked up"));
+        when(resumed.createResource(any())).thenThrow(new RuntimeException("Written again"));
+        JhuPassUpdater resumedUpdater = new JhuPassUpdater(resumed);
+        resumedUpdater.setJournal(new UpdateJournal(file, PASS_INSTANCE));
+        resumedUpdater.updatePass(Arrays.asList(row()), "grant");
+        assertEquals(0, resumedUpdater.getStatistics().getGrantsCreated());
+        assertEquals(3, resumedUpdater.getStatistics().getResumed());
+        assertTrue(resumedUpdater.getReport().contains("3 records were written by an earlier update"));
+
+        resumedUpdater.commitJournal();
+        assertEquals(0, new UpdateJournal(file, PASS_INSTANCE).getLoaded());
+    }
+
+    /**
+     * Each mode, and each shard, keeps its own journal, and committing an update empties the journal of its own mode
+     * only. Each shard keeps its own caches too.
+     */
+    @Test
+    public void testJournalPerMode() {
+        System.setProperty("pass.fedora.baseurl", PASS_INSTANCE);
+        Path directory = folder.getRoot().toPath();
+        PassClient passClient = mock(PassClient.class);
+        when(passClient.createResource(any(Funder.class))).thenReturn(URI.create("http://pass/funders/1"));
+        when(passClient.createResource(any(User.class))).thenReturn(USER_URI);
+        when(passClient.createResource(any(Grant.class))).thenReturn(GRANT_URI);
+
+        JhuPassUpdater passUpdater = new JhuPassUpdater(passClient);
+        passUpdater.setStoreDirectory(directory);
+        Map<String, String> funderRow = new HashMap<>();
+        funderRow.put(C_PRIMARY_FUNDER_LOCAL_KEY, "000029282");
+        funderRow.put(C_PRIMARY_FUNDER_NAME, "JHU Department of Synergy");
+        passUpdater.updatePass(Arrays.asList(funderRow), "funder");
+        passUpdater.updatePass(Arrays.asList(row()), "grant");
+        passUpdater.commitJournal();
+        assertFalse(Files.exists(directory.resolve("update.journal")));
+        assertEquals(1, new UpdateJournal(directory.resolve("update.journal.funder"), PASS_INSTANCE).getLoaded());
+        assertEquals(0, new UpdateJournal(directory.resolve("update.journal.grant"), PASS_INSTANCE).getLoaded());
+
+        JhuPassUpdater shardUpdater = new JhuPassUpdater(passClient);
+        shardUpdater.setStoreDirectory(directory);
+        shardUpdater.setShard(2, 3);
+        shardUpdater.updatePass(Arrays.asList(row()), "grant");
+        assertEquals(3, new UpdateJournal(directory.resolve("update.journal.grant.2-of-3"), PASS_INSTANCE)
+                .getLoaded());
+        //as are its caches, which other shards may be saving at the same time
+        assertTrue(Files.exists(directory.resolve("identity.cache.2-of-3")));
+        assertTrue(Files.exists(directory.resolve("entity.fingerprints.2-of-3")));
+        assertTrue(Files.exists(directory.resolve("grant.digests.2-of-3")));
+        assertFalse(Files.exists(directory.resolve("identity.cache")));
+    }
+
+    private static Map<String, String> row() {
+        Map<String, String> rowMap = new HashMap<>();
+        rowMap.put(C_GRANT_AWARD_NUMBER, "A1");
+        rowMap.put(C_GRANT_AWARD_STATUS, "Active");
+        rowMap.put(C_GRANT_LOCAL_KEY, "10001");
+        rowMap.put(C_GRANT_PROJECT_NAME, "Project");
+        rowMap.put(C_GRANT_AWARD_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_START_DATE, "01/01/2018");
+        rowMap.put(C_GRANT_END_DATE, "12/31/2018");
+        rowMap.put(C_DIRECT_FUNDER_LOCAL_KEY, "000029282");
+        rowMap.put(C_DIRECT_FUNDER_NAME, "JHU Department of Synergy");
+        rowMap.put(C_USER_FIRST_NAME, "First");
+        rowMap.put(C_USER_LAST_NAME, "Last");
+        rowMap.put(C_USER_EMPLOYEE_ID, "0000111");
+        rowMap.put(C_UPDATE_TIMESTAMP, "2018-01-01 00:00:00.0");
+        rowMap.put(C_ABBREVIATED_ROLE, "P");
+        return rowMap;
+    }
+
+}